@@ -0,0 +1,561 @@
+package bigqueryestatespring.backend;
+
+import bigqueryestatespring.cache.QueryKey;
+import bigqueryestatespring.cube.SurfaceCube;
+import bigqueryestatespring.metrics.EstatesMetrics;
+import bigqueryestatespring.metrics.TraceIdFilter;
+import bigqueryestatespring.services.Aggregate;
+import bigqueryestatespring.services.Cancellation;
+import bigqueryestatespring.services.JobPoller;
+import bigqueryestatespring.services.MdcContext;
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.Job;
+import com.google.cloud.bigquery.JobId;
+import com.google.cloud.bigquery.JobInfo;
+import com.google.cloud.bigquery.JobStatistics;
+import com.google.cloud.bigquery.QueryJobConfiguration;
+import com.google.cloud.bigquery.QueryParameterValue;
+import com.google.cloud.bigquery.TableResult;
+import org.jooq.Condition;
+import org.jooq.DSLContext;
+import org.jooq.Field;
+import org.jooq.Record;
+import org.jooq.Select;
+import org.jooq.SelectConditionStep;
+import org.jooq.SelectSelectStep;
+import org.jooq.conf.ParamType;
+import org.jooq.impl.DSL;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+import java.math.BigDecimal;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import static bigqueryestatespring.exceptionMessages.ExceptionMessage.ERROR_WHILE_ESTIMATING_QUERY;
+import static bigqueryestatespring.exceptionMessages.ExceptionMessage.ERROR_WHILE_PROCESSING_QUERY;
+import static bigqueryestatespring.services.PropertiesAttribute.SURFACE_COVERED;
+import static org.jooq.impl.DSL.*;
+
+/**
+ * Backend which runs jOOQ rendered sql as jobs in bigQuery.
+ * Sql is rendered once per shape of the query (columns and aggregate column),
+ * range of surface and values of the path are passed as named query parameters,
+ * so text of the query is the same for all ranges and all branches of drill-down
+ */
+public class BigQueryBackend implements QueryBackend {
+    private static final Logger logger = LoggerFactory.getLogger(BigQueryBackend.class);
+    public static final String DEFAULT_TABLE_PREFIX = "properati-data-public.properties_ar.properties_rent_";
+    public static final YearMonth DEFAULT_MONTH = YearMonth.of(2015, 1);
+    /**
+     * Monthly tables are named by table prefix and month as yyyyMM
+     */
+    public static final DateTimeFormatter TABLE_SUFFIX_FORMAT = DateTimeFormatter.ofPattern("yyyyMM");
+    private static final String BOTTOM_PARAMETER = "bottom";
+    private static final String TOP_PARAMETER = "top";
+    private static final String BOTTOMS_PARAMETER = "bottoms";
+    private static final String TOPS_PARAMETER = "tops";
+    private static final String PATH_PARAMETER = "path_";
+    // Number of finished jobs needed before their p95 is used as hedge delay
+    private static final long HEDGE_MIN_SAMPLES = 20;
+
+    private final BigQuery bigQuery;
+    private final DSLContext dsl;
+    private final JobPoller jobPoller;
+    private final int cubeBucketWidth;
+    private final boolean useQueryCache;
+    private final boolean dryRun;
+    private final long hedgeMinDelayMillis;
+    private final Executor hedgeExecutor;
+    private final String tablePrefix;
+    private final YearMonth defaultMonth;
+    private final EstatesMetrics metrics;
+    private final Map<QueryKey, String> queryTemplates = new ConcurrentHashMap<>();
+    private final Map<QueryKey, String> orderedQueryTemplates = new ConcurrentHashMap<>();
+    private final Map<QueryKey, String> cubeQueryTemplates = new ConcurrentHashMap<>();
+    private final Map<QueryKey, String> rangesQueryTemplates = new ConcurrentHashMap<>();
+
+    public BigQueryBackend(BigQuery bigQuery, DSLContext dsl, JobPoller jobPoller, int cubeBucketWidth,
+                           boolean useQueryCache, boolean dryRun, EstatesMetrics metrics) {
+        this(bigQuery, dsl, jobPoller, cubeBucketWidth, useQueryCache, dryRun, 0, Runnable::run,
+                DEFAULT_TABLE_PREFIX, DEFAULT_MONTH, metrics);
+    }
+
+    /**
+     * @param cubeBucketWidth width of surface bucket of the cube, 0 keeps every distinct surface
+     * @param useQueryCache whether bigQuery may answer from its cache of query results
+     * @param dryRun whether every query is estimated by dry run before it is run
+     * @param hedgeMinDelayMillis min delay of hedged job, hedging is disabled if it is not positive
+     * @param hedgeExecutor executor creating hedged jobs, so the blocking call doesn't run on the poller
+     * @param tablePrefix dataset and name of monthly tables without the month
+     * @param defaultMonth month of the table read by keys without month
+     * @param metrics estates metrics
+     */
+    public BigQueryBackend(BigQuery bigQuery, DSLContext dsl, JobPoller jobPoller, int cubeBucketWidth,
+                           boolean useQueryCache, boolean dryRun, long hedgeMinDelayMillis, Executor hedgeExecutor,
+                           String tablePrefix, YearMonth defaultMonth, EstatesMetrics metrics) {
+        this.hedgeExecutor = hedgeExecutor;
+        this.tablePrefix = tablePrefix;
+        this.defaultMonth = defaultMonth;
+        this.hedgeMinDelayMillis = hedgeMinDelayMillis;
+        this.bigQuery = bigQuery;
+        this.dsl = dsl;
+        this.jobPoller = jobPoller;
+        this.cubeBucketWidth = cubeBucketWidth;
+        this.useQueryCache = useQueryCache;
+        this.dryRun = dryRun;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Estates tables are monthly exports which are not modified after they are published,
+     * keys of other months have their month in the key
+     */
+    @Override
+    public String getDatasetVersion() {
+        return getTableName(null);
+    }
+
+    /**
+     * @param month month of the table, null for the default month
+     * @return quoted name of the monthly table
+     */
+    private String getTableName(YearMonth month) {
+        return "`" + tablePrefix + TABLE_SUFFIX_FORMAT.format(month == null ? defaultMonth : month) + "`";
+    }
+
+    @Override
+    public CompletableFuture<Optional<TableResult>> query(QueryKey key) {
+        QueryJobConfiguration queryConfig = getQueryJobConfiguration(key);
+        if (dryRun) {
+            estimateBytes(queryConfig);
+        }
+        return runQuery(queryConfig);
+    }
+
+    @Override
+    public CompletableFuture<Optional<TableResult>> queryOrdered(QueryKey key) {
+        QueryJobConfiguration queryConfig = getQueryJobConfiguration(key, true);
+        if (dryRun) {
+            estimateBytes(queryConfig);
+        }
+        return runQuery(queryConfig);
+    }
+
+    @Override
+    public CompletableFuture<Optional<TableResult>> queryCube(QueryKey shape) {
+        String sql = cubeQueryTemplates.computeIfAbsent(shape.withoutParameters(), absent -> metrics.time(
+                EstatesMetrics.RENDER, () -> renderCubeQuery(shape)));
+        return runQuery(QueryJobConfiguration.newBuilder(sql)
+                .setUseLegacySql(false)
+                .setUseQueryCache(useQueryCache)
+                .build());
+    }
+
+    @Override
+    public CompletableFuture<Optional<TableResult>> queryRanges(List<QueryKey> keys) {
+        QueryJobConfiguration queryConfig = getRangesQueryJobConfiguration(keys);
+        if (dryRun) {
+            estimateBytes(queryConfig);
+        }
+        return runQuery(queryConfig);
+    }
+
+    @Override
+    public Optional<Long> estimateBytes(QueryKey key) {
+        return estimateBytes(getQueryJobConfiguration(key));
+    }
+
+    /**
+     * Runs the query as dry run, bigQuery only validates it and returns number of bytes it would process
+     *
+     * @param queryConfig query to be estimated
+     * @return estimated bytes, empty if dry run failed
+     */
+    private Optional<Long> estimateBytes(QueryJobConfiguration queryConfig) {
+        try {
+            Job dryRunJob = bigQuery.create(JobInfo.of(queryConfig.toBuilder().setDryRun(true).build()));
+            JobStatistics.QueryStatistics statistics = dryRunJob.getStatistics();
+            Long bytes = statistics.getTotalBytesProcessed();
+            if (bytes != null) {
+                metrics.recordEstimate(bytes);
+                logger.info("Query is estimated to process {} bytes", bytes);
+            }
+            return Optional.ofNullable(bytes);
+        } catch (RuntimeException ex) {
+            logger.error(ERROR_WHILE_ESTIMATING_QUERY);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Gets QueryJobConfiguration with cached sql of the key shape and range of the key as parameters
+     * It is done for every query, so it is public to be measured by benchmarks
+     *
+     * @param key query key with columns and range of space
+     * @return QueryJobConfiguration
+     */
+    public QueryJobConfiguration getQueryJobConfiguration(QueryKey key) {
+        return getQueryJobConfiguration(key, false);
+    }
+
+    /**
+     * @param ordered whether rows are ordered by columns of the key
+     */
+    private QueryJobConfiguration getQueryJobConfiguration(QueryKey key, boolean ordered) {
+        String sql = (ordered ? orderedQueryTemplates : queryTemplates).computeIfAbsent(key.withoutParameters(),
+                absent -> metrics.time(EstatesMetrics.RENDER, () -> renderQuery(key, ordered)));
+        return addPathParameters(QueryJobConfiguration.newBuilder(sql), key)
+                .setUseLegacySql(false)
+                .setUseQueryCache(useQueryCache)
+                .addNamedParameter(BOTTOM_PARAMETER, QueryParameterValue.int64(key.getBottom()))
+                .addNamedParameter(TOP_PARAMETER, QueryParameterValue.int64(key.getTop()))
+                .build();
+    }
+
+    /**
+     * Gets QueryJobConfiguration with cached sql of the shape of keys and their ranges as array parameters
+     *
+     * @param keys query keys with the same shape
+     * @return QueryJobConfiguration
+     */
+    private QueryJobConfiguration getRangesQueryJobConfiguration(List<QueryKey> keys) {
+        QueryKey shape = keys.get(0).withoutParameters();
+        String sql = rangesQueryTemplates.computeIfAbsent(shape, absent -> metrics.time(
+                EstatesMetrics.RENDER, () -> renderRangesQuery(shape)));
+        Long[] bottoms = new Long[keys.size()];
+        Long[] tops = new Long[keys.size()];
+        for (int i = 0; i < keys.size(); i++) {
+            bottoms[i] = (long) keys.get(i).getBottom();
+            tops[i] = (long) keys.get(i).getTop();
+        }
+        return addPathParameters(QueryJobConfiguration.newBuilder(sql), keys.get(0))
+                .setUseLegacySql(false)
+                .setUseQueryCache(useQueryCache)
+                .addNamedParameter(BOTTOMS_PARAMETER, QueryParameterValue.array(bottoms, Long.class))
+                .addNamedParameter(TOPS_PARAMETER, QueryParameterValue.array(tops, Long.class))
+                .build();
+    }
+
+    /**
+     * Renders sql query for many ranges as
+     * SELECT range_index, columnNames, aggregates(aggregateColumn)
+     * FROM *** CROSS JOIN UNNEST(indexes of @bottoms) AS range_index
+     * WHERE surface >= @bottoms[range_index] and surface <= @tops[range_index]
+     * GROUP BY range_index, columnNames or GROUP BY range_index, ROLLUP(columnNames)
+     * Table is scanned once, every row is joined with all ranges
+     *
+     * @return sql with named array parameters bottoms and tops
+     */
+    private String renderRangesQuery(QueryKey shape) {
+        Field<Integer> rangeIndex = field(RANGE_INDEX, Integer.class);
+        List<Field<?>> selectFields = new ArrayList<>();
+        selectFields.add(rangeIndex);
+        shape.getColumnNames().stream().map(DSL::field).forEach(selectFields::add);
+        List<Field<?>> groupFields = new ArrayList<>();
+        groupFields.add(rangeIndex);
+        if (shape.isRollup()) {
+            selectFields.add(rollupLevel(shape.getColumnNames()));
+            groupFields.add(rollup(shape.getColumnNames()));
+        } else {
+            groupFields.addAll(selectFields.subList(1, selectFields.size()));
+        }
+
+        Select<?> query = dsl.select(selectFields)
+                .select(getAggregateFields(shape))
+                .from(table(getTableName(shape.getMonth())).crossJoin(table("unnest(generate_array(0, array_length(@"
+                        + BOTTOMS_PARAMETER + ") - 1)) as " + RANGE_INDEX)))
+                .where(field(SURFACE_COVERED).greaterOrEqual(arrayParameter(BOTTOMS_PARAMETER, rangeIndex))
+                        .and(field(SURFACE_COVERED).lessOrEqual(arrayParameter(TOPS_PARAMETER, rangeIndex)))
+                        .and(pathCondition(shape)))
+                .groupBy(groupFields);
+        return query.getSQL(ParamType.INLINED);
+    }
+
+    /**
+     * Renders sql query as
+     * SELECT columnNames, aggregates(aggregateColumn)
+     * FROM *** WHERE surface >= @bottom and surface <= @top and pathColumn = @path_i
+     * GROUP BY columnNames or GROUP BY ROLLUP(columnNames)
+     * All aggregates are computed by the same scan, rollup gives subtotals of all levels by the same scan too.
+     * Table *** is the monthly table of the key, it is a part of the shape because table can't be a parameter.
+     * Sampled key reads the table as *** TABLESAMPLE SYSTEM (percent PERCENT), so only sample of its blocks is read.
+     * Ordered query ends with ORDER BY columnNames, so rows of the same branch of the tree are adjacent
+     *
+     * @return sql with named parameters bottom and top
+     */
+    private String renderQuery(QueryKey shape, boolean ordered) {
+        SelectSelectStep<Record> query = dsl.select(getAggregateFields(shape));
+        if (shape.isRollup()) {
+            query.select(shape.getColumnNames().stream().map(DSL::field).collect(Collectors.toList()))
+                    .select(rollupLevel(shape.getColumnNames()))
+                    .groupBy(rollup(shape.getColumnNames()));
+        } else if (!shape.getColumnNames().isEmpty()) {
+            List<Field<Object>> columnNamesFields = shape.getColumnNames().stream()
+                    .map(DSL::field)
+                    .collect(Collectors.toList());
+            query.select(columnNamesFields).groupBy(columnNamesFields);
+        }
+        String tableName = getTableName(shape.getMonth());
+        SelectConditionStep<Record> filtered = query.from(shape.isSampled()
+                ? table(tableName + " tablesample system ("
+                        + BigDecimal.valueOf(shape.getSamplePercent()).toPlainString() + " percent)")
+                : table(tableName))
+                .where(field(SURFACE_COVERED).greaterOrEqual(parameter(BOTTOM_PARAMETER))
+                        .and(field(SURFACE_COVERED).lessOrEqual(parameter(TOP_PARAMETER)))
+                        .and(pathCondition(shape)));
+        if (ordered && !shape.getColumnNames().isEmpty()) {
+            filtered.orderBy(shape.getColumnNames().stream().map(DSL::field).collect(Collectors.toList()));
+        }
+        return query.getSQL(ParamType.INLINED);
+    }
+
+    /**
+     * Renders sql query for the surface cube as
+     * SELECT columnNames, surface, sum(aggregateColumn), count(aggregateColumn)
+     * FROM *** WHERE surface is not null
+     * GROUP BY columnNames, surface
+     * If bucket width is positive surface is rounded down to the bucket border,
+     * then ranges are exact only for borders which are multiples of bucket width.
+     * Zero width keeps a row per distinct surface of a group, so every range is exact,
+     * but the cube grows with the number of distinct surfaces
+     *
+     * @return sql
+     */
+    private String renderCubeQuery(QueryKey shape) {
+        List<String> columnNames = shape.getColumnNames();
+        String aggregateColumn = shape.getAggregateColumn();
+        Field<Double> aggregate = field(aggregateColumn, Double.class);
+        Field<Double> surfaceColumn = field(SURFACE_COVERED, Double.class);
+        Field<Double> surface = cubeBucketWidth > 0
+                ? floor(surfaceColumn.div(cubeBucketWidth)).mul(cubeBucketWidth)
+                : surfaceColumn;
+        List<Field<Object>> columnNamesFields = columnNames.stream().map(DSL::field).collect(Collectors.toList());
+        List<Field<?>> groupFields = new ArrayList<>(columnNamesFields);
+        groupFields.add(surface);
+
+        Select<?> query = dsl.select(columnNamesFields)
+                .select(surface.as(SurfaceCube.SURFACE_ALIAS),
+                        sum(aggregate).as(SUM_PREFIX + aggregateColumn),
+                        count(aggregate).as(COUNT_PREFIX + aggregateColumn))
+                .from(table(getTableName(shape.getMonth())))
+                .where(surfaceColumn.isNotNull())
+                .groupBy(groupFields);
+        return query.getSQL(ParamType.INLINED);
+    }
+
+    /**
+     * Gets aggregate functions of the key, average and count are always selected
+     *
+     * @param shape query key
+     * @return aliased aggregate fields
+     */
+    private static List<Field<?>> getAggregateFields(QueryKey shape) {
+        String aggregateColumn = shape.getAggregateColumn();
+        Field<Double> aggregate = field(aggregateColumn, Double.class);
+        List<Field<?>> fields = new ArrayList<>();
+        fields.add(avg(aggregate).as(Aggregate.AVG.getColumn(aggregateColumn)));
+        fields.add(count(aggregate).as(Aggregate.COUNT.getColumn(aggregateColumn)));
+        if (shape.getAggregates().contains(Aggregate.MIN)) {
+            fields.add(min(aggregate).as(Aggregate.MIN.getColumn(aggregateColumn)));
+        }
+        if (shape.getAggregates().contains(Aggregate.MAX)) {
+            fields.add(max(aggregate).as(Aggregate.MAX.getColumn(aggregateColumn)));
+        }
+        if (shape.getAggregates().contains(Aggregate.SUM)) {
+            fields.add(sum(aggregate).as(Aggregate.SUM.getColumn(aggregateColumn)));
+        }
+        if (shape.getAggregates().contains(Aggregate.APPROX_QUANTILES)) {
+            fields.add(field("approx_quantiles({0}, " + Aggregate.QUANTILE_PARTS + ")", Object.class, aggregate)
+                    .as(Aggregate.APPROX_QUANTILES.getColumn(aggregateColumn)));
+        }
+        if (shape.getAggregates().contains(Aggregate.MARGIN)) {
+            fields.add(field(Aggregate.MARGIN_Z + " * stddev_samp({0}) / sqrt(count({0}))", Double.class, aggregate)
+                    .as(Aggregate.MARGIN.getColumn(aggregateColumn)));
+        }
+        return fields;
+    }
+
+    /**
+     * Gets condition restricting rows to the path, values are named parameters path_i
+     *
+     * @param shape query key
+     * @return condition, true if path is empty
+     */
+    private static Condition pathCondition(QueryKey shape) {
+        Condition condition = noCondition();
+        int index = 0;
+        for (String column : shape.getPath().keySet()) {
+            condition = condition.and(field(column).eq(field("@" + PATH_PARAMETER + index++)));
+        }
+        return condition;
+    }
+
+    private static QueryJobConfiguration.Builder addPathParameters(QueryJobConfiguration.Builder builder,
+                                                                   QueryKey key) {
+        int index = 0;
+        for (String value : key.getPath().values()) {
+            builder.addNamedParameter(PATH_PARAMETER + index++, QueryParameterValue.string(value));
+        }
+        return builder;
+    }
+
+    /**
+     * Gets ROLLUP(columnNames) grouping, which groups by every prefix of columnNames including empty one
+     *
+     * @param columnNames columns from the top level of the tree
+     * @return group field
+     */
+    private static Field<Object> rollup(List<String> columnNames) {
+        return field("rollup(" + String.join(", ", columnNames) + ")");
+    }
+
+    /**
+     * Gets number of columns the row is grouped by, GROUPING(column) is 1 for rolled up column
+     *
+     * @param columnNames columns of rollup
+     * @return aliased field of rollup level
+     */
+    private static Field<Integer> rollupLevel(List<String> columnNames) {
+        StringBuilder level = new StringBuilder(String.valueOf(columnNames.size()));
+        for (String columnName : columnNames) {
+            level.append(" - grouping(").append(columnName).append(')');
+        }
+        return field(level.toString(), Integer.class).as(ROLLUP_LEVEL);
+    }
+
+    /**
+     * Gets reference to named query parameter, it is rendered as is in inlined sql
+     *
+     * @param name name of parameter
+     * @return field of parameter
+     */
+    private static Field<Integer> parameter(String name) {
+        return field("@" + name, Integer.class);
+    }
+
+    /**
+     * Gets reference to element of named array query parameter
+     *
+     * @param name name of parameter
+     * @param index field of zero based index
+     * @return field of array element
+     */
+    private static Field<Integer> arrayParameter(String name, Field<Integer> index) {
+        return field("@" + name + "[offset({0})]", Integer.class, index);
+    }
+
+    /**
+     * Runs the job and waits for it without blocking, cancelling the returned future cancels the job.
+     * If hedging is enabled and the job is not done after p95 of waiting for jobs,
+     * second job is launched and the first successful one is taken, the other one is cancelled
+     */
+    private CompletableFuture<Optional<TableResult>> runQuery(QueryJobConfiguration queryConfig) {
+        CompletableFuture<TableResult> job = hedgeMinDelayMillis > 0 ? runHedged(queryConfig) : startJob(queryConfig);
+
+        return Cancellation.propagate(job.handle((result, ex) -> {
+            if (ex != null) {
+                logger.error(ERROR_WHILE_PROCESSING_QUERY);
+                return Optional.empty();
+            }
+            if (result == null || result.getTotalRows() == 0) {
+                return Optional.empty();
+            }
+            return Optional.of(result);
+        }), job);
+    }
+
+    /**
+     * Creates job in bigQuery and polls it until it is done, no thread waits for the job.
+     * JobId starts with trace id of the request, so the job can be found by the id returned to the client
+     */
+    private CompletableFuture<TableResult> startJob(QueryJobConfiguration queryConfig) {
+        String traceId = MDC.get(TraceIdFilter.TRACE_ID);
+        String jobName = UUID.randomUUID().toString();
+        JobId jobId = JobId.of(traceId == null ? jobName : traceId + "_" + jobName);
+        Job queryJob = metrics.time(EstatesMetrics.CREATE_JOB,
+                () -> bigQuery.create(JobInfo.newBuilder(queryConfig).setJobId(jobId).build()));
+        logger.debug("Created job {}", jobId.getJob());
+        return jobPoller.poll(queryJob);
+    }
+
+    private CompletableFuture<TableResult> runHedged(QueryJobConfiguration queryConfig) {
+        CompletableFuture<TableResult> primary = startJob(queryConfig);
+        CompletableFuture<TableResult> first = new CompletableFuture<>();
+        List<CompletableFuture<TableResult>> jobs = new CopyOnWriteArrayList<>();
+        AtomicInteger running = new AtomicInteger(1);
+        long delayMillis = metrics.getStageP95Millis(EstatesMetrics.WAIT_JOB, HEDGE_MIN_SAMPLES)
+                .map(p95 -> Math.max(p95, hedgeMinDelayMillis))
+                .orElse(hedgeMinDelayMillis);
+        Map<String, String> context = MDC.getCopyOfContextMap();
+        // Poller only hands the hedge over, job is created by the executor with the context of the request
+        ScheduledFuture<?> hedge = jobPoller.schedule(() -> {
+            if (first.isDone()) {
+                return;
+            }
+            running.incrementAndGet();
+            try {
+                hedgeExecutor.execute(() -> MdcContext.run(context, () -> {
+                    if (first.isDone()) {
+                        complete(first, null, null, running);
+                        return;
+                    }
+                    metrics.recordJobHedged();
+                    try {
+                        race(startJob(queryConfig), first, jobs, running);
+                    } catch (RuntimeException ex) {
+                        complete(first, null, ex, running);
+                    }
+                }));
+            } catch (RejectedExecutionException ex) {
+                complete(first, null, ex, running);
+            }
+        }, delayMillis);
+        race(primary, first, jobs, running);
+        // Loser and jobs which are still running when request is cancelled are cancelled
+        first.whenComplete((value, ex) -> {
+            hedge.cancel(false);
+            jobs.forEach(job -> job.cancel(true));
+        });
+        return first;
+    }
+
+    private static void race(CompletableFuture<TableResult> job, CompletableFuture<TableResult> first,
+                             List<CompletableFuture<TableResult>> jobs, AtomicInteger running) {
+        jobs.add(job);
+        if (first.isDone()) {
+            job.cancel(true);
+        }
+        job.whenComplete((value, ex) -> complete(first, value, ex, running));
+    }
+
+    /**
+     * Successful job completes the race at once, failure completes it only when no other job is running
+     */
+    private static void complete(CompletableFuture<TableResult> first, TableResult value, Throwable ex,
+                                 AtomicInteger running) {
+        if (ex == null && value != null) {
+            first.complete(value);
+        } else if (running.decrementAndGet() == 0) {
+            if (ex != null) {
+                first.completeExceptionally(ex);
+            } else {
+                first.complete(null);
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package bigqueryestatespring.backend;
+
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static bigqueryestatespring.exceptionMessages.ExceptionMessage.UNKNOWN_COLUMN;
+
+/**
+ * In-memory table of estates stored by columns.
+ * String columns are dictionary encoded, numeric columns are doubles with NaN for null.
+ * Columns are read through buffers, so they may be heap arrays or memory mapped snapshot.
+ */
+public class ColumnarTable {
+    private final int rowCount;
+    private final Map<String, DictionaryColumn> stringColumns;
+    private final Map<String, DoubleBuffer> numericColumns;
+
+    public ColumnarTable(int rowCount, Map<String, DictionaryColumn> stringColumns,
+                         Map<String, DoubleBuffer> numericColumns) {
+        this.rowCount = rowCount;
+        this.stringColumns = stringColumns;
+        this.numericColumns = numericColumns;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public DictionaryColumn getStringColumn(String name) {
+        DictionaryColumn column = stringColumns.get(name);
+        if (column == null) {
+            throw new IllegalArgumentException(UNKNOWN_COLUMN + ": " + name);
+        }
+        return column;
+    }
+
+    public DoubleBuffer getNumericColumn(String name) {
+        DoubleBuffer column = numericColumns.get(name);
+        if (column == null) {
+            throw new IllegalArgumentException(UNKNOWN_COLUMN + ": " + name);
+        }
+        return column;
+    }
+
+    public Map<String, DictionaryColumn> getStringColumns() {
+        return stringColumns;
+    }
+
+    public Map<String, DoubleBuffer> getNumericColumns() {
+        return numericColumns;
+    }
+
+    /**
+     * Appends rows column by column, growing arrays when needed
+     */
+    public static class Builder {
+        private final List<String> stringColumnNames;
+        private final List<String> numericColumnNames;
+        private final List<Map<String, Integer>> dictionaries = new ArrayList<>();
+        private final List<int[]> codes = new ArrayList<>();
+        private final List<double[]> numbers = new ArrayList<>();
+        private int rowCount;
+
+        public Builder(List<String> stringColumnNames, List<String> numericColumnNames) {
+            this.stringColumnNames = stringColumnNames;
+            this.numericColumnNames = numericColumnNames;
+            for (int i = 0; i < stringColumnNames.size(); i++) {
+                dictionaries.add(new HashMap<>());
+                codes.add(new int[1024]);
+            }
+            for (int i = 0; i < numericColumnNames.size(); i++) {
+                numbers.add(new double[1024]);
+            }
+        }
+
+        /**
+         * Adds row
+         *
+         * @param stringValues values of string columns in order of names given in constructor, null allowed
+         * @param numericValues values of numeric columns in order of names given in constructor, NaN for null
+         * @return this builder
+         */
+        public Builder addRow(String[] stringValues, double[] numericValues) {
+            for (int i = 0; i < stringValues.length; i++) {
+                Map<String, Integer> dictionary = dictionaries.get(i);
+                Integer code = dictionary.get(stringValues[i]);
+                if (code == null) {
+                    code = dictionary.size();
+                    dictionary.put(stringValues[i], code);
+                }
+                int[] column = codes.get(i);
+                if (rowCount == column.length) {
+                    column = Arrays.copyOf(column, column.length * 2);
+                    codes.set(i, column);
+                }
+                column[rowCount] = code;
+            }
+            for (int i = 0; i < numericValues.length; i++) {
+                double[] column = numbers.get(i);
+                if (rowCount == column.length) {
+                    column = Arrays.copyOf(column, column.length * 2);
+                    numbers.set(i, column);
+                }
+                column[rowCount] = numericValues[i];
+            }
+            rowCount++;
+            return this;
+        }
+
+        public ColumnarTable build() {
+            Map<String, DictionaryColumn> stringColumns = new LinkedHashMap<>();
+            for (int i = 0; i < stringColumnNames.size(); i++) {
+                String[] dictionary = new String[dictionaries.get(i).size()];
+                dictionaries.get(i).forEach((value, code) -> dictionary[code] = value);
+                stringColumns.put(stringColumnNames.get(i),
+                        new DictionaryColumn(dictionary, Arrays.copyOf(codes.get(i), rowCount)));
+            }
+            Map<String, DoubleBuffer> numericColumns = new LinkedHashMap<>();
+            for (int i = 0; i < numericColumnNames.size(); i++) {
+                numericColumns.put(numericColumnNames.get(i),
+                        DoubleBuffer.wrap(Arrays.copyOf(numbers.get(i), rowCount)));
+            }
+            return new ColumnarTable(rowCount, stringColumns, numericColumns);
+        }
+    }
+}
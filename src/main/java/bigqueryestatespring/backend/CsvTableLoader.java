@@ -0,0 +1,146 @@
+package bigqueryestatespring.backend;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static bigqueryestatespring.exceptionMessages.ExceptionMessage.UNKNOWN_COLUMN;
+
+/**
+ * Loads columnar table from CSV export of the estates dataset.
+ * First record is header, only given columns are loaded.
+ * Quoted values may contain separators, doubled quotes and line breaks.
+ */
+public class CsvTableLoader {
+    private static final char SEPARATOR = ',';
+    private static final char QUOTE = '"';
+
+    private final List<String> stringColumnNames;
+    private final List<String> numericColumnNames;
+
+    public CsvTableLoader(List<String> stringColumnNames, List<String> numericColumnNames) {
+        this.stringColumnNames = stringColumnNames;
+        this.numericColumnNames = numericColumnNames;
+    }
+
+    public ColumnarTable load(Reader reader) throws IOException {
+        RecordReader records = new RecordReader(reader);
+        List<String> header = records.next();
+        if (header == null) {
+            return new ColumnarTable.Builder(stringColumnNames, numericColumnNames).build();
+        }
+        int[] stringIndexes = indexesOf(header, stringColumnNames);
+        int[] numericIndexes = indexesOf(header, numericColumnNames);
+
+        ColumnarTable.Builder builder = new ColumnarTable.Builder(stringColumnNames, numericColumnNames);
+        String[] stringValues = new String[stringIndexes.length];
+        double[] numericValues = new double[numericIndexes.length];
+        List<String> record;
+        while ((record = records.next()) != null) {
+            for (int i = 0; i < stringIndexes.length; i++) {
+                String value = valueAt(record, stringIndexes[i]);
+                stringValues[i] = value == null || value.isEmpty() ? null : value;
+            }
+            for (int i = 0; i < numericIndexes.length; i++) {
+                numericValues[i] = parseNumber(valueAt(record, numericIndexes[i]));
+            }
+            builder.addRow(stringValues, numericValues);
+        }
+        return builder.build();
+    }
+
+    private static int[] indexesOf(List<String> header, List<String> columnNames) {
+        int[] indexes = new int[columnNames.size()];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = header.indexOf(columnNames.get(i));
+            if (indexes[i] < 0) {
+                throw new IllegalArgumentException(UNKNOWN_COLUMN + ": " + columnNames.get(i));
+            }
+        }
+        return indexes;
+    }
+
+    private static String valueAt(List<String> record, int index) {
+        return index < record.size() ? record.get(index) : null;
+    }
+
+    private static double parseNumber(String value) {
+        if (value == null || value.isEmpty()) {
+            return Double.NaN;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException ex) {
+            return Double.NaN;
+        }
+    }
+
+    private static class RecordReader {
+        private final Reader reader;
+        private final StringBuilder value = new StringBuilder();
+        private final char[] buffer = new char[8192];
+        private int position;
+        private int limit;
+
+        RecordReader(Reader reader) {
+            this.reader = reader;
+        }
+
+        /**
+         * Reads next record
+         *
+         * @return values of record or null at the end of input
+         */
+        List<String> next() throws IOException {
+            int current = read();
+            if (current < 0) {
+                return null;
+            }
+            List<String> record = new ArrayList<>();
+            boolean quoted = false;
+            value.setLength(0);
+            while (current >= 0) {
+                char symbol = (char) current;
+                if (quoted) {
+                    if (symbol == QUOTE) {
+                        int following = read();
+                        if (following == QUOTE) {
+                            value.append(QUOTE);
+                        } else {
+                            quoted = false;
+                            current = following;
+                            continue;
+                        }
+                    } else {
+                        value.append(symbol);
+                    }
+                } else if (symbol == QUOTE) {
+                    quoted = true;
+                } else if (symbol == SEPARATOR) {
+                    record.add(value.toString());
+                    value.setLength(0);
+                } else if (symbol == '\n') {
+                    break;
+                } else if (symbol != '\r') {
+                    value.append(symbol);
+                }
+                current = read();
+            }
+            record.add(value.toString());
+            return record;
+        }
+
+        private int read() throws IOException {
+            if (position == limit) {
+                limit = reader.read(buffer);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return -1;
+                }
+            }
+            return buffer[position++];
+        }
+    }
+}
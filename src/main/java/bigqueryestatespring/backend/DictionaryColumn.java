@@ -0,0 +1,37 @@
+package bigqueryestatespring.backend;
+
+import java.nio.IntBuffer;
+
+/**
+ * String column stored as codes of values in dictionary.
+ * Codes are held in heap array or in memory mapped file, both are accessed as IntBuffer
+ */
+public class DictionaryColumn {
+    private final String[] dictionary;
+    private final IntBuffer codes;
+
+    public DictionaryColumn(String[] dictionary, int[] codes) {
+        this(dictionary, IntBuffer.wrap(codes));
+    }
+
+    public DictionaryColumn(String[] dictionary, IntBuffer codes) {
+        this.dictionary = dictionary;
+        this.codes = codes;
+    }
+
+    public int getCode(int row) {
+        return codes.get(row);
+    }
+
+    public String getValue(int code) {
+        return dictionary[code];
+    }
+
+    public int getDictionarySize() {
+        return dictionary.length;
+    }
+
+    public String[] getDictionary() {
+        return dictionary;
+    }
+}
@@ -0,0 +1,693 @@
+package bigqueryestatespring.backend;
+
+import bigqueryestatespring.cache.QueryKey;
+import bigqueryestatespring.cube.SurfaceCube;
+import bigqueryestatespring.services.Aggregate;
+import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.FieldList;
+import com.google.cloud.bigquery.FieldValue;
+import com.google.cloud.bigquery.FieldValueList;
+import com.google.cloud.bigquery.LegacySQLTypeName;
+import com.google.cloud.bigquery.Schema;
+import com.google.cloud.bigquery.TableResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.DoubleBuffer;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.function.IntPredicate;
+
+import static bigqueryestatespring.exceptionMessages.ExceptionMessage.ERROR_WHILE_PROCESSING_QUERY;
+import static bigqueryestatespring.exceptionMessages.ExceptionMessage.TOO_MANY_GROUPS;
+import static bigqueryestatespring.services.PropertiesAttribute.SURFACE_COVERED;
+
+/**
+ * Backend which answers queries from in-memory columnar table.
+ * Filter, group by and aggregation are done by parallel fork-join scan over row ranges,
+ * every task aggregates its range into own map and maps are merged on join.
+ */
+public class EmbeddedBackend implements QueryBackend {
+    private static final Logger logger = LoggerFactory.getLogger(EmbeddedBackend.class);
+    private static final int ROWS_PER_TASK = 1 << 16;
+
+    private final ColumnarTable table;
+    private final Map<YearMonth, ColumnarTable> monthlyTables;
+    private final ForkJoinPool pool;
+    private final int cubeBucketWidth;
+    private final String datasetVersion;
+
+    /**
+     * Table has no known version, so a new one is made for every backend
+     */
+    public EmbeddedBackend(ColumnarTable table, ForkJoinPool pool, int cubeBucketWidth) {
+        this(table, pool, cubeBucketWidth, Long.toHexString(System.nanoTime()));
+    }
+
+    /**
+     * @param datasetVersion version of the source the table is loaded from
+     */
+    public EmbeddedBackend(ColumnarTable table, ForkJoinPool pool, int cubeBucketWidth, String datasetVersion) {
+        this(table, Collections.emptyMap(), pool, cubeBucketWidth, datasetVersion);
+    }
+
+    /**
+     * @param table table read by keys without month
+     * @param monthlyTables tables read by keys with month, key of other month gets no rows
+     */
+    public EmbeddedBackend(ColumnarTable table, Map<YearMonth, ColumnarTable> monthlyTables, ForkJoinPool pool,
+                           int cubeBucketWidth, String datasetVersion) {
+        this.table = table;
+        this.monthlyTables = monthlyTables;
+        this.pool = pool;
+        this.cubeBucketWidth = cubeBucketWidth;
+        this.datasetVersion = datasetVersion;
+    }
+
+    @Override
+    public String getDatasetVersion() {
+        return datasetVersion;
+    }
+
+    @Override
+    public CompletableFuture<Optional<TableResult>> query(QueryKey key) {
+        ColumnarTable table = getTable(key.getMonth());
+        if (table == null) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        }
+        return execute(() -> {
+            GroupKeys groupKeys = new GroupKeys(table, key.getColumnNames());
+            DoubleBuffer surface = table.getNumericColumn(SURFACE_COVERED);
+            DoubleBuffer values = table.getNumericColumn(key.getAggregateColumn());
+            double bottom = key.getBottom();
+            double top = key.getTop();
+            IntPredicate onPath = pathFilter(table, key);
+            IntPredicate inSample = sampleFilter(key);
+
+            Map<Object, Accumulator> groups = scan(table,
+                    row -> inSample.test(row) && surface.get(row) >= bottom && surface.get(row) <= top
+                            && onPath.test(row),
+                    groupKeys::keyOf, values, keepsValues(key));
+
+            List<Field> fields = groupKeys.getFields();
+            fields.addAll(getAggregateFields(key));
+            List<List<Object>> rows = new ArrayList<>();
+            // Groups are ordered by codes, so by first appearance of values in the table
+            groups.entrySet().stream()
+                    .sorted(Comparator.comparingLong(entry -> (Long) entry.getKey()))
+                    .forEach(entry -> {
+                        Accumulator accumulator = entry.getValue();
+                        if (accumulator.count > 0) {
+                            List<Object> row = new ArrayList<>(groupKeys.decode((Long) entry.getKey()));
+                            addAggregates(row, accumulator, key);
+                            addRollupLevel(row, key, key.getColumnNames().size());
+                            rows.add(row);
+                        }
+                    });
+            if (key.isRollup()) {
+                fields.add(Field.of(ROLLUP_LEVEL, LegacySQLTypeName.INTEGER));
+                addTotals(rows, groups, groupKeys, key, false);
+            }
+            return rows.isEmpty() ? Optional.empty() : Optional.of(toTableResult(fields, rows));
+        });
+    }
+
+    /**
+     * Groups of query are ordered by group keys, first column is the most significant part of the key,
+     * so rows of the same branch are already adjacent
+     */
+    @Override
+    public CompletableFuture<Optional<TableResult>> queryOrdered(QueryKey key) {
+        return query(key);
+    }
+
+    @Override
+    public CompletableFuture<Optional<TableResult>> queryRanges(List<QueryKey> keys) {
+        QueryKey shape = keys.get(0);
+        ColumnarTable table = getTable(shape.getMonth());
+        if (table == null) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        }
+        return execute(() -> {
+            GroupKeys groupKeys = new GroupKeys(table, shape.getColumnNames());
+            DoubleBuffer surface = table.getNumericColumn(SURFACE_COVERED);
+            DoubleBuffer values = table.getNumericColumn(shape.getAggregateColumn());
+            double[] bottoms = keys.stream().mapToDouble(QueryKey::getBottom).toArray();
+            double[] tops = keys.stream().mapToDouble(QueryKey::getTop).toArray();
+            IntPredicate onPath = pathFilter(table, shape);
+
+            Map<Object, Accumulator> groups = scan(table, (row, keyConsumer) -> {
+                if (!onPath.test(row)) {
+                    return;
+                }
+                double rowSurface = surface.get(row);
+                for (int range = 0; range < bottoms.length; range++) {
+                    if (rowSurface >= bottoms[range] && rowSurface <= tops[range]) {
+                        keyConsumer.accept(new RangeKey(range, groupKeys.keyOf(row)));
+                    }
+                }
+            }, values, keepsValues(shape));
+
+            List<Field> fields = new ArrayList<>();
+            fields.add(Field.of(RANGE_INDEX, LegacySQLTypeName.INTEGER));
+            fields.addAll(groupKeys.getFields());
+            fields.addAll(getAggregateFields(shape));
+            List<List<Object>> rows = new ArrayList<>();
+            groups.entrySet().stream()
+                    .sorted(Comparator.comparing(entry -> (RangeKey) entry.getKey()))
+                    .forEach(entry -> {
+                        RangeKey rangeKey = (RangeKey) entry.getKey();
+                        Accumulator accumulator = entry.getValue();
+                        if (accumulator.count > 0) {
+                            List<Object> row = new ArrayList<>();
+                            row.add(String.valueOf(rangeKey.range));
+                            row.addAll(groupKeys.decode(rangeKey.groupKey));
+                            addAggregates(row, accumulator, shape);
+                            addRollupLevel(row, shape, shape.getColumnNames().size());
+                            rows.add(row);
+                        }
+                    });
+            if (shape.isRollup()) {
+                fields.add(Field.of(ROLLUP_LEVEL, LegacySQLTypeName.INTEGER));
+                addTotals(rows, groups, groupKeys, shape, true);
+            }
+            return rows.isEmpty() ? Optional.empty() : Optional.of(toTableResult(fields, rows));
+        });
+    }
+
+    @Override
+    public CompletableFuture<Optional<TableResult>> queryCube(QueryKey shape) {
+        ColumnarTable table = getTable(shape.getMonth());
+        if (table == null) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        }
+        return execute(() -> {
+            GroupKeys groupKeys = new GroupKeys(table, shape.getColumnNames());
+            DoubleBuffer surface = table.getNumericColumn(SURFACE_COVERED);
+            DoubleBuffer values = table.getNumericColumn(shape.getAggregateColumn());
+
+            Map<Object, Accumulator> groups = scan(table, row -> !Double.isNaN(surface.get(row)),
+                    row -> new CubeKey(groupKeys.keyOf(row), bucketOf(surface.get(row))), values, false);
+
+            List<Field> fields = groupKeys.getFields();
+            fields.add(Field.of(SurfaceCube.SURFACE_ALIAS, LegacySQLTypeName.FLOAT));
+            fields.add(Field.of(SUM_PREFIX + shape.getAggregateColumn(), LegacySQLTypeName.FLOAT));
+            fields.add(Field.of(COUNT_PREFIX + shape.getAggregateColumn(), LegacySQLTypeName.INTEGER));
+            List<List<Object>> rows = new ArrayList<>();
+            groups.forEach((groupKey, accumulator) -> {
+                CubeKey cubeKey = (CubeKey) groupKey;
+                List<Object> row = new ArrayList<>(groupKeys.decode(cubeKey.groupKey));
+                row.add(String.valueOf(cubeKey.surface));
+                row.add(String.valueOf(accumulator.sum));
+                row.add(String.valueOf(accumulator.count));
+                rows.add(row);
+            });
+            return rows.isEmpty() ? Optional.empty() : Optional.of(toTableResult(fields, rows));
+        });
+    }
+
+    /**
+     * @param month month of the table, null for the default table
+     * @return table, null if there is no table of the month
+     */
+    private ColumnarTable getTable(YearMonth month) {
+        return month == null ? table : monthlyTables.get(month);
+    }
+
+    private CompletableFuture<Optional<TableResult>> execute(Computation computation) {
+        return CompletableFuture.supplyAsync(computation::compute, pool).handle((result, ex) -> {
+            if (ex != null) {
+                logger.error(ERROR_WHILE_PROCESSING_QUERY, ex);
+                return Optional.empty();
+            }
+            return result;
+        });
+    }
+
+    /**
+     * Zero width keeps the raw surface, so the cube has a row per distinct surface of a group
+     */
+    private double bucketOf(double surface) {
+        return cubeBucketWidth > 0 ? Math.floor(surface / cubeBucketWidth) * cubeBucketWidth : surface;
+    }
+
+    private Map<Object, Accumulator> scan(ColumnarTable table, IntPredicate filter, IntFunction<Object> keyOf,
+                                          DoubleBuffer values, boolean keepValues) {
+        return scan(table, (row, keyConsumer) -> {
+            if (filter.test(row)) {
+                keyConsumer.accept(keyOf.apply(row));
+            }
+        }, values, keepValues);
+    }
+
+    private Map<Object, Accumulator> scan(ColumnarTable table, RowKeys rowKeys, DoubleBuffer values,
+                                          boolean keepValues) {
+        return pool.invoke(new ScanTask(0, table.getRowCount(), rowKeys, values, keepValues));
+    }
+
+    /**
+     * Adds rows of subtotals of every prefix of group columns including the grand total, as ROLLUP does.
+     * Subtotals are merged from accumulators of the groups, so the table is not scanned again
+     *
+     * @param rows rows of the groups
+     * @param groups accumulators of the groups by group key or by RangeKey
+     * @param withRange whether rows start with range index
+     */
+    private void addTotals(List<List<Object>> rows, Map<Object, Accumulator> groups, GroupKeys groupKeys,
+                           QueryKey shape, boolean withRange) {
+        int depth = shape.getColumnNames().size();
+        Map<TotalKey, Accumulator> totals = new TreeMap<>();
+        groups.forEach((groupKey, accumulator) -> {
+            int range = withRange ? ((RangeKey) groupKey).range : 0;
+            long key = withRange ? ((RangeKey) groupKey).groupKey : (Long) groupKey;
+            for (int level = 0; level < depth; level++) {
+                totals.computeIfAbsent(new TotalKey(range, level, groupKeys.prefixOf(key, level)),
+                        absent -> new Accumulator(keepsValues(shape))).merge(accumulator);
+            }
+        });
+        totals.forEach((totalKey, accumulator) -> {
+            if (accumulator.count > 0) {
+                List<Object> row = new ArrayList<>();
+                if (withRange) {
+                    row.add(String.valueOf(totalKey.range));
+                }
+                row.addAll(groupKeys.decode(totalKey.prefix, totalKey.level));
+                addAggregates(row, accumulator, shape);
+                addRollupLevel(row, shape, totalKey.level);
+                rows.add(row);
+            }
+        });
+    }
+
+    private static void addRollupLevel(List<Object> row, QueryKey key, int level) {
+        if (key.isRollup()) {
+            row.add(String.valueOf(level));
+        }
+    }
+
+    /**
+     * Gets filter of rows on the path of the key, values of the path are compared as dictionary codes
+     *
+     * @param key query key
+     * @return filter, no row passes if some value of the path is not present in the table
+     */
+    private static IntPredicate pathFilter(ColumnarTable table, QueryKey key) {
+        IntPredicate filter = row -> true;
+        for (Map.Entry<String, String> entry : key.getPath().entrySet()) {
+            DictionaryColumn column = table.getStringColumn(entry.getKey());
+            int code = Arrays.asList(column.getDictionary()).indexOf(entry.getValue());
+            if (code < 0) {
+                return row -> false;
+            }
+            filter = filter.and(row -> column.getCode(row) == code);
+        }
+        return filter;
+    }
+
+    /**
+     * Gets filter of rows in the sample of the key, row is taken by hash of its number,
+     * so the same rows are read by every query with the same sample percent
+     *
+     * @param key query key
+     * @return filter, every row passes if the key is not sampled
+     */
+    private static IntPredicate sampleFilter(QueryKey key) {
+        if (!key.isSampled()) {
+            return row -> true;
+        }
+        long threshold = (long) (key.getSamplePercent() / QueryKey.FULL_TABLE * (1L << 32));
+        return row -> (((row + 1) * 0x9E3779B97F4A7C15L) >>> 32) < threshold;
+    }
+
+    /**
+     * Values of groups are kept only for quantiles
+     */
+    private static boolean keepsValues(QueryKey key) {
+        return key.getAggregates().contains(Aggregate.APPROX_QUANTILES);
+    }
+
+    private static List<Field> getAggregateFields(QueryKey key) {
+        String aggregateColumn = key.getAggregateColumn();
+        List<Field> fields = new ArrayList<>();
+        fields.add(Field.of(Aggregate.AVG.getColumn(aggregateColumn), LegacySQLTypeName.FLOAT));
+        fields.add(Field.of(Aggregate.COUNT.getColumn(aggregateColumn), LegacySQLTypeName.INTEGER));
+        for (Aggregate aggregate : key.getAggregates()) {
+            if (aggregate == Aggregate.APPROX_QUANTILES) {
+                fields.add(Field.newBuilder(aggregate.getColumn(aggregateColumn), LegacySQLTypeName.FLOAT)
+                        .setMode(Field.Mode.REPEATED)
+                        .build());
+            } else if (aggregate != Aggregate.AVG && aggregate != Aggregate.COUNT) {
+                fields.add(Field.of(aggregate.getColumn(aggregateColumn), LegacySQLTypeName.FLOAT));
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * Adds values of aggregates to the row in order of getAggregateFields
+     */
+    private static void addAggregates(List<Object> row, Accumulator accumulator, QueryKey key) {
+        row.add(String.valueOf(accumulator.sum / accumulator.count));
+        row.add(String.valueOf(accumulator.count));
+        for (Aggregate aggregate : key.getAggregates()) {
+            switch (aggregate) {
+                case MIN:
+                    row.add(String.valueOf(accumulator.min));
+                    break;
+                case MAX:
+                    row.add(String.valueOf(accumulator.max));
+                    break;
+                case SUM:
+                    row.add(String.valueOf(accumulator.sum));
+                    break;
+                case APPROX_QUANTILES:
+                    List<String> quantiles = new ArrayList<>();
+                    for (double quantile : accumulator.quantiles(Aggregate.QUANTILE_PARTS)) {
+                        quantiles.add(String.valueOf(quantile));
+                    }
+                    row.add(quantiles);
+                    break;
+                case MARGIN:
+                    row.add(String.valueOf(accumulator.margin()));
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Creates result of rows, value of row is String or List of Strings for repeated field
+     */
+    private static TableResult toTableResult(List<Field> fields, List<List<Object>> rows) {
+        FieldList schemaFields = FieldList.of(fields);
+        List<FieldValueList> valueLists = new ArrayList<>(rows.size());
+        for (List<Object> row : rows) {
+            List<FieldValue> values = new ArrayList<>(row.size());
+            for (Object value : row) {
+                if (value instanceof List) {
+                    List<FieldValue> repeated = new ArrayList<>();
+                    for (Object element : (List<?>) value) {
+                        repeated.add(FieldValue.of(FieldValue.Attribute.PRIMITIVE, element));
+                    }
+                    values.add(FieldValue.of(FieldValue.Attribute.REPEATED, repeated));
+                } else {
+                    values.add(FieldValue.of(FieldValue.Attribute.PRIMITIVE, value));
+                }
+            }
+            valueLists.add(FieldValueList.of(values, schemaFields));
+        }
+        return new TableResult(Schema.of(schemaFields), valueLists.size(), new ResultPage(valueLists));
+    }
+
+    private interface Computation {
+        Optional<TableResult> compute();
+    }
+
+    /**
+     * Passes keys of groups the row belongs to, none if row is filtered out
+     */
+    private interface RowKeys {
+        void forEach(int row, Consumer<Object> keyConsumer);
+    }
+
+    /**
+     * Packs dictionary codes of group columns into one long as mixed radix number
+     */
+    private class GroupKeys {
+        private final List<String> columnNames;
+        private final DictionaryColumn[] columns;
+        private final long[] radixes;
+
+        GroupKeys(ColumnarTable table, List<String> columnNames) {
+            this.columnNames = columnNames;
+            columns = new DictionaryColumn[columnNames.size()];
+            radixes = new long[columnNames.size()];
+            long radix = 1;
+            for (int i = columns.length - 1; i >= 0; i--) {
+                columns[i] = table.getStringColumn(columnNames.get(i));
+                radixes[i] = radix;
+                int size = Math.max(columns[i].getDictionarySize(), 1);
+                if (radix > Long.MAX_VALUE / size) {
+                    throw new IllegalArgumentException(TOO_MANY_GROUPS);
+                }
+                radix *= size;
+            }
+        }
+
+        long keyOf(int row) {
+            long key = 0;
+            for (int i = 0; i < columns.length; i++) {
+                key += columns[i].getCode(row) * radixes[i];
+            }
+            return key;
+        }
+
+        List<String> decode(long key) {
+            return decode(key, columns.length);
+        }
+
+        /**
+         * Decodes values of the first level columns, other values are null
+         */
+        List<String> decode(long key, int level) {
+            List<String> values = new ArrayList<>(columns.length + 1);
+            for (int i = 0; i < columns.length; i++) {
+                values.add(i < level ? columns[i].getValue((int) (key / radixes[i])) : null);
+                key %= radixes[i];
+            }
+            return values;
+        }
+
+        /**
+         * Gets key with codes of the first level columns, codes of other columns are zero
+         */
+        long prefixOf(long key, int level) {
+            return level == 0 ? 0 : key - key % radixes[level - 1];
+        }
+
+        List<Field> getFields() {
+            List<Field> fields = new ArrayList<>();
+            for (String columnName : columnNames) {
+                fields.add(Field.of(columnName, LegacySQLTypeName.STRING));
+            }
+            return fields;
+        }
+    }
+
+    private static class CubeKey {
+        final long groupKey;
+        final double surface;
+
+        CubeKey(long groupKey, double surface) {
+            this.groupKey = groupKey;
+            this.surface = surface;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            CubeKey cubeKey = (CubeKey) o;
+            return groupKey == cubeKey.groupKey && Double.compare(cubeKey.surface, surface) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(groupKey, surface);
+        }
+    }
+
+    private static class RangeKey implements Comparable<RangeKey> {
+        final int range;
+        final long groupKey;
+
+        RangeKey(int range, long groupKey) {
+            this.range = range;
+            this.groupKey = groupKey;
+        }
+
+        @Override
+        public int compareTo(RangeKey other) {
+            return range != other.range
+                    ? Integer.compare(range, other.range)
+                    : Long.compare(groupKey, other.groupKey);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            RangeKey rangeKey = (RangeKey) o;
+            return range == rangeKey.range && groupKey == rangeKey.groupKey;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(range, groupKey);
+        }
+    }
+
+    private static class TotalKey implements Comparable<TotalKey> {
+        final int range;
+        final int level;
+        final long prefix;
+
+        TotalKey(int range, int level, long prefix) {
+            this.range = range;
+            this.level = level;
+            this.prefix = prefix;
+        }
+
+        @Override
+        public int compareTo(TotalKey other) {
+            if (range != other.range) {
+                return Integer.compare(range, other.range);
+            }
+            return level != other.level
+                    ? Integer.compare(level, other.level)
+                    : Long.compare(prefix, other.prefix);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            TotalKey totalKey = (TotalKey) o;
+            return range == totalKey.range && level == totalKey.level && prefix == totalKey.prefix;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(range, level, prefix);
+        }
+    }
+
+    private static class Accumulator {
+        double sum;
+        double sumOfSquares;
+        long count;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        // Values are kept only if quantiles are computed
+        double[] values;
+
+        Accumulator(boolean keepValues) {
+            if (keepValues) {
+                values = new double[8];
+            }
+        }
+
+        void add(double value) {
+            if (!Double.isNaN(value)) {
+                if (values != null) {
+                    if (count == values.length) {
+                        values = Arrays.copyOf(values, values.length * 2);
+                    }
+                    values[(int) count] = value;
+                }
+                sum += value;
+                sumOfSquares += value * value;
+                count++;
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+        }
+
+        void merge(Accumulator other) {
+            if (values != null) {
+                if (count + other.count > values.length) {
+                    values = Arrays.copyOf(values, (int) Math.max(count + other.count, values.length * 2L));
+                }
+                System.arraycopy(other.values, 0, values, (int) count, (int) other.count);
+            }
+            sum += other.sum;
+            sumOfSquares += other.sumOfSquares;
+            count += other.count;
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+        }
+
+        /**
+         * Gets half width of 95% confidence interval of the average from sample variance
+         *
+         * @return margin, NaN if there is only one value
+         */
+        double margin() {
+            if (count < 2) {
+                return Double.NaN;
+            }
+            double variance = Math.max(0, (sumOfSquares - sum * sum / count) / (count - 1));
+            return Aggregate.MARGIN_Z * Math.sqrt(variance / count);
+        }
+
+        /**
+         * Gets exact quantiles which divide values into equal parts, first is minimum and last is maximum
+         *
+         * @param parts number of parts
+         * @return parts + 1 quantiles
+         */
+        double[] quantiles(int parts) {
+            double[] sorted = Arrays.copyOf(values, (int) count);
+            Arrays.sort(sorted);
+            double[] quantiles = new double[parts + 1];
+            for (int i = 0; i <= parts; i++) {
+                quantiles[i] = sorted[(int) ((sorted.length - 1L) * i / parts)];
+            }
+            return quantiles;
+        }
+    }
+
+    private static class ScanTask extends RecursiveTask<Map<Object, Accumulator>> {
+        private final int from;
+        private final int to;
+        private final RowKeys rowKeys;
+        private final DoubleBuffer values;
+        private final boolean keepValues;
+
+        ScanTask(int from, int to, RowKeys rowKeys, DoubleBuffer values, boolean keepValues) {
+            this.from = from;
+            this.to = to;
+            this.rowKeys = rowKeys;
+            this.values = values;
+            this.keepValues = keepValues;
+        }
+
+        @Override
+        protected Map<Object, Accumulator> compute() {
+            if (to - from > ROWS_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                ScanTask left = new ScanTask(from, middle, rowKeys, values, keepValues);
+                left.fork();
+                Map<Object, Accumulator> right = new ScanTask(middle, to, rowKeys, values, keepValues).compute();
+                Map<Object, Accumulator> result = left.join();
+                right.forEach((key, accumulator) -> result.merge(key, accumulator, (first, second) -> {
+                    first.merge(second);
+                    return first;
+                }));
+                return result;
+            }
+            Map<Object, Accumulator> groups = new HashMap<>();
+            for (int row = from; row < to; row++) {
+                double value = values.get(row);
+                rowKeys.forEach(row, groupKey -> groups.computeIfAbsent(groupKey, key -> new Accumulator(keepValues))
+                        .add(value));
+            }
+            return groups;
+        }
+    }
+}
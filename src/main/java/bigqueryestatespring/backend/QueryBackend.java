@@ -0,0 +1,79 @@
+package bigqueryestatespring.backend;
+
+import bigqueryestatespring.cache.QueryKey;
+import com.google.cloud.bigquery.TableResult;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Source of aggregated estates rows.
+ * Results are returned as TableResult, so rows of any backend are processed the same way.
+ */
+public interface QueryBackend {
+    String AVG_PREFIX = "avg_";
+    String SUM_PREFIX = "sum_";
+    String COUNT_PREFIX = "count_";
+    String RANGE_INDEX = "range_index";
+    String ROLLUP_LEVEL = "rollup_level";
+
+    /**
+     * Runs query
+     * SELECT columnNames, avg(aggregateColumn) AS avg_aggregateColumn, count(aggregateColumn) AS count_aggregateColumn
+     * WHERE surface >= bottom and surface <= top GROUP BY columnNames
+     * If key is rollup, it is grouped by ROLLUP(columnNames) and rollup_level column has number of grouped columns,
+     * columns which are rolled up are null
+     *
+     * @param key query parameters
+     * @return future of result, empty if query failed or returned no rows
+     */
+    CompletableFuture<Optional<TableResult>> query(QueryKey key);
+
+    /**
+     * Runs query as query(key) with rows ordered by columnNames, so rows of the same branch of the tree are adjacent
+     * and the tree can be written while rows are read. Rollup of the key is ignored
+     *
+     * @param key query parameters
+     * @return future of result, empty if query failed or returned no rows
+     */
+    CompletableFuture<Optional<TableResult>> queryOrdered(QueryKey key);
+
+    /**
+     * Runs query for the surface cube
+     * SELECT columnNames, surface, sum(aggregateColumn), count(aggregateColumn)
+     * WHERE surface is not null GROUP BY columnNames, surface
+     *
+     * @param shape query parameters, range is ignored
+     * @return future of result, empty if query failed or returned no rows
+     */
+    CompletableFuture<Optional<TableResult>> queryCube(QueryKey shape);
+
+    /**
+     * Runs query for many ranges of surface by one scan
+     * SELECT range_index, columnNames, avg(aggregateColumn), count(aggregateColumn)
+     * WHERE surface >= bottom(range_index) and surface <= top(range_index) GROUP BY range_index, columnNames
+     * Ranges may overlap, row is counted in every range containing it
+     *
+     * @param keys query parameters with the same columns and aggregate column, range_index is index in this list
+     * @return future of result, empty if query failed or returned no rows
+     */
+    CompletableFuture<Optional<TableResult>> queryRanges(List<QueryKey> keys);
+
+    /**
+     * Gets version of the data queries are run on, results of equal keys are equal while the version is the same
+     *
+     * @return version of the dataset
+     */
+    String getDatasetVersion();
+
+    /**
+     * Estimates number of bytes the query would process without running it
+     *
+     * @param key query parameters
+     * @return estimated bytes, empty if backend can not estimate them
+     */
+    default Optional<Long> estimateBytes(QueryKey key) {
+        return Optional.empty();
+    }
+}
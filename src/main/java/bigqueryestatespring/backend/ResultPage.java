@@ -0,0 +1,42 @@
+package bigqueryestatespring.backend;
+
+import com.google.api.gax.paging.Page;
+import com.google.cloud.bigquery.FieldValueList;
+
+import java.util.List;
+
+/**
+ * The only page of result computed locally
+ */
+public class ResultPage implements Page<FieldValueList> {
+    private final List<FieldValueList> rows;
+
+    public ResultPage(List<FieldValueList> rows) {
+        this.rows = rows;
+    }
+
+    @Override
+    public boolean hasNextPage() {
+        return false;
+    }
+
+    @Override
+    public String getNextPageToken() {
+        return null;
+    }
+
+    @Override
+    public Page<FieldValueList> getNextPage() {
+        return null;
+    }
+
+    @Override
+    public Iterable<FieldValueList> iterateAll() {
+        return rows;
+    }
+
+    @Override
+    public Iterable<FieldValueList> getValues() {
+        return rows;
+    }
+}
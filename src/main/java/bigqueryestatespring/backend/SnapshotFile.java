@@ -0,0 +1,269 @@
+package bigqueryestatespring.backend;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.zip.CRC32;
+
+import static bigqueryestatespring.exceptionMessages.ExceptionMessage.SNAPSHOT_IS_CORRUPTED;
+import static bigqueryestatespring.exceptionMessages.ExceptionMessage.SNAPSHOT_IS_STALE;
+
+/**
+ * Binary columnar snapshot of the estates table which is opened by memory mapping.
+ *
+ * Layout:
+ * header - magic, format version, row count, fingerprint of the source, CRC32 of the rest of the file;
+ * directory - for every column its name, dictionary (for string column) and offset of data;
+ * data - little endian int codes of string columns and doubles of numeric columns,
+ * every column aligned to 8 bytes.
+ *
+ * Only directory is read into heap, columns are scanned straight from the mapped file.
+ */
+public final class SnapshotFile {
+    private static final Logger logger = LoggerFactory.getLogger(SnapshotFile.class);
+
+    private static final long MAGIC = 0x4553544154455331L; // "ESTATES1"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int CHECKSUM_OFFSET = 24;
+    private static final int ALIGNMENT = 8;
+
+    private SnapshotFile() {}
+
+    /**
+     * Gets fingerprint of the source file, snapshot built from other version of source is stale
+     *
+     * @param source source file
+     * @return fingerprint of size and modification time
+     * @throws IOException if attributes can't be read
+     */
+    public static long fingerprint(Path source) throws IOException {
+        return Files.size(source) * 31 + Files.getLastModifiedTime(source).toMillis();
+    }
+
+    /**
+     * Opens snapshot if it is valid for the source, otherwise loads source and writes new snapshot
+     *
+     * @param snapshot snapshot path
+     * @param source CSV export of the table
+     * @param loader loader of CSV
+     * @return table scanned from mapped snapshot
+     * @throws IOException if reading or writing failed
+     */
+    public static ColumnarTable openOrBuild(Path snapshot, Path source, CsvTableLoader loader) throws IOException {
+        long fingerprint = fingerprint(source);
+        Optional<ColumnarTable> table = open(snapshot, fingerprint, true);
+        if (table.isPresent()) {
+            return table.get();
+        }
+        try (Reader reader = Files.newBufferedReader(source, StandardCharsets.UTF_8)) {
+            write(loader.load(reader), fingerprint, snapshot);
+        }
+        return open(snapshot, fingerprint, false)
+                .orElseThrow(() -> new IOException(SNAPSHOT_IS_CORRUPTED));
+    }
+
+    /**
+     * Writes table to the snapshot, file is replaced atomically
+     *
+     * @param table table to be written
+     * @param fingerprint fingerprint of the source of the table
+     * @param target snapshot path
+     * @throws IOException if writing failed
+     */
+    public static void write(ColumnarTable table, long fingerprint, Path target) throws IOException {
+        int rowCount = table.getRowCount();
+        Map<String, DictionaryColumn> stringColumns = table.getStringColumns();
+        Map<String, DoubleBuffer> numericColumns = table.getNumericColumns();
+
+        // Size of directory is needed to compute offsets of data, so offsets are computed on the first pass
+        long dataOffset = align(HEADER_SIZE + writeDirectory(table, new long[stringColumns.size()
+                + numericColumns.size()]).length);
+        long[] offsets = new long[stringColumns.size() + numericColumns.size()];
+        long offset = dataOffset;
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = offset;
+            offset = align(offset + (long) rowCount * (i < stringColumns.size() ? Integer.BYTES : Double.BYTES));
+        }
+        byte[] directory = writeDirectory(table, offsets);
+
+        Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+        CRC32 checksum = new CRC32();
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            channel.position(HEADER_SIZE);
+            writeChecked(channel, ByteBuffer.wrap(directory), checksum);
+
+            int column = 0;
+            for (DictionaryColumn stringColumn : stringColumns.values()) {
+                writePadding(channel, offsets[column++], checksum);
+                ByteBuffer data = ByteBuffer.allocate(rowCount * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                for (int row = 0; row < rowCount; row++) {
+                    data.putInt(stringColumn.getCode(row));
+                }
+                data.flip();
+                writeChecked(channel, data, checksum);
+            }
+            for (DoubleBuffer numericColumn : numericColumns.values()) {
+                writePadding(channel, offsets[column++], checksum);
+                ByteBuffer data = ByteBuffer.allocate(rowCount * Double.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                for (int row = 0; row < rowCount; row++) {
+                    data.putDouble(numericColumn.get(row));
+                }
+                data.flip();
+                writeChecked(channel, data, checksum);
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putLong(MAGIC).putInt(VERSION).putInt(rowCount).putLong(fingerprint).putLong(checksum.getValue());
+            header.flip();
+            channel.write(header, 0);
+            channel.force(true);
+        }
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Opens snapshot by mapping its columns
+     *
+     * @param snapshot snapshot path
+     * @param fingerprint expected fingerprint of the source
+     * @param verifyChecksum whether to read whole file to check CRC32
+     * @return table or empty if snapshot doesn't exist, is stale or corrupted
+     * @throws IOException if reading failed
+     */
+    public static Optional<ColumnarTable> open(Path snapshot, long fingerprint, boolean verifyChecksum)
+            throws IOException {
+        if (!Files.exists(snapshot)) {
+            return Optional.empty();
+        }
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                logger.warn(SNAPSHOT_IS_CORRUPTED);
+                return Optional.empty();
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            header.flip();
+            if (header.getLong() != MAGIC || header.getInt() != VERSION) {
+                logger.warn(SNAPSHOT_IS_STALE);
+                return Optional.empty();
+            }
+            int rowCount = header.getInt();
+            if (header.getLong() != fingerprint) {
+                logger.warn(SNAPSHOT_IS_STALE);
+                return Optional.empty();
+            }
+            long expectedChecksum = header.getLong();
+
+            channel.position(HEADER_SIZE);
+            DataInputStream directory = new DataInputStream(
+                    new BufferedInputStream(Channels.newInputStream(channel)));
+            int stringCount = directory.readInt();
+            int numericCount = directory.readInt();
+            Map<String, DictionaryColumn> stringColumns = new LinkedHashMap<>();
+            Map<String, DoubleBuffer> numericColumns = new LinkedHashMap<>();
+            for (int i = 0; i < stringCount; i++) {
+                String name = directory.readUTF();
+                String[] dictionary = new String[directory.readInt()];
+                for (int code = 0; code < dictionary.length; code++) {
+                    dictionary[code] = directory.readBoolean() ? directory.readUTF() : null;
+                }
+                IntBuffer codes = map(channel, directory.readLong(), (long) rowCount * Integer.BYTES).asIntBuffer();
+                stringColumns.put(name, new DictionaryColumn(dictionary, codes));
+            }
+            for (int i = 0; i < numericCount; i++) {
+                String name = directory.readUTF();
+                numericColumns.put(name,
+                        map(channel, directory.readLong(), (long) rowCount * Double.BYTES).asDoubleBuffer());
+            }
+
+            if (verifyChecksum && computeChecksum(channel) != expectedChecksum) {
+                logger.warn(SNAPSHOT_IS_CORRUPTED);
+                return Optional.empty();
+            }
+            return Optional.of(new ColumnarTable(rowCount, stringColumns, numericColumns));
+        }
+    }
+
+    private static byte[] writeDirectory(ColumnarTable table, long[] offsets) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream directory = new DataOutputStream(bytes);
+        directory.writeInt(table.getStringColumns().size());
+        directory.writeInt(table.getNumericColumns().size());
+        int column = 0;
+        for (Map.Entry<String, DictionaryColumn> entry : table.getStringColumns().entrySet()) {
+            directory.writeUTF(entry.getKey());
+            String[] dictionary = entry.getValue().getDictionary();
+            directory.writeInt(dictionary.length);
+            for (String value : dictionary) {
+                directory.writeBoolean(value != null);
+                if (value != null) {
+                    directory.writeUTF(value);
+                }
+            }
+            directory.writeLong(offsets[column++]);
+        }
+        for (String name : table.getNumericColumns().keySet()) {
+            directory.writeUTF(name);
+            directory.writeLong(offsets[column++]);
+        }
+        directory.flush();
+        return bytes.toByteArray();
+    }
+
+    private static long computeChecksum(FileChannel channel) throws IOException {
+        CRC32 checksum = new CRC32();
+        long position = HEADER_SIZE;
+        while (position < channel.size()) {
+            long length = Math.min(Integer.MAX_VALUE, channel.size() - position);
+            checksum.update(map(channel, position, length));
+            position += length;
+        }
+        return checksum.getValue();
+    }
+
+    private static ByteBuffer map(FileChannel channel, long offset, long length) throws IOException {
+        MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        return region.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void writeChecked(FileChannel channel, ByteBuffer data, CRC32 checksum) throws IOException {
+        checksum.update(data.duplicate());
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
+
+    private static void writePadding(FileChannel channel, long offset, CRC32 checksum) throws IOException {
+        int padding = (int) (offset - channel.position());
+        if (padding > 0) {
+            writeChecked(channel, ByteBuffer.allocate(padding), checksum);
+        }
+    }
+
+    private static long align(long offset) {
+        return (offset + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+}
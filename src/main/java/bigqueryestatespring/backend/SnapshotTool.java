@@ -0,0 +1,38 @@
+package bigqueryestatespring.backend;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Command line tool which builds snapshot from CSV export of the estates table (e.g. bigQuery export).
+ * Usage: SnapshotTool source.csv target.snapshot [string,columns] [numeric,columns]
+ */
+public class SnapshotTool {
+    private static final String DEFAULT_STRING_COLUMNS = "operation,property_type,country_name,state_name";
+    private static final String DEFAULT_NUMERIC_COLUMNS = "price,surface_covered_in_m2";
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: SnapshotTool source.csv target.snapshot [string,columns] [numeric,columns]");
+            System.exit(1);
+        }
+        Path source = Paths.get(args[0]);
+        Path target = Paths.get(args[1]);
+        String stringColumns = args.length > 2 ? args[2] : DEFAULT_STRING_COLUMNS;
+        String numericColumns = args.length > 3 ? args[3] : DEFAULT_NUMERIC_COLUMNS;
+
+        CsvTableLoader loader = new CsvTableLoader(Arrays.asList(stringColumns.split(",")),
+                Arrays.asList(numericColumns.split(",")));
+        ColumnarTable table;
+        try (Reader reader = Files.newBufferedReader(source, StandardCharsets.UTF_8)) {
+            table = loader.load(reader);
+        }
+        SnapshotFile.write(table, SnapshotFile.fingerprint(source), target);
+        System.out.println("Written " + table.getRowCount() + " rows to " + target);
+    }
+}
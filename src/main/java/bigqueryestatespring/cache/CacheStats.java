@@ -0,0 +1,64 @@
+package bigqueryestatespring.cache;
+
+/**
+ * Snapshot of result cache counters, serialized as is by the admin endpoint
+ */
+public class CacheStats {
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final long expirations;
+    private final int size;
+    private final long weight;
+    private final long secondTierHits;
+    private final int secondTierSize;
+
+    public CacheStats(long hits, long misses, long evictions, long expirations, int size, long weight,
+                      long secondTierHits, int secondTierSize) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.expirations = expirations;
+        this.size = size;
+        this.weight = weight;
+        this.secondTierHits = secondTierHits;
+        this.secondTierSize = secondTierSize;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public long getExpirations() {
+        return expirations;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public long getWeight() {
+        return weight;
+    }
+
+    /**
+     * Gets number of hits which were missing in memory and were found in the second tier
+     *
+     * @return second tier hits
+     */
+    public long getSecondTierHits() {
+        return secondTierHits;
+    }
+
+    public int getSecondTierSize() {
+        return secondTierSize;
+    }
+}
@@ -0,0 +1,44 @@
+package bigqueryestatespring.cache;
+
+import java.util.Optional;
+
+/**
+ * Second tier of the result cache, it is slower but bigger than memory and may outlive the process
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public interface CacheTier<K, V> {
+    /**
+     * Gets value by key if it is present and not expired
+     *
+     * @param key normalized key
+     * @return stored value or empty
+     */
+    Optional<V> get(K key);
+
+    /**
+     * Stores value, tier evicts entries by its own size limit
+     *
+     * @param key normalized key
+     * @param value value to be stored
+     */
+    void put(K key, V value);
+
+    /**
+     * Removes all entries
+     */
+    void clear();
+
+    /**
+     * Gets number of stored entries
+     *
+     * @return number of entries
+     */
+    int size();
+
+    /**
+     * Releases resources of the tier, entries are kept
+     */
+    default void close() {}
+}
@@ -0,0 +1,85 @@
+package bigqueryestatespring.cache;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Ring of peers for consistent hashing, every peer is placed on the ring by number of virtual nodes,
+ * owners of the key are the first distinct peers clockwise from hash of the key.
+ * Adding or removing a peer moves only keys of its arcs, all instances with the same peers
+ * get the same owners for the same key
+ */
+public class ConsistentHashRing {
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+    private final Set<String> peers;
+
+    /**
+     * @param peers base urls of all instances including this one
+     * @param virtualNodes number of points of every peer on the ring
+     */
+    public ConsistentHashRing(Collection<String> peers, int virtualNodes) {
+        for (String peer : peers) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash((peer + "#" + i).getBytes(StandardCharsets.UTF_8)), peer);
+            }
+        }
+        this.peers = new HashSet<>(peers);
+    }
+
+    /**
+     * @param peer base url of an instance
+     * @return whether the instance is on the ring
+     */
+    public boolean contains(String peer) {
+        return peers.contains(peer);
+    }
+
+    /**
+     * Gets owners of the key, the first one is the primary owner
+     *
+     * @param keyBytes binary form of the normalized key
+     * @param replicas number of owners
+     * @return distinct peers, fewer than replicas if there are not enough peers
+     */
+    public List<String> getOwners(byte[] keyBytes, int replicas) {
+        List<String> owners = new ArrayList<>();
+        if (ring.isEmpty()) {
+            return owners;
+        }
+        int count = Math.min(replicas, peers.size());
+        long hash = hash(keyBytes);
+        // Clockwise from the hash to the end of the ring, then from its start
+        for (SortedMap<Long, String> part : Arrays.asList(ring.tailMap(hash), ring.headMap(hash))) {
+            for (String peer : part.values()) {
+                if (owners.size() == count) {
+                    return owners;
+                }
+                if (!owners.contains(peer)) {
+                    owners.add(peer);
+                }
+            }
+        }
+        return owners;
+    }
+
+    /**
+     * Gets first 8 bytes of MD5, so points are spread evenly whatever the keys look like
+     */
+    private static long hash(byte[] bytes) {
+        try {
+            return ByteBuffer.wrap(MessageDigest.getInstance("MD5").digest(bytes)).getLong();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
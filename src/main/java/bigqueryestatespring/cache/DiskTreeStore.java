@@ -0,0 +1,440 @@
+package bigqueryestatespring.cache;
+
+import bigqueryestatespring.nodes.EstatesTree;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.LongSupplier;
+import java.util.zip.CRC32;
+
+import static bigqueryestatespring.exceptionMessages.ExceptionMessage.DISK_CACHE_IS_CORRUPTED;
+import static bigqueryestatespring.exceptionMessages.ExceptionMessage.DISK_CACHE_IS_STALE;
+import static bigqueryestatespring.exceptionMessages.ExceptionMessage.ERROR_WHILE_WRITING_DISK_CACHE;
+
+/**
+ * Second tier of the tree cache kept in one append-only file, so cached trees survive restarts.
+ *
+ * Layout:
+ * header - magic, format version and dataset version of the backend the trees were read from;
+ * records - key length, tree length (negative for removed key), creation time, CRC32 of key and tree,
+ * binary encoded key and tree.
+ *
+ * On open the file is memory mapped and only headers and keys of records are read to build index
+ * of the latest record of every key, trees are read from the file on get.
+ * Records from the first torn or corrupted one are dropped, file of other dataset version is cleared.
+ * Only index is read and updated under the lock, trees are read and decoded outside of it.
+ * Total size of live trees is limited, least recently used keys are removed by appending removal record,
+ * the file is compacted by atomic replace when it grows over twice the limit.
+ */
+public class DiskTreeStore implements CacheTier<QueryKey, EstatesTree> {
+    private static final Logger logger = LoggerFactory.getLogger(DiskTreeStore.class);
+
+    private static final long MAGIC = 0x4553545245455331L; // "ESTREES1"
+    private static final int VERSION = 4;
+    // magic, format version, length of dataset version
+    private static final int FIXED_HEADER_SIZE = 16;
+    // key length, tree length, creation time, checksum
+    private static final int RECORD_HEADER_SIZE = 20;
+    private static final int REMOVED = -1;
+    // File is mapped as one buffer on open, so it has to stay under 2GB including garbage
+    private static final long MAX_BYTES_LIMIT = 1L << 29;
+
+    private final Path path;
+    private final long maxBytes;
+    private final long ttlMillis;
+    private final LongSupplier clock;
+    private final byte[] datasetVersion;
+    private final int headerSize;
+    // Access ordered map - iteration starts from the least recently used key
+    private LinkedHashMap<QueryKey, Location> locations = new LinkedHashMap<>(16, 0.75f, true);
+    private FileChannel channel;
+    private long liveBytes;
+
+    private DiskTreeStore(Path path, long maxBytes, long ttlMillis, String datasetVersion, LongSupplier clock) {
+        this.path = path;
+        this.maxBytes = Math.min(maxBytes, MAX_BYTES_LIMIT);
+        this.ttlMillis = ttlMillis;
+        this.clock = clock;
+        this.datasetVersion = datasetVersion.getBytes(StandardCharsets.UTF_8);
+        this.headerSize = FIXED_HEADER_SIZE + this.datasetVersion.length;
+    }
+
+    public static DiskTreeStore open(Path path, long maxBytes, long ttlMillis, String datasetVersion)
+            throws IOException {
+        return open(path, maxBytes, ttlMillis, datasetVersion, System::currentTimeMillis);
+    }
+
+    /**
+     * Opens the store and reads index of its file, file is created if it doesn't exist
+     *
+     * @param path path of the file
+     * @param maxBytes max size of live encoded trees
+     * @param ttlMillis time to live of stored tree, older trees are treated as absent
+     * @param datasetVersion dataset version of the backend, file written from other version is cleared
+     * @param clock source of current time
+     * @return opened store
+     * @throws IOException if file can't be opened
+     */
+    public static DiskTreeStore open(Path path, long maxBytes, long ttlMillis, String datasetVersion,
+                                     LongSupplier clock) throws IOException {
+        DiskTreeStore store = new DiskTreeStore(path, maxBytes, ttlMillis, datasetVersion, clock);
+        synchronized (store) {
+            store.load();
+        }
+        return store;
+    }
+
+    @Override
+    public Optional<EstatesTree> get(QueryKey key) {
+        Location location;
+        FileChannel source;
+        synchronized (this) {
+            location = locations.get(key);
+            if (location == null) {
+                return Optional.empty();
+            }
+            if (isExpired(location.createdAt)) {
+                removeQuietly(key, location);
+                return Optional.empty();
+            }
+            source = channel;
+        }
+        byte[] tree;
+        try {
+            tree = read(source, location.offset, location.treeLength);
+        } catch (IOException ex) {
+            tree = null;
+        }
+        synchronized (this) {
+            // Record may be cleared, compacted or overwritten while it was read, then the bytes are not used
+            if (locations.get(key) != location || channel != source) {
+                return Optional.empty();
+            }
+            if (tree == null) {
+                logger.warn(DISK_CACHE_IS_CORRUPTED);
+                removeQuietly(key, location);
+                return Optional.empty();
+            }
+        }
+        try {
+            return Optional.of(EstatesTree.decode(new DataInputStream(new ByteArrayInputStream(tree))));
+        } catch (IOException | RuntimeException ex) {
+            logger.warn(DISK_CACHE_IS_CORRUPTED);
+            synchronized (this) {
+                removeQuietly(key, location);
+            }
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Appends tree to the file, tree bigger than the limit is not stored
+     *
+     * @param key normalized key
+     * @param tree tree to be stored
+     */
+    @Override
+    public void put(QueryKey key, EstatesTree tree) {
+        try {
+            byte[] keyBytes = encodeKey(key);
+            ByteArrayOutputStream treeBytes = new ByteArrayOutputStream();
+            tree.encode(new DataOutputStream(treeBytes));
+            if (treeBytes.size() > maxBytes) {
+                return;
+            }
+            synchronized (this) {
+                Location previous = locations.remove(key);
+                if (previous != null) {
+                    liveBytes -= previous.treeLength;
+                }
+                long createdAt = clock.getAsLong();
+                long offset = append(channel, channel.size(), keyBytes, treeBytes.toByteArray(), createdAt);
+                locations.put(key, new Location(offset, treeBytes.size(), createdAt));
+                liveBytes += treeBytes.size();
+                evict();
+                if (channel.size() > 2 * maxBytes) {
+                    compact();
+                }
+            }
+        } catch (IOException ex) {
+            logger.error(ERROR_WHILE_WRITING_DISK_CACHE);
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        try {
+            locations.clear();
+            liveBytes = 0;
+            channel.truncate(headerSize);
+        } catch (IOException ex) {
+            logger.error(ERROR_WHILE_WRITING_DISK_CACHE);
+        }
+    }
+
+    @Override
+    public synchronized int size() {
+        return locations.size();
+    }
+
+    /**
+     * Gets size of live encoded trees
+     *
+     * @return bytes
+     */
+    public synchronized long getLiveBytes() {
+        return liveBytes;
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            logger.error(ERROR_WHILE_WRITING_DISK_CACHE);
+        }
+    }
+
+    private void load() throws IOException {
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        long size = channel.size();
+        HeaderState headerState = size > Integer.MAX_VALUE ? HeaderState.INVALID : readHeader(size);
+        if (headerState != HeaderState.VALID) {
+            if (headerState == HeaderState.STALE) {
+                logger.info(DISK_CACHE_IS_STALE);
+            } else if (size > 0) {
+                logger.warn(DISK_CACHE_IS_CORRUPTED);
+            }
+            channel.truncate(0);
+            writeHeader(channel);
+            return;
+        }
+
+        MappedByteBuffer file = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        int position = headerSize;
+        while (position + RECORD_HEADER_SIZE <= size) {
+            file.position(position);
+            int keyLength = file.getInt();
+            int treeLength = file.getInt();
+            long createdAt = file.getLong();
+            int checksum = file.getInt();
+            long bodyLength = (long) keyLength + Math.max(treeLength, 0);
+            if (keyLength <= 0 || treeLength < REMOVED || position + RECORD_HEADER_SIZE + bodyLength > size) {
+                break;
+            }
+            ByteBuffer body = file.slice();
+            body.limit((int) bodyLength);
+            CRC32 crc = new CRC32();
+            crc.update(body.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            byte[] keyBytes = new byte[keyLength];
+            body.get(keyBytes);
+            QueryKey key;
+            try {
+                key = decodeKey(keyBytes);
+            } catch (IOException ex) {
+                break;
+            }
+            Location previous = locations.remove(key);
+            if (previous != null) {
+                liveBytes -= previous.treeLength;
+            }
+            if (treeLength != REMOVED && !isExpired(createdAt)) {
+                locations.put(key, new Location(position + RECORD_HEADER_SIZE + keyLength, treeLength, createdAt));
+                liveBytes += treeLength;
+            }
+            position += RECORD_HEADER_SIZE + bodyLength;
+        }
+        if (position < size) {
+            logger.warn(DISK_CACHE_IS_CORRUPTED);
+            channel.truncate(position);
+        }
+        evict();
+        if (channel.size() > 2 * maxBytes) {
+            compact();
+        }
+    }
+
+    private HeaderState readHeader(long size) throws IOException {
+        if (size < FIXED_HEADER_SIZE) {
+            return HeaderState.INVALID;
+        }
+        ByteBuffer header = ByteBuffer.allocate(FIXED_HEADER_SIZE);
+        channel.read(header, 0);
+        header.flip();
+        if (header.getLong() != MAGIC || header.getInt() != VERSION) {
+            return HeaderState.INVALID;
+        }
+        int versionLength = header.getInt();
+        if (versionLength != datasetVersion.length || size < headerSize) {
+            return HeaderState.STALE;
+        }
+        return Arrays.equals(read(channel, FIXED_HEADER_SIZE, versionLength), datasetVersion)
+                ? HeaderState.VALID
+                : HeaderState.STALE;
+    }
+
+    private void writeHeader(FileChannel target) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(headerSize);
+        header.putLong(MAGIC).putInt(VERSION).putInt(datasetVersion.length).put(datasetVersion);
+        header.flip();
+        write(target, 0, header);
+    }
+
+    private void evict() throws IOException {
+        Iterator<Map.Entry<QueryKey, Location>> iterator = locations.entrySet().iterator();
+        List<QueryKey> evicted = new ArrayList<>();
+        while (liveBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<QueryKey, Location> eldest = iterator.next();
+            liveBytes -= eldest.getValue().treeLength;
+            iterator.remove();
+            evicted.add(eldest.getKey());
+        }
+        for (QueryKey key : evicted) {
+            append(channel, channel.size(), encodeKey(key), null, clock.getAsLong());
+        }
+    }
+
+    /**
+     * Removes the key if its latest record is still the given one
+     */
+    private void removeQuietly(QueryKey key, Location location) {
+        if (!locations.remove(key, location)) {
+            return;
+        }
+        liveBytes -= location.treeLength;
+        try {
+            append(channel, channel.size(), encodeKey(key), null, clock.getAsLong());
+        } catch (IOException ex) {
+            logger.error(ERROR_WHILE_WRITING_DISK_CACHE);
+        }
+    }
+
+    /**
+     * Writes live records to new file in order of use and replaces the file atomically
+     */
+    private void compact() throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        LinkedHashMap<QueryKey, Location> compacted = new LinkedHashMap<>(16, 0.75f, true);
+        try (FileChannel target = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeHeader(target);
+            long position = headerSize;
+            for (Map.Entry<QueryKey, Location> entry : locations.entrySet()) {
+                Location location = entry.getValue();
+                byte[] keyBytes = encodeKey(entry.getKey());
+                byte[] tree = read(channel, location.offset, location.treeLength);
+                long offset = append(target, position, keyBytes, tree, location.createdAt);
+                compacted.put(entry.getKey(), new Location(offset, tree.length, location.createdAt));
+                position = offset + tree.length;
+            }
+            target.force(true);
+        }
+        channel.close();
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        locations = compacted;
+    }
+
+    private boolean isExpired(long createdAt) {
+        return clock.getAsLong() - createdAt >= ttlMillis;
+    }
+
+    /**
+     * Writes record at the position
+     *
+     * @param tree encoded tree, null for removal record
+     * @return offset of the tree
+     */
+    private static long append(FileChannel target, long position, byte[] key, byte[] tree, long createdAt)
+            throws IOException {
+        int treeLength = tree == null ? 0 : tree.length;
+        CRC32 crc = new CRC32();
+        crc.update(key);
+        if (tree != null) {
+            crc.update(tree);
+        }
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + key.length + treeLength);
+        record.putInt(key.length)
+                .putInt(tree == null ? REMOVED : tree.length)
+                .putLong(createdAt)
+                .putInt((int) crc.getValue())
+                .put(key);
+        if (tree != null) {
+            record.put(tree);
+        }
+        record.flip();
+        write(target, position, record);
+        return position + RECORD_HEADER_SIZE + key.length;
+    }
+
+    private static void write(FileChannel target, long position, ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            position += target.write(data, position);
+        }
+    }
+
+    private static byte[] read(FileChannel source, long position, int length) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(length);
+        while (data.hasRemaining()) {
+            if (source.read(data, position + data.position()) < 0) {
+                throw new IOException(DISK_CACHE_IS_CORRUPTED);
+            }
+        }
+        return data.array();
+    }
+
+    private static byte[] encodeKey(QueryKey key) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        key.encode(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static QueryKey decodeKey(byte[] bytes) throws IOException {
+        return QueryKey.decode(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    private enum HeaderState {
+        VALID, INVALID, STALE
+    }
+
+    private static final class Location {
+        final long offset;
+        final int treeLength;
+        final long createdAt;
+
+        Location(long offset, int treeLength, long createdAt) {
+            this.offset = offset;
+            this.treeLength = treeLength;
+            this.createdAt = createdAt;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package bigqueryestatespring.cache;
+
+import bigqueryestatespring.nodes.EstatesTree;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Optional;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import static bigqueryestatespring.exceptionMessages.ExceptionMessage.ERROR_WHILE_READING_PEER_CACHE;
+import static bigqueryestatespring.exceptionMessages.ExceptionMessage.ERROR_WHILE_WRITING_PEER_CACHE;
+
+/**
+ * Client of peer cache endpoint of other instances.
+ * Key is passed as url safe base64 of its binary form, tree is sent in binary form of EstatesTree.encode.
+ * Every request carries dataset version of this instance, peer with other version answers conflict,
+ * so instances on different data never share trees.
+ * Every request is signed by HMAC of the shared secret of the cluster over the sender, the key,
+ * the dataset version, the time of sending and the body, peer rejects requests which are not signed,
+ * not sent by a peer or sent too long ago, so a captured request can't be replayed later
+ */
+public class HttpPeerClient implements PeerClient {
+    private static final Logger logger = LoggerFactory.getLogger(HttpPeerClient.class);
+    public static final String PATH = "/internal/cache";
+    public static final String KEY_PARAMETER = "key";
+    public static final String DATASET_VERSION_HEADER = "X-Dataset-Version";
+    public static final String PEER_HEADER = "X-Peer";
+    public static final String SIGNATURE_HEADER = "X-Peer-Signature";
+    public static final String TIMESTAMP_HEADER = "X-Peer-Timestamp";
+    private static final String SIGNATURE_ALGORITHM = "HmacSHA256";
+    private static final byte[] EMPTY_BODY = new byte[0];
+
+    private final RestTemplate restTemplate;
+    private final String self;
+    private final String secret;
+    private final String datasetVersion;
+
+    /**
+     * @param restTemplate template with connect and read timeouts of peer requests
+     * @param self base url of this instance as it is in the ring
+     * @param secret secret shared by all instances of the cluster
+     * @param datasetVersion version of the data of this instance
+     */
+    public HttpPeerClient(RestTemplate restTemplate, String self, String secret, String datasetVersion) {
+        this.restTemplate = restTemplate;
+        this.self = self;
+        this.secret = secret;
+        this.datasetVersion = datasetVersion;
+    }
+
+    @Override
+    public Optional<EstatesTree> get(String peer, QueryKey key) {
+        try {
+            String encodedKey = encodeKey(key);
+            ResponseEntity<byte[]> response = restTemplate.exchange(getUri(peer, encodedKey), HttpMethod.GET,
+                    new HttpEntity<>(createHeaders(HttpMethod.GET, encodedKey, EMPTY_BODY)), byte[].class);
+            if (response.getStatusCode() != HttpStatus.OK || response.getBody() == null) {
+                return Optional.empty();
+            }
+            return Optional.of(EstatesTree.decode(new DataInputStream(new ByteArrayInputStream(response.getBody()))));
+        } catch (RestClientException | IOException ex) {
+            // Not found is thrown as client error, it is an ordinary miss
+            logger.debug(ERROR_WHILE_READING_PEER_CACHE, ex);
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    public void put(String peer, QueryKey key, EstatesTree tree) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            tree.encode(out);
+            out.flush();
+            byte[] body = bytes.toByteArray();
+            String encodedKey = encodeKey(key);
+            HttpHeaders headers = createHeaders(HttpMethod.PUT, encodedKey, body);
+            headers.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+            restTemplate.exchange(getUri(peer, encodedKey), HttpMethod.PUT, new HttpEntity<>(body, headers),
+                    Void.class);
+        } catch (RestClientException | IOException ex) {
+            logger.warn(ERROR_WHILE_WRITING_PEER_CACHE);
+        }
+    }
+
+    /**
+     * @param key normalized key
+     * @return url safe base64 of binary form of the key
+     */
+    public static String encodeKey(QueryKey key) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        key.encode(out);
+        out.flush();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+    }
+
+    /**
+     * @param encoded key written by encodeKey
+     * @return key
+     * @throws IOException if the key is truncated
+     * @throws IllegalArgumentException if the key is not base64
+     */
+    public static QueryKey decodeKey(String encoded) throws IOException {
+        return QueryKey.decode(new DataInputStream(new ByteArrayInputStream(Base64.getUrlDecoder().decode(encoded))));
+    }
+
+    /**
+     * @param secret secret shared by all instances of the cluster
+     * @param method method of the request
+     * @param peer base url of the sender
+     * @param key key written by encodeKey
+     * @param datasetVersion version of the data of the sender
+     * @param timestamp epoch millis when the request is sent
+     * @param body body of the request, empty for get
+     * @return base64 of HMAC of the request
+     */
+    public static String sign(String secret, HttpMethod method, String peer, String key, String datasetVersion,
+                              long timestamp, byte[] body) {
+        try {
+            Mac mac = Mac.getInstance(SIGNATURE_ALGORITHM);
+            mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), SIGNATURE_ALGORITHM));
+            for (String part : Arrays.asList(method.name(), peer, key, datasetVersion, String.valueOf(timestamp))) {
+                mac.update(part.getBytes(StandardCharsets.UTF_8));
+                mac.update((byte) '\n');
+            }
+            return Base64.getEncoder().encodeToString(mac.doFinal(body));
+        } catch (NoSuchAlgorithmException | InvalidKeyException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Compares in constant time, so the signature can't be guessed byte by byte
+     *
+     * @param signature signature sent with the request
+     * @return whether the signature is written by sign with the same secret and request
+     */
+    public static boolean verify(String secret, HttpMethod method, String peer, String key, String datasetVersion,
+                                 long timestamp, byte[] body, String signature) {
+        byte[] expected = sign(secret, method, peer, key, datasetVersion, timestamp, body)
+                .getBytes(StandardCharsets.UTF_8);
+        return MessageDigest.isEqual(expected, signature.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static URI getUri(String peer, String encodedKey) {
+        return URI.create(peer + PATH + "?" + KEY_PARAMETER + "=" + encodedKey);
+    }
+
+    private HttpHeaders createHeaders(HttpMethod method, String encodedKey, byte[] body) {
+        long timestamp = System.currentTimeMillis();
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(DATASET_VERSION_HEADER, datasetVersion);
+        headers.set(PEER_HEADER, self);
+        headers.set(TIMESTAMP_HEADER, String.valueOf(timestamp));
+        headers.set(SIGNATURE_HEADER, sign(secret, method, self, encodedKey, datasetVersion, timestamp, body));
+        return headers;
+    }
+}
@@ -0,0 +1,151 @@
+package bigqueryestatespring.cache;
+
+import bigqueryestatespring.nodes.EstatesTree;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Second tier of the tree cache shared by instances of the cluster.
+ * Every key is owned by replicas instances chosen by consistent hashing of the key,
+ * owners keep the key in their owned cache, other instances ask the owners over http.
+ * Memory tier in front of this one is the near cache of the instance, so a tree is fetched from its owner
+ * once per instance and ttl. Owned cache is read only locally, so lookups of peers never hop further
+ */
+public class PeerCacheTier implements CacheTier<QueryKey, EstatesTree> {
+    private final ConsistentHashRing ring;
+    private final String self;
+    private final int replicas;
+    private final PeerClient client;
+    private final ResultCache<QueryKey, EstatesTree> ownedCache;
+    private final ExecutorService replication;
+
+    /**
+     * @param ring ring of all instances
+     * @param self base url of this instance as it is in the ring
+     * @param replicas number of owners of every key
+     * @param client client of other instances
+     * @param ownedCache cache of keys this instance owns
+     * @param replication executor of puts to other owners, puts are dropped if it is saturated
+     */
+    public PeerCacheTier(ConsistentHashRing ring, String self, int replicas, PeerClient client,
+                         ResultCache<QueryKey, EstatesTree> ownedCache, ExecutorService replication) {
+        this.ring = ring;
+        this.self = self;
+        this.replicas = replicas;
+        this.client = client;
+        this.ownedCache = ownedCache;
+        this.replication = replication;
+    }
+
+    /**
+     * Owners are asked in order of the ring, this instance reads its owned cache instead of a request.
+     * Tree found on other owner is stored in the owned cache if this instance is an owner too,
+     * so replica which lost its entries is repaired by reads
+     */
+    @Override
+    public Optional<EstatesTree> get(QueryKey key) {
+        List<String> owners = getOwners(key);
+        boolean owner = owners.contains(self);
+        if (owner) {
+            Optional<EstatesTree> owned = ownedCache.get(key);
+            if (owned.isPresent()) {
+                return owned;
+            }
+        }
+        for (String peer : owners) {
+            if (!peer.equals(self)) {
+                Optional<EstatesTree> tree = client.get(peer, key);
+                if (tree.isPresent()) {
+                    if (owner) {
+                        ownedCache.put(key, tree.get());
+                    }
+                    return tree;
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Stores tree in the owned cache if this instance is an owner, other owners get it asynchronously
+     */
+    @Override
+    public void put(QueryKey key, EstatesTree value) {
+        for (String peer : getOwners(key)) {
+            if (peer.equals(self)) {
+                ownedCache.put(key, value);
+            } else {
+                replication.execute(() -> client.put(peer, key, value));
+            }
+        }
+    }
+
+    /**
+     * Gets tree owned by this instance for a peer
+     *
+     * @param key normalized key
+     * @return tree, empty if it is not in the owned cache
+     */
+    public Optional<EstatesTree> getOwned(QueryKey key) {
+        return ownedCache.get(key);
+    }
+
+    /**
+     * Stores tree sent by a peer which found this instance to be an owner
+     *
+     * @param key normalized key
+     * @param value tree
+     */
+    public void putOwned(QueryKey key, EstatesTree value) {
+        ownedCache.put(key, value);
+    }
+
+    /**
+     * @param peer base url of an instance
+     * @return whether the instance is one of the cluster
+     */
+    public boolean isPeer(String peer) {
+        return ring.contains(peer);
+    }
+
+    public List<String> getOwners(QueryKey key) {
+        return ring.getOwners(encode(key), replicas);
+    }
+
+    /**
+     * Clears only the owned cache, caches of peers are kept
+     */
+    @Override
+    public void clear() {
+        ownedCache.clear();
+    }
+
+    @Override
+    public int size() {
+        return ownedCache.getStats().getSize();
+    }
+
+    @Override
+    public void close() {
+        replication.shutdown();
+        ownedCache.close();
+    }
+
+    private static byte[] encode(QueryKey key) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            key.encode(out);
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package bigqueryestatespring.cache;
+
+import bigqueryestatespring.nodes.EstatesTree;
+
+import java.util.Optional;
+
+/**
+ * Client of caches of other instances of the cluster
+ */
+public interface PeerClient {
+    /**
+     * Gets tree from the cache the peer owns
+     *
+     * @param peer base url of the peer
+     * @param key normalized key
+     * @return tree, empty if the peer doesn't have it or doesn't answer
+     */
+    Optional<EstatesTree> get(String peer, QueryKey key);
+
+    /**
+     * Stores tree in the cache the peer owns, failure is only logged
+     *
+     * @param peer base url of the peer
+     * @param key normalized key
+     * @param tree tree to be stored
+     */
+    void put(String peer, QueryKey key, EstatesTree tree);
+}
@@ -0,0 +1,275 @@
+package bigqueryestatespring.cache;
+
+import bigqueryestatespring.services.Aggregate;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Normalized parameters of one estates query, used as key of the result cache
+ */
+public final class QueryKey {
+    public static final double FULL_TABLE = 100;
+
+    private final List<String> columnNames;
+    private final String aggregateColumn;
+    private final Set<Aggregate> aggregates;
+    private final boolean rollup;
+    private final Map<String, String> path;
+    private final int bottom;
+    private final int top;
+    private final double samplePercent;
+    private final YearMonth month;
+
+    /**
+     * Creates key of default aggregates over the whole default table, other parameters are set by with methods
+     */
+    public QueryKey(List<String> columnNames, String aggregateColumn, int bottom, int top) {
+        this(columnNames, aggregateColumn, Aggregate.DEFAULT, false, null, bottom, top, FULL_TABLE, null);
+    }
+
+    private QueryKey(List<String> columnNames, String aggregateColumn, Set<Aggregate> aggregates, boolean rollup,
+                     Map<String, String> path, int bottom, int top, double samplePercent, YearMonth month) {
+        this.columnNames = columnNames == null
+                ? Collections.emptyList()
+                : Collections.unmodifiableList(new ArrayList<>(columnNames));
+        this.aggregateColumn = aggregateColumn;
+        EnumSet<Aggregate> normalized = EnumSet.of(Aggregate.AVG);
+        if (aggregates != null) {
+            normalized.addAll(aggregates);
+        }
+        this.samplePercent = Math.min(samplePercent, FULL_TABLE);
+        if (isSampled()) {
+            normalized.add(Aggregate.MARGIN);
+        }
+        this.aggregates = Collections.unmodifiableSet(normalized);
+        this.rollup = rollup && !this.columnNames.isEmpty();
+        this.path = path == null
+                ? Collections.emptyMap()
+                : Collections.unmodifiableMap(new LinkedHashMap<>(path));
+        this.bottom = bottom;
+        this.top = top;
+        this.month = month;
+    }
+
+    public List<String> getColumnNames() {
+        return columnNames;
+    }
+
+    public String getAggregateColumn() {
+        return aggregateColumn;
+    }
+
+    public Set<Aggregate> getAggregates() {
+        return aggregates;
+    }
+
+    public boolean isRollup() {
+        return rollup;
+    }
+
+    public Map<String, String> getPath() {
+        return path;
+    }
+
+    public int getBottom() {
+        return bottom;
+    }
+
+    public int getTop() {
+        return top;
+    }
+
+    public double getSamplePercent() {
+        return samplePercent;
+    }
+
+    /**
+     * @return month of the monthly table, null for the default table of the backend
+     */
+    public YearMonth getMonth() {
+        return month;
+    }
+
+    /**
+     * @return whether the query reads only sample of the table, so its aggregates are approximate
+     */
+    public boolean isSampled() {
+        return samplePercent < FULL_TABLE;
+    }
+
+    /**
+     * Gets the same key with other aggregates of the leaves
+     *
+     * @param leafAggregates aggregates of the leaves, average is always included
+     * @return key with the aggregates
+     */
+    public QueryKey withAggregates(Set<Aggregate> leafAggregates) {
+        return new QueryKey(columnNames, aggregateColumn, leafAggregates, rollup, path, bottom, top, samplePercent,
+                month);
+    }
+
+    /**
+     * Gets the same key with or without subtotals
+     *
+     * @param subtotals whether every prefix of columnNames is grouped too, so inner nodes get subtotals,
+     *                  it is ignored without columns
+     * @return key with the rollup
+     */
+    public QueryKey withRollup(boolean subtotals) {
+        return new QueryKey(columnNames, aggregateColumn, aggregates, subtotals, path, bottom, top, samplePercent,
+                month);
+    }
+
+    /**
+     * Gets the same key restricted to the values of the path
+     *
+     * @param pathValues values of columns the rows are restricted to, in order of hierarchy above columnNames
+     * @return key of the subtree
+     */
+    public QueryKey withPath(Map<String, String> pathValues) {
+        return new QueryKey(columnNames, aggregateColumn, aggregates, rollup, pathValues, bottom, top, samplePercent,
+                month);
+    }
+
+    /**
+     * Gets the same key reading sample of the table
+     *
+     * @param percent percent of the table the query reads, leaves of sampled key get MARGIN aggregate,
+     *                values not less than FULL_TABLE read the whole table
+     * @return sampled key
+     */
+    public QueryKey withSamplePercent(double percent) {
+        return new QueryKey(columnNames, aggregateColumn, aggregates, rollup, path, bottom, top, percent, month);
+    }
+
+    /**
+     * Gets the same key reading the monthly table
+     *
+     * @param tableMonth month of the table, null for the default table
+     * @return key of the monthly table
+     */
+    public QueryKey withMonth(YearMonth tableMonth) {
+        return new QueryKey(columnNames, aggregateColumn, aggregates, rollup, path, bottom, top, samplePercent,
+                tableMonth);
+    }
+
+    /**
+     * Gets key of the same shape for all surfaces and all values of the path,
+     * keys which differ only by parameters of the query have the same shape.
+     * Table can't be a query parameter, so month is kept
+     *
+     * @return key with full range and empty values of the path
+     */
+    public QueryKey withoutParameters() {
+        Map<String, String> pathColumns = new LinkedHashMap<>();
+        path.keySet().forEach(column -> pathColumns.put(column, ""));
+        return new QueryKey(columnNames, aggregateColumn, aggregates, rollup, pathColumns, 0, Integer.MAX_VALUE,
+                samplePercent, month);
+    }
+
+    /**
+     * Writes key in binary form, equal keys are written as equal bytes
+     *
+     * @param out output
+     * @throws IOException if writing failed
+     */
+    public void encode(DataOutput out) throws IOException {
+        out.writeInt(columnNames.size());
+        for (String columnName : columnNames) {
+            out.writeUTF(columnName);
+        }
+        out.writeUTF(aggregateColumn);
+        out.writeInt(Aggregate.toMask(aggregates));
+        out.writeBoolean(rollup);
+        out.writeInt(path.size());
+        for (Map.Entry<String, String> step : path.entrySet()) {
+            out.writeUTF(step.getKey());
+            out.writeBoolean(step.getValue() != null);
+            if (step.getValue() != null) {
+                out.writeUTF(step.getValue());
+            }
+        }
+        out.writeInt(bottom);
+        out.writeInt(top);
+        out.writeDouble(samplePercent);
+        out.writeBoolean(month != null);
+        if (month != null) {
+            out.writeUTF(month.toString());
+        }
+    }
+
+    /**
+     * Reads key written by encode
+     *
+     * @param in input
+     * @return key
+     * @throws IOException if reading failed or input is truncated
+     */
+    public static QueryKey decode(DataInput in) throws IOException {
+        List<String> columnNames = new ArrayList<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            columnNames.add(in.readUTF());
+        }
+        String aggregateColumn = in.readUTF();
+        int aggregates = in.readInt();
+        boolean rollup = in.readBoolean();
+        Map<String, String> path = new LinkedHashMap<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            String column = in.readUTF();
+            path.put(column, in.readBoolean() ? in.readUTF() : null);
+        }
+        int bottom = in.readInt();
+        int top = in.readInt();
+        double samplePercent = in.readDouble();
+        YearMonth month = in.readBoolean() ? YearMonth.parse(in.readUTF()) : null;
+        return new QueryKey(columnNames, aggregateColumn, Aggregate.fromMask(aggregates), rollup, path,
+                bottom, top, samplePercent, month);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        QueryKey queryKey = (QueryKey) o;
+        return rollup == queryKey.rollup &&
+                bottom == queryKey.bottom &&
+                top == queryKey.top &&
+                Double.compare(samplePercent, queryKey.samplePercent) == 0 &&
+                columnNames.equals(queryKey.columnNames) &&
+                Objects.equals(aggregateColumn, queryKey.aggregateColumn) &&
+                aggregates.equals(queryKey.aggregates) &&
+                path.equals(queryKey.path) &&
+                Objects.equals(month, queryKey.month);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(columnNames, aggregateColumn, aggregates, rollup, path, bottom, top, samplePercent, month);
+    }
+
+    @Override
+    public String toString() {
+        return "QueryKey{" +
+                "columnNames=" + columnNames +
+                ", aggregateColumn='" + aggregateColumn + '\'' +
+                ", aggregates=" + aggregates +
+                ", rollup=" + rollup +
+                ", path=" + path +
+                ", bottom=" + bottom +
+                ", top=" + top +
+                ", samplePercent=" + samplePercent +
+                ", month=" + month +
+                '}';
+    }
+}
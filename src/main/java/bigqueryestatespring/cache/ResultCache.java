@@ -0,0 +1,179 @@
+package bigqueryestatespring.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * Bounded in-memory cache with LRU and TTL eviction.
+ * Size of the cache is measured by weight of values (given by weigher),
+ * least recently used entries are evicted when total weight exceeds maxWeight,
+ * entries older than ttlMillis are treated as absent.
+ * If second tier is given, every put value is written through to it
+ * and value missing in memory is looked up there and promoted to memory.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class ResultCache<K, V> {
+    private final long maxWeight;
+    private final long ttlMillis;
+    private final ToLongFunction<V> weigher;
+    private final LongSupplier clock;
+    private final CacheTier<K, V> secondTier;
+
+    // Access ordered map - iteration starts from the least recently used entry
+    private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalWeight;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong secondTierHits = new AtomicLong();
+
+    public ResultCache(long maxWeight, long ttlMillis, ToLongFunction<V> weigher) {
+        this(maxWeight, ttlMillis, weigher, System::currentTimeMillis);
+    }
+
+    public ResultCache(long maxWeight, long ttlMillis, ToLongFunction<V> weigher, LongSupplier clock) {
+        this(maxWeight, ttlMillis, weigher, clock, null);
+    }
+
+    /**
+     * @param secondTier tier behind the memory, null if there is none
+     */
+    public ResultCache(long maxWeight, long ttlMillis, ToLongFunction<V> weigher, LongSupplier clock,
+                       CacheTier<K, V> secondTier) {
+        this.maxWeight = maxWeight;
+        this.ttlMillis = ttlMillis;
+        this.weigher = weigher;
+        this.clock = clock;
+        this.secondTier = secondTier;
+    }
+
+    /**
+     * Gets value by key if it is present and not expired, second tier is read without holding the lock
+     *
+     * @param key normalized key
+     * @return cached value or empty
+     */
+    public Optional<V> get(K key) {
+        Optional<V> value = getFromMemory(key);
+        if (!value.isPresent() && secondTier != null) {
+            value = secondTier.get(key);
+            if (value.isPresent()) {
+                secondTierHits.incrementAndGet();
+                putInMemory(key, value.get());
+            }
+        }
+        (value.isPresent() ? hits : misses).incrementAndGet();
+        return value;
+    }
+
+    /**
+     * Puts value into the cache and the second tier, evicting least recently used entries if needed.
+     * Value heavier than the whole cache is not stored in memory.
+     *
+     * @param key normalized key
+     * @param value value to be cached
+     */
+    public void put(K key, V value) {
+        putInMemory(key, value);
+        if (secondTier != null) {
+            secondTier.put(key, value);
+        }
+    }
+
+    private synchronized Optional<V> getFromMemory(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            return Optional.empty();
+        }
+        if (isExpired(entry)) {
+            removeEntry(key);
+            expirations.incrementAndGet();
+            return Optional.empty();
+        }
+        return Optional.of(entry.value);
+    }
+
+    private synchronized void putInMemory(K key, V value) {
+        long weight = weigher.applyAsLong(value);
+        if (weight > maxWeight) {
+            return;
+        }
+        removeEntry(key);
+        entries.put(key, new Entry<>(value, weight, clock.getAsLong()));
+        totalWeight += weight;
+
+        Iterator<Map.Entry<K, Entry<V>>> iterator = entries.entrySet().iterator();
+        while (totalWeight > maxWeight && iterator.hasNext()) {
+            Map.Entry<K, Entry<V>> eldest = iterator.next();
+            totalWeight -= eldest.getValue().weight;
+            iterator.remove();
+            if (isExpired(eldest.getValue())) {
+                expirations.incrementAndGet();
+            } else {
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Removes all entries of both tiers, counters are kept
+     */
+    public void clear() {
+        synchronized (this) {
+            entries.clear();
+            totalWeight = 0;
+        }
+        if (secondTier != null) {
+            secondTier.clear();
+        }
+    }
+
+    /**
+     * Closes the second tier, its entries are kept for the next start
+     */
+    public void close() {
+        if (secondTier != null) {
+            secondTier.close();
+        }
+    }
+
+    public CacheStats getStats() {
+        int secondTierSize = secondTier == null ? 0 : secondTier.size();
+        synchronized (this) {
+            return new CacheStats(hits.get(), misses.get(), evictions.get(), expirations.get(),
+                    entries.size(), totalWeight, secondTierHits.get(), secondTierSize);
+        }
+    }
+
+    private boolean isExpired(Entry<V> entry) {
+        return clock.getAsLong() - entry.createdAt >= ttlMillis;
+    }
+
+    private void removeEntry(K key) {
+        Entry<V> removed = entries.remove(key);
+        if (removed != null) {
+            totalWeight -= removed.weight;
+        }
+    }
+
+    private static class Entry<V> {
+        final V value;
+        final long weight;
+        final long createdAt;
+
+        Entry(V value, long weight, long createdAt) {
+            this.value = value;
+            this.weight = weight;
+            this.createdAt = createdAt;
+        }
+    }
+}
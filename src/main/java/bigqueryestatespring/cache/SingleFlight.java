@@ -0,0 +1,139 @@
+package bigqueryestatespring.cache;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent computations with the same key.
+ * The first caller launches computation, callers coming while it is in flight
+ * get the same future. Key is released as soon as computation completes.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class SingleFlight<K, V> {
+    private final Map<K, Flight<V>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong launched = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Gets future of in-flight computation for the key or launches new one
+     *
+     * @param key normalized key
+     * @param computation launches computation, called at most once per flight
+     * @return future shared by all callers of the flight
+     */
+    public CompletableFuture<V> execute(K key, Supplier<CompletableFuture<V>> computation) {
+        while (true) {
+            Flight<V> flight = join(key, computation);
+            if (flight.subscribe()) {
+                return flight.shared;
+            }
+            inFlight.remove(key, flight);
+        }
+    }
+
+    /**
+     * Variant of execute which gives every caller its own future.
+     * Cancelling the future unsubscribes the caller, computation is cancelled
+     * when all its callers cancelled their futures
+     *
+     * @param key normalized key
+     * @param computation launches computation, called at most once per flight
+     * @return future of the caller
+     */
+    public CompletableFuture<V> executeCancellable(K key, Supplier<CompletableFuture<V>> computation) {
+        while (true) {
+            Flight<V> flight = join(key, computation);
+            if (flight.subscribe()) {
+                CompletableFuture<V> caller = new CompletableFuture<>();
+                flight.shared.whenComplete((value, ex) -> {
+                    if (ex != null) {
+                        caller.completeExceptionally(ex);
+                    } else {
+                        caller.complete(value);
+                    }
+                });
+                caller.whenComplete((value, ex) -> {
+                    if (caller.isCancelled() && flight.unsubscribe()) {
+                        inFlight.remove(key, flight);
+                        flight.cancel();
+                    }
+                });
+                return caller;
+            }
+            inFlight.remove(key, flight);
+        }
+    }
+
+    public SingleFlightStats getStats() {
+        return new SingleFlightStats(launched.get(), coalesced.get(), inFlight.size());
+    }
+
+    private Flight<V> join(K key, Supplier<CompletableFuture<V>> computation) {
+        Flight<V> flight = new Flight<>();
+        Flight<V> existing = inFlight.putIfAbsent(key, flight);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            return existing;
+        }
+        launched.incrementAndGet();
+        try {
+            flight.computation = computation.get();
+            flight.computation.whenComplete((value, ex) -> {
+                inFlight.remove(key, flight);
+                if (ex != null) {
+                    flight.shared.completeExceptionally(ex);
+                } else {
+                    flight.shared.complete(value);
+                }
+            });
+        } catch (RuntimeException ex) {
+            inFlight.remove(key, flight);
+            flight.shared.completeExceptionally(ex);
+        }
+        return flight;
+    }
+
+    private static final class Flight<V> {
+        final CompletableFuture<V> shared = new CompletableFuture<>();
+        // Negative when the flight is cancelled
+        final AtomicInteger subscribers = new AtomicInteger();
+        volatile CompletableFuture<V> computation;
+
+        /**
+         * Callers of shared future never unsubscribe, so they keep the flight until it completes
+         *
+         * @return false if the flight is already cancelled
+         */
+        boolean subscribe() {
+            while (true) {
+                int count = subscribers.get();
+                if (count < 0) {
+                    return false;
+                }
+                if (subscribers.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * @return whether the last subscriber left and the flight is cancelled
+         */
+        boolean unsubscribe() {
+            return subscribers.decrementAndGet() == 0 && subscribers.compareAndSet(0, -1);
+        }
+
+        void cancel() {
+            if (computation != null) {
+                computation.cancel(true);
+            }
+            shared.cancel(true);
+        }
+    }
+}
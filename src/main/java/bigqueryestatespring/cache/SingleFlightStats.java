@@ -0,0 +1,28 @@
+package bigqueryestatespring.cache;
+
+/**
+ * Snapshot of query coalescing counters, serialized as is by the admin endpoint
+ */
+public class SingleFlightStats {
+    private final long launched;
+    private final long coalesced;
+    private final int inFlight;
+
+    public SingleFlightStats(long launched, long coalesced, int inFlight) {
+        this.launched = launched;
+        this.coalesced = coalesced;
+        this.inFlight = inFlight;
+    }
+
+    public long getLaunched() {
+        return launched;
+    }
+
+    public long getCoalesced() {
+        return coalesced;
+    }
+
+    public int getInFlight() {
+        return inFlight;
+    }
+}
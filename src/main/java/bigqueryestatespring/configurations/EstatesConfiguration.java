@@ -1,23 +1,72 @@
 package bigqueryestatespring.configurations;
 
+import bigqueryestatespring.backend.BigQueryBackend;
+import bigqueryestatespring.backend.ColumnarTable;
+import bigqueryestatespring.backend.CsvTableLoader;
+import bigqueryestatespring.backend.EmbeddedBackend;
+import bigqueryestatespring.backend.QueryBackend;
+import bigqueryestatespring.backend.SnapshotFile;
+import bigqueryestatespring.cache.CacheTier;
+import bigqueryestatespring.cache.ConsistentHashRing;
+import bigqueryestatespring.cache.DiskTreeStore;
+import bigqueryestatespring.cache.HttpPeerClient;
+import bigqueryestatespring.cache.PeerCacheTier;
+import bigqueryestatespring.cache.QueryKey;
+import bigqueryestatespring.cache.ResultCache;
+import bigqueryestatespring.cache.SingleFlight;
 import bigqueryestatespring.controllers.EstatesController;
+import bigqueryestatespring.metrics.EstatesMetrics;
+import bigqueryestatespring.metrics.TimedTreeSerializer;
+import bigqueryestatespring.metrics.TraceIdFilter;
+import bigqueryestatespring.nodes.EncodedTree;
+import bigqueryestatespring.nodes.EstatesTree;
+import bigqueryestatespring.services.AdmissionControl;
+import bigqueryestatespring.services.JobPoller;
+import bigqueryestatespring.services.PagedResultReader;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.module.SimpleModule;
 import com.google.auth.oauth2.ServiceAccountCredentials;
 import com.google.cloud.bigquery.BigQuery;
 import com.google.cloud.bigquery.BigQueryOptions;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.jooq.DSLContext;
 import org.jooq.SQLDialect;
 import org.jooq.impl.DSL;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Scope;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.web.client.RestTemplate;
 
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.Reader;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.YearMonth;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import static bigqueryestatespring.exceptionMessages.ExceptionMessage.*;
 
@@ -34,6 +83,7 @@ public class EstatesConfiguration {
      */
     @Bean
     @Scope("singleton")
+    @ConditionalOnProperty(name = "estates.backend", havingValue = "bigquery", matchIfMissing = true)
     public BigQuery getBigQueryInstance() {
         if (pathToCredentials == null) {
             logger.error(PATH_TO_GCLOUD_CREDENTIALS_IS_NOT_SPECIFIED);
@@ -61,10 +111,338 @@ public class EstatesConfiguration {
         return DSL.using(SQLDialect.MYSQL);
     }
 
+    /**
+     * Gets stage timers and bigQuery job statistics, they are exposed by actuator metrics and prometheus endpoints.
+     * If there is no registry of actuator (context without autoconfiguration) metrics are kept in memory
+     *
+     * @param registry registry of actuator
+     * @return metrics instance
+     */
+    @Bean
+    @Scope("singleton")
+    public EstatesMetrics getEstatesMetrics(ObjectProvider<MeterRegistry> registry) {
+        return new EstatesMetrics(registry.getIfAvailable(SimpleMeterRegistry::new));
+    }
+
+    @Bean
+    public TraceIdFilter getTraceIdFilter() {
+        return new TraceIdFilter();
+    }
+
+    /**
+     * Gets object mapper which records time of serialization of trees
+     *
+     * @param metrics estates metrics
+     * @return object mapper
+     */
     @Bean
     @Scope("singleton")
     @Qualifier("defaultObjectMapper")
-    public ObjectMapper getObjectMapper() {
-        return new ObjectMapper();
+    public ObjectMapper getObjectMapper(EstatesMetrics metrics) {
+        return new ObjectMapper()
+                .registerModule(new SimpleModule().addSerializer(EstatesTree.class, new TimedTreeSerializer(metrics)));
+    }
+
+    /**
+     * Gets cache of finished trees, weight of the tree is the number of its nodes
+     *
+     * @param maxWeight max number of nodes of all cached trees
+     * @param ttlSeconds time to live of cached tree
+     * @param diskPath path to file of second cache tier, cache is kept in memory only if empty
+     * @param diskMaxBytes max size of trees stored on disk
+     * @param peerCacheTier tier shared with other instances of the cluster, it replaces the disk tier if present
+     * @param backend backend, trees on disk are kept only while it reads the same dataset version
+     * @return cache instance
+     */
+    @Bean(destroyMethod = "close")
+    @Scope("singleton")
+    @Qualifier("treeResultCache")
+    public ResultCache<QueryKey, EstatesTree> getResultCache(
+            @Value("${estates.cache.max-weight:1000000}") long maxWeight,
+            @Value("${estates.cache.ttl-seconds:3600}") long ttlSeconds,
+            @Value("${estates.cache.disk.path:}") String diskPath,
+            @Value("${estates.cache.disk.max-bytes:268435456}") long diskMaxBytes,
+            ObjectProvider<PeerCacheTier> peerCacheTier,
+            QueryBackend backend) {
+        long ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+        CacheTier<QueryKey, EstatesTree> secondTier = peerCacheTier.getIfAvailable();
+        if (secondTier == null) {
+            secondTier = openDiskStore(diskPath, diskMaxBytes, ttlMillis, backend.getDatasetVersion());
+        }
+        return new ResultCache<>(maxWeight, ttlMillis, EstatesTree::getNodeCount, System::currentTimeMillis,
+                secondTier);
+    }
+
+    /**
+     * Gets tier which spreads cached trees over instances of the cluster by consistent hashing of the query key.
+     * Trees owned by this instance are kept in separate cache with the disk tier under it,
+     * memory tier of the tree result cache serves as near cache of trees owned by the other instances.
+     * It is closed by the tree result cache
+     *
+     * @param peers base URLs of all instances of the cluster, the same list on every instance
+     * @param self base URL of this instance, must be one of the peers
+     * @param secret secret shared by all instances, requests of peers are signed with it
+     * @param replicas number of instances each tree is stored on
+     * @param virtualNodes number of points of each instance on the ring
+     * @param timeoutMillis connect and read timeout of requests to peers
+     * @param ownedMaxWeight max number of nodes of all cached trees owned by this instance
+     * @param ttlSeconds time to live of cached tree
+     * @param diskPath path to file of the disk tier of owned trees, they are kept in memory only if empty
+     * @param diskMaxBytes max size of trees stored on disk
+     * @param backend backend, peers share trees only if they read the same dataset version
+     * @return tier instance
+     */
+    @Bean(destroyMethod = "")
+    @Scope("singleton")
+    @ConditionalOnProperty(name = "estates.cluster.enabled", havingValue = "true")
+    public PeerCacheTier getPeerCacheTier(
+            @Value("${estates.cluster.peers:}") String[] peers,
+            @Value("${estates.cluster.self:http://localhost:${server.port:8080}}") String self,
+            @Value("${estates.cluster.secret:}") String secret,
+            @Value("${estates.cluster.replicas:2}") int replicas,
+            @Value("${estates.cluster.virtual-nodes:100}") int virtualNodes,
+            @Value("${estates.cluster.timeout-ms:500}") int timeoutMillis,
+            @Value("${estates.cluster.owned-max-weight:1000000}") long ownedMaxWeight,
+            @Value("${estates.cache.ttl-seconds:3600}") long ttlSeconds,
+            @Value("${estates.cache.disk.path:}") String diskPath,
+            @Value("${estates.cache.disk.max-bytes:268435456}") long diskMaxBytes,
+            QueryBackend backend) {
+        if (!Arrays.asList(peers).contains(self)) {
+            throw new IllegalArgumentException(SELF_IS_NOT_PEER + self);
+        }
+        if (secret.isEmpty()) {
+            throw new IllegalArgumentException(CLUSTER_SECRET_IS_EMPTY);
+        }
+        long ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+        DiskTreeStore diskStore = openDiskStore(diskPath, diskMaxBytes, ttlMillis, backend.getDatasetVersion());
+        ResultCache<QueryKey, EstatesTree> ownedCache = new ResultCache<>(ownedMaxWeight, ttlMillis,
+                EstatesTree::getNodeCount, System::currentTimeMillis, diskStore);
+        SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+        requestFactory.setConnectTimeout(timeoutMillis);
+        requestFactory.setReadTimeout(timeoutMillis);
+        // Replication is best effort, writes over the queue are dropped
+        ExecutorService replication = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(1000), new ThreadPoolExecutor.DiscardPolicy());
+        return new PeerCacheTier(new ConsistentHashRing(Arrays.asList(peers), virtualNodes), self, replicas,
+                new HttpPeerClient(new RestTemplate(requestFactory), self, secret, backend.getDatasetVersion()),
+                ownedCache, replication);
+    }
+
+    private static DiskTreeStore openDiskStore(String diskPath, long diskMaxBytes, long ttlMillis,
+                                               String datasetVersion) {
+        if (diskPath.isEmpty()) {
+            return null;
+        }
+        try {
+            return DiskTreeStore.open(Paths.get(diskPath), diskMaxBytes, ttlMillis, datasetVersion);
+        } catch (IOException ex) {
+            logger.error(DISK_CACHE_IS_NOT_AVAILABLE);
+            return null;
+        }
+    }
+
+    /**
+     * Gets cache of trees encoded for responses, keyed by entity tag, weight of the tree is its size in bytes
+     *
+     * @param maxBytes max size of all cached encoded trees
+     * @param ttlSeconds time to live of cached tree
+     * @return cache instance
+     */
+    @Bean
+    @Scope("singleton")
+    @Qualifier("encodedTreeCache")
+    public ResultCache<String, EncodedTree> getEncodedTreeCache(
+            @Value("${estates.cache.encoded.max-bytes:67108864}") long maxBytes,
+            @Value("${estates.cache.ttl-seconds:3600}") long ttlSeconds) {
+        return new ResultCache<>(maxBytes, TimeUnit.SECONDS.toMillis(ttlSeconds), tree -> tree.getBytes().length);
+    }
+
+    /**
+     * Gets coalescer of identical queries which are in flight at the same time
+     *
+     * @return single flight instance
+     */
+    @Bean
+    @Scope("singleton")
+    @Qualifier("treeSingleFlight")
+    public SingleFlight<QueryKey, Optional<EstatesTree>> getTreeSingleFlight() {
+        return new SingleFlight<>();
+    }
+
+    /**
+     * Gets executor for fetching query results and building trees.
+     * Virtual threads are used only if they are enabled and supported by running JVM.
+     * Executor is monitored, so time of tasks in queue, queue size and active threads are exposed
+     *
+     * @param virtualThreads whether to use virtual thread per task
+     * @param metrics estates metrics
+     * @return executor
+     */
+    @Bean(destroyMethod = "shutdown")
+    @Scope("singleton")
+    @Qualifier("estatesExecutor")
+    public ExecutorService getEstatesExecutor(
+            @Value("${estates.executor.virtual-threads:false}") boolean virtualThreads,
+            EstatesMetrics metrics) {
+        ExecutorService executor = null;
+        if (virtualThreads) {
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                executor = (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException ex) {
+                logger.warn(VIRTUAL_THREADS_ARE_NOT_SUPPORTED);
+            }
+        }
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        }
+        return ExecutorServiceMetrics.monitor(metrics.getRegistry(), executor, "estatesExecutor", Tags.empty());
+    }
+
+    /**
+     * Gets bulkhead which bounds number of running backend queries
+     *
+     * @param maxInFlight max number of queries running at once
+     * @param maxBatchInFlight max number of batch queries running at once
+     * @param maxQueued max number of waiting interactive queries
+     * @param maxBatchQueued max number of waiting batch queries
+     * @param retryAfterSeconds time client is asked to wait after rejection
+     * @param executor executor starting admitted queries
+     * @param metrics estates metrics
+     * @return admission control
+     */
+    @Bean
+    @Scope("singleton")
+    public AdmissionControl getAdmissionControl(
+            @Value("${estates.admission.max-in-flight:8}") int maxInFlight,
+            @Value("${estates.admission.max-batch-in-flight:4}") int maxBatchInFlight,
+            @Value("${estates.admission.max-queued:64}") int maxQueued,
+            @Value("${estates.admission.max-batch-queued:16}") int maxBatchQueued,
+            @Value("${estates.admission.retry-after-seconds:1}") long retryAfterSeconds,
+            @Qualifier("estatesExecutor") ExecutorService executor,
+            EstatesMetrics metrics) {
+        return new AdmissionControl(maxInFlight, maxBatchInFlight, maxQueued, maxBatchQueued, retryAfterSeconds,
+                executor, metrics);
+    }
+
+    @Bean(destroyMethod = "shutdown")
+    @Scope("singleton")
+    public JobPoller getJobPoller(@Qualifier("estatesExecutor") ExecutorService executor,
+                                  @Value("${estates.poller.threads:1}") int threads,
+                                  @Value("${estates.poller.initial-delay-ms:100}") long initialDelayMillis,
+                                  @Value("${estates.poller.max-delay-ms:1000}") long maxDelayMillis,
+                                  @Value("${estates.results.page-size:10000}") long pageSize,
+                                  EstatesMetrics metrics) {
+        return new JobPoller(threads, executor, initialDelayMillis, maxDelayMillis, pageSize, metrics);
+    }
+
+    @Bean
+    @Scope("singleton")
+    @ConditionalOnProperty(name = "estates.backend", havingValue = "bigquery", matchIfMissing = true)
+    public QueryBackend getBigQueryBackend(BigQuery bigQuery,
+                                           @Qualifier("defaultDslContextConfiguration") DSLContext dsl,
+                                           JobPoller jobPoller,
+                                           @Value("${estates.cube.bucket-width:0}") int cubeBucketWidth,
+                                           @Value("${estates.bigquery.use-query-cache:true}") boolean useQueryCache,
+                                           @Value("${estates.bigquery.dry-run:false}") boolean dryRun,
+                                           @Value("${estates.bigquery.hedge.min-delay-ms:0}") long hedgeMinDelayMillis,
+                                           @Value("${estates.bigquery.table-prefix:"
+                                                   + BigQueryBackend.DEFAULT_TABLE_PREFIX + "}") String tablePrefix,
+                                           @Value("${estates.bigquery.default-month:201501}") String defaultMonth,
+                                           @Qualifier("estatesExecutor") ExecutorService executor,
+                                           EstatesMetrics metrics) {
+        return new BigQueryBackend(bigQuery, dsl, jobPoller, cubeBucketWidth, useQueryCache, dryRun,
+                hedgeMinDelayMillis, executor, tablePrefix,
+                YearMonth.parse(defaultMonth, BigQueryBackend.TABLE_SUFFIX_FORMAT), metrics);
+    }
+
+    /**
+     * Gets pool scanning the table of the embedded backend
+     *
+     * @param parallelism number of threads scanning the table, all processors if not positive
+     * @return pool, shut down with the context
+     */
+    @Bean(destroyMethod = "shutdown")
+    @Scope("singleton")
+    @Qualifier("embeddedPool")
+    @ConditionalOnProperty(name = "estates.backend", havingValue = "embedded")
+    public ForkJoinPool getEmbeddedPool(@Value("${estates.embedded.parallelism:0}") int parallelism) {
+        return new ForkJoinPool(parallelism > 0
+                ? parallelism
+                : Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Gets backend which serves queries from local CSV export of the estates table loaded into memory.
+     * If snapshot path is given table is scanned from memory mapped snapshot,
+     * snapshot is rebuilt from CSV when it is missing or stale
+     *
+     * @param path path to CSV file
+     * @param snapshotPath path to snapshot file, CSV is loaded into heap if empty
+     * @param stringColumns columns loaded as dictionary encoded strings
+     * @param numericColumns columns loaded as doubles
+     * @param monthlyPaths CSV exports of monthly tables as yyyy-MM=path, they are always loaded from CSV
+     * @param pool pool scanning the table
+     * @param cubeBucketWidth width of surface bucket of the cube, 0 keeps every distinct surface
+     * @return embedded backend
+     */
+    @Bean
+    @Scope("singleton")
+    @ConditionalOnProperty(name = "estates.backend", havingValue = "embedded")
+    public QueryBackend getEmbeddedBackend(
+            @Value("${estates.embedded.path}") String path,
+            @Value("${estates.embedded.snapshot-path:}") String snapshotPath,
+            @Value("${estates.embedded.string-columns:operation,property_type,country_name,state_name}")
+                    String[] stringColumns,
+            @Value("${estates.embedded.numeric-columns:price,surface_covered_in_m2}") String[] numericColumns,
+            @Value("${estates.embedded.monthly-paths:}") String[] monthlyPaths,
+            @Qualifier("embeddedPool") ForkJoinPool pool,
+            @Value("${estates.cube.bucket-width:0}") int cubeBucketWidth) {
+        CsvTableLoader loader = new CsvTableLoader(Arrays.asList(stringColumns), Arrays.asList(numericColumns));
+        Map<YearMonth, ColumnarTable> monthlyTables = new HashMap<>();
+        // Version covers every CSV file, so editing a monthly one invalidates persisted and shared trees too
+        long fingerprint;
+        try {
+            fingerprint = SnapshotFile.fingerprint(Paths.get(path));
+        } catch (IOException ex) {
+            logger.error(EXCEPTION_WHILE_READING_DATASET);
+            throw new RuntimeException(EXCEPTION_WHILE_READING_DATASET);
+        }
+        for (String monthlyPath : monthlyPaths) {
+            String[] monthAndPath = monthlyPath.split("=", 2);
+            Path monthlyFile = Paths.get(monthAndPath[1].trim());
+            YearMonth month = YearMonth.parse(monthAndPath[0].trim());
+            try (Reader reader = Files.newBufferedReader(monthlyFile, StandardCharsets.UTF_8)) {
+                monthlyTables.put(month, loader.load(reader));
+                fingerprint += month.hashCode() * 31L + SnapshotFile.fingerprint(monthlyFile);
+            } catch (IOException | RuntimeException ex) {
+                logger.error(EXCEPTION_WHILE_READING_DATASET);
+                throw new RuntimeException(EXCEPTION_WHILE_READING_DATASET);
+            }
+        }
+        String datasetVersion = Long.toHexString(fingerprint);
+        if (!snapshotPath.isEmpty()) {
+            try {
+                return new EmbeddedBackend(SnapshotFile.openOrBuild(Paths.get(snapshotPath), Paths.get(path), loader),
+                        monthlyTables, pool, cubeBucketWidth, datasetVersion);
+            } catch (IOException ex) {
+                logger.error(EXCEPTION_WHILE_READING_DATASET);
+                throw new RuntimeException(EXCEPTION_WHILE_READING_DATASET);
+            }
+        }
+        try (Reader reader = Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8)) {
+            return new EmbeddedBackend(loader.load(reader), monthlyTables, pool, cubeBucketWidth, datasetVersion);
+        } catch (IOException ex) {
+            logger.error(EXCEPTION_WHILE_READING_DATASET);
+            throw new RuntimeException(EXCEPTION_WHILE_READING_DATASET);
+        }
+    }
+
+    @Bean
+    @Scope("singleton")
+    public PagedResultReader getPagedResultReader(@Qualifier("estatesExecutor") ExecutorService executor,
+                                                  @Value("${estates.results.prefetch-depth:2}") int prefetchDepth,
+                                                  EstatesMetrics metrics) {
+        return new PagedResultReader(executor, prefetchDepth, metrics);
     }
 }
@@ -0,0 +1,93 @@
+package bigqueryestatespring.controllers;
+
+import bigqueryestatespring.backend.QueryBackend;
+import bigqueryestatespring.cache.CacheStats;
+import bigqueryestatespring.cache.QueryKey;
+import bigqueryestatespring.cache.ResultCache;
+import bigqueryestatespring.cache.SingleFlight;
+import bigqueryestatespring.cache.SingleFlightStats;
+import bigqueryestatespring.nodes.EstatesTree;
+import bigqueryestatespring.services.DataService;
+import bigqueryestatespring.services.SurfaceRange;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.List;
+import java.util.Optional;
+
+import static bigqueryestatespring.services.PropertiesAttribute.*;
+
+@RestController
+@RequestMapping("/admin")
+public class AdminController {
+    private ResultCache<QueryKey, EstatesTree> resultCache;
+    private SingleFlight<QueryKey, Optional<EstatesTree>> singleFlight;
+    private QueryBackend backend;
+    private DataService service;
+
+    @Autowired
+    @Qualifier("treeResultCache")
+    private void setResultCache(ResultCache<QueryKey, EstatesTree> resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    @Autowired
+    @Qualifier("treeSingleFlight")
+    private void setSingleFlight(SingleFlight<QueryKey, Optional<EstatesTree>> singleFlight) {
+        this.singleFlight = singleFlight;
+    }
+
+    @Autowired
+    private void setBackend(QueryBackend backend) {
+        this.backend = backend;
+    }
+
+    @Autowired
+    private void setService(DataService service) {
+        this.service = service;
+    }
+
+    @GetMapping("/cache")
+    public ResponseEntity<CacheStats> getCacheStats() {
+        return ResponseEntity.ok().body(resultCache.getStats());
+    }
+
+    @DeleteMapping("/cache")
+    public ResponseEntity<CacheStats> flushCache() {
+        service.flushCaches();
+        return ResponseEntity.ok().body(resultCache.getStats());
+    }
+
+    @GetMapping("/queries")
+    public ResponseEntity<SingleFlightStats> getQueryStats() {
+        return ResponseEntity.ok().body(singleFlight.getStats());
+    }
+
+    /**
+     * Estimates bytes processed by the estates query for the range without running it,
+     * parameters are validated as by the estates endpoint
+     *
+     * @param bottom low border of surface, 0 if missing
+     * @param top high border of surface, unlimited if missing
+     * @param columns levels of the tree from PropertiesAttribute.HIERARCHY_COLUMNS, all of them if missing
+     * @return estimated bytes, not found if backend can not estimate them
+     */
+    @GetMapping("/estimate")
+    public ResponseEntity<Long> estimateBytes(@RequestParam(required = false) Integer bottom,
+                                              @RequestParam(required = false) Integer top,
+                                              @RequestParam(required = false) List<String> columns) {
+        SurfaceRange range = EstatesController.getRange(bottom, top);
+        QueryKey key = new QueryKey(EstatesController.getColumnNames(columns), PRICE,
+                range.getBottom(), range.getTop());
+        return backend.estimateBytes(key)
+                .map(bytes -> ResponseEntity.ok().body(bytes))
+                .orElseGet(() -> new ResponseEntity<>(HttpStatus.NOT_FOUND));
+    }
+}
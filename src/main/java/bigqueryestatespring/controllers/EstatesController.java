@@ -1,51 +1,639 @@
 package bigqueryestatespring.controllers;
 
+import bigqueryestatespring.cache.QueryKey;
+import bigqueryestatespring.nodes.EncodedTree;
+import bigqueryestatespring.services.AdmissionControl;
+import bigqueryestatespring.services.AdmissionRejectedException;
+import bigqueryestatespring.nodes.EstatesTree;
+import bigqueryestatespring.services.Aggregate;
+import bigqueryestatespring.services.Cancellation;
 import bigqueryestatespring.services.DataService;
-import com.fasterxml.jackson.databind.JsonNode;
+import bigqueryestatespring.services.MonthRange;
+import bigqueryestatespring.services.ResultTooLargeException;
+import bigqueryestatespring.services.SurfaceRange;
+import bigqueryestatespring.services.TreeFormat;
+import bigqueryestatespring.services.TreeStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
-import java.util.Arrays;
+import java.io.IOException;
+import java.time.YearMonth;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
 
-import static bigqueryestatespring.exceptionMessages.ExceptionMessage.ARGUMENTS_ARE_NEGATIVE;
-import static bigqueryestatespring.exceptionMessages.ExceptionMessage.TOP_BORDER_UNDER_BOTTOM_BORDER;
+import static bigqueryestatespring.exceptionMessages.ExceptionMessage.*;
 import static bigqueryestatespring.services.PropertiesAttribute.*;
 
 @RestController
 @RequestMapping("/estates")
 public class EstatesController {
     private static final Logger logger = LoggerFactory.getLogger(EstatesController.class);
+    private static final String VARY_HEADERS = HttpHeaders.ACCEPT + ", " + HttpHeaders.ACCEPT_ENCODING;
+    private static final String GZIP = "gzip";
+    private static final String SAMPLE_PERCENT_HEADER = "X-Sample-Percent";
+    private static final String APPROXIMATE_EVENT = "approximate";
+    private static final String EXACT_EVENT = "exact";
 
     private DataService service;
+    private int maxBatchRanges;
+    private int maxMonths;
+    private long defaultTimeoutMillis;
+    private long maxTimeoutMillis;
 
     @Autowired
     private void setService(DataService service) {
         this.service = service;
     }
 
+    @Value("${estates.request.timeout-ms:30000}")
+    private void setDefaultTimeoutMillis(long defaultTimeoutMillis) {
+        this.defaultTimeoutMillis = defaultTimeoutMillis;
+    }
+
+    @Value("${estates.request.max-timeout-ms:120000}")
+    private void setMaxTimeoutMillis(long maxTimeoutMillis) {
+        this.maxTimeoutMillis = maxTimeoutMillis;
+    }
+
+    @Value("${estates.batch.max-ranges:100}")
+    private void setMaxBatchRanges(int maxBatchRanges) {
+        this.maxBatchRanges = maxBatchRanges;
+    }
+
+    @Value("${estates.monthly.max-months:36}")
+    private void setMaxMonths(int maxMonths) {
+        this.maxMonths = maxMonths;
+    }
+
+    /**
+     * Gets tree for range of surface
+     *
+     * @param bottom low border of surface, 0 if missing
+     * @param top high border of surface, unlimited if missing
+     * @param columns levels of the tree from PropertiesAttribute.HIERARCHY_COLUMNS, all of them if missing
+     * @param aggregates aggregates of the leaves, average is always included
+     * @param rollup whether inner nodes get subtotals of their leaves
+     * @param approximate whether the tree is built from sample of the table, leaves get margin of the average
+     *                    and percent of the sample is returned in X-Sample-Percent header
+     * @param from first month as yyyy-MM, tree is merged from monthly tables from the first to the last month,
+     *             default table is read if months are missing
+     * @param to last month as yyyy-MM
+     * @param accept accepted media types, tree is written as JSON, Smile or CBOR
+     * @param acceptEncoding accepted encodings, large tree is gzipped if gzip is accepted
+     * @param ifNoneMatch entity tags client has, not modified is returned without building the tree if one matches
+     * @param timeout deadline of the request in milliseconds, default deadline if missing
+     * @return tree encoded in the negotiated format with strong entity tag
+     */
     @GetMapping
-    public ResponseEntity<?> getEstates(@RequestParam(required = false) Integer bottom,
-                                        @RequestParam(required = false) Integer top) {
+    public DeferredResult<ResponseEntity<?>> getEstates(@RequestParam(required = false) Integer bottom,
+                                                        @RequestParam(required = false) Integer top,
+                                                        @RequestParam(required = false) List<String> columns,
+                                                        @RequestParam(required = false) List<String> aggregates,
+                                                        @RequestParam(defaultValue = "false") boolean rollup,
+                                                        @RequestParam(defaultValue = "false") boolean approximate,
+                                                        @RequestParam(required = false) String from,
+                                                        @RequestParam(required = false) String to,
+                                                        @RequestHeader(value = HttpHeaders.ACCEPT, required = false)
+                                                                String accept,
+                                                        @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING,
+                                                                required = false) String acceptEncoding,
+                                                        @RequestHeader(value = HttpHeaders.IF_NONE_MATCH,
+                                                                required = false) String ifNoneMatch,
+                                                        @RequestParam(required = false) Long timeout) {
+        return withDeadline(timeout, () -> createEstatesResponse(bottom, top, columns, aggregates, rollup,
+                approximate, from, to, accept, acceptEncoding, ifNoneMatch));
+    }
+
+    private CompletableFuture<ResponseEntity<?>> createEstatesResponse(Integer bottom, Integer top,
+                                                                       List<String> columns, List<String> aggregates,
+                                                                       boolean rollup, boolean approximate,
+                                                                       String from, String to,
+                                                                       String accept, String acceptEncoding,
+                                                                       String ifNoneMatch) {
+        List<String> columnNames = getColumnNames(columns);
+        Set<Aggregate> aggregateSet = getAggregates(aggregates);
+        SurfaceRange range = getRange(bottom, top);
+        MonthRange months = from == null && to == null ? null : getMonths(from, to, aggregateSet, approximate);
+        Optional<TreeFormat> format = TreeFormat.negotiate(accept);
+        if (!format.isPresent()) {
+            logger.warn(FORMAT_IS_NOT_ACCEPTABLE);
+            return CompletableFuture.completedFuture(new ResponseEntity<>(HttpStatus.NOT_ACCEPTABLE));
+        }
+        boolean gzip = acceptsGzip(acceptEncoding);
+        String entityTag = service.getEntityTag(columnNames, PRICE, aggregateSet, rollup, approximate, months,
+                range.getBottom(), range.getTop(), format.get(), gzip);
+        if (matchesEntityTag(ifNoneMatch, entityTag)) {
+            return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                    .eTag(entityTag)
+                    .header(HttpHeaders.VARY, VARY_HEADERS)
+                    .build());
+        }
+        CompletableFuture<Optional<EncodedTree>> tree = service.getEncodedTreeAsync(columnNames, PRICE, aggregateSet,
+                rollup, approximate, months, range.getBottom(), range.getTop(), format.get(), gzip);
+        Double samplePercent = approximate ? service.getSamplePercent() : null;
+        return Cancellation.propagate(tree.thenApply(result -> result.isPresent()
+                ? createEncodedResponse(result.get(), samplePercent)
+                : new ResponseEntity<>(HttpStatus.NOT_FOUND)), tree);
+    }
+
+    /**
+     * Gets tree for range of surface in streaming mode, for trees too large to be built in memory.
+     * Rows are read page by page ordered by the hierarchy and every branch is written as soon as it is finished,
+     * so memory doesn't grow with the tree. Tree has the same shape as the tree of getEstates.
+     * Result with more rows than estates.stream.max-rows is answered by payload too large,
+     * if the result turns out larger than a limit during writing, the response is aborted
+     *
+     * @param bottom low border of surface, 0 if missing
+     * @param top high border of surface, unlimited if missing
+     * @param columns levels of the tree from PropertiesAttribute.HIERARCHY_COLUMNS, all of them if missing
+     * @param aggregates aggregates of the leaves, average is always included
+     * @param timeout deadline of the query in milliseconds, default deadline if missing,
+     *                writing of the tree is limited by the async request timeout
+     * @return tree written as JSON stream
+     */
+    @GetMapping("/stream")
+    public DeferredResult<ResponseEntity<StreamingResponseBody>> getEstatesStream(
+            @RequestParam(required = false) Integer bottom,
+            @RequestParam(required = false) Integer top,
+            @RequestParam(required = false) List<String> columns,
+            @RequestParam(required = false) List<String> aggregates,
+            @RequestParam(required = false) Long timeout) {
+        return withDeadline(timeout, () -> createStreamResponse(bottom, top, columns, aggregates));
+    }
+
+    private CompletableFuture<ResponseEntity<StreamingResponseBody>> createStreamResponse(Integer bottom, Integer top,
+                                                                                         List<String> columns,
+                                                                                         List<String> aggregates) {
+        List<String> columnNames = getColumnNames(columns);
+        Set<Aggregate> aggregateSet = getAggregates(aggregates);
+        SurfaceRange range = getRange(bottom, top);
+        CompletableFuture<Optional<TreeStream>> stream = service.getTreeStreamAsync(columnNames, PRICE, aggregateSet,
+                range.getBottom(), range.getTop());
+        return Cancellation.propagate(stream.thenApply(result -> result.isPresent()
+                ? ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).<StreamingResponseBody>body(
+                        result.get()::writeTo)
+                : new ResponseEntity<>(HttpStatus.NOT_FOUND)), stream);
+    }
+
+    /**
+     * Streams tree for range of surface as server-sent events.
+     * Approximate tree built from sample of the table is sent first as approximate event,
+     * exact tree is sent as exact event when the full query completes, then the stream is closed.
+     * Approximate tree is skipped if exact one is ready first, e.g. when it is cached.
+     * Both trees have the same shape, leaves of approximate tree have margin of the average
+     *
+     * @param bottom low border of surface, 0 if missing
+     * @param top high border of surface, unlimited if missing
+     * @param columns levels of the tree from PropertiesAttribute.HIERARCHY_COLUMNS, all of them if missing
+     * @param aggregates aggregates of the leaves, average is always included
+     * @param rollup whether inner nodes get subtotals of their leaves
+     * @param timeout deadline of the stream in milliseconds, default deadline if missing
+     * @return emitter of SampledTree events
+     */
+    @GetMapping(value = "/progressive", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter getEstatesProgressive(@RequestParam(required = false) Integer bottom,
+                                            @RequestParam(required = false) Integer top,
+                                            @RequestParam(required = false) List<String> columns,
+                                            @RequestParam(required = false) List<String> aggregates,
+                                            @RequestParam(defaultValue = "false") boolean rollup,
+                                            @RequestParam(required = false) Long timeout) {
+        List<String> columnNames = getColumnNames(columns);
+        Set<Aggregate> aggregateSet = getAggregates(aggregates);
+        SurfaceRange range = getRange(bottom, top);
+        long deadline = getDeadline(timeout);
+
+        SseEmitter emitter = new SseEmitter(deadline);
+        CompletableFuture<Optional<EstatesTree>> exact = service.getTreeAsync(columnNames, PRICE, aggregateSet,
+                rollup, range.getBottom(), range.getTop());
+        CompletableFuture<Optional<EstatesTree>> approximate = exact.isDone()
+                ? CompletableFuture.completedFuture(Optional.empty())
+                : service.getApproximateTreeAsync(columnNames, PRICE, aggregateSet, rollup, range.getBottom(),
+                range.getTop());
+        AtomicBoolean exactSent = new AtomicBoolean();
+        emitter.onTimeout(() -> {
+            logger.warn(DEADLINE_EXCEEDED);
+            emitter.complete();
+        });
+        // Completion callback runs after timeout, error and disconnect, cancel of finished future does nothing
+        emitter.onCompletion(() -> {
+            exact.cancel(true);
+            approximate.cancel(true);
+        });
+
+        approximate.thenAccept(tree -> {
+            synchronized (emitter) {
+                if (tree.isPresent() && !exactSent.get()) {
+                    send(emitter, APPROXIMATE_EVENT, new SampledTree(false, service.getSamplePercent(), tree.get()));
+                }
+            }
+        });
+        exact.whenComplete((tree, ex) -> {
+            approximate.cancel(true);
+            if (ex != null) {
+                emitter.completeWithError(ex instanceof CompletionException && ex.getCause() != null
+                        ? ex.getCause()
+                        : ex);
+                return;
+            }
+            synchronized (emitter) {
+                exactSent.set(true);
+                if (send(emitter, EXACT_EVENT, new SampledTree(true, QueryKey.FULL_TABLE, tree.orElse(null)))) {
+                    emitter.complete();
+                }
+            }
+        });
+        return emitter;
+    }
+
+    /**
+     * @return whether the event is sent, emitter is completed with error if it is not
+     */
+    private static boolean send(SseEmitter emitter, String name, SampledTree data) {
+        try {
+            emitter.send(SseEmitter.event().name(name).data(data, MediaType.APPLICATION_JSON));
+            return true;
+        } catch (IOException | IllegalStateException ex) {
+            logger.warn(ERROR_WHILE_SENDING_EVENT);
+            emitter.completeWithError(ex);
+            return false;
+        }
+    }
+
+    /**
+     * @param timeout requested deadline in milliseconds, default deadline if missing
+     * @return deadline capped by max deadline
+     * @throws ResponseStatusException bad request if timeout is not positive
+     */
+    private long getDeadline(Long timeout) {
+        if (timeout != null && timeout <= 0) {
+            throw badRequest(TIMEOUT_IS_NOT_POSITIVE);
+        }
+        return Math.min(timeout == null ? defaultTimeoutMillis : timeout, maxTimeoutMillis);
+    }
+
+    /**
+     * Answers request by the response future, request not answered before its deadline gets gateway timeout.
+     * Future is cancelled on timeout and when the client disconnects, so backend query of the request is cancelled
+     *
+     * @param timeout deadline of the request in milliseconds, default deadline if missing, capped by max deadline
+     * @param response creates future of the response, throws ResponseStatusException if parameters are invalid
+     * @return deferred result of the request, invalid parameters are its error result
+     */
+    private <T> DeferredResult<T> withDeadline(Long timeout, Supplier<CompletableFuture<T>> response) {
+        long deadline;
+        CompletableFuture<T> future;
+        try {
+            deadline = getDeadline(timeout);
+            future = response.get();
+        } catch (ResponseStatusException ex) {
+            DeferredResult<T> rejected = new DeferredResult<>();
+            rejected.setErrorResult(ex);
+            return rejected;
+        }
+        // Timeout result is handled by handleStatus
+        DeferredResult<T> result = new DeferredResult<>(deadline,
+                () -> new ResponseStatusException(HttpStatus.GATEWAY_TIMEOUT, DEADLINE_EXCEEDED));
+        // Completion callback runs after timeout, error and disconnect, cancel of finished future does nothing
+        result.onCompletion(() -> future.cancel(true));
+        future.whenComplete((value, ex) -> {
+            if (ex != null) {
+                result.setErrorResult(ex instanceof CompletionException && ex.getCause() != null
+                        ? ex.getCause()
+                        : ex);
+            } else {
+                result.setResult(value);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Months are merged from sums and counts of the monthly tables, so sampled trees and aggregates
+     * which can't be merged exactly are not allowed
+     *
+     * @return range of months
+     * @throws ResponseStatusException bad request if months are invalid
+     */
+    private MonthRange getMonths(String from, String to, Set<Aggregate> aggregates, boolean approximate) {
+        if (from == null || to == null) {
+            throw badRequest(MONTH_RANGE_IS_INCOMPLETE);
+        }
+        MonthRange months;
+        try {
+            months = new MonthRange(YearMonth.parse(from), YearMonth.parse(to));
+        } catch (DateTimeParseException ex) {
+            throw badRequest(INVALID_MONTH);
+        } catch (IllegalArgumentException ex) {
+            throw badRequest(ex.getMessage());
+        }
+        if (months.size() > maxMonths) {
+            throw badRequest(TOO_MANY_MONTHS);
+        }
+        if (approximate || !Aggregate.MERGEABLE.containsAll(aggregates)) {
+            throw badRequest(AGGREGATE_IS_NOT_MERGEABLE);
+        }
+        return months;
+    }
+
+    /**
+     * @param samplePercent percent of the table approximate tree is built from, null for exact tree
+     */
+    private static ResponseEntity<?> createEncodedResponse(EncodedTree tree, Double samplePercent) {
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                .eTag(tree.getEntityTag())
+                .cacheControl(CacheControl.noCache())
+                .header(HttpHeaders.VARY, VARY_HEADERS)
+                .contentType(tree.getMediaType());
+        if (tree.isGzipped()) {
+            response.header(HttpHeaders.CONTENT_ENCODING, GZIP);
+        }
+        if (samplePercent != null) {
+            response.header(SAMPLE_PERCENT_HEADER, String.valueOf(samplePercent));
+        }
+        return response.body(tree.getBytes());
+    }
+
+    /**
+     * @param acceptEncoding value of Accept-Encoding header
+     * @return whether gzip or any encoding is accepted with non zero quality
+     */
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parameters = coding.split(";");
+            String name = parameters[0].trim();
+            if (!name.equalsIgnoreCase(GZIP) && !name.equals("*")) {
+                continue;
+            }
+            boolean rejected = false;
+            for (int i = 1; i < parameters.length; i++) {
+                String parameter = parameters[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        rejected = Double.parseDouble(parameter.substring(2)) == 0;
+                    } catch (NumberFormatException ex) {
+                        rejected = true;
+                    }
+                }
+            }
+            if (!rejected) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * If-None-Match uses weak comparison, so weak tag of the client matches strong tag of the tree.
+     * Tag is computed before the tree exists, so * is not treated as a match
+     *
+     * @param ifNoneMatch value of If-None-Match header
+     * @param entityTag entity tag of the tree
+     * @return whether any tag of the header matches
+     */
+    private static boolean matchesEntityTag(String ifNoneMatch, String entityTag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals(entityTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets levels of the tree below the path, so client can expand branches on demand.
+     * Rows are restricted to the path by the query and only the next levels are grouped,
+     * subtree of every path is cached separately
+     *
+     * @param path column=value pairs of the first hierarchy columns separated by /,
+     *             e.g. operation=rent/property_type=apartment, top of the tree if missing
+     * @param levels number of levels below the path
+     * @param bottom low border of surface, 0 if missing
+     * @param top high border of surface, unlimited if missing
+     * @param columns hierarchy from PropertiesAttribute.HIERARCHY_COLUMNS, all of them if missing
+     * @param aggregates aggregates of the leaves, average is always included
+     * @param timeout deadline of the request in milliseconds, default deadline if missing
+     * @return subtree below the path
+     */
+    @GetMapping("/drilldown")
+    public DeferredResult<ResponseEntity<?>> getEstatesDrillDown(@RequestParam(required = false) String path,
+                                                                 @RequestParam(defaultValue = "1") int levels,
+                                                                 @RequestParam(required = false) Integer bottom,
+                                                                 @RequestParam(required = false) Integer top,
+                                                                 @RequestParam(required = false) List<String> columns,
+                                                                 @RequestParam(required = false) List<String> aggregates,
+                                                                 @RequestParam(required = false) Long timeout) {
+        return withDeadline(timeout, () -> createDrillDownResponse(path, levels, bottom, top, columns, aggregates));
+    }
+
+    private CompletableFuture<ResponseEntity<?>> createDrillDownResponse(String path, int levels,
+                                                                         Integer bottom, Integer top,
+                                                                         List<String> columns,
+                                                                         List<String> aggregates) {
+        List<String> columnNames = getColumnNames(columns);
+        Map<String, String> pathValues = getPath(path, columnNames);
+        if (pathValues == null) {
+            throw badRequest(INVALID_DRILL_DOWN_PATH);
+        }
+        if (levels < 1) {
+            throw badRequest(LEVELS_ARE_NOT_POSITIVE);
+        }
+        Set<Aggregate> aggregateSet = getAggregates(aggregates);
+        SurfaceRange range = getRange(bottom, top);
+        int from = pathValues.size();
+        List<String> levelColumns = columnNames.subList(from, Math.min(columnNames.size(), from + levels));
+        CompletableFuture<Optional<EstatesTree>> subtree = service.getSubtreeAsync(pathValues, levelColumns, PRICE,
+                aggregateSet, range.getBottom(), range.getTop());
+        return Cancellation.propagate(subtree.thenApply(result -> result.isPresent()
+                ? ResponseEntity.ok().body(result.get())
+                : new ResponseEntity<>(HttpStatus.NOT_FOUND)), subtree);
+    }
+
+    /**
+     * Gets trees for list of surface ranges, all ranges are answered by one query
+     *
+     * @param ranges ranges of surface, missing bottom is 0 and missing top is unlimited
+     * @param columns levels of the trees from PropertiesAttribute.HIERARCHY_COLUMNS, all of them if missing
+     * @param aggregates aggregates of the leaves, average is always included
+     * @param rollup whether inner nodes get subtotals of their leaves
+     * @param timeout deadline of the request in milliseconds, default deadline if missing
+     * @return trees in order of ranges
+     */
+    @PostMapping("/batch")
+    public DeferredResult<ResponseEntity<?>> getEstatesBatch(@RequestBody List<SurfaceRange> ranges,
+                                                             @RequestParam(required = false) List<String> columns,
+                                                             @RequestParam(required = false) List<String> aggregates,
+                                                             @RequestParam(defaultValue = "false") boolean rollup,
+                                                             @RequestParam(required = false) Long timeout) {
+        return withDeadline(timeout, () -> createBatchResponse(ranges, columns, aggregates, rollup));
+    }
+
+    private CompletableFuture<ResponseEntity<?>> createBatchResponse(List<SurfaceRange> ranges, List<String> columns,
+                                                                     List<String> aggregates, boolean rollup) {
+        List<String> columnNames = getColumnNames(columns);
+        Set<Aggregate> aggregateSet = getAggregates(aggregates);
+        if (ranges == null || ranges.isEmpty()) {
+            throw badRequest(RANGES_ARE_EMPTY);
+        }
+        if (ranges.size() > maxBatchRanges) {
+            throw badRequest(TOO_MANY_RANGES);
+        }
+        for (SurfaceRange range : ranges) {
+            getRange(range.getBottom(), range.getTop());
+        }
+        CompletableFuture<List<Optional<EstatesTree>>> batch = service.getTreesAsync(columnNames, PRICE, aggregateSet,
+                rollup, ranges);
+        return Cancellation.propagate(batch.thenApply(trees -> {
+            List<RangeTree> body = new ArrayList<>(trees.size());
+            for (int i = 0; i < trees.size(); i++) {
+                body.add(new RangeTree(ranges.get(i).getBottom(), ranges.get(i).getTop(),
+                        trees.get(i).orElse(null)));
+            }
+            return ResponseEntity.ok().body(body);
+        }), batch);
+    }
+
+    /**
+     * @param columns requested levels of the tree
+     * @return levels of the tree
+     * @throws ResponseStatusException bad request if some column is unknown or repeated
+     */
+    static List<String> getColumnNames(List<String> columns) {
+        if (columns == null || columns.isEmpty()) {
+            return HIERARCHY_COLUMNS;
+        }
+        Set<String> distinct = new HashSet<>(columns);
+        if (distinct.size() != columns.size() || !HIERARCHY_COLUMNS.containsAll(distinct)) {
+            throw badRequest(UNKNOWN_HIERARCHY_COLUMN);
+        }
+        return columns;
+    }
+
+    /**
+     * @param bottom low border of surface, 0 if missing
+     * @param top high border of surface, unlimited if missing
+     * @return range of surface
+     * @throws ResponseStatusException bad request if a border is negative or top is under bottom
+     */
+    static SurfaceRange getRange(Integer bottom, Integer top) {
         if ((bottom != null && bottom < 0) || (top != null && top < 0)) {
-            return new ResponseEntity<>(new RuntimeException(ARGUMENTS_ARE_NEGATIVE), HttpStatus.BAD_REQUEST);
+            throw badRequest(ARGUMENTS_ARE_NEGATIVE);
+        }
+        SurfaceRange range = new SurfaceRange(bottom == null ? 0 : bottom, top == null ? Integer.MAX_VALUE : top);
+        if (range.getTop() < range.getBottom()) {
+            throw badRequest(TOP_BORDER_UNDER_BOTTOM_BORDER);
+        }
+        return range;
+    }
+
+    /**
+     * @param path column=value pairs separated by /
+     * @param columnNames hierarchy of the tree
+     * @return values of the path by column, null if columns of the path are not the first columns of hierarchy
+     *         or path goes to the leaves
+     */
+    private static Map<String, String> getPath(String path, List<String> columnNames) {
+        Map<String, String> values = new LinkedHashMap<>();
+        if (path == null || path.isEmpty()) {
+            return values;
         }
-        if (bottom == null) {
-            bottom = 0;
+        for (String step : path.split("/")) {
+            int separator = step.indexOf('=');
+            if (separator < 0 || values.size() >= columnNames.size() - 1
+                    || !columnNames.get(values.size()).equals(step.substring(0, separator))) {
+                return null;
+            }
+            values.put(step.substring(0, separator), step.substring(separator + 1));
         }
-        if (top == null) {
-            top = Integer.MAX_VALUE;
+        return values;
+    }
+
+    /**
+     * @param aggregates requested names of aggregates
+     * @return aggregates
+     * @throws ResponseStatusException bad request if some aggregate is unknown
+     */
+    private static Set<Aggregate> getAggregates(List<String> aggregates) {
+        if (aggregates == null || aggregates.isEmpty()) {
+            return Aggregate.DEFAULT;
         }
-        if (top < bottom) {
-            return new ResponseEntity<>(new RuntimeException(TOP_BORDER_UNDER_BOTTOM_BORDER), HttpStatus.BAD_REQUEST);
+        Set<Aggregate> result = EnumSet.noneOf(Aggregate.class);
+        for (String name : aggregates) {
+            Aggregate aggregate = Aggregate.of(name);
+            if (aggregate == null) {
+                throw badRequest(UNKNOWN_AGGREGATE);
+            }
+            result.add(aggregate);
         }
-        Optional<JsonNode> result = service.getData(Arrays.asList(OPERATION, PROPERTY_TYPE, COUNTRY_NAME, STATE_NAME),
-                PRICE, bottom, top);
-        return result.isPresent() ? ResponseEntity.ok().body(result.get()) : new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        return result;
+    }
+
+    /**
+     * Invalid parameters of every endpoint are answered the same way by handleStatus
+     *
+     * @param message error message
+     * @return exception to be thrown
+     */
+    private static ResponseStatusException badRequest(String message) {
+        return new ResponseStatusException(HttpStatus.BAD_REQUEST, message);
+    }
+
+    /**
+     * Rejected batch is answered by too many requests, as only batch share of the backend is exhausted,
+     * rejected interactive request is answered by service unavailable
+     */
+    @ExceptionHandler(AdmissionRejectedException.class)
+    public final ResponseEntity<Exception> handleRejection(AdmissionRejectedException ex) {
+        logger.warn(ex.getMessage());
+        return ResponseEntity.status(ex.getPriority() == AdmissionControl.Priority.BATCH
+                ? HttpStatus.TOO_MANY_REQUESTS
+                : HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(ex.getRetryAfterSeconds()))
+                .body(ex);
+    }
+
+    @ExceptionHandler(ResultTooLargeException.class)
+    public final ResponseEntity<Exception> handleTooLarge(ResultTooLargeException ex) {
+        logger.warn(ex.getMessage());
+        return new ResponseEntity<>(ex, HttpStatus.PAYLOAD_TOO_LARGE);
+    }
+
+    @ExceptionHandler(ResponseStatusException.class)
+    public final ResponseEntity<Exception> handleStatus(ResponseStatusException ex) {
+        logger.warn(ex.getReason());
+        return new ResponseEntity<>(new RuntimeException(ex.getReason()), ex.getStatus());
     }
 
     @ExceptionHandler(Exception.class)
@@ -0,0 +1,186 @@
+package bigqueryestatespring.controllers;
+
+import bigqueryestatespring.backend.QueryBackend;
+import bigqueryestatespring.cache.HttpPeerClient;
+import bigqueryestatespring.cache.PeerCacheTier;
+import bigqueryestatespring.cache.QueryKey;
+import bigqueryestatespring.nodes.EstatesTree;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Optional;
+
+import static bigqueryestatespring.exceptionMessages.ExceptionMessage.PEER_REQUEST_IS_NOT_SIGNED;
+import static bigqueryestatespring.exceptionMessages.ExceptionMessage.PEER_REQUEST_IS_STALE;
+import static bigqueryestatespring.exceptionMessages.ExceptionMessage.UNKNOWN_PEER;
+
+/**
+ * Endpoint other instances of the cluster use to read and fill trees this instance owns.
+ * Only the owned cache is read, so a lookup of a peer never goes to further peers or to the backend.
+ * It exists only if the cluster is enabled, every request must be signed by a peer with the secret of the cluster
+ * at most max skew before or after the time of this instance
+ */
+@RestController
+@RequestMapping(HttpPeerClient.PATH)
+@ConditionalOnProperty(name = "estates.cluster.enabled", havingValue = "true")
+public class PeerCacheController {
+    private static final Logger logger = LoggerFactory.getLogger(PeerCacheController.class);
+    private static final byte[] EMPTY_BODY = new byte[0];
+
+    private PeerCacheTier peerCacheTier;
+    private QueryBackend backend;
+    private String secret;
+    private long maxSkewMillis;
+
+    @Autowired
+    private void setPeerCacheTier(PeerCacheTier peerCacheTier) {
+        this.peerCacheTier = peerCacheTier;
+    }
+
+    @Autowired
+    private void setBackend(QueryBackend backend) {
+        this.backend = backend;
+    }
+
+    @Value("${estates.cluster.secret}")
+    private void setSecret(String secret) {
+        this.secret = secret;
+    }
+
+    @Value("${estates.cluster.max-skew-ms:30000}")
+    private void setMaxSkewMillis(long maxSkewMillis) {
+        this.maxSkewMillis = maxSkewMillis;
+    }
+
+    /**
+     * @param key key written by HttpPeerClient.encodeKey
+     * @param datasetVersion version of the data of the peer
+     * @param peer base url of the peer
+     * @param timestamp epoch millis when the peer sent the request
+     * @param signature signature written by HttpPeerClient.sign
+     * @return tree in binary form, not found if it is not owned, conflict if the peer has other data
+     */
+    @GetMapping(produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public ResponseEntity<byte[]> getOwned(@RequestParam(HttpPeerClient.KEY_PARAMETER) String key,
+                                           @RequestHeader(HttpPeerClient.DATASET_VERSION_HEADER)
+                                                   String datasetVersion,
+                                           @RequestHeader(value = HttpPeerClient.PEER_HEADER, required = false)
+                                                   String peer,
+                                           @RequestHeader(value = HttpPeerClient.TIMESTAMP_HEADER, required = false)
+                                                   Long timestamp,
+                                           @RequestHeader(value = HttpPeerClient.SIGNATURE_HEADER, required = false)
+                                                   String signature) throws IOException {
+        Optional<HttpStatus> rejection = authenticate(HttpMethod.GET, peer, key, datasetVersion, timestamp,
+                EMPTY_BODY, signature);
+        if (rejection.isPresent()) {
+            return new ResponseEntity<>(rejection.get());
+        }
+        if (!datasetVersion.equals(backend.getDatasetVersion())) {
+            return new ResponseEntity<>(HttpStatus.CONFLICT);
+        }
+        Optional<QueryKey> queryKey = decodeKey(key);
+        if (!queryKey.isPresent()) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+        Optional<EstatesTree> tree = peerCacheTier.getOwned(queryKey.get());
+        if (!tree.isPresent()) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        tree.get().encode(out);
+        out.flush();
+        return ResponseEntity.ok(bytes.toByteArray());
+    }
+
+    /**
+     * @param key key written by HttpPeerClient.encodeKey
+     * @param datasetVersion version of the data of the peer
+     * @param peer base url of the peer
+     * @param timestamp epoch millis when the peer sent the request
+     * @param signature signature written by HttpPeerClient.sign
+     * @param body tree in binary form
+     * @return no content if the tree is stored, conflict if the peer has other data
+     */
+    @PutMapping(consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public ResponseEntity<Void> putOwned(@RequestParam(HttpPeerClient.KEY_PARAMETER) String key,
+                                         @RequestHeader(HttpPeerClient.DATASET_VERSION_HEADER)
+                                                 String datasetVersion,
+                                         @RequestHeader(value = HttpPeerClient.PEER_HEADER, required = false)
+                                                 String peer,
+                                         @RequestHeader(value = HttpPeerClient.TIMESTAMP_HEADER, required = false)
+                                                 Long timestamp,
+                                         @RequestHeader(value = HttpPeerClient.SIGNATURE_HEADER, required = false)
+                                                 String signature,
+                                         @RequestBody byte[] body) {
+        Optional<HttpStatus> rejection = authenticate(HttpMethod.PUT, peer, key, datasetVersion, timestamp, body,
+                signature);
+        if (rejection.isPresent()) {
+            return new ResponseEntity<>(rejection.get());
+        }
+        if (!datasetVersion.equals(backend.getDatasetVersion())) {
+            return new ResponseEntity<>(HttpStatus.CONFLICT);
+        }
+        Optional<QueryKey> queryKey = decodeKey(key);
+        if (!queryKey.isPresent()) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+        try {
+            peerCacheTier.putOwned(queryKey.get(), EstatesTree.decode(new DataInputStream(
+                    new ByteArrayInputStream(body))));
+        } catch (IOException ex) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+        return new ResponseEntity<>(HttpStatus.NO_CONTENT);
+    }
+
+    /**
+     * @return unauthorized if the request is not signed with the secret or is signed too far from now,
+     * forbidden if the sender is not a peer, empty if the request is accepted
+     */
+    private Optional<HttpStatus> authenticate(HttpMethod method, String peer, String key, String datasetVersion,
+                                              Long timestamp, byte[] body, String signature) {
+        if (peer == null || timestamp == null || signature == null
+                || !HttpPeerClient.verify(secret, method, peer, key, datasetVersion, timestamp, body, signature)) {
+            logger.warn(PEER_REQUEST_IS_NOT_SIGNED);
+            return Optional.of(HttpStatus.UNAUTHORIZED);
+        }
+        // Signature covers the timestamp, so an old request can't be replayed with a fresh one
+        if (Math.abs(System.currentTimeMillis() - timestamp) > maxSkewMillis) {
+            logger.warn(PEER_REQUEST_IS_STALE + peer);
+            return Optional.of(HttpStatus.UNAUTHORIZED);
+        }
+        if (!peerCacheTier.isPeer(peer)) {
+            logger.warn(UNKNOWN_PEER + peer);
+            return Optional.of(HttpStatus.FORBIDDEN);
+        }
+        return Optional.empty();
+    }
+
+    private static Optional<QueryKey> decodeKey(String key) {
+        try {
+            return Optional.of(HttpPeerClient.decodeKey(key));
+        } catch (IOException | IllegalArgumentException ex) {
+            return Optional.empty();
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package bigqueryestatespring.controllers;
+
+import bigqueryestatespring.nodes.EstatesTree;
+
+/**
+ * Tree of estates in one range of batch response, tree is null if there are no estates in the range
+ */
+public class RangeTree {
+    private final int bottom;
+    private final int top;
+    private final EstatesTree tree;
+
+    public RangeTree(int bottom, int top, EstatesTree tree) {
+        this.bottom = bottom;
+        this.top = top;
+        this.tree = tree;
+    }
+
+    public int getBottom() {
+        return bottom;
+    }
+
+    public int getTop() {
+        return top;
+    }
+
+    public EstatesTree getTree() {
+        return tree;
+    }
+}
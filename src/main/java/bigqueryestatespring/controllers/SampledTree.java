@@ -0,0 +1,31 @@
+package bigqueryestatespring.controllers;
+
+import bigqueryestatespring.nodes.EstatesTree;
+
+/**
+ * Tree of one event of progressive response, approximate tree is built from sample of the table,
+ * exact tree from the whole table. Tree is null if there are no estates in the range
+ */
+public class SampledTree {
+    private final boolean exact;
+    private final double samplePercent;
+    private final EstatesTree tree;
+
+    public SampledTree(boolean exact, double samplePercent, EstatesTree tree) {
+        this.exact = exact;
+        this.samplePercent = samplePercent;
+        this.tree = tree;
+    }
+
+    public boolean isExact() {
+        return exact;
+    }
+
+    public double getSamplePercent() {
+        return samplePercent;
+    }
+
+    public EstatesTree getTree() {
+        return tree;
+    }
+}
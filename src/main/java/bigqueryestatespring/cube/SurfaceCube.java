@@ -0,0 +1,178 @@
+package bigqueryestatespring.cube;
+
+import bigqueryestatespring.services.Aggregate;
+import com.google.cloud.bigquery.FieldValue;
+import com.google.cloud.bigquery.FieldValueList;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static bigqueryestatespring.backend.QueryBackend.COUNT_PREFIX;
+import static bigqueryestatespring.backend.QueryBackend.SUM_PREFIX;
+
+/**
+ * Pre-aggregated cube of sum and count of aggregate column grouped by hierarchy columns and surface.
+ * For every group surfaces are sorted and sums/counts are kept as prefix sums,
+ * so aggregate over any surface range is answered by two binary searches per group.
+ */
+public class SurfaceCube {
+    public static final String SURFACE_ALIAS = "surface";
+    /**
+     * Aggregates which can be answered by the cube
+     */
+    public static final Set<Aggregate> AGGREGATES = Collections.unmodifiableSet(
+            EnumSet.of(Aggregate.AVG, Aggregate.COUNT, Aggregate.SUM));
+
+    private final Map<List<String>, Group> groups;
+
+    private SurfaceCube(Map<List<String>, Group> groups) {
+        this.groups = groups;
+    }
+
+    /**
+     * Creates cube from rows of query
+     * SELECT columnNames, surface, sum_aggregateColumn, count_aggregateColumn GROUP BY columnNames, surface
+     * Rows without values of aggregate column have null sum and are skipped, they add nothing to any range
+     *
+     * @param rows query result
+     * @param columnNames hierarchy columns
+     * @param aggregateColumn column processed in aggregate functions
+     * @return cube
+     */
+    public static SurfaceCube fromRows(Iterable<FieldValueList> rows, List<String> columnNames,
+                                       String aggregateColumn) {
+        Builder builder = new Builder();
+        for (FieldValueList row : rows) {
+            FieldValue sum = row.get(SUM_PREFIX + aggregateColumn);
+            if (sum.isNull()) {
+                continue;
+            }
+            List<String> group = new ArrayList<>(columnNames.size());
+            for (String columnName : columnNames) {
+                group.add(row.get(columnName).getStringValue());
+            }
+            builder.add(group,
+                    row.get(SURFACE_ALIAS).getDoubleValue(),
+                    sum.getDoubleValue(),
+                    row.get(COUNT_PREFIX + aggregateColumn).getLongValue());
+        }
+        return builder.build();
+    }
+
+    /**
+     * Passes aggregates of every group which has values in range [bottom, top] to the consumer.
+     * Groups are passed in the order they were added to the cube.
+     *
+     * @param bottom low border for surface
+     * @param top high border for surface
+     * @param consumer receiver of group aggregates
+     */
+    public void query(double bottom, double top, GroupConsumer consumer) {
+        for (Map.Entry<List<String>, Group> entry : groups.entrySet()) {
+            Group group = entry.getValue();
+            int from = lowerBound(group.surfaces, bottom);
+            int to = upperBound(group.surfaces, top);
+            if (from >= to) {
+                continue;
+            }
+            long count = group.prefixCounts[to] - group.prefixCounts[from];
+            if (count == 0) {
+                continue;
+            }
+            consumer.accept(entry.getKey(), group.prefixSums[to] - group.prefixSums[from], count);
+        }
+    }
+
+    public int getGroupCount() {
+        return groups.size();
+    }
+
+    // First index with surfaces[index] >= value
+    private static int lowerBound(double[] surfaces, double value) {
+        int low = 0;
+        int high = surfaces.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (surfaces[middle] < value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // First index with surfaces[index] > value
+    private static int upperBound(double[] surfaces, double value) {
+        int low = 0;
+        int high = surfaces.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (surfaces[middle] <= value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    public interface GroupConsumer {
+        void accept(List<String> group, double sum, long count);
+    }
+
+    public static class Builder {
+        private final Map<List<String>, List<Cell>> cells = new LinkedHashMap<>();
+
+        public Builder add(List<String> group, double surface, double sum, long count) {
+            cells.computeIfAbsent(group, key -> new ArrayList<>()).add(new Cell(surface, sum, count));
+            return this;
+        }
+
+        public SurfaceCube build() {
+            Map<List<String>, Group> groups = new LinkedHashMap<>();
+            cells.forEach((group, groupCells) -> groups.put(group, new Group(groupCells)));
+            return new SurfaceCube(groups);
+        }
+    }
+
+    private static class Cell {
+        final double surface;
+        final double sum;
+        final long count;
+
+        Cell(double surface, double sum, long count) {
+            this.surface = surface;
+            this.sum = sum;
+            this.count = count;
+        }
+    }
+
+    private static class Group {
+        final double[] surfaces;
+        final double[] prefixSums;
+        final long[] prefixCounts;
+
+        Group(List<Cell> cells) {
+            List<Cell> sorted = cells.stream()
+                    .sorted(Comparator.comparingDouble(cell -> cell.surface))
+                    .collect(Collectors.toList());
+            surfaces = new double[sorted.size()];
+            prefixSums = new double[sorted.size() + 1];
+            prefixCounts = new long[sorted.size() + 1];
+            for (int i = 0; i < sorted.size(); i++) {
+                Cell cell = sorted.get(i);
+                surfaces[i] = cell.surface;
+                prefixSums[i + 1] = prefixSums[i] + cell.sum;
+                prefixCounts[i + 1] = prefixCounts[i] + cell.count;
+            }
+        }
+    }
+}
@@ -11,5 +11,47 @@ public interface ExceptionMessage {
     String EXCEPTION_WHILE_CREATE_JSON = "Exception happened while creating json";
     String ARGUMENTS_ARE_NEGATIVE = "One or two arguments are less then zero";
     String AGGREGATE_COLUMN_IS_NULL = "Column to be processed in the aggregation function is not specified";
+    String VIRTUAL_THREADS_ARE_NOT_SUPPORTED = "Virtual threads are not supported by this JVM, fixed thread pool is used";
+    String UNKNOWN_COLUMN = "Column is not present in the dataset";
+    String TOO_MANY_GROUPS = "Number of groups is too big for embedded backend";
+    String EXCEPTION_WHILE_READING_DATASET = "Exception happened while reading file with dataset";
+    String SNAPSHOT_IS_STALE = "Snapshot of dataset is stale and will be rebuilt";
+    String SNAPSHOT_IS_CORRUPTED = "Snapshot of dataset is corrupted and will be rebuilt";
+    String ERROR_WHILE_ESTIMATING_QUERY = "Error occurred while estimating query by dry run";
+    String RANGES_ARE_EMPTY = "No ranges are given";
+    String TOO_MANY_RANGES = "Number of ranges is more than allowed in one batch";
+    String UNKNOWN_HIERARCHY_COLUMN = "Hierarchy column is unknown or repeated";
+    String UNKNOWN_AGGREGATE = "Aggregate is unknown";
+    String INVALID_DRILL_DOWN_PATH = "Path must be column=value pairs of the first hierarchy columns separated by /";
+    String LEVELS_ARE_NOT_POSITIVE = "Number of levels is less than one";
+    String TREE_ENCODING_IS_CORRUPTED = "Binary encoding of the tree is corrupted";
+    String DISK_CACHE_IS_CORRUPTED = "Disk cache of trees is corrupted, it is read up to the last valid record";
+    String DISK_CACHE_IS_NOT_AVAILABLE = "Disk cache of trees can't be opened, only memory cache is used";
+    String DISK_CACHE_IS_STALE = "Disk cache of trees was written from other dataset version, it is cleared";
+    String ERROR_WHILE_WRITING_DISK_CACHE = "Error occurred while writing tree to disk cache";
+    String INVALID_WARMUP_RANGE = "Warmup range must be bottom-top, it is skipped";
+    String TREE_LEVELS_ARE_NOT_UNIFORM = "All leaves of the tree must be on the same level";
     String PATH_TO_GCLOUD_CREDENTIALS_IS_NOT_SPECIFIED = "Environment variable PATH_TO_GCLOUD_CREDENTIALS doesn't exist or empty";
+    String ERROR_WHILE_ENCODING_TREE = "Error occurred while encoding tree";
+    String FORMAT_IS_NOT_ACCEPTABLE = "None of accepted media types is supported, supported are application/json, application/x-jackson-smile and application/cbor";
+    String QUERY_IS_REJECTED = "Too many queries are running or waiting, retry later";
+    String ERROR_WHILE_CANCELLING_JOB = "Error occurred while cancelling bigQuery job";
+    String DEADLINE_EXCEEDED = "Request is not answered before its deadline, query is cancelled";
+    String TIMEOUT_IS_NOT_POSITIVE = "Timeout must be positive";
+    String SAMPLE_PERCENT_IS_OUT_OF_RANGE = "Sample percent must be greater than 0 and not greater than 100";
+    String ERROR_WHILE_SENDING_EVENT = "Error occurred while sending server-sent event";
+    String STREAMED_ROWS_OVER_LIMIT = "Result has more rows than streaming limit";
+    String STREAMED_BYTES_OVER_LIMIT = "Result is larger than streaming limit of bytes";
+    String INVALID_MONTH = "Month must be given as yyyy-MM";
+    String MONTH_RANGE_IS_INCOMPLETE = "Both from and to months must be given";
+    String FROM_MONTH_AFTER_TO_MONTH = "From month is after to month";
+    String TOO_MANY_MONTHS = "Too many monthly tables in one request";
+    String ERROR_WHILE_READING_PEER_CACHE = "Error occurred while reading tree from cache of peer";
+    String ERROR_WHILE_WRITING_PEER_CACHE = "Error occurred while writing tree to cache of peer";
+    String SELF_IS_NOT_PEER = "Url of this instance must be one of the cluster peers: ";
+    String CLUSTER_SECRET_IS_EMPTY = "Secret of the cluster must be given if the cluster is enabled";
+    String PEER_REQUEST_IS_NOT_SIGNED = "Peer cache request is not signed with the secret of the cluster";
+    String PEER_REQUEST_IS_STALE = "Peer cache request is signed too far from the time of this instance: ";
+    String UNKNOWN_PEER = "Peer cache request is sent by instance which is not a cluster peer: ";
+    String AGGREGATE_IS_NOT_MERGEABLE = "Only average, count, min, max and sum can be merged across monthly tables";
 }
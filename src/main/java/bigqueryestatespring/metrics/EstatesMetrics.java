@@ -0,0 +1,184 @@
+package bigqueryestatespring.metrics;
+
+import com.google.cloud.bigquery.Job;
+import com.google.cloud.bigquery.JobStatistics;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Timers of stages of the estates request and statistics of bigQuery jobs.
+ * Every stage is timer estates.stage with tag stage, percentile histograms are published,
+ * so latency of the stage can be aggregated over instances
+ */
+public class EstatesMetrics {
+    private static final Logger logger = LoggerFactory.getLogger(EstatesMetrics.class);
+
+    public static final String STAGE_TIMER = "estates.stage";
+    public static final String RENDER = "render";
+    public static final String CREATE_JOB = "create_job";
+    public static final String WAIT_JOB = "wait_job";
+    public static final String FETCH_PAGE = "fetch_page";
+    public static final String BUILD_TREE = "build_tree";
+    public static final String SERIALIZE = "serialize";
+    public static final String ADMISSION_WAIT_TIMER = "estates.admission.wait";
+    public static final String ADMISSION_REJECTED_COUNTER = "estates.admission.rejected";
+
+    private static final double P95 = 0.95;
+
+    private final MeterRegistry registry;
+    private final Map<String, Timer> stageTimers = new ConcurrentHashMap<>();
+    private final Map<String, Timer> admissionWaitTimers = new ConcurrentHashMap<>();
+    private final DistributionSummary bytesProcessed;
+    private final DistributionSummary bytesBilled;
+    private final DistributionSummary bytesEstimated;
+    private final DistributionSummary slotMillis;
+    private final Counter cacheHits;
+    private final Counter cacheMisses;
+    private final Counter cancelledJobs;
+    private final Counter hedgedJobs;
+
+    public EstatesMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        this.bytesProcessed = DistributionSummary.builder("estates.bigquery.bytes.processed")
+                .baseUnit("bytes")
+                .register(registry);
+        this.bytesBilled = DistributionSummary.builder("estates.bigquery.bytes.billed")
+                .baseUnit("bytes")
+                .register(registry);
+        this.bytesEstimated = DistributionSummary.builder("estates.bigquery.bytes.estimated")
+                .baseUnit("bytes")
+                .register(registry);
+        this.slotMillis = DistributionSummary.builder("estates.bigquery.slot.ms")
+                .baseUnit("milliseconds")
+                .register(registry);
+        this.cacheHits = Counter.builder("estates.bigquery.jobs").tag("cache", "hit").register(registry);
+        this.cacheMisses = Counter.builder("estates.bigquery.jobs").tag("cache", "miss").register(registry);
+        this.cancelledJobs = Counter.builder("estates.bigquery.jobs.cancelled").register(registry);
+        this.hedgedJobs = Counter.builder("estates.bigquery.jobs.hedged").register(registry);
+    }
+
+    public MeterRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Starts measuring of stage which ends in other thread or callback
+     *
+     * @return started sample, stopped by record
+     */
+    public Timer.Sample start() {
+        return Timer.start(registry);
+    }
+
+    public void record(String stage, Timer.Sample sample) {
+        sample.stop(getStageTimer(stage));
+    }
+
+    public <T> T time(String stage, Supplier<T> supplier) {
+        return getStageTimer(stage).record(supplier);
+    }
+
+    /**
+     * Records bytes, slot time and cache hit of the finished query job
+     *
+     * @param job finished job
+     */
+    public void recordJob(Job job) {
+        JobStatistics statistics = job.getStatistics();
+        if (!(statistics instanceof JobStatistics.QueryStatistics)) {
+            return;
+        }
+        JobStatistics.QueryStatistics queryStatistics = (JobStatistics.QueryStatistics) statistics;
+        record(bytesProcessed, queryStatistics.getTotalBytesProcessed());
+        record(bytesBilled, queryStatistics.getTotalBytesBilled());
+        record(slotMillis, queryStatistics.getTotalSlotMs());
+        if (Boolean.TRUE.equals(queryStatistics.getCacheHit())) {
+            cacheHits.increment();
+        } else {
+            cacheMisses.increment();
+        }
+        logger.info("Job {} done: {} bytes processed, {} bytes billed, {} slot ms, cache hit {}",
+                job.getJobId() == null ? null : job.getJobId().getJob(), queryStatistics.getTotalBytesProcessed(),
+                queryStatistics.getTotalBytesBilled(), queryStatistics.getTotalSlotMs(),
+                queryStatistics.getCacheHit());
+    }
+
+    /**
+     * Records bytes which dry run of the query estimated
+     *
+     * @param bytes estimated bytes
+     */
+    public void recordEstimate(long bytes) {
+        bytesEstimated.record(bytes);
+    }
+
+    public void recordJobCancelled() {
+        cancelledJobs.increment();
+    }
+
+    public void recordJobHedged() {
+        hedgedJobs.increment();
+    }
+
+    /**
+     * Gets recent percentile of the stage, percentiles are kept over a decaying window
+     *
+     * @param stage stage name
+     * @param minCount number of recorded samples needed for reliable percentile
+     * @return 95th percentile in milliseconds, empty if stage has fewer samples
+     */
+    public Optional<Long> getStageP95Millis(String stage, long minCount) {
+        Timer timer = getStageTimer(stage);
+        if (timer.count() < minCount) {
+            return Optional.empty();
+        }
+        for (ValueAtPercentile value : timer.takeSnapshot().percentileValues()) {
+            if (value.percentile() == P95) {
+                return Optional.of((long) value.value(TimeUnit.MILLISECONDS));
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Records time the query waited for admission
+     *
+     * @param priority priority of the query
+     * @param sample sample started when the query was submitted
+     */
+    public void recordAdmissionWait(String priority, Timer.Sample sample) {
+        sample.stop(admissionWaitTimers.computeIfAbsent(priority, name -> Timer.builder(ADMISSION_WAIT_TIMER)
+                .tag("priority", name)
+                .publishPercentileHistogram()
+                .register(registry)));
+    }
+
+    public void recordAdmissionRejection(String priority) {
+        Counter.builder(ADMISSION_REJECTED_COUNTER).tag("priority", priority).register(registry).increment();
+    }
+
+    private Timer getStageTimer(String stage) {
+        return stageTimers.computeIfAbsent(stage, name -> Timer.builder(STAGE_TIMER)
+                .tag("stage", name)
+                .publishPercentileHistogram()
+                .publishPercentiles(P95)
+                .register(registry));
+    }
+
+    private static void record(DistributionSummary summary, Long value) {
+        if (value != null) {
+            summary.record(value);
+        }
+    }
+}
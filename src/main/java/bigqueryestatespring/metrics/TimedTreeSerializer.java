@@ -0,0 +1,31 @@
+package bigqueryestatespring.metrics;
+
+import bigqueryestatespring.nodes.EstatesTree;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import io.micrometer.core.instrument.Timer;
+
+import java.io.IOException;
+
+/**
+ * Serializer of the tree which records time of writing it into the response
+ */
+public class TimedTreeSerializer extends StdSerializer<EstatesTree> {
+    private final EstatesMetrics metrics;
+
+    public TimedTreeSerializer(EstatesMetrics metrics) {
+        super(EstatesTree.class);
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void serialize(EstatesTree tree, JsonGenerator generator, SerializerProvider provider) throws IOException {
+        Timer.Sample sample = metrics.start();
+        try {
+            tree.serialize(generator, provider);
+        } finally {
+            metrics.record(EstatesMetrics.SERIALIZE, sample);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package bigqueryestatespring.metrics;
+
+import org.slf4j.MDC;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * Gives every request trace id, which is taken from the request header or generated.
+ * Id is returned in the response header and kept in MDC while request thread runs,
+ * bigQuery jobs created by the request have it as the prefix of JobId
+ */
+public class TraceIdFilter extends OncePerRequestFilter {
+    public static final String TRACE_ID = "traceId";
+    public static final String TRACE_ID_HEADER = "X-Trace-Id";
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        String traceId = request.getHeader(TRACE_ID_HEADER);
+        if (traceId == null || !traceId.matches("[A-Za-z0-9_-]{1,64}")) {
+            traceId = UUID.randomUUID().toString().replace("-", "");
+        }
+        response.setHeader(TRACE_ID_HEADER, traceId);
+        MDC.put(TRACE_ID, traceId);
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            MDC.remove(TRACE_ID);
+        }
+    }
+}
@@ -1,12 +1,49 @@
 package bigqueryestatespring.nodes;
 
+import bigqueryestatespring.services.Aggregate;
 import com.fasterxml.jackson.annotation.JsonGetter;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 
 import static bigqueryestatespring.services.PropertiesAttribute.PRICE;
 
+/**
+ * Leaf of the tree with average written as price and other requested aggregates,
+ * aggregates which are not requested are not written
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@JsonPropertyOrder({PRICE, Aggregate.COUNT_FIELD, Aggregate.MIN_FIELD, Aggregate.MAX_FIELD, Aggregate.SUM_FIELD,
+        Aggregate.QUANTILES_FIELD, Aggregate.MARGIN_FIELD})
 public class AggregationNode extends Node {
-    public AggregationNode(String data) {
-        super(data);
+    private final double value;
+    private final long count;
+    private final Set<Aggregate> aggregates;
+    private double min = Double.NaN;
+    private double max = Double.NaN;
+    private double sum = Double.NaN;
+    private double[] quantiles;
+    private double margin = Double.NaN;
+
+    public AggregationNode(double value, long count) {
+        this(value, count, Aggregate.DEFAULT);
+    }
+
+    /**
+     * @param value average
+     * @param count number of values the aggregates are computed from
+     * @param aggregates requested aggregates, values of aggregates other than average and count are set later
+     */
+    public AggregationNode(double value, long count, Set<Aggregate> aggregates) {
+        super(format(value));
+        this.value = value;
+        this.count = count;
+        this.aggregates = aggregates;
     }
 
     /**
@@ -18,4 +55,126 @@ public class AggregationNode extends Node {
     public String getData() {
         return data;
     }
+
+    @JsonGetter(value = Aggregate.COUNT_FIELD)
+    public String getCountData() {
+        return aggregates.contains(Aggregate.COUNT) ? String.valueOf(count) : null;
+    }
+
+    @JsonGetter(value = Aggregate.MIN_FIELD)
+    public String getMinData() {
+        return aggregates.contains(Aggregate.MIN) ? format(min) : null;
+    }
+
+    @JsonGetter(value = Aggregate.MAX_FIELD)
+    public String getMaxData() {
+        return aggregates.contains(Aggregate.MAX) ? format(max) : null;
+    }
+
+    @JsonGetter(value = Aggregate.SUM_FIELD)
+    public String getSumData() {
+        return aggregates.contains(Aggregate.SUM) ? format(sum) : null;
+    }
+
+    @JsonGetter(value = Aggregate.QUANTILES_FIELD)
+    public List<String> getQuantilesData() {
+        if (!aggregates.contains(Aggregate.APPROX_QUANTILES) || quantiles == null) {
+            return null;
+        }
+        List<String> values = new ArrayList<>(quantiles.length);
+        for (double quantile : quantiles) {
+            values.add(format(quantile));
+        }
+        return values;
+    }
+
+    @JsonGetter(value = Aggregate.MARGIN_FIELD)
+    public String getMarginData() {
+        return aggregates.contains(Aggregate.MARGIN) ? format(margin) : null;
+    }
+
+    /**
+     * Writes the value without exponent, so large aggregates keep the plain format of the response
+     *
+     * @param value aggregate value
+     * @return plain decimal string, NaN and infinities as by String.valueOf
+     */
+    static String format(double value) {
+        return Double.isFinite(value) ? BigDecimal.valueOf(value).toPlainString() : String.valueOf(value);
+    }
+
+    @JsonIgnore
+    public double getValue() {
+        return value;
+    }
+
+    /**
+     * Gets number of values the aggregate is computed from
+     *
+     * @return count
+     */
+    @JsonIgnore
+    public long getCount() {
+        return count;
+    }
+
+    @JsonIgnore
+    public Set<Aggregate> getAggregates() {
+        return aggregates;
+    }
+
+    @JsonIgnore
+    public double getMin() {
+        return min;
+    }
+
+    public AggregationNode setMin(double min) {
+        this.min = min;
+        return this;
+    }
+
+    @JsonIgnore
+    public double getMax() {
+        return max;
+    }
+
+    public AggregationNode setMax(double max) {
+        this.max = max;
+        return this;
+    }
+
+    @JsonIgnore
+    public double getSum() {
+        return sum;
+    }
+
+    public AggregationNode setSum(double sum) {
+        this.sum = sum;
+        return this;
+    }
+
+    @JsonIgnore
+    public double[] getQuantiles() {
+        return quantiles;
+    }
+
+    public AggregationNode setQuantiles(double[] quantiles) {
+        this.quantiles = quantiles;
+        return this;
+    }
+
+    /**
+     * Gets half width of 95% confidence interval of the average
+     *
+     * @return margin, NaN if it is unknown
+     */
+    @JsonIgnore
+    public double getMargin() {
+        return margin;
+    }
+
+    public AggregationNode setMargin(double margin) {
+        this.margin = margin;
+        return this;
+    }
 }
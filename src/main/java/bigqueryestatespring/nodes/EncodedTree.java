@@ -0,0 +1,42 @@
+package bigqueryestatespring.nodes;
+
+import org.springframework.http.MediaType;
+
+/**
+ * Tree written in the format of the response, cached so repeated request skips serialization
+ */
+public final class EncodedTree {
+    private final String entityTag;
+    private final MediaType mediaType;
+    private final byte[] bytes;
+    private final boolean gzipped;
+
+    public EncodedTree(String entityTag, MediaType mediaType, byte[] bytes, boolean gzipped) {
+        this.entityTag = entityTag;
+        this.mediaType = mediaType;
+        this.bytes = bytes;
+        this.gzipped = gzipped;
+    }
+
+    /**
+     * @return strong entity tag with quotes
+     */
+    public String getEntityTag() {
+        return entityTag;
+    }
+
+    public MediaType getMediaType() {
+        return mediaType;
+    }
+
+    /**
+     * @return encoded tree, shared with the cache, so it must not be modified
+     */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public boolean isGzipped() {
+        return gzipped;
+    }
+}
@@ -0,0 +1,506 @@
+package bigqueryestatespring.nodes;
+
+import bigqueryestatespring.services.Aggregate;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializable;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+import static bigqueryestatespring.exceptionMessages.ExceptionMessage.TREE_ENCODING_IS_CORRUPTED;
+import static bigqueryestatespring.exceptionMessages.ExceptionMessage.TREE_LEVELS_ARE_NOT_UNIFORM;
+import static bigqueryestatespring.services.PropertiesAttribute.PRICE;
+
+/**
+ * Finished tree in compact form, which is written straight into JsonGenerator,
+ * so it is serialized to the response without intermediate String or JsonNode.
+ *
+ * Nodes of every level are stored in flat arrays in order of levels:
+ * label of node is code in dictionary of its level, children of node are range of the next level.
+ * Leaves are the last level, they keep aggregate values as primitives,
+ * arrays of aggregates which are not requested are not allocated.
+ * Subtotals of inner nodes of rollup trees are kept the same way per level.
+ * Labels are interned weakly, so cached trees share the same strings
+ * and labels no tree holds any more can be collected.
+ */
+public class EstatesTree implements JsonSerializable {
+    private static final String DATA = "data";
+    private static final String TOTAL = "total";
+    private static final String CHILDREN = "children";
+    private static final Interner<String> internedLabels = Interners.newWeakInterner();
+
+    // labels[level][code]
+    private final String[][] labels;
+    // labelCodes[level][node]
+    private final int[][] labelCodes;
+    // children of node are nodes from childOffsets[level][node] to childOffsets[level][node + 1] of the next level
+    private final int[][] childOffsets;
+    private final AggregateValues leaves;
+    // totals[level] are subtotals of inner nodes, null if tree has no subtotals
+    private final AggregateValues[] totals;
+
+    private EstatesTree(String[][] labels, int[][] labelCodes, int[][] childOffsets, AggregateValues leaves,
+                        AggregateValues[] totals) {
+        this.labels = labels;
+        this.labelCodes = labelCodes;
+        this.childOffsets = childOffsets;
+        this.leaves = leaves;
+        this.totals = totals;
+    }
+
+    /**
+     * Creates compact tree from nodes built by TreeBuilder, all leaves must be on the same level
+     *
+     * @param roots nodes of the first level
+     */
+    public EstatesTree(List<Node> roots) {
+        int depth = 0;
+        for (Node node = roots.isEmpty() ? null : roots.get(0); node instanceof NodeWithChildren; depth++) {
+            List<Node> children = ((NodeWithChildren) node).getChildren();
+            node = children.isEmpty() ? null : children.get(0);
+        }
+        labels = new String[depth][];
+        labelCodes = new int[depth][];
+        childOffsets = new int[depth][];
+
+        List<Node> level = roots;
+        // innerTotals[level][node], null until the first subtotal is found
+        AggregationNode[][] innerTotals = null;
+        for (int depthIndex = 0; depthIndex < depth; depthIndex++) {
+            Map<String, Integer> dictionary = new HashMap<>();
+            List<String> dictionaryValues = new ArrayList<>();
+            labelCodes[depthIndex] = new int[level.size()];
+            childOffsets[depthIndex] = new int[level.size() + 1];
+            List<Node> nextLevel = new ArrayList<>();
+            for (int i = 0; i < level.size(); i++) {
+                if (!(level.get(i) instanceof NodeWithChildren)) {
+                    throw new IllegalArgumentException(TREE_LEVELS_ARE_NOT_UNIFORM);
+                }
+                NodeWithChildren node = (NodeWithChildren) level.get(i);
+                if (node.getTotal() != null) {
+                    if (innerTotals == null) {
+                        innerTotals = new AggregationNode[depth][];
+                    }
+                    if (innerTotals[depthIndex] == null) {
+                        innerTotals[depthIndex] = new AggregationNode[level.size()];
+                    }
+                    innerTotals[depthIndex][i] = node.getTotal();
+                }
+                Integer code = dictionary.get(node.getData());
+                if (code == null) {
+                    code = dictionaryValues.size();
+                    dictionary.put(node.getData(), code);
+                    dictionaryValues.add(intern(node.getData()));
+                }
+                labelCodes[depthIndex][i] = code;
+                nextLevel.addAll(node.getChildren());
+                childOffsets[depthIndex][i + 1] = nextLevel.size();
+            }
+            labels[depthIndex] = dictionaryValues.toArray(new String[0]);
+            level = nextLevel;
+        }
+
+        Set<Aggregate> aggregates = level.isEmpty() || !(level.get(0) instanceof AggregationNode)
+                ? Aggregate.DEFAULT
+                : ((AggregationNode) level.get(0)).getAggregates();
+        leaves = new AggregateValues(level.size(), aggregates);
+        for (int i = 0; i < level.size(); i++) {
+            if (!(level.get(i) instanceof AggregationNode)) {
+                throw new IllegalArgumentException(TREE_LEVELS_ARE_NOT_UNIFORM);
+            }
+            leaves.set(i, (AggregationNode) level.get(i));
+        }
+        totals = innerTotals == null ? null : createTotals(innerTotals, aggregates);
+    }
+
+    public boolean isEmpty() {
+        return getLevelSize(0) == 0;
+    }
+
+    /**
+     * Gets number of all nodes including leaves
+     *
+     * @return number of nodes
+     */
+    public long getNodeCount() {
+        long count = leaves.size();
+        for (int[] codes : labelCodes) {
+            count += codes.length;
+        }
+        return count;
+    }
+
+    public int getDepth() {
+        return labels.length;
+    }
+
+    /**
+     * Passes every leaf with labels of its branch from the top, in order of the tree
+     *
+     * @param consumer consumer of labels and leaf, labels are a new list for every leaf
+     */
+    public void forEachLeaf(BiConsumer<List<String>, AggregationNode> consumer) {
+        visit(0, 0, getLevelSize(0), new ArrayList<>(), consumer, null);
+    }
+
+    /**
+     * Passes every subtotal of inner node with labels from the top to the node, parents go before children
+     *
+     * @param consumer consumer of labels and subtotal, labels are a new list for every subtotal
+     */
+    public void forEachTotal(BiConsumer<List<String>, AggregationNode> consumer) {
+        if (totals != null) {
+            visit(0, 0, getLevelSize(0), new ArrayList<>(), null, consumer);
+        }
+    }
+
+    private void visit(int level, int from, int to, List<String> branch,
+                       BiConsumer<List<String>, AggregationNode> leafConsumer,
+                       BiConsumer<List<String>, AggregationNode> totalConsumer) {
+        for (int node = from; node < to; node++) {
+            if (level < labels.length) {
+                branch.add(labels[level][labelCodes[level][node]]);
+                if (totalConsumer != null && totals[level] != null && totals[level].has(node)) {
+                    totalConsumer.accept(new ArrayList<>(branch), totals[level].get(node));
+                }
+                visit(level + 1, childOffsets[level][node], childOffsets[level][node + 1], branch,
+                        leafConsumer, totalConsumer);
+                branch.remove(branch.size() - 1);
+            } else if (leafConsumer != null) {
+                leafConsumer.accept(new ArrayList<>(branch), leaves.get(node));
+            }
+        }
+    }
+
+    /**
+     * Writes tree as json into the output stream, stream is not closed
+     *
+     * @param out output stream
+     * @param jsonFactory factory of generator
+     * @throws IOException if writing to the stream failed
+     */
+    public void writeTo(OutputStream out, JsonFactory jsonFactory) throws IOException {
+        try (JsonGenerator generator = jsonFactory.createGenerator(out)) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            serialize(generator, null);
+        }
+    }
+
+    /**
+     * Writes tree in binary form, arrays are written as they are kept, so decoding doesn't rebuild the tree
+     *
+     * @param out output
+     * @throws IOException if writing failed
+     */
+    public void encode(DataOutput out) throws IOException {
+        out.writeInt(labels.length);
+        for (int level = 0; level < labels.length; level++) {
+            out.writeInt(labels[level].length);
+            for (String label : labels[level]) {
+                out.writeBoolean(label != null);
+                if (label != null) {
+                    out.writeUTF(label);
+                }
+            }
+            writeInts(out, labelCodes[level]);
+            writeInts(out, childOffsets[level]);
+        }
+        leaves.encode(out);
+        out.writeBoolean(totals != null);
+        if (totals != null) {
+            for (AggregateValues levelTotals : totals) {
+                out.writeBoolean(levelTotals != null);
+                if (levelTotals != null) {
+                    levelTotals.encode(out);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads tree written by encode, labels are interned as in trees built from nodes
+     *
+     * @param in input
+     * @return tree
+     * @throws IOException if reading failed or input is truncated
+     */
+    public static EstatesTree decode(DataInput in) throws IOException {
+        int depth = in.readInt();
+        String[][] labels = new String[depth][];
+        int[][] labelCodes = new int[depth][];
+        int[][] childOffsets = new int[depth][];
+        for (int level = 0; level < depth; level++) {
+            labels[level] = new String[in.readInt()];
+            for (int code = 0; code < labels[level].length; code++) {
+                labels[level][code] = in.readBoolean() ? intern(in.readUTF()) : null;
+            }
+            labelCodes[level] = readInts(in);
+            childOffsets[level] = readInts(in);
+        }
+        AggregateValues leaves = AggregateValues.decode(in);
+        AggregateValues[] totals = null;
+        if (in.readBoolean()) {
+            totals = new AggregateValues[depth];
+            for (int level = 0; level < depth; level++) {
+                totals[level] = in.readBoolean() ? AggregateValues.decode(in) : null;
+            }
+        }
+        return new EstatesTree(labels, labelCodes, childOffsets, leaves, totals);
+    }
+
+    private static void writeInts(DataOutput out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    private static int[] readInts(DataInput in) throws IOException {
+        int[] values = new int[in.readInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readInt();
+        }
+        return values;
+    }
+
+    private static void writeDoubles(DataOutput out, double[] values) throws IOException {
+        out.writeInt(values.length);
+        for (double value : values) {
+            out.writeDouble(value);
+        }
+    }
+
+    private static double[] readDoubles(DataInput in) throws IOException {
+        double[] values = new double[in.readInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readDouble();
+        }
+        return values;
+    }
+
+    @Override
+    public void serialize(JsonGenerator generator, SerializerProvider serializers) throws IOException {
+        writeLevel(0, 0, getLevelSize(0), generator);
+    }
+
+    @Override
+    public void serializeWithType(JsonGenerator generator, SerializerProvider serializers,
+                                  TypeSerializer typeSerializer) throws IOException {
+        // Tree is never part of polymorphic value, so no type information is written
+        serialize(generator, serializers);
+    }
+
+    private int getLevelSize(int level) {
+        return level < labelCodes.length ? labelCodes[level].length : leaves.size();
+    }
+
+    private void writeLevel(int level, int from, int to, JsonGenerator generator) throws IOException {
+        generator.writeStartArray();
+        for (int node = from; node < to; node++) {
+            generator.writeStartObject();
+            if (level < labels.length) {
+                generator.writeStringField(DATA, labels[level][labelCodes[level][node]]);
+                if (totals != null && totals[level] != null && totals[level].has(node)) {
+                    generator.writeObjectFieldStart(TOTAL);
+                    totals[level].write(node, generator);
+                    generator.writeEndObject();
+                }
+                generator.writeFieldName(CHILDREN);
+                writeLevel(level + 1, childOffsets[level][node], childOffsets[level][node + 1], generator);
+            } else {
+                leaves.write(node, generator);
+            }
+            generator.writeEndObject();
+        }
+        generator.writeEndArray();
+    }
+
+    private static AggregateValues[] createTotals(AggregationNode[][] innerTotals, Set<Aggregate> aggregates) {
+        AggregateValues[] totals = new AggregateValues[innerTotals.length];
+        for (int level = 0; level < innerTotals.length; level++) {
+            if (innerTotals[level] != null) {
+                totals[level] = new AggregateValues(innerTotals[level].length, aggregates);
+                for (int node = 0; node < innerTotals[level].length; node++) {
+                    if (innerTotals[level][node] != null) {
+                        totals[level].set(node, innerTotals[level][node]);
+                    }
+                }
+            }
+        }
+        return totals;
+    }
+
+    private static String intern(String label) {
+        if (label == null) {
+            return null;
+        }
+        return internedLabels.intern(label);
+    }
+
+    /**
+     * Aggregates of nodes of one level in columns, count of node without aggregates is negative
+     */
+    private static final class AggregateValues {
+        private final Set<Aggregate> aggregates;
+        private final double[] values;
+        private final long[] counts;
+        private final double[] mins;
+        private final double[] maxs;
+        private final double[] sums;
+        private final double[][] quantiles;
+        private final double[] margins;
+
+        AggregateValues(int size, Set<Aggregate> aggregates) {
+            this.aggregates = aggregates;
+            values = new double[size];
+            counts = new long[size];
+            Arrays.fill(counts, -1);
+            mins = aggregates.contains(Aggregate.MIN) ? new double[size] : null;
+            maxs = aggregates.contains(Aggregate.MAX) ? new double[size] : null;
+            sums = aggregates.contains(Aggregate.SUM) ? new double[size] : null;
+            quantiles = aggregates.contains(Aggregate.APPROX_QUANTILES) ? new double[size][] : null;
+            margins = aggregates.contains(Aggregate.MARGIN) ? new double[size] : null;
+        }
+
+        int size() {
+            return values.length;
+        }
+
+        boolean has(int node) {
+            return counts[node] >= 0;
+        }
+
+        void set(int node, AggregationNode aggregationNode) {
+            values[node] = aggregationNode.getValue();
+            counts[node] = aggregationNode.getCount();
+            if (mins != null) {
+                mins[node] = aggregationNode.getMin();
+            }
+            if (maxs != null) {
+                maxs[node] = aggregationNode.getMax();
+            }
+            if (sums != null) {
+                sums[node] = aggregationNode.getSum();
+            }
+            if (quantiles != null) {
+                quantiles[node] = aggregationNode.getQuantiles();
+            }
+            if (margins != null) {
+                margins[node] = aggregationNode.getMargin();
+            }
+        }
+
+        AggregationNode get(int node) {
+            AggregationNode aggregationNode = new AggregationNode(values[node], counts[node], aggregates);
+            if (mins != null) {
+                aggregationNode.setMin(mins[node]);
+            }
+            if (maxs != null) {
+                aggregationNode.setMax(maxs[node]);
+            }
+            if (sums != null) {
+                aggregationNode.setSum(sums[node]);
+            }
+            if (quantiles != null) {
+                aggregationNode.setQuantiles(quantiles[node]);
+            }
+            if (margins != null) {
+                aggregationNode.setMargin(margins[node]);
+            }
+            return aggregationNode;
+        }
+
+        void encode(DataOutput out) throws IOException {
+            out.writeInt(Aggregate.toMask(aggregates));
+            writeDoubles(out, values);
+            out.writeInt(counts.length);
+            for (long count : counts) {
+                out.writeLong(count);
+            }
+            for (double[] column : new double[][]{mins, maxs, sums, margins}) {
+                if (column != null) {
+                    writeDoubles(out, column);
+                }
+            }
+            if (quantiles != null) {
+                for (double[] nodeQuantiles : quantiles) {
+                    out.writeBoolean(nodeQuantiles != null);
+                    if (nodeQuantiles != null) {
+                        writeDoubles(out, nodeQuantiles);
+                    }
+                }
+            }
+        }
+
+        static AggregateValues decode(DataInput in) throws IOException {
+            Set<Aggregate> aggregates = Aggregate.fromMask(in.readInt());
+            double[] values = readDoubles(in);
+            AggregateValues result = new AggregateValues(values.length, aggregates);
+            System.arraycopy(values, 0, result.values, 0, values.length);
+            if (in.readInt() != values.length) {
+                throw new IOException(TREE_ENCODING_IS_CORRUPTED);
+            }
+            for (int node = 0; node < values.length; node++) {
+                result.counts[node] = in.readLong();
+            }
+            for (double[] column : new double[][]{result.mins, result.maxs, result.sums, result.margins}) {
+                if (column != null) {
+                    double[] decoded = readDoubles(in);
+                    if (decoded.length != values.length) {
+                        throw new IOException(TREE_ENCODING_IS_CORRUPTED);
+                    }
+                    System.arraycopy(decoded, 0, column, 0, decoded.length);
+                }
+            }
+            if (result.quantiles != null) {
+                for (int node = 0; node < values.length; node++) {
+                    result.quantiles[node] = in.readBoolean() ? readDoubles(in) : null;
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Writes fields of the node in the same order as AggregationNode is serialized
+         */
+        void write(int node, JsonGenerator generator) throws IOException {
+            generator.writeStringField(PRICE, AggregationNode.format(values[node]));
+            if (aggregates.contains(Aggregate.COUNT)) {
+                generator.writeStringField(Aggregate.COUNT_FIELD, String.valueOf(counts[node]));
+            }
+            if (mins != null) {
+                generator.writeStringField(Aggregate.MIN_FIELD, AggregationNode.format(mins[node]));
+            }
+            if (maxs != null) {
+                generator.writeStringField(Aggregate.MAX_FIELD, AggregationNode.format(maxs[node]));
+            }
+            if (sums != null) {
+                generator.writeStringField(Aggregate.SUM_FIELD, AggregationNode.format(sums[node]));
+            }
+            if (quantiles != null && quantiles[node] != null) {
+                generator.writeArrayFieldStart(Aggregate.QUANTILES_FIELD);
+                for (double quantile : quantiles[node]) {
+                    generator.writeString(AggregationNode.format(quantile));
+                }
+                generator.writeEndArray();
+            }
+            if (margins != null) {
+                generator.writeStringField(Aggregate.MARGIN_FIELD, AggregationNode.format(margins[node]));
+            }
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package bigqueryestatespring.nodes;
 
+import java.util.List;
 import java.util.Objects;
 
 public abstract class Node {
@@ -18,6 +19,23 @@ public abstract class Node {
         return this.data.equals(data);
     }
 
+    /**
+     * Counts all nodes of the forest starting from given list
+     *
+     * @param nodes roots of the forest
+     * @return number of nodes
+     */
+    public static long countNodes(List<Node> nodes) {
+        long count = 0;
+        for (Node node : nodes) {
+            count++;
+            if (node instanceof NodeWithChildren) {
+                count += countNodes(((NodeWithChildren) node).getChildren());
+            }
+        }
+        return count;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -1,10 +1,20 @@
 package bigqueryestatespring.nodes;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+@JsonPropertyOrder({"data", "total", "children"})
 public class NodeWithChildren extends Node {
     private List<Node> children;
+    // Subtotal of all leaves under this node, present only in rollup trees
+    private AggregationNode total;
+    // Index of children with children by data, list keeps insertion order for json
+    private Map<String, NodeWithChildren> childIndex;
 
     public NodeWithChildren(String data) {
         super(data);
@@ -18,10 +28,40 @@ public class NodeWithChildren extends Node {
         return children;
     }
 
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public AggregationNode getTotal() {
+        return total;
+    }
+
+    public void setTotal(AggregationNode total) {
+        this.total = total;
+    }
+
     public void addChild(Node newChild) {
         if (children == null) {
             children = new ArrayList<>();
         }
         children.add(newChild);
+        if (newChild instanceof NodeWithChildren) {
+            if (childIndex == null) {
+                childIndex = new HashMap<>();
+            }
+            childIndex.putIfAbsent(newChild.getData(), (NodeWithChildren) newChild);
+        }
+    }
+
+    /**
+     * Gets child with given data in constant time, creates it if it doesn't exist
+     *
+     * @param data data of the child
+     * @return existing or new child
+     */
+    public NodeWithChildren getOrCreateChild(String data) {
+        NodeWithChildren child = childIndex == null ? null : childIndex.get(data);
+        if (child == null) {
+            child = new NodeWithChildren(data);
+            addChild(child);
+        }
+        return child;
     }
 }
@@ -0,0 +1,57 @@
+package bigqueryestatespring.nodes;
+
+import java.util.List;
+
+/**
+ * Builds tree of arbitrary depth from branches.
+ * Every level of the branch is looked up in hash index of its parent,
+ * so building costs O(rows * depth) regardless of number of siblings.
+ */
+public class TreeBuilder {
+    // Artificial parent of the first level of the tree, never serialized
+    private final NodeWithChildren root = new NodeWithChildren("");
+
+    /**
+     * Adds branch to the tree.
+     * If value on the same level is present then doesn't create new,
+     *  if not present then creates new value on this level;
+     * always adds leaf as new node on the last level of tree.
+     *
+     * @param columnValues values of hierarchy levels from top to bottom
+     * @param leaf last node of the branch
+     * @return this builder
+     */
+    public TreeBuilder addBranch(List<String> columnValues, Node leaf) {
+        NodeWithChildren current = root;
+        for (String columnValue : columnValues) {
+            current = current.getOrCreateChild(columnValue);
+        }
+        current.addChild(leaf);
+        return this;
+    }
+
+    /**
+     * Sets subtotal of the inner node, node is created if it doesn't exist yet
+     *
+     * @param columnValues values of hierarchy levels from top to the node
+     * @param total aggregates of all leaves under the node
+     * @return this builder
+     */
+    public TreeBuilder addTotal(List<String> columnValues, AggregationNode total) {
+        NodeWithChildren current = root;
+        for (String columnValue : columnValues) {
+            current = current.getOrCreateChild(columnValue);
+        }
+        current.setTotal(total);
+        return this;
+    }
+
+    /**
+     * Gets nodes of the first level of the tree
+     *
+     * @return nodes in order of insertion
+     */
+    public List<Node> build() {
+        return root.getChildren();
+    }
+}
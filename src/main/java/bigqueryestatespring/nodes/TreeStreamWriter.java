@@ -0,0 +1,140 @@
+package bigqueryestatespring.nodes;
+
+import bigqueryestatespring.services.ResultTooLargeException;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import static bigqueryestatespring.exceptionMessages.ExceptionMessage.STREAMED_BYTES_OVER_LIMIT;
+import static bigqueryestatespring.exceptionMessages.ExceptionMessage.STREAMED_ROWS_OVER_LIMIT;
+
+/**
+ * Writes tree JSON of the same shape as EstatesTree from leaves ordered by their branches,
+ * so rows of the same branch prefix must be adjacent.
+ * Only the labels of the open branch are kept, subtree is closed and written out
+ * as soon as a leaf of another branch comes, so memory does not grow with the tree.
+ * Number of leaves and written bytes are limited, ResultTooLargeException is thrown when a limit is exceeded
+ */
+public class TreeStreamWriter {
+    private static final String DATA = "data";
+    private static final String CHILDREN = "children";
+
+    private final int depth;
+    private final long maxRows;
+    private final JsonGenerator generator;
+    private final List<String> openBranch = new ArrayList<>();
+    private long rows;
+    private boolean started;
+
+    /**
+     * @param out output, it is not closed
+     * @param mapper mapper the leaves are written by
+     * @param depth number of levels above leaves
+     * @param maxRows max number of leaves
+     * @param maxBytes max number of written bytes
+     * @throws IOException if generator can't be created
+     */
+    public TreeStreamWriter(OutputStream out, ObjectMapper mapper, int depth, long maxRows, long maxBytes)
+            throws IOException {
+        this.depth = depth;
+        this.maxRows = maxRows;
+        generator = mapper.getFactory().createGenerator(new LimitedOutputStream(out, maxBytes));
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    }
+
+    /**
+     * Writes leaf below the branch, levels of the previous branch which differ from this one are closed first
+     *
+     * @param branch labels of the branch from the top, depth of them
+     * @param leaf aggregates of the branch
+     * @throws IOException if writing failed
+     */
+    public void add(List<String> branch, AggregationNode leaf) throws IOException {
+        if (++rows > maxRows) {
+            throw new ResultTooLargeException(STREAMED_ROWS_OVER_LIMIT, maxRows);
+        }
+        if (!started) {
+            generator.writeStartArray();
+            started = true;
+        }
+        int common = 0;
+        while (common < openBranch.size() && Objects.equals(openBranch.get(common), branch.get(common))) {
+            common++;
+        }
+        closeLevels(common);
+        for (int level = common; level < depth; level++) {
+            generator.writeStartObject();
+            generator.writeStringField(DATA, branch.get(level));
+            generator.writeFieldName(CHILDREN);
+            generator.writeStartArray();
+            openBranch.add(branch.get(level));
+        }
+        generator.writeObject(leaf);
+    }
+
+    /**
+     * @return number of written leaves
+     */
+    public long getRows() {
+        return rows;
+    }
+
+    /**
+     * Closes all open levels and flushes the output.
+     * It is not called if writing failed, so incomplete tree is never written as valid JSON
+     *
+     * @throws IOException if writing failed
+     */
+    public void finish() throws IOException {
+        if (!started) {
+            generator.writeStartArray();
+            started = true;
+        }
+        closeLevels(0);
+        generator.writeEndArray();
+        generator.close();
+    }
+
+    private void closeLevels(int level) throws IOException {
+        while (openBranch.size() > level) {
+            generator.writeEndArray();
+            generator.writeEndObject();
+            openBranch.remove(openBranch.size() - 1);
+        }
+    }
+
+    private static final class LimitedOutputStream extends FilterOutputStream {
+        private final long maxBytes;
+        private long written;
+
+        LimitedOutputStream(OutputStream out, long maxBytes) {
+            super(out);
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            count(1);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            count(len);
+            out.write(b, off, len);
+        }
+
+        private void count(int length) {
+            written += length;
+            if (written > maxBytes) {
+                throw new ResultTooLargeException(STREAMED_BYTES_OVER_LIMIT, maxBytes);
+            }
+        }
+    }
+}
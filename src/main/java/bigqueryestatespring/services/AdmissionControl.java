@@ -0,0 +1,193 @@
+package bigqueryestatespring.services;
+
+import bigqueryestatespring.metrics.EstatesMetrics;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * Bulkhead in front of the query backend.
+ * At most maxInFlight queries run at once, batch queries may take only maxBatchInFlight of them,
+ * so batches can't starve interactive requests.
+ * Queries over the limit wait in bounded queue of their priority, interactive queue is always served first.
+ * Query which finds its queue full is rejected at once with AdmissionRejectedException.
+ * Admitted queries are started by the executor, not by the thread which released the slot,
+ * which is often the completion thread of the backend.
+ */
+public class AdmissionControl {
+    public enum Priority {
+        INTERACTIVE, BATCH
+    }
+
+    private final int maxInFlight;
+    private final int maxBatchInFlight;
+    private final int maxQueued;
+    private final int maxBatchQueued;
+    private final long retryAfterSeconds;
+    private final Executor executor;
+    private final EstatesMetrics metrics;
+
+    private final Deque<Waiter> interactiveQueue = new ArrayDeque<>();
+    private final Deque<Waiter> batchQueue = new ArrayDeque<>();
+    private int inFlight;
+    private int batchInFlight;
+
+    /**
+     * @param maxInFlight max number of queries running at once
+     * @param maxBatchInFlight max number of batch queries running at once
+     * @param maxQueued max number of waiting interactive queries
+     * @param maxBatchQueued max number of waiting batch queries
+     * @param retryAfterSeconds time client is asked to wait after rejection
+     * @param executor executor starting admitted queries
+     * @param metrics estates metrics
+     */
+    public AdmissionControl(int maxInFlight, int maxBatchInFlight, int maxQueued, int maxBatchQueued,
+                            long retryAfterSeconds, Executor executor, EstatesMetrics metrics) {
+        this.maxInFlight = maxInFlight;
+        this.maxBatchInFlight = Math.min(maxBatchInFlight, maxInFlight);
+        this.maxQueued = maxQueued;
+        this.maxBatchQueued = maxBatchQueued;
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.executor = executor;
+        this.metrics = metrics;
+        Gauge.builder("estates.admission.in_flight", this, AdmissionControl::getInFlight)
+                .register(metrics.getRegistry());
+        for (Priority priority : Priority.values()) {
+            Gauge.builder("estates.admission.queued", this, admission -> admission.getQueued(priority))
+                    .tag("priority", priority.name().toLowerCase())
+                    .register(metrics.getRegistry());
+        }
+    }
+
+    /**
+     * Runs the query when there is free slot for its priority, slot is held until the future of the query completes.
+     * Cancelling the returned future removes waiting query from the queue or cancels running one
+     *
+     * @param priority priority of the query
+     * @param query starts the query
+     * @param <T> type of the result
+     * @return future of the query result, failed by AdmissionRejectedException if the queue is full
+     */
+    public <T> CompletableFuture<T> submit(Priority priority, Supplier<CompletableFuture<T>> query) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        // Admitted query is started on the executor, it keeps the trace id of the submitting request
+        Waiter waiter = new Waiter(priority, metrics.start(), MdcContext.wrap(() -> run(priority, query, result)),
+                result);
+        synchronized (this) {
+            Deque<Waiter> queue = priority == Priority.BATCH ? batchQueue : interactiveQueue;
+            int limit = priority == Priority.BATCH ? maxBatchQueued : maxQueued;
+            if (!hasFreeSlot(priority) && queue.size() >= limit) {
+                metrics.recordAdmissionRejection(priority.name().toLowerCase());
+                result.completeExceptionally(new AdmissionRejectedException(priority, retryAfterSeconds));
+                return result;
+            }
+            queue.add(waiter);
+        }
+        result.whenComplete((value, ex) -> {
+            if (result.isCancelled()) {
+                synchronized (this) {
+                    interactiveQueue.remove(waiter);
+                    batchQueue.remove(waiter);
+                }
+            }
+        });
+        dispatch();
+        return result;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized int getQueued(Priority priority) {
+        return priority == Priority.BATCH ? batchQueue.size() : interactiveQueue.size();
+    }
+
+    private <T> void run(Priority priority, Supplier<CompletableFuture<T>> query, CompletableFuture<T> result) {
+        if (result.isDone()) {
+            // Cancelled after it was taken from the queue
+            release(priority);
+            return;
+        }
+        CompletableFuture<T> future;
+        try {
+            future = query.get();
+        } catch (RuntimeException ex) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(ex);
+        }
+        future.whenComplete((value, ex) -> {
+            release(priority);
+            if (ex != null) {
+                result.completeExceptionally(ex);
+            } else {
+                result.complete(value);
+            }
+        });
+        Cancellation.propagate(result, future);
+    }
+
+    private void release(Priority priority) {
+        synchronized (this) {
+            inFlight--;
+            if (priority == Priority.BATCH) {
+                batchInFlight--;
+            }
+        }
+        dispatch();
+    }
+
+    /**
+     * Hands waiting queries to the executor while there are free slots, interactive queries go first
+     */
+    private void dispatch() {
+        while (true) {
+            Waiter next = null;
+            synchronized (this) {
+                if (!interactiveQueue.isEmpty() && hasFreeSlot(Priority.INTERACTIVE)) {
+                    next = interactiveQueue.poll();
+                } else if (!batchQueue.isEmpty() && hasFreeSlot(Priority.BATCH)) {
+                    next = batchQueue.poll();
+                }
+                if (next == null) {
+                    return;
+                }
+                inFlight++;
+                if (next.priority == Priority.BATCH) {
+                    batchInFlight++;
+                }
+            }
+            metrics.recordAdmissionWait(next.priority.name().toLowerCase(), next.sample);
+            try {
+                executor.execute(next.start);
+            } catch (RejectedExecutionException ex) {
+                next.result.completeExceptionally(ex);
+                release(next.priority);
+            }
+        }
+    }
+
+    private boolean hasFreeSlot(Priority priority) {
+        return inFlight < maxInFlight && (priority != Priority.BATCH || batchInFlight < maxBatchInFlight);
+    }
+
+    private static final class Waiter {
+        final Priority priority;
+        final Timer.Sample sample;
+        final Runnable start;
+        final CompletableFuture<?> result;
+
+        Waiter(Priority priority, Timer.Sample sample, Runnable start, CompletableFuture<?> result) {
+            this.priority = priority;
+            this.sample = sample;
+            this.start = start;
+            this.result = result;
+        }
+    }
+}
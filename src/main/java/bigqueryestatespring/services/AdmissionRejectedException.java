@@ -0,0 +1,25 @@
+package bigqueryestatespring.services;
+
+import static bigqueryestatespring.exceptionMessages.ExceptionMessage.QUERY_IS_REJECTED;
+
+/**
+ * Thrown when admission control has no free slot and no place in the queue for the query
+ */
+public class AdmissionRejectedException extends RuntimeException {
+    private final AdmissionControl.Priority priority;
+    private final long retryAfterSeconds;
+
+    public AdmissionRejectedException(AdmissionControl.Priority priority, long retryAfterSeconds) {
+        super(QUERY_IS_REJECTED);
+        this.priority = priority;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public AdmissionControl.Priority getPriority() {
+        return priority;
+    }
+
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
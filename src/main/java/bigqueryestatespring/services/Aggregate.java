@@ -0,0 +1,115 @@
+package bigqueryestatespring.services;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+import static bigqueryestatespring.services.PropertiesAttribute.PRICE;
+
+/**
+ * Aggregate functions computed for every leaf of the tree in the same query.
+ * Average is always computed and written as price, other aggregates are written only if requested.
+ * Order of constants is the order of fields in the leaf json
+ */
+public enum Aggregate {
+    AVG("avg_", PRICE),
+    COUNT("count_", Aggregate.COUNT_FIELD),
+    MIN("min_", Aggregate.MIN_FIELD),
+    MAX("max_", Aggregate.MAX_FIELD),
+    SUM("sum_", Aggregate.SUM_FIELD),
+    APPROX_QUANTILES("quantiles_", Aggregate.QUANTILES_FIELD),
+    MARGIN("margin_", Aggregate.MARGIN_FIELD);
+
+    public static final String COUNT_FIELD = "count";
+    public static final String MIN_FIELD = "min";
+    public static final String MAX_FIELD = "max";
+    public static final String SUM_FIELD = "sum";
+    public static final String QUANTILES_FIELD = "quantiles";
+    public static final String MARGIN_FIELD = "margin";
+    /**
+     * Number of parts of APPROX_QUANTILES, quartiles give minimum, 3 quartiles and maximum
+     */
+    public static final int QUANTILE_PARTS = 4;
+    /**
+     * MARGIN is half width of 95% confidence interval of the average, it is computed from count and variance
+     * as MARGIN_Z * stddev / sqrt(count), so it is NaN for groups with one value
+     */
+    public static final double MARGIN_Z = 1.96;
+    public static final Set<Aggregate> DEFAULT = Collections.unmodifiableSet(EnumSet.of(AVG));
+    /**
+     * Aggregates which are merged exactly from sums, counts, minimums and maximums of partial results
+     */
+    public static final Set<Aggregate> MERGEABLE = Collections.unmodifiableSet(EnumSet.of(AVG, COUNT, MIN, MAX, SUM));
+
+    private final String prefix;
+    private final String field;
+
+    Aggregate(String prefix, String field) {
+        this.prefix = prefix;
+        this.field = field;
+    }
+
+    /**
+     * Gets name of result column of the aggregate
+     *
+     * @param aggregateColumn aggregated column
+     * @return column alias
+     */
+    public String getColumn(String aggregateColumn) {
+        return prefix + aggregateColumn;
+    }
+
+    /**
+     * Gets name of field in the leaf json
+     *
+     * @return field name
+     */
+    public String getField() {
+        return field;
+    }
+
+    /**
+     * Parses aggregate by name ignoring case
+     *
+     * @param name name of aggregate
+     * @return aggregate or null if name is unknown
+     */
+    public static Aggregate of(String name) {
+        for (Aggregate aggregate : values()) {
+            if (aggregate.name().equalsIgnoreCase(name)) {
+                return aggregate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Encodes set of aggregates as bits of ordinals, used by binary encoding of keys and trees
+     *
+     * @param aggregates set of aggregates
+     * @return bit mask
+     */
+    public static int toMask(Set<Aggregate> aggregates) {
+        int mask = 0;
+        for (Aggregate aggregate : aggregates) {
+            mask |= 1 << aggregate.ordinal();
+        }
+        return mask;
+    }
+
+    /**
+     * Decodes set of aggregates encoded by toMask
+     *
+     * @param mask bit mask
+     * @return unmodifiable set of aggregates
+     */
+    public static Set<Aggregate> fromMask(int mask) {
+        EnumSet<Aggregate> aggregates = EnumSet.noneOf(Aggregate.class);
+        for (Aggregate aggregate : values()) {
+            if ((mask & 1 << aggregate.ordinal()) != 0) {
+                aggregates.add(aggregate);
+            }
+        }
+        return Collections.unmodifiableSet(aggregates);
+    }
+}
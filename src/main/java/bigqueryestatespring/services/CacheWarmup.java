@@ -0,0 +1,92 @@
+package bigqueryestatespring.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static bigqueryestatespring.exceptionMessages.ExceptionMessage.INVALID_WARMUP_RANGE;
+import static bigqueryestatespring.services.PropertiesAttribute.HIERARCHY_COLUMNS;
+import static bigqueryestatespring.services.PropertiesAttribute.PRICE;
+
+/**
+ * Fills the tree cache with configured surface ranges after start,
+ * health is out of service until the warmup is finished
+ */
+@Component
+public class CacheWarmup implements HealthIndicator {
+    private static final Logger logger = LoggerFactory.getLogger(CacheWarmup.class);
+
+    private DataService service;
+    private List<SurfaceRange> ranges = new ArrayList<>();
+    private volatile boolean finished;
+
+    @Autowired
+    private void setService(DataService dataService) {
+        service = dataService;
+    }
+
+    /**
+     * @param entries ranges of surface in form bottom-top, invalid entries are skipped
+     */
+    @Value("${estates.cache.warmup:}")
+    private void setRanges(String[] entries) {
+        ranges = parseRanges(entries);
+    }
+
+    /**
+     * Queries all ranges of warmup by one batch, so the table is scanned once
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUp() {
+        if (ranges.isEmpty()) {
+            finished = true;
+            return;
+        }
+        service.getTreesAsync(HIERARCHY_COLUMNS, PRICE, Aggregate.DEFAULT, false, ranges)
+                .whenComplete((trees, ex) -> {
+                    if (ex != null) {
+                        logger.error(ex.getMessage());
+                    }
+                    finished = true;
+                });
+    }
+
+    @Override
+    public Health health() {
+        Health.Builder health = finished ? Health.up() : Health.outOfService();
+        return health.withDetail("warmupRanges", ranges.size()).build();
+    }
+
+    static List<SurfaceRange> parseRanges(String[] entries) {
+        List<SurfaceRange> ranges = new ArrayList<>();
+        for (String entry : entries) {
+            if (entry.trim().isEmpty()) {
+                continue;
+            }
+            String[] borders = entry.trim().split("-");
+            try {
+                if (borders.length != 2) {
+                    throw new NumberFormatException();
+                }
+                int bottom = Integer.parseInt(borders[0].trim());
+                int top = Integer.parseInt(borders[1].trim());
+                if (bottom < 0 || bottom > top) {
+                    throw new NumberFormatException();
+                }
+                ranges.add(new SurfaceRange(bottom, top));
+            } catch (NumberFormatException ex) {
+                logger.warn(INVALID_WARMUP_RANGE + ": " + entry);
+            }
+        }
+        return ranges;
+    }
+}
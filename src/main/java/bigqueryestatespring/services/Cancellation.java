@@ -0,0 +1,30 @@
+package bigqueryestatespring.services;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Cancelling dependent future doesn't cancel futures it depends on,
+ * so stages pass cancellation on explicitly and abandoned request stops its backend query
+ */
+public final class Cancellation {
+    private Cancellation() {}
+
+    /**
+     * Cancels sources when dependent future is cancelled
+     *
+     * @param dependent future computed from sources
+     * @param sources futures the dependent future waits for
+     * @param <T> type of the dependent result
+     * @return dependent future
+     */
+    public static <T> CompletableFuture<T> propagate(CompletableFuture<T> dependent, CompletableFuture<?>... sources) {
+        dependent.whenComplete((value, ex) -> {
+            if (dependent.isCancelled()) {
+                for (CompletableFuture<?> source : sources) {
+                    source.cancel(true);
+                }
+            }
+        });
+        return dependent;
+    }
+}
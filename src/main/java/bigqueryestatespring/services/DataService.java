@@ -1,10 +1,99 @@
 package bigqueryestatespring.services;
 
+import bigqueryestatespring.nodes.EncodedTree;
+import bigqueryestatespring.nodes.EstatesTree;
 import com.fasterxml.jackson.databind.JsonNode;
 
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 public interface DataService {
     Optional<JsonNode> getData(List<String> columnNames, String aggregateColumn, int bottom, int top);
+
+    /**
+     * Variant of getData which builds approximate tree from sample of the table if approximate
+     */
+    Optional<JsonNode> getData(List<String> columnNames, String aggregateColumn, int bottom, int top,
+                               boolean approximate);
+
+    /**
+     * Streaming variant of getData - tree is written straight to the output by JsonGenerator
+     */
+    Optional<EstatesTree> getTree(List<String> columnNames, String aggregateColumn, int bottom, int top);
+
+    /**
+     * Non-blocking variant of getTree
+     */
+    CompletableFuture<Optional<EstatesTree>> getTreeAsync(List<String> columnNames, String aggregateColumn,
+                                                          int bottom, int top);
+
+    /**
+     * Non-blocking variant of getTree with given aggregates in the leaves and subtotals in inner nodes if rollup
+     */
+    CompletableFuture<Optional<EstatesTree>> getTreeAsync(List<String> columnNames, String aggregateColumn,
+                                                          Set<Aggregate> aggregates, boolean rollup,
+                                                          int bottom, int top);
+
+    /**
+     * Variant of getTreeAsync which merges trees of the monthly tables of the months, every month is cached separately,
+     * aggregates must be mergeable
+     */
+    CompletableFuture<Optional<EstatesTree>> getTreeAsync(List<String> columnNames, String aggregateColumn,
+                                                          Set<Aggregate> aggregates, boolean rollup,
+                                                          MonthRange months, int bottom, int top);
+
+    /**
+     * Variant of getTreeAsync which builds tree from sample of the table, leaves have margin of the average
+     */
+    CompletableFuture<Optional<EstatesTree>> getApproximateTreeAsync(List<String> columnNames,
+                                                                     String aggregateColumn,
+                                                                     Set<Aggregate> aggregates, boolean rollup,
+                                                                     int bottom, int top);
+
+    /**
+     * Gets tree as stream written while rows are read page by page, memory doesn't grow with the result
+     */
+    CompletableFuture<Optional<TreeStream>> getTreeStreamAsync(List<String> columnNames, String aggregateColumn,
+                                                              Set<Aggregate> aggregates, int bottom, int top);
+
+    /**
+     * Gets percent of the table approximate trees are built from
+     */
+    double getSamplePercent();
+
+    /**
+     * Gets strong entity tag of the tree encoded in the format, it is known without building the tree
+     */
+    String getEntityTag(List<String> columnNames, String aggregateColumn, Set<Aggregate> aggregates, boolean rollup,
+                        boolean approximate, MonthRange months, int bottom, int top, TreeFormat format, boolean gzip);
+
+    /**
+     * Variant of getTreeAsync with tree written in the format of the response, encoded trees are cached
+     */
+    CompletableFuture<Optional<EncodedTree>> getEncodedTreeAsync(List<String> columnNames, String aggregateColumn,
+                                                                 Set<Aggregate> aggregates, boolean rollup,
+                                                                 boolean approximate, MonthRange months,
+                                                                 int bottom, int top, TreeFormat format, boolean gzip);
+
+    /**
+     * Gets subtree of drill-down with levels of columnNames below the path
+     */
+    CompletableFuture<Optional<EstatesTree>> getSubtreeAsync(Map<String, String> path, List<String> columnNames,
+                                                             String aggregateColumn, Set<Aggregate> aggregates,
+                                                             int bottom, int top);
+
+    /**
+     * Gets trees for many ranges of surface, ranges missing in cache are answered by one query
+     */
+    CompletableFuture<List<Optional<EstatesTree>>> getTreesAsync(List<String> columnNames, String aggregateColumn,
+                                                                 Set<Aggregate> aggregates, boolean rollup,
+                                                                 List<SurfaceRange> ranges);
+
+    /**
+     * Drops cached trees, encoded trees and surface cubes, so next requests are answered by the backend
+     */
+    void flushCaches();
 }
@@ -1,51 +1,84 @@
 package bigqueryestatespring.services;
 
+import bigqueryestatespring.backend.QueryBackend;
+import bigqueryestatespring.cache.QueryKey;
+import bigqueryestatespring.cache.ResultCache;
+import bigqueryestatespring.cache.SingleFlight;
+import bigqueryestatespring.cube.SurfaceCube;
+import bigqueryestatespring.metrics.EstatesMetrics;
 import bigqueryestatespring.nodes.AggregationNode;
-import bigqueryestatespring.nodes.Node;
-import bigqueryestatespring.nodes.NodeWithChildren;
-import com.fasterxml.jackson.core.JsonProcessingException;
+import bigqueryestatespring.nodes.EncodedTree;
+import bigqueryestatespring.nodes.EstatesTree;
+import bigqueryestatespring.nodes.TreeBuilder;
+import bigqueryestatespring.nodes.TreeStreamWriter;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.cloud.bigquery.*;
-import org.jooq.DSLContext;
-import org.jooq.Field;
-import org.jooq.Record1;
-import org.jooq.SelectSelectStep;
-import org.jooq.conf.ParamType;
-import org.jooq.impl.DSL;
+import com.google.cloud.bigquery.FieldValue;
+import com.google.cloud.bigquery.FieldValueList;
+import com.google.cloud.bigquery.TableResult;
+import io.micrometer.core.instrument.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
-import java.math.BigDecimal;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.YearMonth;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Optional;
-import java.util.UUID;
-import java.util.concurrent.*;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
 
 import static bigqueryestatespring.exceptionMessages.ExceptionMessage.*;
-import static org.jooq.impl.DSL.*;
 
 
 @Service
 public class EstatesService implements DataService {
     private static final Logger logger = LoggerFactory.getLogger(EstatesService.class);
-    private static final ExecutorService executorService = Executors
-            .newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    private static final int ENTITY_TAG_BYTES = 16;
 
     private static ObjectMapper mapper;
-    private static BigQuery bigQuery;
-    private static DSLContext dsl;
+    private static QueryBackend backend;
+    private static ResultCache<QueryKey, EstatesTree> resultCache;
+    private static ResultCache<String, EncodedTree> encodedTreeCache;
+    private static SingleFlight<QueryKey, Optional<EstatesTree>> singleFlight;
+    private static ExecutorService executorService;
+    private static PagedResultReader pagedResultReader;
+    private static boolean cubeEnabled;
+    private static int gzipMinBytes;
+    private static long timeoutMillis;
+    private static double samplePercent;
+    private static long streamMaxRows;
+    private static long streamMaxBytes;
+    private static EstatesMetrics metrics;
+    private static AdmissionControl admissionControl;
 
-    @Autowired
-    @Qualifier("defaultDslContextConfiguration")
-    public void setDsl(DSLContext dslContext) {
-        dsl = dslContext;
-    }
+    /**
+     * Cubes keyed by dataset version and shape of the query, cubes of other versions are dropped when it changes
+     */
+    private final Map<String, Map<QueryKey, CompletableFuture<Optional<SurfaceCube>>>> cubes =
+            new ConcurrentHashMap<>();
 
     @Autowired
     @Qualifier("defaultObjectMapper")
@@ -54,125 +87,259 @@ public class EstatesService implements DataService {
     }
 
     @Autowired
-    private void setBigQuery(BigQuery bigQueryInstance) {
-        bigQuery = bigQueryInstance;
+    private void setBackend(QueryBackend queryBackend) {
+        backend = queryBackend;
     }
 
-    public EstatesService() {}
+    @Autowired
+    @Qualifier("treeResultCache")
+    private void setResultCache(ResultCache<QueryKey, EstatesTree> cache) {
+        resultCache = cache;
+    }
 
-    /**
-     * Gets QueryJobConfiguration which contains sql query as
-     * SELECT columnNames(except last), operationType(columnNames(last))
-     * FROM *** WHERE surface >= bottom and surface <= top
-     * GROUP BY columnNames(except last)
-     *
-     * @param bottom low border for space
-     * @param top high border for space
-     * @return QueryJobConfiguration
-     */
-    private QueryJobConfiguration getQueryJobConfiguration(List<String> columnNames, String aggregateColumn,
-                                                           int bottom, int top) {
-        Field<Double> price = field(aggregateColumn, Double.class);
-        SelectSelectStep<Record1<BigDecimal>> query = dsl.select(avg(price).as("avg_" + aggregateColumn));
-        if (columnNames != null) {
-            List<Field<Object>> columnNamesFields = columnNames.stream().map(DSL::field).collect(Collectors.toList());
-            query.select(columnNamesFields).groupBy(columnNamesFields);
+    @Autowired
+    @Qualifier("encodedTreeCache")
+    private void setEncodedTreeCache(ResultCache<String, EncodedTree> cache) {
+        encodedTreeCache = cache;
+    }
+
+    @Autowired
+    @Qualifier("treeSingleFlight")
+    private void setSingleFlight(SingleFlight<QueryKey, Optional<EstatesTree>> flight) {
+        singleFlight = flight;
+    }
+
+    @Autowired
+    @Qualifier("estatesExecutor")
+    private void setExecutorService(ExecutorService executor) {
+        executorService = executor;
+    }
+
+    @Autowired
+    private void setPagedResultReader(PagedResultReader reader) {
+        pagedResultReader = reader;
+    }
+
+    @Autowired
+    private void setAdmissionControl(AdmissionControl control) {
+        admissionControl = control;
+    }
+
+    @Autowired
+    private void setMetrics(EstatesMetrics estatesMetrics) {
+        metrics = estatesMetrics;
+    }
+
+    @Value("${estates.response.gzip-min-bytes:2048}")
+    private void setGzipMinBytes(int minBytes) {
+        gzipMinBytes = minBytes;
+    }
+
+    @Value("${estates.request.timeout-ms:30000}")
+    private void setTimeoutMillis(long timeout) {
+        timeoutMillis = timeout;
+    }
+
+    @Value("${estates.approximate.sample-percent:1}")
+    private void setSamplePercent(double percent) {
+        if (percent <= 0 || percent > QueryKey.FULL_TABLE) {
+            throw new IllegalArgumentException(SAMPLE_PERCENT_IS_OUT_OF_RANGE);
         }
-        query.from(table("`properati-data-public.properties_ar.properties_rent_201501`"))
-                .where(field("surface_covered_in_m2").greaterOrEqual(bottom)
-                        .and(field("surface_covered_in_m2").lessOrEqual(top)));
-        return QueryJobConfiguration
-                    .newBuilder(query.getSQL(ParamType.INLINED))
-                    .setUseLegacySql(false)
-                    .build();
+        samplePercent = percent;
     }
 
-    private Future<TableResult> getTableResultOfEstates(List<String> columnNames, String aggregateColumn,
-                                                        int bottom, int top) {
-        QueryJobConfiguration queryConfig = getQueryJobConfiguration(columnNames, aggregateColumn, bottom, top);
+    @Value("${estates.stream.max-rows:10000000}")
+    private void setStreamMaxRows(long maxRows) {
+        streamMaxRows = maxRows;
+    }
 
-        JobId jobId = JobId.of(UUID.randomUUID().toString());
-        Job queryJob = bigQuery.create(JobInfo.newBuilder(queryConfig).setJobId(jobId).build());
+    @Value("${estates.stream.max-bytes:1073741824}")
+    private void setStreamMaxBytes(long maxBytes) {
+        streamMaxBytes = maxBytes;
+    }
 
-        return executorService.submit(new RunJob(queryJob));
+    @Value("${estates.cube.enabled:false}")
+    private void setCubeEnabled(boolean enabled) {
+        cubeEnabled = enabled;
     }
 
+    public EstatesService() {}
+
     /**
      * Creates tree based on given tableResult
-     * Levels of tree are based on columnNames given in construction
-     * Aggregation function is given in constructor (OperationType)
+     * Levels of tree are based on columnNames of the key, leaves have aggregates of the key,
+     * inner nodes of rollup key have subtotals
+     * Tree is built page by page while next pages are prefetched,
+     * recorded build time includes waiting for pages which are not prefetched yet
      *
+     * @param key query key
      * @param tableResult query result received from bigQuery
-     * @return root node of constructed tree
+     * @return future of constructed tree
      */
-    private List<Node> createTree(List<String> columnNames, String aggregateColumn, TableResult tableResult) {
-        List<Node> rootList = new ArrayList<>();
+    private CompletableFuture<EstatesTree> createTree(QueryKey key, TableResult tableResult) {
+        Timer.Sample sample = metrics.start();
+        TreeBuilder treeBuilder = new TreeBuilder();
 
-        tableResult.iterateAll().forEach(row -> createBranch(columnNames, aggregateColumn, rootList, row));
+        return pagedResultReader.read(tableResult, row -> addRow(treeBuilder, key, row)).thenApply(ignored -> {
+            EstatesTree tree = new EstatesTree(treeBuilder.build());
+            metrics.record(EstatesMetrics.BUILD_TREE, sample);
+            return tree;
+        });
+    }
 
-        return rootList;
+    /**
+     * Creates trees for many ranges from result of the ranges query,
+     * rows are split between trees by range_index
+     *
+     * @param shape query key of all ranges
+     * @param rangeCount number of ranges in the query
+     * @param tableResult query result with range_index column
+     * @return future of trees in order of ranges
+     */
+    private CompletableFuture<List<EstatesTree>> createTrees(QueryKey shape, int rangeCount,
+                                                             TableResult tableResult) {
+        Timer.Sample sample = metrics.start();
+        TreeBuilder[] treeBuilders = new TreeBuilder[rangeCount];
+        for (int i = 0; i < rangeCount; i++) {
+            treeBuilders[i] = new TreeBuilder();
+        }
+
+        return pagedResultReader.read(tableResult, row -> addRow(
+                treeBuilders[(int) row.get(QueryBackend.RANGE_INDEX).getLongValue()], shape, row)).thenApply(ignored -> {
+            List<EstatesTree> trees = new ArrayList<>(rangeCount);
+            for (TreeBuilder treeBuilder : treeBuilders) {
+                trees.add(new EstatesTree(treeBuilder.build()));
+            }
+            metrics.record(EstatesMetrics.BUILD_TREE, sample);
+            return trees;
+        });
     }
 
     /**
-     * Creates branch of tree starting from root == current.
-     * If value of row on the same level is present then doesn't create new,
-     *  if not present then creates new value on this level;
-     * always create new value on the last level of tree.
+     * Adds row to the tree as leaf, or as subtotal of inner node if row is rolled up,
+     * grand total has no node in the tree and groups without values of aggregate column are skipped
      *
-     * @param currentList starting node (== root)
-     * @param row - row from TableResult with values for particular row in query result from database
+     * @param treeBuilder builder of the tree
+     * @param key query key
+     * @param row row of query result
      */
-    private void createBranch(List<String> columnNames, String aggregateColumn,
-                              List<Node> currentList, FieldValueList row) {
-        boolean exists;
-        String columnValue;
-        // Go through all column names except for the last one
-        if (columnNames != null) {
-            for (String columnName : columnNames) {
-                exists = false;
-                columnValue = row.get(columnName).getStringValue();
-                for (Node node : currentList) {
-                    // If node with the same data already exists - make it 'current'
-                    if (node.checkEqualData(columnValue)) {
-                        currentList = ((NodeWithChildren) node).getChildren();
-                        exists = true;
-                        break;
+    private void addRow(TreeBuilder treeBuilder, QueryKey key, FieldValueList row) {
+        AggregationNode node = createAggregationNode(key, row);
+        if (node == null) {
+            return;
+        }
+        int depth = key.getColumnNames().size();
+        int level = key.isRollup() ? (int) row.get(QueryBackend.ROLLUP_LEVEL).getLongValue() : depth;
+        List<String> columnValues = getColumnValues(key.getColumnNames().subList(0, level), row);
+        if (level == depth) {
+            treeBuilder.addBranch(columnValues, node);
+        } else if (level > 0) {
+            treeBuilder.addTotal(columnValues, node);
+        }
+    }
+
+    /**
+     * Creates node with aggregates of the key from the row
+     *
+     * @param key query key
+     * @param row row of query result
+     * @return node, null if group has no values of aggregate column
+     */
+    private AggregationNode createAggregationNode(QueryKey key, FieldValueList row) {
+        String aggregateColumn = key.getAggregateColumn();
+        FieldValue average = row.get(Aggregate.AVG.getColumn(aggregateColumn));
+        if (average.isNull()) {
+            return null;
+        }
+        AggregationNode leaf = new AggregationNode(average.getDoubleValue(),
+                row.get(Aggregate.COUNT.getColumn(aggregateColumn)).getLongValue(), key.getAggregates());
+        for (Aggregate aggregate : key.getAggregates()) {
+            switch (aggregate) {
+                case MIN:
+                    leaf.setMin(row.get(aggregate.getColumn(aggregateColumn)).getDoubleValue());
+                    break;
+                case MAX:
+                    leaf.setMax(row.get(aggregate.getColumn(aggregateColumn)).getDoubleValue());
+                    break;
+                case SUM:
+                    leaf.setSum(row.get(aggregate.getColumn(aggregateColumn)).getDoubleValue());
+                    break;
+                case MARGIN:
+                    FieldValue margin = row.get(aggregate.getColumn(aggregateColumn));
+                    leaf.setMargin(margin.isNull() ? Double.NaN : margin.getDoubleValue());
+                    break;
+                case APPROX_QUANTILES:
+                    List<FieldValue> values = row.get(aggregate.getColumn(aggregateColumn)).getRepeatedValue();
+                    double[] quantiles = new double[values.size()];
+                    for (int i = 0; i < quantiles.length; i++) {
+                        quantiles[i] = values.get(i).getDoubleValue();
+                    }
+                    leaf.setQuantiles(quantiles);
+                    break;
+                default:
+                    break;
+            }
+        }
+        return leaf;
+    }
+
+    /**
+     * Creates tree with averages of the surface cube in range [bottom, top],
+     * subtotals of rollup key are exact averages of summed sums and counts of the groups
+     *
+     * @param cube surface cube for columnNames
+     * @param key query key, cube gives only aggregates of SurfaceCube.AGGREGATES
+     * @return constructed tree
+     */
+    private EstatesTree createTree(SurfaceCube cube, QueryKey key) {
+        return metrics.time(EstatesMetrics.BUILD_TREE, () -> {
+            TreeBuilder treeBuilder = new TreeBuilder();
+            // {sum, count} of every inner node
+            Map<List<String>, double[]> totals = new LinkedHashMap<>();
+            cube.query(key.getBottom(), key.getTop(), (group, sum, count) -> {
+                treeBuilder.addBranch(group, new AggregationNode(sum / count, count, key.getAggregates()).setSum(sum));
+                if (key.isRollup()) {
+                    for (int level = 1; level < group.size(); level++) {
+                        double[] total = totals.computeIfAbsent(new ArrayList<>(group.subList(0, level)),
+                                absent -> new double[2]);
+                        total[0] += sum;
+                        total[1] += count;
                     }
                 }
-                // If node with the same data doesn't exist - create it and then make it 'current'
-                if (!exists) {
-                    NodeWithChildren newNode = new NodeWithChildren(columnValue);
-                    currentList.add(newNode);
-                    currentList = newNode.getChildren();
-                }
+            });
+            totals.forEach((prefix, total) -> treeBuilder.addTotal(prefix,
+                    new AggregationNode(total[0] / total[1], (long) total[1], key.getAggregates()).setSum(total[0])));
+            return new EstatesTree(treeBuilder.build());
+        });
+    }
+
+    private List<String> getColumnValues(List<String> columnNames, FieldValueList row) {
+        List<String> columnValues = new ArrayList<>();
+        if (columnNames != null) {
+            for (String columnName : columnNames) {
+                columnValues.add(row.get(columnName).getStringValue());
             }
         }
-        // Last element is processed outside 'for' because we want to create different type of Node
-        columnValue = row.get("avg_" + aggregateColumn).getStringValue();
-        currentList.add(new AggregationNode(columnValue));
+        return columnValues;
     }
 
     /**
      * Creates Object which can be serialized to json tree
      *
-     * @param root element from which the tree starts
+     * @param tree tree to be converted
      * @return Object which serializes to json consisting tree when returned with REST
      */
-    private Optional<JsonNode> constructJson(List<Node> root) {
-        if (root == null || root.isEmpty()) {
-            return Optional.empty();
-        }
+    private Optional<JsonNode> constructJson(EstatesTree tree) {
         try {
-            String json = mapper.writeValueAsString(root);
-
-            return Optional.of(mapper.readTree(json));
-        } catch (JsonProcessingException ex) {
+            return Optional.of(metrics.time(EstatesMetrics.SERIALIZE, () -> mapper.valueToTree(tree)));
+        } catch (IllegalArgumentException ex) {
             throw new RuntimeException(EXCEPTION_WHILE_CREATE_JSON);
         }
     }
 
     /**
      * Main method - gets tree with levels of columnNames with estates restricted by space by bottom and top
+     * Finished trees are cached, so repeated query doesn't create new job in bigQuery
      *
      * @param columnNames list of columns to create tree
      * @param aggregateColumn last element of the tree (will be processed in aggregate function)
@@ -181,49 +348,577 @@ public class EstatesService implements DataService {
      * @return Object which serializes to tree json
      */
     public Optional<JsonNode> getData(List<String> columnNames, String aggregateColumn, int bottom, int top) {
+        return getData(columnNames, aggregateColumn, bottom, top, false);
+    }
+
+    /**
+     * Gets tree as getData, approximate tree is built from sample of the table,
+     * its leaves have margin of the average and its counts are counts of the sample
+     *
+     * @param columnNames list of columns to create tree
+     * @param aggregateColumn last element of the tree (will be processed in aggregate function)
+     * @param bottom low border of space for estate
+     * @param top high border of space for estate
+     * @param approximate whether the tree is built from sample of getSamplePercent percent of the table
+     * @return Object which serializes to tree json
+     */
+    public Optional<JsonNode> getData(List<String> columnNames, String aggregateColumn, int bottom, int top,
+                                      boolean approximate) {
+        return getTree(columnNames, aggregateColumn, bottom, top, approximate).flatMap(this::constructJson);
+    }
+
+    /**
+     * Blocking variant of getTreeAsync, query is cancelled if tree is not built before the default deadline
+     *
+     * @param columnNames list of columns to create tree
+     * @param aggregateColumn last element of the tree (will be processed in aggregate function)
+     * @param bottom low border of space for estate
+     * @param top high border of space for estate
+     * @return tree or empty if nothing is found
+     */
+    public Optional<EstatesTree> getTree(List<String> columnNames, String aggregateColumn, int bottom, int top) {
+        return getTree(columnNames, aggregateColumn, bottom, top, false);
+    }
+
+    private Optional<EstatesTree> getTree(List<String> columnNames, String aggregateColumn, int bottom, int top,
+                                          boolean approximate) {
+        CompletableFuture<Optional<EstatesTree>> treeFuture = approximate
+                ? getApproximateTreeAsync(columnNames, aggregateColumn, Aggregate.DEFAULT, false, bottom, top)
+                : getTreeAsync(columnNames, aggregateColumn, bottom, top);
+        try {
+            return treeFuture.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            treeFuture.cancel(true);
+            logger.error(ERROR_WHILE_PROCESSING_QUERY);
+            return Optional.empty();
+        } catch (ExecutionException ex) {
+            logger.error(ERROR_WHILE_PROCESSING_QUERY);
+            return Optional.empty();
+        } catch (TimeoutException ex) {
+            treeFuture.cancel(true);
+            logger.error(DEADLINE_EXCEEDED);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Gets tree with levels of columnNames with estates restricted by space by bottom and top,
+     * tree is serialized straight into JsonGenerator of the response.
+     * Rows are got from the query backend and tree is built in executorService,
+     * so calling thread is not blocked.
+     * Finished trees are cached, so repeated query doesn't create new job in bigQuery,
+     * identical queries coming at the same time share one job and one tree build
+     *
+     * @param columnNames list of columns to create tree
+     * @param aggregateColumn last element of the tree (will be processed in aggregate function)
+     * @param bottom low border of space for estate
+     * @param top high border of space for estate
+     * @return future of tree, empty if nothing is found
+     */
+    public CompletableFuture<Optional<EstatesTree>> getTreeAsync(List<String> columnNames, String aggregateColumn,
+                                                                 int bottom, int top) {
+        return getTreeAsync(columnNames, aggregateColumn, Aggregate.DEFAULT, false, bottom, top);
+    }
+
+    /**
+     * Gets tree as getTreeAsync with given aggregates in the leaves, all aggregates are computed by one query
+     *
+     * @param columnNames list of columns to create tree
+     * @param aggregateColumn last element of the tree (will be processed in aggregate functions)
+     * @param aggregates aggregates of the leaves, average is always included
+     * @param rollup whether inner nodes get subtotals, they are computed by the same query
+     * @param bottom low border of space for estate
+     * @param top high border of space for estate
+     * @return future of tree, empty if nothing is found
+     */
+    public CompletableFuture<Optional<EstatesTree>> getTreeAsync(List<String> columnNames, String aggregateColumn,
+                                                                 Set<Aggregate> aggregates, boolean rollup,
+                                                                 int bottom, int top) {
+        validate(aggregateColumn, bottom, top);
+        return getTreeAsync(createKey(columnNames, aggregateColumn, aggregates, rollup, bottom, top, false),
+                AdmissionControl.Priority.INTERACTIVE);
+    }
+
+    /**
+     * Gets tree as getTreeAsync from the monthly tables of the months.
+     * Every month is queried by its own job in parallel and cached as its own tree,
+     * so a range with one new month costs only one new scan.
+     * Trees of the months are merged from their sums, counts, minimums and maximums,
+     * so averages of the merged tree are exact, not averages of averages
+     *
+     * @param columnNames list of columns to create tree
+     * @param aggregateColumn last element of the tree (will be processed in aggregate functions)
+     * @param aggregates aggregates of the leaves from Aggregate.MERGEABLE, average is always included
+     * @param rollup whether inner nodes get subtotals
+     * @param months months of the tables
+     * @param bottom low border of space for estate
+     * @param top high border of space for estate
+     * @return future of merged tree, empty if nothing is found in any month
+     */
+    public CompletableFuture<Optional<EstatesTree>> getTreeAsync(List<String> columnNames, String aggregateColumn,
+                                                                 Set<Aggregate> aggregates, boolean rollup,
+                                                                 MonthRange months, int bottom, int top) {
+        validate(aggregateColumn, bottom, top);
+        return getMonthlyTreeAsync(createKey(columnNames, aggregateColumn, aggregates, rollup, bottom, top, false),
+                months);
+    }
+
+    /**
+     * Scatters the key over the monthly tables of the months and gathers their trees into one,
+     * months without rows are skipped
+     *
+     * @param key query key without month
+     * @param months months of the tables
+     * @return future of merged tree, empty if nothing is found in any month
+     */
+    private CompletableFuture<Optional<EstatesTree>> getMonthlyTreeAsync(QueryKey key, MonthRange months) {
+        // Sums of the months are needed to merge averages exactly
+        Set<Aggregate> partialAggregates = EnumSet.copyOf(key.getAggregates());
+        partialAggregates.add(Aggregate.SUM);
+        QueryKey partialKey = key.withAggregates(partialAggregates);
+        List<CompletableFuture<Optional<EstatesTree>>> partials = new ArrayList<>();
+        for (YearMonth month : months.getMonths()) {
+            partials.add(getTreeAsync(partialKey.withMonth(month), AdmissionControl.Priority.INTERACTIVE));
+        }
+        CompletableFuture<?>[] sources = partials.toArray(new CompletableFuture[0]);
+        return Cancellation.propagate(CompletableFuture.allOf(sources).thenApplyAsync(ignored -> mergeTrees(key,
+                partials.stream()
+                        .map(CompletableFuture::join)
+                        .filter(Optional::isPresent)
+                        .map(Optional::get)
+                        .collect(Collectors.toList())), executorService), sources);
+    }
+
+    /**
+     * Merges trees of the same shape, nodes with the same labels are merged,
+     * sum and count of merged node are sums of their sums and counts and its average is sum / count
+     *
+     * @param key query key with aggregates of the merged tree
+     * @param trees trees with SUM in leaves and subtotals
+     * @return merged tree, empty if there are no nodes
+     */
+    private Optional<EstatesTree> mergeTrees(QueryKey key, List<EstatesTree> trees) {
+        return metrics.time(EstatesMetrics.BUILD_TREE, () -> {
+            // {sum, count, min, max} of every leaf and subtotal
+            Map<List<String>, double[]> leaves = new LinkedHashMap<>();
+            Map<List<String>, double[]> totals = new LinkedHashMap<>();
+            for (EstatesTree tree : trees) {
+                tree.forEachLeaf((branch, leaf) -> mergeNode(leaves, branch, leaf));
+                tree.forEachTotal((prefix, total) -> mergeNode(totals, prefix, total));
+            }
+            if (leaves.isEmpty()) {
+                return Optional.empty();
+            }
+            TreeBuilder treeBuilder = new TreeBuilder();
+            leaves.forEach((branch, merged) -> treeBuilder.addBranch(branch, createMergedNode(key, merged)));
+            totals.forEach((prefix, merged) -> treeBuilder.addTotal(prefix, createMergedNode(key, merged)));
+            return Optional.of(new EstatesTree(treeBuilder.build()));
+        });
+    }
+
+    private static void mergeNode(Map<List<String>, double[]> nodes, List<String> labels, AggregationNode node) {
+        double[] merged = nodes.computeIfAbsent(labels, absent -> new double[]{
+                0, 0, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY});
+        merged[0] += node.getSum();
+        merged[1] += node.getCount();
+        merged[2] = Math.min(merged[2], node.getMin());
+        merged[3] = Math.max(merged[3], node.getMax());
+    }
+
+    private static AggregationNode createMergedNode(QueryKey key, double[] merged) {
+        return new AggregationNode(merged[0] / merged[1], (long) merged[1], key.getAggregates())
+                .setSum(merged[0])
+                .setMin(merged[2])
+                .setMax(merged[3]);
+    }
+
+    /**
+     * Gets tree as stream written while rows are read page by page, for results too large to be held in memory.
+     * Rows are got by ordered query, so every branch is written out as soon as rows of the next one come
+     * and memory is proportional to the page size, not to the result size.
+     * Cached tree is written from the cache, streamed tree is not cached.
+     * Number of rows is checked before writing starts if the result knows it,
+     * otherwise writing fails when a limit is exceeded
+     *
+     * @param columnNames list of columns to create tree
+     * @param aggregateColumn last element of the tree (will be processed in aggregate functions)
+     * @param aggregates aggregates of the leaves, average is always included
+     * @param bottom low border of space for estate
+     * @param top high border of space for estate
+     * @return future of tree stream, empty if nothing is found,
+     *         failed by ResultTooLargeException if result has more rows than the limit
+     */
+    public CompletableFuture<Optional<TreeStream>> getTreeStreamAsync(List<String> columnNames,
+                                                                     String aggregateColumn,
+                                                                     Set<Aggregate> aggregates,
+                                                                     int bottom, int top) {
+        validate(aggregateColumn, bottom, top);
+        QueryKey key = createKey(columnNames, aggregateColumn, aggregates, false, bottom, top, false);
+        Optional<EstatesTree> cached = resultCache.get(key);
+        if (cached.isPresent()) {
+            return CompletableFuture.completedFuture(Optional.of(out -> cached.get().writeTo(out, mapper.getFactory())));
+        }
+        CompletableFuture<Optional<TableResult>> query = admissionControl
+                .submit(AdmissionControl.Priority.INTERACTIVE, () -> backend.queryOrdered(key));
+        return Cancellation.propagate(query.thenApply(result -> result.map(tableResult -> {
+            if (tableResult.getTotalRows() > streamMaxRows) {
+                logger.warn(STREAMED_ROWS_OVER_LIMIT);
+                throw new ResultTooLargeException(STREAMED_ROWS_OVER_LIMIT, streamMaxRows);
+            }
+            return out -> writeTreeStream(key, tableResult, out);
+        })), query);
+    }
+
+    private void writeTreeStream(QueryKey key, TableResult tableResult, OutputStream out) throws IOException {
+        Timer.Sample sample = metrics.start();
+        TreeStreamWriter writer = new TreeStreamWriter(out, mapper, key.getColumnNames().size(),
+                streamMaxRows, streamMaxBytes);
+        try {
+            pagedResultReader.read(tableResult, row -> {
+                AggregationNode leaf = createAggregationNode(key, row);
+                if (leaf != null) {
+                    try {
+                        writer.add(getColumnValues(key.getColumnNames(), row), leaf);
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                }
+            }).join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) ex.getCause()).getCause();
+            }
+            if (ex.getCause() instanceof ResultTooLargeException) {
+                logger.warn(ex.getCause().getMessage());
+            }
+            throw ex.getCause() instanceof RuntimeException ? (RuntimeException) ex.getCause() : ex;
+        }
+        writer.finish();
+        metrics.record(EstatesMetrics.SERIALIZE, sample);
+    }
+
+    /**
+     * Gets tree as getTreeAsync built from sample of getSamplePercent percent of the table,
+     * it has the same shape as the exact tree but only groups found in the sample,
+     * its leaves have margin of the average and its counts and sums are counts and sums of the sample.
+     * Approximate trees are cached separately from exact ones
+     *
+     * @param columnNames list of columns to create tree
+     * @param aggregateColumn last element of the tree (will be processed in aggregate functions)
+     * @param aggregates aggregates of the leaves, average and margin are always included
+     * @param rollup whether inner nodes get subtotals
+     * @param bottom low border of space for estate
+     * @param top high border of space for estate
+     * @return future of approximate tree, empty if nothing is found in the sample
+     */
+    public CompletableFuture<Optional<EstatesTree>> getApproximateTreeAsync(List<String> columnNames,
+                                                                            String aggregateColumn,
+                                                                            Set<Aggregate> aggregates,
+                                                                            boolean rollup, int bottom, int top) {
+        validate(aggregateColumn, bottom, top);
+        return getTreeAsync(createKey(columnNames, aggregateColumn, aggregates, rollup, bottom, top, true),
+                AdmissionControl.Priority.INTERACTIVE);
+    }
+
+    /**
+     * @return percent of the table approximate trees are built from
+     */
+    public double getSamplePercent() {
+        return samplePercent;
+    }
+
+    /**
+     * Gets subtree of drill-down below the path, rows are restricted to the path by the query,
+     * so only columns below the path are grouped.
+     * Subtrees are cached by their path, so expanding the same branch again doesn't query the backend
+     *
+     * @param path values of the first hierarchy columns from the top, empty for the top of the tree
+     * @param columnNames columns of levels of the subtree below the path
+     * @param aggregateColumn last element of the tree (will be processed in aggregate functions)
+     * @param aggregates aggregates of the leaves, average is always included
+     * @param bottom low border of space for estate
+     * @param top high border of space for estate
+     * @return future of subtree, empty if nothing is found
+     */
+    public CompletableFuture<Optional<EstatesTree>> getSubtreeAsync(Map<String, String> path,
+                                                                    List<String> columnNames,
+                                                                    String aggregateColumn,
+                                                                    Set<Aggregate> aggregates,
+                                                                    int bottom, int top) {
+        validate(aggregateColumn, bottom, top);
+        return getTreeAsync(createKey(columnNames, aggregateColumn, aggregates, false, bottom, top, false)
+                .withPath(path), AdmissionControl.Priority.INTERACTIVE);
+    }
+
+    /**
+     * Gets strong entity tag of the encoded tree, tag is derived from the key and version of the dataset,
+     * so it is known without building the tree
+     *
+     * @param columnNames list of columns to create tree
+     * @param aggregateColumn last element of the tree (will be processed in aggregate functions)
+     * @param aggregates aggregates of the leaves, average is always included
+     * @param rollup whether inner nodes get subtotals
+     * @param approximate whether the tree is built from sample of the table
+     * @param months months of the monthly tables, null for the default table
+     * @param bottom low border of space for estate
+     * @param top high border of space for estate
+     * @param format format of the response
+     * @param gzip whether client accepts gzip encoding
+     * @return entity tag with quotes
+     */
+    public String getEntityTag(List<String> columnNames, String aggregateColumn, Set<Aggregate> aggregates,
+                               boolean rollup, boolean approximate, MonthRange months, int bottom, int top,
+                               TreeFormat format, boolean gzip) {
+        return getEntityTag(createKey(columnNames, aggregateColumn, aggregates, rollup, bottom, top, approximate),
+                months, format, gzip);
+    }
+
+    /**
+     * Gets tree as getTreeAsync written in the format of the response.
+     * Encoded trees are cached by entity tag, so repeated request skips serialization,
+     * tree is gzipped if client accepts it and it is not smaller than gzipMinBytes
+     *
+     * @param columnNames list of columns to create tree
+     * @param aggregateColumn last element of the tree (will be processed in aggregate functions)
+     * @param aggregates aggregates of the leaves, average is always included
+     * @param rollup whether inner nodes get subtotals
+     * @param approximate whether the tree is built from sample of the table as by getApproximateTreeAsync
+     * @param months months of the monthly tables merged as by getTreeAsync, null for the default table
+     * @param bottom low border of space for estate
+     * @param top high border of space for estate
+     * @param format format of the response
+     * @param gzip whether client accepts gzip encoding
+     * @return future of encoded tree, empty if nothing is found
+     */
+    public CompletableFuture<Optional<EncodedTree>> getEncodedTreeAsync(List<String> columnNames,
+                                                                        String aggregateColumn,
+                                                                        Set<Aggregate> aggregates, boolean rollup,
+                                                                        boolean approximate, MonthRange months,
+                                                                        int bottom, int top,
+                                                                        TreeFormat format, boolean gzip) {
+        validate(aggregateColumn, bottom, top);
+        QueryKey key = createKey(columnNames, aggregateColumn, aggregates, rollup, bottom, top, approximate);
+        String entityTag = getEntityTag(key, months, format, gzip);
+        Optional<EncodedTree> cached = encodedTreeCache.get(entityTag);
+        if (cached.isPresent()) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        CompletableFuture<Optional<EstatesTree>> treeFuture = months == null
+                ? getTreeAsync(key, AdmissionControl.Priority.INTERACTIVE)
+                : getMonthlyTreeAsync(key, months);
+        return Cancellation.propagate(treeFuture.thenApplyAsync(tree -> tree.map(found -> {
+            EncodedTree encoded = encode(found, entityTag, format, gzip);
+            encodedTreeCache.put(entityTag, encoded);
+            return encoded;
+        }), executorService), treeFuture);
+    }
+
+    /**
+     * Checks arguments shared by all tree requests
+     */
+    private static void validate(String aggregateColumn, int bottom, int top) {
         if (bottom > top) {
             throw new RuntimeException(TOP_BORDER_UNDER_BOTTOM_BORDER);
         }
         if (aggregateColumn == null) {
             throw new RuntimeException(AGGREGATE_COLUMN_IS_NULL);
         }
-        Future<TableResult> resultFuture = getTableResultOfEstates(columnNames, aggregateColumn, bottom, top);
-        TableResult result;
+    }
+
+    private static QueryKey createKey(List<String> columnNames, String aggregateColumn, Set<Aggregate> aggregates,
+                                      boolean rollup, int bottom, int top, boolean approximate) {
+        QueryKey key = new QueryKey(columnNames, aggregateColumn, bottom, top)
+                .withAggregates(aggregates)
+                .withRollup(rollup);
+        return approximate ? key.withSamplePercent(samplePercent) : key;
+    }
+
+    /**
+     * @param months months of merged monthly tables, null for the default table
+     */
+    private static String getEntityTag(QueryKey key, MonthRange months, TreeFormat format, boolean gzip) {
         try {
-            result = resultFuture.get();
-        } catch (InterruptedException | ExecutionException ex) {
-            logger.error(ERROR_WHILE_PROCESSING_QUERY);
-            return Optional.empty();
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            String source = months == null ? key.toString() : key + "|" + months;
+            byte[] hash = digest.digest((source + "|" + backend.getDatasetVersion() + "|" + format + "|" + gzip)
+                    .getBytes(StandardCharsets.UTF_8));
+            StringBuilder tag = new StringBuilder("\"");
+            for (int i = 0; i < ENTITY_TAG_BYTES; i++) {
+                tag.append(Character.forDigit((hash[i] >> 4) & 0xF, 16)).append(Character.forDigit(hash[i] & 0xF, 16));
+            }
+            return tag.append('"').toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
         }
-        if (result == null || result.getTotalRows() == 0) {
-            return Optional.empty();
+    }
+
+    private static EncodedTree encode(EstatesTree tree, String entityTag, TreeFormat format, boolean gzip) {
+        Timer.Sample sample = metrics.start();
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            tree.writeTo(bytes, format.getJsonFactory());
+            if (!gzip || bytes.size() < gzipMinBytes) {
+                return new EncodedTree(entityTag, format.getMediaType(), bytes.toByteArray(), false);
+            }
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.size() / 4);
+            try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+                bytes.writeTo(out);
+            }
+            return new EncodedTree(entityTag, format.getMediaType(), compressed.toByteArray(), true);
+        } catch (IOException ex) {
+            logger.error(ex.getMessage());
+            throw new RuntimeException(ERROR_WHILE_ENCODING_TREE);
+        } finally {
+            metrics.record(EstatesMetrics.SERIALIZE, sample);
         }
+    }
 
-        List<Node> root = createTree(columnNames, aggregateColumn, result);
-        return constructJson(root);
+    /**
+     * Cancelling the returned future cancels the backend query, unless other callers wait for the same tree
+     *
+     * @param priority priority of the backend query, if the tree is not cached
+     */
+    private CompletableFuture<Optional<EstatesTree>> getTreeAsync(QueryKey key, AdmissionControl.Priority priority) {
+        Optional<EstatesTree> cached = resultCache.get(key);
+        if (cached.isPresent()) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        return singleFlight.executeCancellable(key, () -> computeTree(key, priority));
     }
 
-    static class RunJob implements Callable<TableResult> {
-        Job queryJob;
+    /**
+     * Gets trees for many ranges of surface.
+     * Cached trees are returned at once, all other ranges are answered by one query of the backend,
+     * so the table is scanned once for the whole batch.
+     * If surface cube is enabled or only one range is missing every range is got by getTreeAsync
+     *
+     * @param columnNames list of columns to create tree
+     * @param aggregateColumn last element of the tree (will be processed in aggregate functions)
+     * @param aggregates aggregates of the leaves, average is always included
+     * @param rollup whether inner nodes get subtotals
+     * @param ranges ranges of surface
+     * @return future of trees in order of ranges, empty if nothing is found in the range
+     */
+    public CompletableFuture<List<Optional<EstatesTree>>> getTreesAsync(List<String> columnNames,
+                                                                        String aggregateColumn,
+                                                                        Set<Aggregate> aggregates,
+                                                                        boolean rollup,
+                                                                        List<SurfaceRange> ranges) {
+        List<QueryKey> keys = new ArrayList<>(ranges.size());
+        for (SurfaceRange range : ranges) {
+            validate(aggregateColumn, range.getBottom(), range.getTop());
+            keys.add(createKey(columnNames, aggregateColumn, aggregates, rollup, range.getBottom(), range.getTop(),
+                    false));
+        }
 
-        RunJob(Job queryJob) {
-            this.queryJob = queryJob;
+        Map<QueryKey, CompletableFuture<Optional<EstatesTree>>> trees = new LinkedHashMap<>();
+        List<QueryKey> missing = new ArrayList<>();
+        for (QueryKey key : keys) {
+            if (!trees.containsKey(key)) {
+                Optional<EstatesTree> cached = resultCache.get(key);
+                if (cached.isPresent()) {
+                    trees.put(key, CompletableFuture.completedFuture(cached));
+                } else {
+                    trees.put(key, null);
+                    missing.add(key);
+                }
+            }
+        }
+        List<CompletableFuture<?>> sources = new ArrayList<>();
+        if (missing.size() <= 1 || isAnsweredByCube(missing.get(0))) {
+            missing.forEach(key -> trees.put(key, getTreeAsync(key, AdmissionControl.Priority.BATCH)));
+        } else {
+            CompletableFuture<Optional<TableResult>> query = admissionControl
+                    .submit(AdmissionControl.Priority.BATCH, () -> backend.queryRanges(missing));
+            CompletableFuture<List<EstatesTree>> batch = Cancellation.propagate(query
+                    .thenCompose(result -> result.isPresent()
+                            ? createTrees(missing.get(0), missing.size(), result.get())
+                            : CompletableFuture.completedFuture(Collections.<EstatesTree>emptyList())), query);
+            sources.add(batch);
+            for (int i = 0; i < missing.size(); i++) {
+                QueryKey key = missing.get(i);
+                int index = i;
+                trees.put(key, batch.thenApply(batchTrees -> {
+                    if (batchTrees.isEmpty() || batchTrees.get(index).isEmpty()) {
+                        return Optional.empty();
+                    }
+                    resultCache.put(key, batchTrees.get(index));
+                    return Optional.of(batchTrees.get(index));
+                }));
+            }
         }
 
+        sources.addAll(trees.values());
+        return Cancellation.propagate(CompletableFuture.allOf(trees.values().toArray(new CompletableFuture[0]))
+                .thenApply(ignored -> keys.stream()
+                        .map(key -> trees.get(key).join())
+                        .collect(Collectors.toList())), sources.toArray(new CompletableFuture[0]));
+    }
 
-        @Override
-        public TableResult call() throws Exception {
-            // Wait for the query to complete.
-            queryJob = queryJob.waitFor();
-            if (queryJob == null) {
-                logger.error(JOB_NO_LONGER_EXISTS);
-                return null;
-            } else if (queryJob.getStatus().getError() != null) {
-                logger.error(ERROR_WHILE_PROCESSING_QUERY);
-                return null;
-            }
+    /**
+     * Cube keeps only sums and counts of whole default table,
+     * so other aggregates, paths, samples and monthly tables are always got by query
+     *
+     * @param key query key
+     * @return whether the key is answered from surface cube
+     */
+    private boolean isAnsweredByCube(QueryKey key) {
+        return cubeEnabled && key.getPath().isEmpty() && !key.isSampled() && key.getMonth() == null
+                && SurfaceCube.AGGREGATES.containsAll(key.getAggregates());
+    }
 
-            return queryJob.getQueryResults();
+    private CompletableFuture<Optional<EstatesTree>> computeTree(QueryKey key, AdmissionControl.Priority priority) {
+        CompletableFuture<Optional<EstatesTree>> treeFuture;
+        if (isAnsweredByCube(key)) {
+            treeFuture = getCube(key, priority).thenApply(cube -> cube.map(value -> createTree(value, key)));
+        } else {
+            CompletableFuture<Optional<TableResult>> query = admissionControl.submit(priority, () -> backend.query(key));
+            treeFuture = Cancellation.propagate(query
+                    .thenCompose(result -> result.isPresent()
+                            ? createTree(key, result.get()).thenApply(Optional::of)
+                            : CompletableFuture.completedFuture(Optional.empty())), query);
         }
+        return Cancellation.propagate(treeFuture.thenApply(tree -> {
+            if (!tree.isPresent() || tree.get().isEmpty()) {
+                return Optional.empty();
+            }
+            resultCache.put(key, tree.get());
+            return tree;
+        }), treeFuture);
+    }
+
+    @Override
+    public void flushCaches() {
+        resultCache.clear();
+        encodedTreeCache.clear();
+        cubes.clear();
+    }
+
+    /**
+     * Gets surface cube for columns of the key, cube is fetched from the backend once per dataset version
+     *
+     * @param key query key
+     * @param priority priority of the cube query
+     * @return future of cube, empty if query failed
+     */
+    private CompletableFuture<Optional<SurfaceCube>> getCube(QueryKey key, AdmissionControl.Priority priority) {
+        // Cube is the same for all aggregates
+        QueryKey shape = new QueryKey(key.getColumnNames(), key.getAggregateColumn(), 0, Integer.MAX_VALUE);
+        String datasetVersion = backend.getDatasetVersion();
+        cubes.keySet().removeIf(version -> !version.equals(datasetVersion));
+        Map<QueryKey, CompletableFuture<Optional<SurfaceCube>>> versionCubes =
+                cubes.computeIfAbsent(datasetVersion, version -> new ConcurrentHashMap<>());
+        CompletableFuture<Optional<SurfaceCube>> cube = versionCubes.computeIfAbsent(shape, absent ->
+                admissionControl.submit(priority, () -> backend.queryCube(shape))
+                        .thenApplyAsync(result -> result.map(value -> SurfaceCube.fromRows(value.iterateAll(),
+                                shape.getColumnNames(), shape.getAggregateColumn())), executorService));
+        // Failed or rejected cube is not kept, so next query tries to fetch it again
+        cube.whenComplete((value, ex) -> {
+            if (ex != null || !value.isPresent()) {
+                versionCubes.remove(shape, cube);
+            }
+        });
+        return cube;
     }
 }
@@ -0,0 +1,140 @@
+package bigqueryestatespring.services;
+
+import bigqueryestatespring.metrics.EstatesMetrics;
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.Job;
+import com.google.cloud.bigquery.JobStatus;
+import com.google.cloud.bigquery.TableResult;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static bigqueryestatespring.exceptionMessages.ExceptionMessage.ERROR_WHILE_CANCELLING_JOB;
+import static bigqueryestatespring.exceptionMessages.ExceptionMessage.ERROR_WHILE_PROCESSING_QUERY;
+import static bigqueryestatespring.exceptionMessages.ExceptionMessage.JOB_NO_LONGER_EXISTS;
+
+/**
+ * Waits for bigQuery jobs without parking thread per job.
+ * State of every job is checked by small scheduled pool with growing delay,
+ * first page of results of finished job is fetched in the given executor.
+ */
+public class JobPoller {
+    private static final Logger logger = LoggerFactory.getLogger(JobPoller.class);
+
+    private final ScheduledExecutorService scheduler;
+    private final Executor resultExecutor;
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+    private final long pageSize;
+    private final EstatesMetrics metrics;
+
+    public JobPoller(int threads, Executor resultExecutor, long initialDelayMillis, long maxDelayMillis,
+                     long pageSize, EstatesMetrics metrics) {
+        this.scheduler = Executors.newScheduledThreadPool(threads);
+        this.resultExecutor = resultExecutor;
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.pageSize = pageSize;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Starts polling of the job, time of waiting for the job and its statistics are recorded.
+     * Cancelling the returned future cancels the job, so abandoned query doesn't keep running in bigQuery
+     *
+     * @param queryJob created job
+     * @return future of query results, completed with null if job failed or no longer exists
+     */
+    public CompletableFuture<TableResult> poll(Job queryJob) {
+        CompletableFuture<TableResult> result = new CompletableFuture<>();
+        result.whenComplete((value, ex) -> {
+            if (result.isCancelled()) {
+                resultExecutor.execute(() -> cancel(queryJob));
+            }
+        });
+        schedule(queryJob, result, initialDelayMillis, metrics.start());
+        return result;
+    }
+
+    /**
+     * Runs task by the polling scheduler after delay
+     *
+     * @param task short task
+     * @param delayMillis delay
+     * @return future of the scheduled task
+     */
+    public ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+        return scheduler.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    private void schedule(Job queryJob, CompletableFuture<TableResult> result, long delayMillis,
+                          Timer.Sample waitSample) {
+        scheduler.schedule(() -> check(queryJob, result, delayMillis, waitSample), delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void check(Job queryJob, CompletableFuture<TableResult> result, long delayMillis,
+                       Timer.Sample waitSample) {
+        if (result.isDone()) {
+            return;
+        }
+        try {
+            // One jobs.get call per check, its status tells whether the job is done
+            Job completedJob = queryJob.reload();
+            if (completedJob == null) {
+                logger.error(JOB_NO_LONGER_EXISTS);
+                result.complete(null);
+                return;
+            }
+            if (completedJob.getStatus().getState() != JobStatus.State.DONE) {
+                schedule(completedJob, result, Math.min(delayMillis * 2, maxDelayMillis), waitSample);
+                return;
+            }
+            metrics.record(EstatesMetrics.WAIT_JOB, waitSample);
+            if (completedJob.getStatus().getError() != null) {
+                logger.error(ERROR_WHILE_PROCESSING_QUERY);
+                result.complete(null);
+            } else {
+                metrics.recordJob(completedJob);
+                resultExecutor.execute(() -> fetchResults(completedJob, result));
+            }
+        } catch (RuntimeException ex) {
+            result.completeExceptionally(ex);
+        }
+    }
+
+    private void cancel(Job queryJob) {
+        try {
+            if (queryJob.cancel()) {
+                metrics.recordJobCancelled();
+                logger.debug("Cancelled job {}", queryJob.getJobId() == null ? null : queryJob.getJobId().getJob());
+            }
+        } catch (RuntimeException ex) {
+            logger.warn(ERROR_WHILE_CANCELLING_JOB);
+        }
+    }
+
+    private void fetchResults(Job completedJob, CompletableFuture<TableResult> result) {
+        try {
+            Timer.Sample fetchSample = metrics.start();
+            TableResult tableResult = completedJob.getQueryResults(BigQuery.QueryResultsOption.pageSize(pageSize));
+            metrics.record(EstatesMetrics.FETCH_PAGE, fetchSample);
+            result.complete(tableResult);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            result.completeExceptionally(ex);
+        } catch (RuntimeException ex) {
+            result.completeExceptionally(ex);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package bigqueryestatespring.services;
+
+import org.slf4j.MDC;
+
+import java.util.Map;
+
+/**
+ * MDC is kept per thread, so tasks handed to other threads carry the context of the thread which created them,
+ * trace id of the request reaches logs and job ids of the backend
+ */
+public final class MdcContext {
+    private MdcContext() {}
+
+    /**
+     * @param task task to run on other thread
+     * @return task running with MDC of the calling thread
+     */
+    public static Runnable wrap(Runnable task) {
+        Map<String, String> context = MDC.getCopyOfContextMap();
+        return () -> run(context, task);
+    }
+
+    /**
+     * Runs task with the context, previous MDC of the running thread is restored after it
+     *
+     * @param context copy of MDC, null for empty context
+     * @param task task
+     */
+    public static void run(Map<String, String> context, Runnable task) {
+        Map<String, String> previous = MDC.getCopyOfContextMap();
+        if (context == null) {
+            MDC.clear();
+        } else {
+            MDC.setContextMap(context);
+        }
+        try {
+            task.run();
+        } finally {
+            if (previous == null) {
+                MDC.clear();
+            } else {
+                MDC.setContextMap(previous);
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package bigqueryestatespring.services;
+
+import java.time.YearMonth;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+
+import static bigqueryestatespring.exceptionMessages.ExceptionMessage.FROM_MONTH_AFTER_TO_MONTH;
+
+/**
+ * Range of months of monthly estates tables, borders are inclusive
+ */
+public final class MonthRange {
+    private final YearMonth from;
+    private final YearMonth to;
+
+    /**
+     * @throws IllegalArgumentException if from is after to
+     */
+    public MonthRange(YearMonth from, YearMonth to) {
+        if (from.isAfter(to)) {
+            throw new IllegalArgumentException(FROM_MONTH_AFTER_TO_MONTH);
+        }
+        this.from = from;
+        this.to = to;
+    }
+
+    public YearMonth getFrom() {
+        return from;
+    }
+
+    public YearMonth getTo() {
+        return to;
+    }
+
+    /**
+     * @return number of months, at least one
+     */
+    public long size() {
+        return ChronoUnit.MONTHS.between(from, to) + 1;
+    }
+
+    /**
+     * @return months from the first one
+     */
+    public List<YearMonth> getMonths() {
+        List<YearMonth> months = new ArrayList<>();
+        for (YearMonth month = from; !month.isAfter(to); month = month.plusMonths(1)) {
+            months.add(month);
+        }
+        return months;
+    }
+
+    @Override
+    public String toString() {
+        return from + ".." + to;
+    }
+}
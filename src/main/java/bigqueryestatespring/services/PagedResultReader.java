@@ -0,0 +1,77 @@
+package bigqueryestatespring.services;
+
+import bigqueryestatespring.metrics.EstatesMetrics;
+import com.google.api.gax.paging.Page;
+import com.google.cloud.bigquery.FieldValueList;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * Reads rows of paged query result with prefetch.
+ * While rows of page N are passed to the consumer, next prefetchDepth pages are already being fetched.
+ * Rows are passed to the consumer in order and never concurrently, so consumer needs no synchronization.
+ */
+public class PagedResultReader {
+    private final Executor executor;
+    private final int prefetchDepth;
+    private final EstatesMetrics metrics;
+
+    public PagedResultReader(Executor executor, int prefetchDepth, EstatesMetrics metrics) {
+        this.executor = executor;
+        this.prefetchDepth = Math.max(prefetchDepth, 1);
+        this.metrics = metrics;
+    }
+
+    /**
+     * Passes all rows of the result starting from the first page to the consumer
+     *
+     * @param firstPage first page of query result
+     * @param rowConsumer receiver of rows
+     * @return future completed when all rows are consumed
+     */
+    public CompletableFuture<Void> read(Page<FieldValueList> firstPage, Consumer<FieldValueList> rowConsumer) {
+        Prefetch prefetch = new Prefetch(firstPage);
+        return CompletableFuture.supplyAsync(() -> firstPage, executor)
+                .thenCompose(page -> consume(page, prefetch, rowConsumer));
+    }
+
+    private CompletableFuture<Void> consume(Page<FieldValueList> page, Prefetch prefetch,
+                                            Consumer<FieldValueList> rowConsumer) {
+        if (page == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        prefetch.fill();
+        page.getValues().forEach(rowConsumer);
+        return prefetch.next().thenComposeAsync(next -> consume(next, prefetch, rowConsumer), executor);
+    }
+
+    /**
+     * Chain of page fetches running ahead of consumption,
+     * every fetch starts when previous page is fetched because it needs its page token
+     */
+    private class Prefetch {
+        private final Deque<CompletableFuture<Page<FieldValueList>>> pending = new ArrayDeque<>();
+        private CompletableFuture<Page<FieldValueList>> last;
+
+        Prefetch(Page<FieldValueList> firstPage) {
+            last = CompletableFuture.completedFuture(firstPage);
+        }
+
+        void fill() {
+            while (pending.size() < prefetchDepth) {
+                last = last.thenApplyAsync(page -> page != null && page.hasNextPage()
+                        ? metrics.time(EstatesMetrics.FETCH_PAGE, page::getNextPage)
+                        : null, executor);
+                pending.add(last);
+            }
+        }
+
+        CompletableFuture<Page<FieldValueList>> next() {
+            return pending.poll();
+        }
+    }
+}
@@ -1,9 +1,20 @@
 package bigqueryestatespring.services;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 public interface PropertiesAttribute {
     String OPERATION = "operation";
     String PROPERTY_TYPE = "property_type";
     String COUNTRY_NAME = "country_name";
     String STATE_NAME = "state_name";
     String PRICE = "price";
+    String SURFACE_COVERED = "surface_covered_in_m2";
+
+    /**
+     * Columns which can be levels of the tree, default hierarchy is in this order
+     */
+    List<String> HIERARCHY_COLUMNS = Collections.unmodifiableList(
+            Arrays.asList(OPERATION, PROPERTY_TYPE, COUNTRY_NAME, STATE_NAME));
 }
@@ -0,0 +1,21 @@
+package bigqueryestatespring.services;
+
+/**
+ * Thrown when streamed result has more rows or bytes than the limits of streaming mode
+ */
+public class ResultTooLargeException extends RuntimeException {
+    private final long limit;
+
+    /**
+     * @param message which limit is exceeded
+     * @param limit value of the exceeded limit
+     */
+    public ResultTooLargeException(String message, long limit) {
+        super(message + ": " + limit);
+        this.limit = limit;
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+}
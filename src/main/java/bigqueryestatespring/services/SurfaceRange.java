@@ -0,0 +1,32 @@
+package bigqueryestatespring.services;
+
+/**
+ * Range of surface of estates, borders are inclusive
+ */
+public class SurfaceRange {
+    private int bottom;
+    private int top = Integer.MAX_VALUE;
+
+    public SurfaceRange() {}
+
+    public SurfaceRange(int bottom, int top) {
+        this.bottom = bottom;
+        this.top = top;
+    }
+
+    public int getBottom() {
+        return bottom;
+    }
+
+    public void setBottom(int bottom) {
+        this.bottom = bottom;
+    }
+
+    public int getTop() {
+        return top;
+    }
+
+    public void setTop(int top) {
+        this.top = top;
+    }
+}
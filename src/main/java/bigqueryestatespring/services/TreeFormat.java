@@ -0,0 +1,64 @@
+package bigqueryestatespring.services;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.springframework.http.MediaType;
+
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Formats the tree is written in, all of them have the same structure as JSON
+ */
+public enum TreeFormat {
+    JSON(MediaType.APPLICATION_JSON, new JsonFactory()),
+    SMILE(MediaType.valueOf("application/x-jackson-smile"), new SmileFactory()),
+    CBOR(MediaType.valueOf("application/cbor"), new CBORFactory());
+
+    private final MediaType mediaType;
+    private final JsonFactory jsonFactory;
+
+    TreeFormat(MediaType mediaType, JsonFactory jsonFactory) {
+        this.mediaType = mediaType;
+        this.jsonFactory = jsonFactory;
+    }
+
+    public MediaType getMediaType() {
+        return mediaType;
+    }
+
+    public JsonFactory getJsonFactory() {
+        return jsonFactory;
+    }
+
+    /**
+     * Chooses format by Accept header, media types are tried in order of their quality
+     *
+     * @param accept value of Accept header, JSON is chosen if it is missing
+     * @return format, empty if none of accepted media types is supported
+     */
+    public static Optional<TreeFormat> negotiate(String accept) {
+        if (accept == null || accept.trim().isEmpty()) {
+            return Optional.of(JSON);
+        }
+        List<MediaType> mediaTypes;
+        try {
+            mediaTypes = MediaType.parseMediaTypes(accept);
+        } catch (IllegalArgumentException ex) {
+            return Optional.empty();
+        }
+        MediaType.sortBySpecificityAndQuality(mediaTypes);
+        for (MediaType accepted : mediaTypes) {
+            if (accepted.getQualityValue() == 0) {
+                continue;
+            }
+            for (TreeFormat format : values()) {
+                if (accepted.includes(format.mediaType)) {
+                    return Optional.of(format);
+                }
+            }
+        }
+        return Optional.empty();
+    }
+}
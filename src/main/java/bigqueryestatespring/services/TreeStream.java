@@ -0,0 +1,19 @@
+package bigqueryestatespring.services;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Tree which is written to the output while rows of its query are read, so it is never held in memory
+ */
+@FunctionalInterface
+public interface TreeStream {
+    /**
+     * Writes the tree as JSON, rows are read page by page during writing
+     *
+     * @param out output, it is not closed
+     * @throws IOException if writing failed
+     * @throws ResultTooLargeException if the tree has more rows or bytes than the limits
+     */
+    void writeTo(OutputStream out) throws IOException;
+}
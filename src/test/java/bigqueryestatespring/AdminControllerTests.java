@@ -0,0 +1,83 @@
+package bigqueryestatespring;
+
+import bigqueryestatespring.backend.QueryBackend;
+import bigqueryestatespring.cache.QueryKey;
+import bigqueryestatespring.cache.ResultCache;
+import bigqueryestatespring.cache.SingleFlight;
+import bigqueryestatespring.controllers.AdminController;
+import bigqueryestatespring.services.DataService;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+
+import java.util.Arrays;
+import java.util.Optional;
+
+import static bigqueryestatespring.exceptionMessages.ExceptionMessage.TOP_BORDER_UNDER_BOTTOM_BORDER;
+import static bigqueryestatespring.exceptionMessages.ExceptionMessage.UNKNOWN_HIERARCHY_COLUMN;
+import static bigqueryestatespring.services.PropertiesAttribute.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+
+@AutoConfigureMockMvc
+@ContextConfiguration(classes = AdminController.class)
+@WebMvcTest
+public class AdminControllerTests {
+    @Autowired
+    private MockMvc mockMvc;
+
+    @MockBean(name = "treeResultCache")
+    private ResultCache<?, ?> resultCache;
+
+    @MockBean(name = "treeSingleFlight")
+    private SingleFlight<?, ?> singleFlight;
+
+    @MockBean
+    private QueryBackend backend;
+
+    @MockBean
+    private DataService service;
+
+    @Test
+    public void estimatesQueryOfRequestedColumns() throws Exception {
+        QueryKey key = new QueryKey(Arrays.asList(STATE_NAME, OPERATION), PRICE, 10, 100);
+        when(backend.estimateBytes(key)).thenReturn(Optional.of(1024L));
+
+        MvcResult result = mockMvc.perform(get("/admin/estimate?bottom=10&top=100&columns=state_name,operation"))
+                .andReturn();
+
+        assertEquals(200, result.getResponse().getStatus());
+        assertEquals("1024", result.getResponse().getContentAsString());
+    }
+
+    @Test
+    public void estimatesWholeHierarchyByDefault() throws Exception {
+        QueryKey key = new QueryKey(HIERARCHY_COLUMNS, PRICE, 0, Integer.MAX_VALUE);
+        when(backend.estimateBytes(key)).thenReturn(Optional.of(2048L));
+
+        MvcResult result = mockMvc.perform(get("/admin/estimate")).andReturn();
+
+        assertEquals("2048", result.getResponse().getContentAsString());
+    }
+
+    @Test
+    public void rejectsInvalidParameters() throws Exception {
+        MvcResult range = mockMvc.perform(get("/admin/estimate?bottom=100&top=1")).andReturn();
+        MvcResult columns = mockMvc.perform(get("/admin/estimate?columns=unknown")).andReturn();
+
+        assertEquals(400, range.getResponse().getStatus());
+        assertEquals(TOP_BORDER_UNDER_BOTTOM_BORDER, range.getResponse().getErrorMessage());
+        assertEquals(400, columns.getResponse().getStatus());
+        assertEquals(UNKNOWN_HIERARCHY_COLUMN, columns.getResponse().getErrorMessage());
+        verify(backend, never()).estimateBytes(any());
+    }
+}
@@ -0,0 +1,171 @@
+package bigqueryestatespring;
+
+import bigqueryestatespring.metrics.EstatesMetrics;
+import bigqueryestatespring.metrics.TraceIdFilter;
+import bigqueryestatespring.services.AdmissionControl;
+import bigqueryestatespring.services.AdmissionRejectedException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.slf4j.MDC;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static bigqueryestatespring.services.AdmissionControl.Priority.BATCH;
+import static bigqueryestatespring.services.AdmissionControl.Priority.INTERACTIVE;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AdmissionControlTests {
+    private final MeterRegistry registry = new SimpleMeterRegistry();
+    private final EstatesMetrics metrics = new EstatesMetrics(registry);
+
+    @Test
+    public void startsInteractiveQueriesBeforeBatches() {
+        AdmissionControl admission = new AdmissionControl(1, 1, 10, 10, 1, Runnable::run, metrics);
+        List<String> started = new ArrayList<>();
+        CompletableFuture<String> first = new CompletableFuture<>();
+        CompletableFuture<String> second = new CompletableFuture<>();
+
+        admission.submit(INTERACTIVE, () -> {
+            started.add("first");
+            return first;
+        });
+        CompletableFuture<String> batch = admission.submit(BATCH, () -> {
+            started.add("batch");
+            return CompletableFuture.completedFuture("batch");
+        });
+        admission.submit(INTERACTIVE, () -> {
+            started.add("second");
+            return second;
+        });
+
+        assertEquals(1, admission.getInFlight());
+        assertEquals(1, admission.getQueued(BATCH));
+        first.complete("first");
+        assertEquals(2, started.size());
+        assertEquals("second", started.get(1));
+        second.complete("second");
+
+        assertEquals("batch", batch.join());
+        assertEquals(0, admission.getInFlight());
+        assertEquals(3, registry.get(EstatesMetrics.ADMISSION_WAIT_TIMER).timers().stream()
+                .mapToLong(timer -> timer.count()).sum());
+    }
+
+    @Test
+    public void rejectsWhenQueueIsFull() {
+        AdmissionControl admission = new AdmissionControl(2, 1, 1, 0, 5, Runnable::run, metrics);
+        CompletableFuture<String> running = new CompletableFuture<>();
+        admission.submit(BATCH, () -> running);
+
+        CompletableFuture<String> batch = admission.submit(BATCH, () -> CompletableFuture.completedFuture("batch"));
+        CompletableFuture<String> interactive = admission.submit(INTERACTIVE,
+                () -> CompletableFuture.completedFuture("interactive"));
+
+        ExecutionException ex = assertThrows(ExecutionException.class, batch::get);
+        AdmissionRejectedException rejection = (AdmissionRejectedException) ex.getCause();
+        assertEquals(BATCH, rejection.getPriority());
+        assertEquals(5, rejection.getRetryAfterSeconds());
+        assertEquals("interactive", interactive.join());
+        assertEquals(1, registry.get(EstatesMetrics.ADMISSION_REJECTED_COUNTER).tag("priority", "batch")
+                .counter().count());
+    }
+
+    @Test
+    public void releasesSlotOfFailedQuery() {
+        AdmissionControl admission = new AdmissionControl(1, 1, 0, 0, 1, Runnable::run, metrics);
+
+        CompletableFuture<String> failed = admission.submit(INTERACTIVE, () -> {
+            throw new IllegalStateException("failed");
+        });
+
+        assertTrue(failed.isCompletedExceptionally());
+        assertEquals(0, admission.getInFlight());
+        assertEquals("next", admission.submit(INTERACTIVE, () -> CompletableFuture.completedFuture("next")).join());
+    }
+
+    @Test
+    public void removesCancelledQueryFromQueue() {
+        AdmissionControl admission = new AdmissionControl(1, 1, 10, 10, 1, Runnable::run, metrics);
+        CompletableFuture<String> running = new CompletableFuture<>();
+        List<String> started = new ArrayList<>();
+        admission.submit(INTERACTIVE, () -> running);
+
+        CompletableFuture<String> waiting = admission.submit(INTERACTIVE, () -> {
+            started.add("waiting");
+            return new CompletableFuture<>();
+        });
+        waiting.cancel(true);
+
+        assertEquals(0, admission.getQueued(INTERACTIVE));
+        running.complete("running");
+        assertTrue(started.isEmpty());
+        assertEquals(0, admission.getInFlight());
+    }
+
+    @Test
+    public void cancelsRunningQuery() {
+        AdmissionControl admission = new AdmissionControl(1, 1, 10, 10, 1, Runnable::run, metrics);
+        CompletableFuture<String> running = new CompletableFuture<>();
+
+        admission.submit(INTERACTIVE, () -> running).cancel(true);
+
+        assertTrue(running.isCancelled());
+        assertEquals(0, admission.getInFlight());
+    }
+
+    @Test
+    public void startsQueuedQueryOnExecutorNotOnReleasingThread() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            AdmissionControl admission = new AdmissionControl(1, 1, 10, 10, 1, executor, metrics);
+            CompletableFuture<String> first = new CompletableFuture<>();
+            admission.submit(INTERACTIVE, () -> first);
+            CompletableFuture<Thread> second = admission.submit(INTERACTIVE,
+                    () -> CompletableFuture.completedFuture(Thread.currentThread()));
+
+            first.complete("first");
+
+            assertNotSame(Thread.currentThread(), second.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void keepsContextOfQueuedQuery() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            AdmissionControl admission = new AdmissionControl(1, 1, 10, 10, 1, executor, metrics);
+            CompletableFuture<String> first = new CompletableFuture<>();
+            admission.submit(INTERACTIVE, () -> first);
+            AtomicReference<String> traceId = new AtomicReference<>();
+
+            MDC.put(TraceIdFilter.TRACE_ID, "queued");
+            CompletableFuture<String> queued;
+            try {
+                queued = admission.submit(INTERACTIVE, () -> {
+                    traceId.set(MDC.get(TraceIdFilter.TRACE_ID));
+                    return CompletableFuture.completedFuture("queued");
+                });
+            } finally {
+                MDC.remove(TraceIdFilter.TRACE_ID);
+            }
+            // Slot is released by a thread without the context, as by the completion thread of the backend
+            CompletableFuture.runAsync(() -> first.complete("first"), executor).get(5, TimeUnit.SECONDS);
+
+            assertEquals("queued", queued.get(5, TimeUnit.SECONDS));
+            assertEquals("queued", traceId.get());
+            assertNull(executor.submit(() -> MDC.get(TraceIdFilter.TRACE_ID)).get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package bigqueryestatespring;
+
+import bigqueryestatespring.backend.BigQueryBackend;
+import bigqueryestatespring.backend.QueryBackend;
+import bigqueryestatespring.cache.QueryKey;
+import bigqueryestatespring.metrics.EstatesMetrics;
+import bigqueryestatespring.services.Aggregate;
+import bigqueryestatespring.services.JobPoller;
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.Job;
+import com.google.cloud.bigquery.JobInfo;
+import com.google.cloud.bigquery.JobStatistics;
+import com.google.cloud.bigquery.QueryJobConfiguration;
+import com.google.cloud.bigquery.QueryParameterValue;
+import com.google.cloud.bigquery.TableResult;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.jooq.SQLDialect;
+import org.jooq.impl.DSL;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+
+import static bigqueryestatespring.services.PropertiesAttribute.*;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+public class BigQueryBackendTests {
+    private static QueryKey createKey(int bottom, int top) {
+        return new QueryKey(Arrays.asList(OPERATION, PROPERTY_TYPE), PRICE, bottom, top);
+    }
+
+    private static BigQueryBackend createBackend(BigQuery bigQuery, boolean useQueryCache) {
+        return new BigQueryBackend(bigQuery, DSL.using(SQLDialect.MYSQL), null, 0, useQueryCache, false,
+                new EstatesMetrics(new SimpleMeterRegistry()));
+    }
+
+    @Test
+    public void rendersSameSqlForAllRanges() {
+        BigQueryBackend backend = createBackend(null, true);
+
+        QueryJobConfiguration first = backend.getQueryJobConfiguration(createKey(0, 100));
+        QueryJobConfiguration second = backend.getQueryJobConfiguration(createKey(50, 70));
+
+        assertSame(first.getQuery(), second.getQuery());
+        assertTrue(first.getQuery().contains("@bottom"));
+        assertTrue(first.getQuery().contains("@top"));
+        assertEquals(QueryParameterValue.int64(50), second.getNamedParameters().get("bottom"));
+        assertEquals(QueryParameterValue.int64(70), second.getNamedParameters().get("top"));
+        assertTrue(second.useQueryCache());
+    }
+
+    @Test
+    public void selectsRequestedAggregatesInOneQuery() {
+        QueryKey key = new QueryKey(Arrays.asList(OPERATION, PROPERTY_TYPE), PRICE, 0, 100)
+                .withAggregates(EnumSet.of(Aggregate.MIN, Aggregate.APPROX_QUANTILES));
+
+        String query = createBackend(null, true).getQueryJobConfiguration(key).getQuery();
+
+        assertTrue(query.contains(Aggregate.AVG.getColumn(PRICE)));
+        assertTrue(query.contains(Aggregate.COUNT.getColumn(PRICE)));
+        assertTrue(query.contains(Aggregate.MIN.getColumn(PRICE)));
+        assertTrue(query.contains("approx_quantiles"));
+        assertFalse(query.contains(Aggregate.MAX.getColumn(PRICE)));
+    }
+
+    @Test
+    public void samplesTableWithMarginOfAverage() {
+        BigQueryBackend backend = createBackend(null, true);
+
+        String sampled = backend.getQueryJobConfiguration(createKey(0, 100).withSamplePercent(1.5)).getQuery();
+        String exact = backend.getQueryJobConfiguration(createKey(0, 100)).getQuery();
+
+        assertTrue(sampled.contains("tablesample system (1.5 percent)"));
+        assertTrue(sampled.contains("stddev_samp"));
+        assertTrue(sampled.contains(Aggregate.MARGIN.getColumn(PRICE)));
+        assertFalse(exact.contains("tablesample"));
+        assertFalse(exact.contains(Aggregate.MARGIN.getColumn(PRICE)));
+    }
+
+    @Test
+    public void readsMonthlyTableOfKey() {
+        BigQueryBackend backend = createBackend(null, true);
+
+        String monthly = backend.getQueryJobConfiguration(createKey(0, 100).withMonth(YearMonth.of(2016, 3)))
+                .getQuery();
+        String byDefault = backend.getQueryJobConfiguration(createKey(0, 100)).getQuery();
+
+        assertTrue(monthly.contains(BigQueryBackend.DEFAULT_TABLE_PREFIX + "201603`"));
+        assertTrue(byDefault.contains(BigQueryBackend.DEFAULT_TABLE_PREFIX + "201501`"));
+    }
+
+    @Test
+    public void groupsByRollupInOneQuery() {
+        QueryKey key = new QueryKey(Arrays.asList(OPERATION, PROPERTY_TYPE), PRICE, 0, 100).withRollup(true);
+
+        String query = createBackend(null, true).getQueryJobConfiguration(key).getQuery();
+
+        assertTrue(query.contains("rollup(" + OPERATION + ", " + PROPERTY_TYPE + ")"));
+        assertTrue(query.contains("grouping(" + OPERATION + ")"));
+        assertTrue(query.contains(QueryBackend.ROLLUP_LEVEL));
+    }
+
+    @Test
+    public void rendersSameSqlForAllPaths() {
+        BigQueryBackend backend = createBackend(null, true);
+        List<String> columnNames = Collections.singletonList(PROPERTY_TYPE);
+
+        QueryJobConfiguration rent = backend.getQueryJobConfiguration(new QueryKey(columnNames, PRICE, 0, 100)
+                .withPath(Collections.singletonMap(OPERATION, "rent")));
+        QueryJobConfiguration sell = backend.getQueryJobConfiguration(new QueryKey(columnNames, PRICE, 0, 100)
+                .withPath(Collections.singletonMap(OPERATION, "sell")));
+
+        assertSame(rent.getQuery(), sell.getQuery());
+        assertTrue(rent.getQuery().contains(OPERATION + " = @path_0"));
+        assertEquals(QueryParameterValue.string("sell"), sell.getNamedParameters().get("path_0"));
+    }
+
+    @Test
+    public void passesQueryCacheSetting() {
+        assertFalse(createBackend(null, false).getQueryJobConfiguration(createKey(0, 100)).useQueryCache());
+    }
+
+    @Test
+    public void queriesAllRangesByOneJob() {
+        BigQuery bigQuery = mock(BigQuery.class);
+        JobPoller jobPoller = mock(JobPoller.class);
+        when(jobPoller.poll(any())).thenReturn(new CompletableFuture<>());
+        BigQueryBackend backend = new BigQueryBackend(bigQuery, DSL.using(SQLDialect.MYSQL), jobPoller, 0, true,
+                false, new EstatesMetrics(new SimpleMeterRegistry()));
+
+        backend.queryRanges(Arrays.asList(createKey(0, 50), createKey(50, 100), createKey(100, 200)));
+
+        ArgumentCaptor<JobInfo> jobInfo = ArgumentCaptor.forClass(JobInfo.class);
+        verify(bigQuery, times(1)).create(jobInfo.capture());
+        QueryJobConfiguration queryConfig = jobInfo.getValue().getConfiguration();
+        assertTrue(queryConfig.getQuery().contains("@bottoms[offset(range_index)]"));
+        assertTrue(queryConfig.getQuery().contains("@tops[offset(range_index)]"));
+        assertEquals(QueryParameterValue.array(new Long[]{0L, 50L, 100L}, Long.class),
+                queryConfig.getNamedParameters().get("bottoms"));
+        assertEquals(QueryParameterValue.array(new Long[]{50L, 100L, 200L}, Long.class),
+                queryConfig.getNamedParameters().get("tops"));
+    }
+
+    @Test
+    public void estimatesBytesByDryRun() {
+        BigQuery bigQuery = mock(BigQuery.class);
+        Job job = mock(Job.class);
+        JobStatistics.QueryStatistics statistics = mock(JobStatistics.QueryStatistics.class);
+        when(bigQuery.create(any(JobInfo.class))).thenReturn(job);
+        when(job.getStatistics()).thenReturn(statistics);
+        when(statistics.getTotalBytesProcessed()).thenReturn(4096L);
+
+        assertEquals(Optional.of(4096L), createBackend(bigQuery, true).estimateBytes(createKey(0, 100)));
+
+        ArgumentCaptor<JobInfo> jobInfo = ArgumentCaptor.forClass(JobInfo.class);
+        verify(bigQuery).create(jobInfo.capture());
+        assertTrue(((QueryJobConfiguration) jobInfo.getValue().getConfiguration()).dryRun());
+    }
+
+    @Test
+    public void takesFirstHedgedJobAndCancelsTheOther() {
+        BigQuery bigQuery = mock(BigQuery.class);
+        JobPoller jobPoller = mock(JobPoller.class);
+        Job primaryJob = mock(Job.class);
+        Job hedgedJob = mock(Job.class);
+        CompletableFuture<TableResult> primary = new CompletableFuture<>();
+        CompletableFuture<TableResult> hedged = new CompletableFuture<>();
+        TableResult tableResult = mock(TableResult.class);
+        when(tableResult.getTotalRows()).thenReturn(3L);
+        when(bigQuery.create(any(JobInfo.class))).thenReturn(primaryJob, hedgedJob);
+        when(jobPoller.poll(primaryJob)).thenReturn(primary);
+        when(jobPoller.poll(hedgedJob)).thenReturn(hedged);
+        ArgumentCaptor<Runnable> hedge = ArgumentCaptor.forClass(Runnable.class);
+        doReturn(mock(ScheduledFuture.class)).when(jobPoller).schedule(hedge.capture(), anyLong());
+        List<Runnable> executed = new ArrayList<>();
+
+        CompletableFuture<Optional<TableResult>> result = createHedgedBackend(bigQuery, jobPoller, executed::add)
+                .query(createKey(0, 100));
+        hedge.getValue().run();
+
+        // Poller only hands the hedge to the executor
+        verify(bigQuery, times(1)).create(any(JobInfo.class));
+        executed.forEach(Runnable::run);
+        verify(bigQuery, times(2)).create(any(JobInfo.class));
+        hedged.complete(tableResult);
+
+        assertSame(tableResult, result.join().get());
+        assertTrue(primary.isCancelled());
+    }
+
+    @Test
+    public void skipsHedgeWhenFirstJobFinishesEarly() {
+        BigQuery bigQuery = mock(BigQuery.class);
+        JobPoller jobPoller = mock(JobPoller.class);
+        CompletableFuture<TableResult> primary = new CompletableFuture<>();
+        TableResult tableResult = mock(TableResult.class);
+        when(tableResult.getTotalRows()).thenReturn(3L);
+        when(bigQuery.create(any(JobInfo.class))).thenReturn(mock(Job.class));
+        when(jobPoller.poll(any())).thenReturn(primary);
+        ScheduledFuture<?> scheduled = mock(ScheduledFuture.class);
+        ArgumentCaptor<Runnable> hedge = ArgumentCaptor.forClass(Runnable.class);
+        doReturn(scheduled).when(jobPoller).schedule(hedge.capture(), anyLong());
+
+        CompletableFuture<Optional<TableResult>> result = createHedgedBackend(bigQuery, jobPoller, Runnable::run)
+                .query(createKey(0, 100));
+        primary.complete(tableResult);
+        hedge.getValue().run();
+
+        assertSame(tableResult, result.join().get());
+        verify(scheduled).cancel(false);
+        verify(bigQuery, times(1)).create(any(JobInfo.class));
+    }
+
+    private static BigQueryBackend createHedgedBackend(BigQuery bigQuery, JobPoller jobPoller, Executor executor) {
+        return new BigQueryBackend(bigQuery, DSL.using(SQLDialect.MYSQL), jobPoller, 0, true, false, 100, executor,
+                BigQueryBackend.DEFAULT_TABLE_PREFIX, BigQueryBackend.DEFAULT_MONTH,
+                new EstatesMetrics(new SimpleMeterRegistry()));
+    }
+}
@@ -0,0 +1,50 @@
+package bigqueryestatespring;
+
+import bigqueryestatespring.cache.ConsistentHashRing;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ConsistentHashRingTests {
+    private static final List<String> PEERS = Arrays.asList(
+            "http://localhost:8080", "http://localhost:8081", "http://localhost:8082");
+
+    private static byte[] key(int i) {
+        return ("key" + i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void givesSameDistinctOwnersOnEveryInstance() {
+        ConsistentHashRing ring = new ConsistentHashRing(PEERS, 100);
+        ConsistentHashRing otherRing = new ConsistentHashRing(PEERS, 100);
+        for (int i = 0; i < 100; i++) {
+            List<String> owners = ring.getOwners(key(i), 2);
+            assertEquals(2, owners.size());
+            assertEquals(2, new HashSet<>(owners).size());
+            assertEquals(owners, otherRing.getOwners(key(i), 2));
+        }
+        assertEquals(3, ring.getOwners(key(0), 5).size());
+    }
+
+    @Test
+    public void movesOnlyKeysOfAddedPeer() {
+        ConsistentHashRing ring = new ConsistentHashRing(PEERS, 100);
+        ConsistentHashRing grownRing = new ConsistentHashRing(Arrays.asList(
+                "http://localhost:8080", "http://localhost:8081", "http://localhost:8082", "http://localhost:8083"), 100);
+        int moved = 0;
+        for (int i = 0; i < 1000; i++) {
+            String owner = ring.getOwners(key(i), 1).get(0);
+            String grownOwner = grownRing.getOwners(key(i), 1).get(0);
+            if (!owner.equals(grownOwner)) {
+                assertEquals("http://localhost:8083", grownOwner);
+                moved++;
+            }
+        }
+        assertTrue(moved > 100 && moved < 400, "moved " + moved);
+    }
+}
@@ -0,0 +1,130 @@
+package bigqueryestatespring;
+
+import bigqueryestatespring.cache.DiskTreeStore;
+import bigqueryestatespring.cache.QueryKey;
+import bigqueryestatespring.nodes.AggregationNode;
+import bigqueryestatespring.nodes.EstatesTree;
+import bigqueryestatespring.nodes.TreeBuilder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static bigqueryestatespring.services.PropertiesAttribute.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DiskTreeStoreTests {
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final AtomicLong now = new AtomicLong();
+
+    @TempDir
+    Path directory;
+
+    private DiskTreeStore open(long maxBytes) throws Exception {
+        return open(maxBytes, "v1");
+    }
+
+    private DiskTreeStore open(long maxBytes, String datasetVersion) throws Exception {
+        return DiskTreeStore.open(directory.resolve("trees.bin"), maxBytes, 1000, datasetVersion, now::get);
+    }
+
+    private static QueryKey key(int bottom, int top) {
+        return new QueryKey(Arrays.asList(OPERATION, PROPERTY_TYPE), PRICE, bottom, top);
+    }
+
+    private static EstatesTree tree(double average) {
+        return new EstatesTree(new TreeBuilder()
+                .addBranch(Arrays.asList("rent", "house"), new AggregationNode(average, 2))
+                .addBranch(Arrays.asList("sell", "apartment"), new AggregationNode(average * 2, 1))
+                .build());
+    }
+
+    @Test
+    public void keepsTreesAfterReopen() throws Exception {
+        DiskTreeStore store = open(1 << 20);
+        store.put(key(0, 10), tree(1));
+        store.put(key(0, 20), tree(2));
+        store.put(key(0, 10), tree(3));
+        store.close();
+
+        DiskTreeStore reopened = open(1 << 20);
+
+        assertEquals(2, reopened.size());
+        assertEquals(mapper.writeValueAsString(tree(3)), mapper.writeValueAsString(reopened.get(key(0, 10)).get()));
+        assertEquals(mapper.writeValueAsString(tree(2)), mapper.writeValueAsString(reopened.get(key(0, 20)).get()));
+        assertFalse(reopened.get(key(0, 30)).isPresent());
+        reopened.close();
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedOverLimit() throws Exception {
+        DiskTreeStore store = open(1 << 20);
+        store.put(key(0, 1), tree(1));
+        long treeBytes = store.getLiveBytes();
+        store.close();
+
+        store = open(2 * treeBytes);
+        store.put(key(0, 2), tree(2));
+        store.get(key(0, 1));
+        store.put(key(0, 3), tree(3));
+        store.close();
+
+        DiskTreeStore reopened = open(2 * treeBytes);
+        assertTrue(reopened.get(key(0, 1)).isPresent());
+        assertFalse(reopened.get(key(0, 2)).isPresent());
+        assertTrue(reopened.get(key(0, 3)).isPresent());
+        reopened.close();
+    }
+
+    @Test
+    public void expiresTreesAfterTtl() throws Exception {
+        DiskTreeStore store = open(1 << 20);
+        store.put(key(0, 10), tree(1));
+        now.addAndGet(1000);
+
+        assertFalse(store.get(key(0, 10)).isPresent());
+        assertEquals(0, store.size());
+        store.close();
+    }
+
+    @Test
+    public void dropsTornRecordAtTheEnd() throws Exception {
+        DiskTreeStore store = open(1 << 20);
+        store.put(key(0, 10), tree(1));
+        store.put(key(0, 20), tree(2));
+        store.close();
+        try (FileChannel file = FileChannel.open(directory.resolve("trees.bin"), StandardOpenOption.WRITE)) {
+            file.truncate(file.size() - 3);
+        }
+
+        DiskTreeStore reopened = open(1 << 20);
+        reopened.put(key(0, 30), tree(3));
+
+        assertTrue(reopened.get(key(0, 10)).isPresent());
+        assertFalse(reopened.get(key(0, 20)).isPresent());
+        assertTrue(reopened.get(key(0, 30)).isPresent());
+        reopened.close();
+    }
+
+    @Test
+    public void clearsTreesOfOtherDatasetVersion() throws Exception {
+        DiskTreeStore store = open(1 << 20);
+        store.put(key(0, 10), tree(1));
+        store.close();
+
+        DiskTreeStore reopened = open(1 << 20, "v2");
+        assertEquals(0, reopened.size());
+        assertFalse(reopened.get(key(0, 10)).isPresent());
+        reopened.put(key(0, 20), tree(2));
+        reopened.close();
+
+        DiskTreeStore sameVersion = open(1 << 20, "v2");
+        assertTrue(sameVersion.get(key(0, 20)).isPresent());
+        sameVersion.close();
+    }
+}
@@ -0,0 +1,229 @@
+package bigqueryestatespring;
+
+import bigqueryestatespring.backend.ColumnarTable;
+import bigqueryestatespring.backend.CsvTableLoader;
+import bigqueryestatespring.backend.EmbeddedBackend;
+import bigqueryestatespring.backend.QueryBackend;
+import bigqueryestatespring.cache.QueryKey;
+import bigqueryestatespring.cube.SurfaceCube;
+import bigqueryestatespring.services.Aggregate;
+import com.google.cloud.bigquery.FieldValue;
+import com.google.cloud.bigquery.FieldValueList;
+import com.google.cloud.bigquery.TableResult;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import static bigqueryestatespring.services.PropertiesAttribute.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EmbeddedBackendTests {
+    private static ColumnarTable table;
+    private static QueryBackend backend;
+
+    @BeforeAll
+    public static void loadTable() throws Exception {
+        CsvTableLoader loader = new CsvTableLoader(
+                Arrays.asList(OPERATION, PROPERTY_TYPE, COUNTRY_NAME, STATE_NAME),
+                Arrays.asList(PRICE, SURFACE_COVERED));
+        try (Reader reader = new InputStreamReader(
+                EmbeddedBackendTests.class.getResourceAsStream("/estates-sample.csv"), StandardCharsets.UTF_8)) {
+            table = loader.load(reader);
+        }
+        backend = new EmbeddedBackend(table, new ForkJoinPool(2), 0);
+    }
+
+    private static Map<List<String>, Double> averages(TableResult result, List<String> columnNames) {
+        Map<List<String>, Double> averages = new HashMap<>();
+        for (FieldValueList row : result.iterateAll()) {
+            List<String> group = new ArrayList<>();
+            for (String columnName : columnNames) {
+                group.add(row.get(columnName).getStringValue());
+            }
+            averages.put(group, row.get(QueryBackend.AVG_PREFIX + PRICE).getDoubleValue());
+        }
+        return averages;
+    }
+
+    @Test
+    public void loadsQuotedMultilineCsv() {
+        assertEquals(6, table.getRowCount());
+        assertEquals(3, table.getStringColumn(STATE_NAME).getDictionarySize());
+        assertTrue(Double.isNaN(table.getNumericColumn(PRICE).get(4)));
+        assertTrue(Double.isNaN(table.getNumericColumn(SURFACE_COVERED).get(5)));
+    }
+
+    @Test
+    public void groupsAndAveragesRowsInSurfaceRange() {
+        List<String> columnNames = Arrays.asList(PROPERTY_TYPE, STATE_NAME);
+        TableResult result = backend.query(new QueryKey(columnNames, PRICE, 0, 100)).join().get();
+
+        Map<List<String>, Double> expected = new HashMap<>();
+        expected.put(Arrays.asList("apartment", "Capital Federal"), 2000.0);
+        expected.put(Arrays.asList("apartment", "Santa Fe"), 800.0);
+        assertEquals(expected, averages(result, columnNames));
+    }
+
+    @Test
+    public void answersOverlappingRangesByOneScan() {
+        List<String> columnNames = Collections.singletonList(PROPERTY_TYPE);
+        TableResult result = backend.queryRanges(Arrays.asList(
+                new QueryKey(columnNames, PRICE, 0, 50),
+                new QueryKey(columnNames, PRICE, 40, 200),
+                new QueryKey(columnNames, PRICE, 300, 400))).join().get();
+
+        Map<List<String>, Double> averages = new HashMap<>();
+        for (FieldValueList row : result.iterateAll()) {
+            averages.put(Arrays.asList(row.get(QueryBackend.RANGE_INDEX).getStringValue(),
+                    row.get(PROPERTY_TYPE).getStringValue()), row.get(QueryBackend.AVG_PREFIX + PRICE).getDoubleValue());
+        }
+        Map<List<String>, Double> expected = new HashMap<>();
+        expected.put(Arrays.asList("0", "apartment"), 900.0);
+        expected.put(Arrays.asList("1", "apartment"), 2000.0);
+        expected.put(Arrays.asList("1", "house"), 5000.0);
+        assertEquals(expected, averages);
+    }
+
+    @Test
+    public void skipsGroupsWithoutAggregateValues() {
+        List<String> columnNames = Collections.singletonList(PROPERTY_TYPE);
+        TableResult result = backend.query(new QueryKey(columnNames, PRICE, 100, 130)).join()
+                .orElse(null);
+
+        assertNull(result);
+    }
+
+    @Test
+    public void answersWithoutColumns() {
+        TableResult result = backend.query(new QueryKey(null, PRICE, 0, Integer.MAX_VALUE)).join().get();
+
+        assertEquals(Collections.singletonMap(Collections.emptyList(), 9800.0 / 4),
+                averages(result, Collections.emptyList()));
+    }
+
+    @Test
+    public void buildsCubeEqualToDirectQuery() {
+        List<String> columnNames = Arrays.asList(OPERATION, PROPERTY_TYPE);
+        QueryKey key = new QueryKey(columnNames, PRICE, 30, 200);
+        SurfaceCube cube = SurfaceCube.fromRows(backend.queryCube(key).join().get().iterateAll(), columnNames, PRICE);
+        Map<List<String>, Double> fromCube = new HashMap<>();
+
+        cube.query(30, 200, (group, sum, count) -> fromCube.put(group, sum / count));
+
+        assertEquals(averages(backend.query(key).join().get(), columnNames), fromCube);
+    }
+
+    @Test
+    public void keepsEverySurfaceWithoutBuckets() {
+        List<String> columnNames = Arrays.asList(OPERATION, PROPERTY_TYPE);
+        // Borders are not multiples of any bucket width, still zero width cube answers them exactly
+        QueryKey key = new QueryKey(columnNames, PRICE, 36, 59);
+        TableResult rows = backend.queryCube(key).join().get();
+        SurfaceCube cube = SurfaceCube.fromRows(rows.iterateAll(), columnNames, PRICE);
+        Map<List<String>, Double> fromCube = new HashMap<>();
+
+        cube.query(36, 59, (group, sum, count) -> fromCube.put(group, sum / count));
+
+        // One row per distinct surface of a group: apartments 35, 40, 60 and houses 120, 150
+        assertEquals(5, rows.getTotalRows());
+        assertEquals(Collections.singletonMap(Arrays.asList("rent", "apartment"), 1000.0), fromCube);
+        assertEquals(averages(backend.query(key).join().get(), columnNames), fromCube);
+    }
+
+    @Test
+    public void computesAllAggregatesByOneScan() {
+        QueryKey key = new QueryKey(Collections.singletonList(PROPERTY_TYPE), PRICE, 0, Integer.MAX_VALUE)
+                .withAggregates(EnumSet.allOf(Aggregate.class));
+        FieldValueList apartment = null;
+        for (FieldValueList row : backend.query(key).join().get().iterateAll()) {
+            if ("apartment".equals(row.get(PROPERTY_TYPE).getStringValue())) {
+                apartment = row;
+            }
+        }
+
+        assertNotNull(apartment);
+        assertEquals(1600.0, apartment.get(Aggregate.AVG.getColumn(PRICE)).getDoubleValue());
+        assertEquals(3, apartment.get(Aggregate.COUNT.getColumn(PRICE)).getLongValue());
+        assertEquals(800.0, apartment.get(Aggregate.MIN.getColumn(PRICE)).getDoubleValue());
+        assertEquals(3000.0, apartment.get(Aggregate.MAX.getColumn(PRICE)).getDoubleValue());
+        assertEquals(4800.0, apartment.get(Aggregate.SUM.getColumn(PRICE)).getDoubleValue());
+        List<Double> quantiles = new ArrayList<>();
+        for (FieldValue value : apartment.get(Aggregate.APPROX_QUANTILES.getColumn(PRICE)).getRepeatedValue()) {
+            quantiles.add(value.getDoubleValue());
+        }
+        assertEquals(Arrays.asList(800.0, 800.0, 1000.0, 1000.0, 3000.0), quantiles);
+        assertEquals(Aggregate.MARGIN_Z * Math.sqrt(1480000.0 / 3),
+                apartment.get(Aggregate.MARGIN.getColumn(PRICE)).getDoubleValue(), 1e-6);
+    }
+
+    @Test
+    public void readsSampleOfRows() {
+        QueryKey key = new QueryKey(Collections.singletonList(PROPERTY_TYPE), PRICE, 0, Integer.MAX_VALUE);
+
+        long all = 0;
+        for (FieldValueList row : backend.query(key).join().get().iterateAll()) {
+            all += row.get(Aggregate.COUNT.getColumn(PRICE)).getLongValue();
+        }
+        long sampled = 0;
+        for (FieldValueList row : backend.query(key.withSamplePercent(50)).join().get().iterateAll()) {
+            sampled += row.get(Aggregate.COUNT.getColumn(PRICE)).getLongValue();
+            assertFalse(row.get(Aggregate.MARGIN.getColumn(PRICE)).isNull());
+        }
+
+        assertTrue(sampled > 0 && sampled < all);
+        assertFalse(backend.query(key.withSamplePercent(0)).join().isPresent());
+    }
+
+    @Test
+    public void addsSubtotalsOfRollup() {
+        List<String> columnNames = Arrays.asList(OPERATION, PROPERTY_TYPE);
+        QueryKey key = new QueryKey(columnNames, PRICE, 0, Integer.MAX_VALUE).withRollup(true);
+
+        Map<List<String>, Double> averages = new HashMap<>();
+        for (FieldValueList row : backend.query(key).join().get().iterateAll()) {
+            List<String> group = new ArrayList<>();
+            group.add(row.get(QueryBackend.ROLLUP_LEVEL).getStringValue());
+            for (String columnName : columnNames) {
+                group.add(row.get(columnName).isNull() ? null : row.get(columnName).getStringValue());
+            }
+            averages.put(group, row.get(Aggregate.AVG.getColumn(PRICE)).getDoubleValue());
+        }
+        Map<List<String>, Double> expected = new HashMap<>();
+        expected.put(Arrays.asList("2", "rent", "apartment"), 1600.0);
+        expected.put(Arrays.asList("2", "rent", "house"), 5000.0);
+        expected.put(Arrays.asList("1", "rent", null), 9800.0 / 4);
+        expected.put(Arrays.asList("0", null, null), 9800.0 / 4);
+        assertEquals(expected, averages);
+    }
+
+    @Test
+    public void restrictsRowsToPath() {
+        List<String> columnNames = Collections.singletonList(STATE_NAME);
+        QueryKey key = new QueryKey(columnNames, PRICE, 0, Integer.MAX_VALUE)
+                .withPath(Collections.singletonMap(PROPERTY_TYPE, "house"));
+        QueryKey unknownValue = new QueryKey(columnNames, PRICE, 0, Integer.MAX_VALUE)
+                .withPath(Collections.singletonMap(PROPERTY_TYPE, "castle"));
+
+        assertEquals(Collections.singletonMap(Collections.singletonList("Bs.As. G.B.A. Zona Norte"), 5000.0),
+                averages(backend.query(key).join().get(), columnNames));
+        assertFalse(backend.query(unknownValue).join().isPresent());
+    }
+
+    @Test
+    public void failsQueryWithUnknownColumn() {
+        QueryKey key = new QueryKey(Collections.singletonList("unknown"), PRICE, 0, 100);
+
+        assertFalse(backend.query(key).join().isPresent());
+    }
+}
@@ -0,0 +1,95 @@
+package bigqueryestatespring;
+
+import bigqueryestatespring.configurations.EstatesConfiguration;
+import bigqueryestatespring.controllers.EstatesController;
+import bigqueryestatespring.services.EstatesService;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+
+@AutoConfigureMockMvc
+@ContextConfiguration(classes = {EstatesConfiguration.class, EstatesService.class, EstatesController.class})
+@WebMvcTest(properties = {
+        "estates.backend=embedded",
+        "estates.response.gzip-min-bytes=0",
+        "estates.embedded.path=src/test/resources/estates-sample.csv"
+})
+public class EmbeddedEstatesControllerTests {
+    private static final String resourceUrl = "/estates?columns=operation,property_type&bottom=0&top=100";
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    private MvcResult perform(MockHttpServletRequestBuilder request) throws Exception {
+        MvcResult result = mockMvc.perform(request).andReturn();
+        return result.getRequest().isAsyncStarted()
+                ? mockMvc.perform(asyncDispatch(result)).andReturn()
+                : result;
+    }
+
+    @Test
+    public void returnsNotModifiedForMatchingEntityTag() throws Exception {
+        MvcResult first = perform(get(resourceUrl));
+        String entityTag = first.getResponse().getHeader(HttpHeaders.ETAG);
+        assertEquals(200, first.getResponse().getStatus());
+        assertNotNull(entityTag);
+
+        MvcResult strong = perform(get(resourceUrl).header(HttpHeaders.IF_NONE_MATCH, entityTag));
+        assertEquals(304, strong.getResponse().getStatus());
+        assertEquals(entityTag, strong.getResponse().getHeader(HttpHeaders.ETAG));
+        assertEquals(0, strong.getResponse().getContentAsByteArray().length);
+
+        MvcResult weak = perform(get(resourceUrl).header(HttpHeaders.IF_NONE_MATCH, "\"other\", W/" + entityTag));
+        assertEquals(304, weak.getResponse().getStatus());
+
+        MvcResult other = perform(get(resourceUrl).header(HttpHeaders.IF_NONE_MATCH, "\"other\""));
+        assertEquals(200, other.getResponse().getStatus());
+    }
+
+    @Test
+    public void buildsTreeForWildcardEntityTag() throws Exception {
+        MvcResult result = perform(get(resourceUrl).header(HttpHeaders.IF_NONE_MATCH, "*"));
+
+        assertEquals(200, result.getResponse().getStatus());
+    }
+
+    @Test
+    public void negotiatesFormatAndEncoding() throws Exception {
+        MvcResult cbor = perform(get(resourceUrl)
+                .header(HttpHeaders.ACCEPT, "application/json;q=0.5, application/cbor"));
+        assertEquals(200, cbor.getResponse().getStatus());
+        assertEquals("application/cbor", cbor.getResponse().getContentType());
+        assertEquals(HttpHeaders.ACCEPT + ", " + HttpHeaders.ACCEPT_ENCODING,
+                cbor.getResponse().getHeader(HttpHeaders.VARY));
+
+        MvcResult gzipped = perform(get(resourceUrl).header(HttpHeaders.ACCEPT_ENCODING, "br, gzip"));
+        assertEquals("gzip", gzipped.getResponse().getHeader(HttpHeaders.CONTENT_ENCODING));
+        assertEquals(gzipped.getResponse().getHeader(HttpHeaders.ETAG), perform(get(resourceUrl)
+                .header(HttpHeaders.ACCEPT_ENCODING, "gzip")).getResponse().getHeader(HttpHeaders.ETAG));
+        assertNotEquals(gzipped.getResponse().getHeader(HttpHeaders.ETAG),
+                perform(get(resourceUrl)).getResponse().getHeader(HttpHeaders.ETAG));
+
+        MvcResult unsupported = perform(get(resourceUrl).header(HttpHeaders.ACCEPT, "text/csv"));
+        assertEquals(406, unsupported.getResponse().getStatus());
+    }
+
+    @Test
+    public void rejectsInvalidMonths() throws Exception {
+        assertEquals(400, perform(get(resourceUrl + "&from=2015-03&to=2015-01")).getResponse().getStatus());
+        assertEquals(400, perform(get(resourceUrl + "&from=2015-01")).getResponse().getStatus());
+        assertEquals(400, perform(get(resourceUrl + "&from=2015-01&to=2015-03&approximate=true"))
+                .getResponse().getStatus());
+    }
+}
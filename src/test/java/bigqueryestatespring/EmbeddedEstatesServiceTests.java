@@ -0,0 +1,240 @@
+package bigqueryestatespring;
+
+import bigqueryestatespring.configurations.EstatesConfiguration;
+import bigqueryestatespring.nodes.AggregationNode;
+import bigqueryestatespring.nodes.EncodedTree;
+import bigqueryestatespring.services.Aggregate;
+import bigqueryestatespring.services.DataService;
+import bigqueryestatespring.nodes.EstatesTree;
+import bigqueryestatespring.services.EstatesService;
+import bigqueryestatespring.services.MonthRange;
+import bigqueryestatespring.services.SurfaceRange;
+import bigqueryestatespring.services.TreeFormat;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ContextConfiguration;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import static bigqueryestatespring.services.PropertiesAttribute.*;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@ContextConfiguration(classes = {EstatesConfiguration.class, EstatesService.class})
+@SpringBootTest(properties = {
+        "estates.backend=embedded",
+        "estates.response.gzip-min-bytes=0",
+        "estates.approximate.sample-percent=50",
+        "estates.embedded.path=src/test/resources/estates-sample.csv",
+        "estates.embedded.monthly-paths=2015-01=src/test/resources/estates-sample.csv,"
+                + "2015-02=src/test/resources/estates-sample.csv"
+})
+public class EmbeddedEstatesServiceTests {
+    private final ObjectMapper mapper = new ObjectMapper();
+    private DataService service;
+
+    @Autowired
+    public void setService(DataService service) {
+        this.service = service;
+    }
+
+    @Test
+    public void getEstatesTestWithCorrectParameters() {
+        List<String> columnNames = Arrays.asList(OPERATION, PROPERTY_TYPE, COUNTRY_NAME, STATE_NAME);
+        JsonNode jsonNode = service.getData(columnNames, PRICE, 0, 100).get().get(0);
+
+        for (int i = 0; i < columnNames.size(); i++) {
+            jsonNode = jsonNode.get("children").get(0);
+        }
+
+        assertEquals(2000.0, jsonNode.get(PRICE).asDouble());
+    }
+
+    @Test
+    public void getsTreesOfBatchInOrderOfRanges() throws Exception {
+        List<String> columnNames = Arrays.asList(OPERATION, PROPERTY_TYPE);
+        List<Optional<EstatesTree>> trees = service.getTreesAsync(columnNames, PRICE, Aggregate.DEFAULT, false, Arrays.asList(
+                new SurfaceRange(0, 50), new SurfaceRange(300, 400), new SurfaceRange(40, 200)))
+                .get(5, TimeUnit.SECONDS);
+
+        assertEquals(3, trees.size());
+        assertEquals(mapper.valueToTree(service.getTree(columnNames, PRICE, 0, 50).get()),
+                mapper.valueToTree(trees.get(0).get()));
+        assertFalse(trees.get(1).isPresent());
+        assertEquals(mapper.valueToTree(service.getTree(columnNames, PRICE, 40, 200).get()),
+                mapper.valueToTree(trees.get(2).get()));
+    }
+
+    @Test
+    public void carriesRequestedAggregatesOnLeaves() throws Exception {
+        JsonNode tree = mapper.valueToTree(service.getTreeAsync(Collections.singletonList(PROPERTY_TYPE), PRICE,
+                EnumSet.of(Aggregate.MIN, Aggregate.MAX, Aggregate.APPROX_QUANTILES), false, 0, 100)
+                .get(5, TimeUnit.SECONDS).get());
+        JsonNode leaf = null;
+        for (JsonNode node : tree) {
+            if ("apartment".equals(node.get("data").asText())) {
+                leaf = node.get("children").get(0);
+            }
+        }
+
+        assertEquals(1600.0, leaf.get(PRICE).asDouble());
+        assertEquals(800.0, leaf.get(Aggregate.MIN_FIELD).asDouble());
+        assertEquals(3000.0, leaf.get(Aggregate.MAX_FIELD).asDouble());
+        assertEquals(Aggregate.QUANTILE_PARTS + 1, leaf.get(Aggregate.QUANTILES_FIELD).size());
+        assertFalse(leaf.has(Aggregate.SUM_FIELD));
+    }
+
+    @Test
+    public void attachesSubtotalsToInnerNodes() throws Exception {
+        JsonNode tree = mapper.valueToTree(service.getTreeAsync(Arrays.asList(OPERATION, PROPERTY_TYPE), PRICE,
+                Aggregate.DEFAULT, true, 0, 200).get(5, TimeUnit.SECONDS).get());
+
+        JsonNode rent = tree.get(0);
+        assertEquals("rent", rent.get("data").asText());
+        // Average of all rents with surface in range, not average of averages of property types
+        assertEquals(9800.0 / 4, rent.get("total").get(PRICE).asDouble());
+        assertFalse(rent.get("children").get(0).has("total"));
+    }
+
+    @Test
+    public void getsSubtreeBelowPath() throws Exception {
+        JsonNode subtree = mapper.valueToTree(service.getSubtreeAsync(Collections.singletonMap(OPERATION, "rent"),
+                Collections.singletonList(PROPERTY_TYPE), PRICE, Aggregate.DEFAULT, 0, 200)
+                .get(5, TimeUnit.SECONDS).get());
+        JsonNode tree = mapper.valueToTree(service.getTree(Arrays.asList(OPERATION, PROPERTY_TYPE), PRICE, 0, 200)
+                .get());
+
+        assertEquals(tree.get(0).get("children"), subtree);
+    }
+
+    @Test
+    public void encodesTreeInNegotiatedFormat() throws Exception {
+        List<String> columnNames = Arrays.asList(OPERATION, PROPERTY_TYPE);
+        JsonNode expected = mapper.valueToTree(service.getTree(columnNames, PRICE, 0, 200).get());
+        EncodedTree smile = service.getEncodedTreeAsync(columnNames, PRICE, Aggregate.DEFAULT, false, false, null,
+                0, 200, TreeFormat.SMILE, false).get(5, TimeUnit.SECONDS).get();
+        EncodedTree gzipped = service.getEncodedTreeAsync(columnNames, PRICE, Aggregate.DEFAULT, false, false, null,
+                0, 200, TreeFormat.CBOR, true).get(5, TimeUnit.SECONDS).get();
+
+        assertEquals(expected, new ObjectMapper(new SmileFactory()).readTree(smile.getBytes()));
+        assertTrue(gzipped.isGzipped());
+        assertEquals(expected, new ObjectMapper(new CBORFactory())
+                .readTree(new GZIPInputStream(new ByteArrayInputStream(gzipped.getBytes()))));
+        assertEquals(smile.getEntityTag(), service.getEntityTag(columnNames, PRICE, Aggregate.DEFAULT, false, false,
+                null, 0, 200, TreeFormat.SMILE, false));
+        assertNotEquals(smile.getEntityTag(), service.getEntityTag(columnNames, PRICE, Aggregate.DEFAULT, false,
+                false, null, 0, 100, TreeFormat.SMILE, false));
+        assertSame(smile, service.getEncodedTreeAsync(columnNames, PRICE, Aggregate.DEFAULT, false, false, null,
+                0, 200, TreeFormat.SMILE, false).get(5, TimeUnit.SECONDS).get());
+    }
+
+    @Test
+    public void flushesCachedTrees() throws Exception {
+        List<String> columnNames = Arrays.asList(OPERATION, STATE_NAME);
+        EncodedTree cached = service.getEncodedTreeAsync(columnNames, PRICE, Aggregate.DEFAULT, false, false, null,
+                0, 300, TreeFormat.JSON, false).get(5, TimeUnit.SECONDS).get();
+
+        service.flushCaches();
+
+        EncodedTree fetched = service.getEncodedTreeAsync(columnNames, PRICE, Aggregate.DEFAULT, false, false, null,
+                0, 300, TreeFormat.JSON, false).get(5, TimeUnit.SECONDS).get();
+        assertNotSame(cached, fetched);
+        assertArrayEquals(cached.getBytes(), fetched.getBytes());
+    }
+
+    @Test
+    public void approximateTreeHasShapeOfExactTreeWithMargins() throws Exception {
+        List<String> columnNames = Arrays.asList(OPERATION, PROPERTY_TYPE);
+        JsonNode exact = mapper.valueToTree(service.getTree(columnNames, PRICE, 0, 200).get());
+        JsonNode approximate = mapper.valueToTree(service.getApproximateTreeAsync(columnNames, PRICE,
+                Aggregate.DEFAULT, false, 0, 200).get(5, TimeUnit.SECONDS).get());
+
+        assertEquals(50.0, service.getSamplePercent());
+        for (JsonNode operation : approximate) {
+            JsonNode exactOperation = findChild(exact, operation.get("data").asText());
+            for (JsonNode propertyType : operation.get("children")) {
+                assertTrue(propertyType.get("children").get(0).has(Aggregate.MARGIN_FIELD));
+                assertNotNull(findChild(exactOperation.get("children"), propertyType.get("data").asText()));
+            }
+        }
+        assertFalse(exact.get(0).get("children").get(0).get("children").get(0).has(Aggregate.MARGIN_FIELD));
+    }
+
+    private static JsonNode findChild(JsonNode level, String data) {
+        for (JsonNode node : level) {
+            if (node.get("data").asText().equals(data)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void streamsTreeEqualToBuiltTree() throws Exception {
+        List<String> columnNames = Arrays.asList(OPERATION, PROPERTY_TYPE, STATE_NAME);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        service.getTreeStreamAsync(columnNames, PRICE, EnumSet.of(Aggregate.COUNT, Aggregate.MAX), 0, 150)
+                .get(5, TimeUnit.SECONDS).get().writeTo(out);
+
+        assertEquals(mapper.valueToTree(service.getTreeAsync(columnNames, PRICE,
+                EnumSet.of(Aggregate.COUNT, Aggregate.MAX), false, 0, 150).get(5, TimeUnit.SECONDS).get()),
+                mapper.readTree(out.toByteArray()));
+    }
+
+    @Test
+    public void mergesMonthlyTablesFromSumsAndCounts() throws Exception {
+        List<String> columnNames = Arrays.asList(OPERATION, PROPERTY_TYPE);
+        Set<Aggregate> aggregates = EnumSet.of(Aggregate.COUNT, Aggregate.MIN, Aggregate.MAX);
+        EstatesTree single = service.getTreeAsync(columnNames, PRICE, aggregates, true,
+                new MonthRange(YearMonth.of(2015, 1), YearMonth.of(2015, 1)), 0, 150).get(5, TimeUnit.SECONDS).get();
+        // March has no table, so it adds nothing
+        EstatesTree merged = service.getTreeAsync(columnNames, PRICE, aggregates, true,
+                new MonthRange(YearMonth.of(2015, 1), YearMonth.of(2015, 3)), 0, 150).get(5, TimeUnit.SECONDS).get();
+
+        assertEquals(mapper.valueToTree(service.getTreeAsync(columnNames, PRICE, aggregates, true, 0, 150)
+                .get(5, TimeUnit.SECONDS).get()), mapper.valueToTree(single));
+        List<AggregationNode> singleLeaves = new ArrayList<>();
+        single.forEachLeaf((branch, leaf) -> singleLeaves.add(leaf));
+        List<AggregationNode> mergedLeaves = new ArrayList<>();
+        merged.forEachLeaf((branch, leaf) -> mergedLeaves.add(leaf));
+        assertEquals(singleLeaves.size(), mergedLeaves.size());
+        for (int i = 0; i < singleLeaves.size(); i++) {
+            assertEquals(singleLeaves.get(i).getValue(), mergedLeaves.get(i).getValue(), 1e-9);
+            assertEquals(2 * singleLeaves.get(i).getCount(), mergedLeaves.get(i).getCount());
+            assertEquals(singleLeaves.get(i).getMax(), mergedLeaves.get(i).getMax());
+        }
+        List<Long> mergedTotals = new ArrayList<>();
+        merged.forEachTotal((prefix, total) -> mergedTotals.add(total.getCount()));
+        List<Long> singleTotals = new ArrayList<>();
+        single.forEachTotal((prefix, total) -> singleTotals.add(2 * total.getCount()));
+        assertFalse(mergedTotals.isEmpty());
+        assertEquals(singleTotals, mergedTotals);
+    }
+
+    @Test
+    public void getEmptyResult() {
+        assertFalse(service.getData(Arrays.asList(OPERATION), PRICE, 0, 0).isPresent());
+    }
+}
@@ -19,6 +19,8 @@ import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMock
 import static bigqueryestatespring.exceptionMessages.ExceptionMessage.TOP_BORDER_UNDER_BOTTOM_BORDER;
 import static bigqueryestatespring.services.PropertiesAttribute.PRICE;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 @AutoConfigureMockMvc
@@ -36,10 +38,16 @@ public class EstatesControllerTests {
     @Autowired
     private MockMvc mockMvc;
 
+    private MvcResult performAsync(String url) throws Exception {
+        return mockMvc.perform(MockMvcRequestBuilders.get(url)
+                .accept(MediaType.APPLICATION_JSON))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+    }
+
     @Test
     public void statusOKAndReturnsTreeWithDefaultHeight() throws Exception{
-        MvcResult result = mockMvc.perform(MockMvcRequestBuilders.get(resourceUrl)
-                .accept(MediaType.APPLICATION_JSON))
+        MvcResult result = mockMvc.perform(asyncDispatch(performAsync(resourceUrl)))
                 .andExpect(status().isOk())
                 .andReturn();
 
@@ -56,8 +64,7 @@ public class EstatesControllerTests {
 
     @Test
     public void throwsExWithMessageTopBorderUnderBottomBorder() throws Exception{
-        MvcResult result = mockMvc.perform(MockMvcRequestBuilders.get(resourceUrl + "?bottom=100&top=1")
-                .accept(MediaType.APPLICATION_JSON))
+        MvcResult result = mockMvc.perform(asyncDispatch(performAsync(resourceUrl + "?bottom=100&top=1")))
                 .andExpect(status().isBadRequest())
                 .andReturn();
 
@@ -69,8 +76,7 @@ public class EstatesControllerTests {
 
     @Test
     public void getEmptyResult() throws Exception{
-        MvcResult result = mockMvc.perform(MockMvcRequestBuilders.get(resourceUrl + "?top=0")
-                .accept(MediaType.APPLICATION_JSON))
+        MvcResult result = mockMvc.perform(asyncDispatch(performAsync(resourceUrl + "?top=0")))
                 .andExpect(status().isNotFound())
                 .andReturn();
 
@@ -0,0 +1,46 @@
+package bigqueryestatespring;
+
+import bigqueryestatespring.metrics.EstatesMetrics;
+import com.google.cloud.bigquery.Job;
+import com.google.cloud.bigquery.JobStatistics;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class EstatesMetricsTests {
+    private final MeterRegistry registry = new SimpleMeterRegistry();
+    private final EstatesMetrics metrics = new EstatesMetrics(registry);
+
+    @Test
+    public void recordsStagesSeparately() {
+        assertEquals("sql", metrics.time(EstatesMetrics.RENDER, () -> "sql"));
+        metrics.time(EstatesMetrics.RENDER, () -> "sql");
+        metrics.record(EstatesMetrics.BUILD_TREE, metrics.start());
+
+        assertEquals(2, registry.get(EstatesMetrics.STAGE_TIMER).tag("stage", EstatesMetrics.RENDER).timer().count());
+        assertEquals(1, registry.get(EstatesMetrics.STAGE_TIMER).tag("stage", EstatesMetrics.BUILD_TREE).timer().count());
+    }
+
+    @Test
+    public void recordsQueryJobStatistics() {
+        JobStatistics.QueryStatistics statistics = mock(JobStatistics.QueryStatistics.class);
+        when(statistics.getTotalBytesProcessed()).thenReturn(2048L);
+        when(statistics.getTotalBytesBilled()).thenReturn(10485760L);
+        when(statistics.getTotalSlotMs()).thenReturn(300L);
+        when(statistics.getCacheHit()).thenReturn(false);
+        Job job = mock(Job.class);
+        when(job.getStatistics()).thenReturn(statistics);
+
+        metrics.recordJob(job);
+
+        assertEquals(2048, registry.get("estates.bigquery.bytes.processed").summary().totalAmount());
+        assertEquals(10485760, registry.get("estates.bigquery.bytes.billed").summary().totalAmount());
+        assertEquals(300, registry.get("estates.bigquery.slot.ms").summary().totalAmount());
+        assertEquals(1, registry.get("estates.bigquery.jobs").tag("cache", "miss").counter().count());
+        assertEquals(0, registry.get("estates.bigquery.jobs").tag("cache", "hit").counter().count());
+    }
+}
@@ -0,0 +1,197 @@
+package bigqueryestatespring;
+
+import bigqueryestatespring.backend.BigQueryBackend;
+import bigqueryestatespring.backend.QueryBackend;
+import bigqueryestatespring.cache.QueryKey;
+import bigqueryestatespring.cache.ResultCache;
+import bigqueryestatespring.cache.SingleFlight;
+import bigqueryestatespring.metrics.EstatesMetrics;
+import bigqueryestatespring.nodes.AggregationNode;
+import bigqueryestatespring.nodes.EstatesTree;
+import bigqueryestatespring.nodes.TreeBuilder;
+import bigqueryestatespring.services.AdmissionControl;
+import bigqueryestatespring.services.EstatesService;
+import bigqueryestatespring.services.PagedResultReader;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.cloud.bigquery.FieldValueList;
+import com.google.cloud.bigquery.QueryJobConfiguration;
+import com.google.cloud.bigquery.TableResult;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.jooq.SQLDialect;
+import org.jooq.impl.DSL;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static bigqueryestatespring.services.PropertiesAttribute.*;
+
+/**
+ * JMH benchmarks of the stages of /estates request: query rendering, tree building, serialization
+ * and the whole getData path with backend returning synthetic rows.
+ * Run with: mvn -P benchmark test
+ * Allocation profiling is enabled by default (-prof gc), other options are passed by -Djmh.args="..."
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EstatesPathBenchmark {
+    private static final List<String> COLUMN_NAMES = Arrays.asList(OPERATION, PROPERTY_TYPE, COUNTRY_NAME, STATE_NAME);
+    private static final OutputStream NULL_OUTPUT = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    @Param({"2,5,3,25", "2,5,30,250"})
+    public String cardinalities;
+
+    @Param({"1000", "50000"})
+    public int rowCount;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private ExecutorService executor;
+    private QueryKey key;
+    private BigQueryBackend bigQueryBackend;
+    private TableResult tableResult;
+    private EstatesTree tree;
+    private ResultCache<QueryKey, EstatesTree> resultCache;
+    private EstatesService service;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        int[] columnCardinalities = EstatesRowGenerator.parseCardinalities(cardinalities);
+        List<String> columnNames = COLUMN_NAMES.subList(0, columnCardinalities.length);
+        executor = Executors.newFixedThreadPool(2);
+        EstatesMetrics metrics = new EstatesMetrics(new SimpleMeterRegistry());
+        key = new QueryKey(columnNames, PRICE, 0, 1000);
+        bigQueryBackend = new BigQueryBackend(null, DSL.using(SQLDialect.MYSQL), null, 0, true, false, metrics);
+        tableResult = new EstatesRowGenerator(columnNames, PRICE, columnCardinalities).generate(rowCount);
+        tree = buildTree();
+
+        // Service is wired by hand, backend answers at once with the generated rows
+        TableResult result = tableResult;
+        QueryBackend backend = new QueryBackend() {
+            @Override
+            public CompletableFuture<Optional<TableResult>> query(QueryKey queryKey) {
+                return CompletableFuture.completedFuture(Optional.of(result));
+            }
+
+            @Override
+            public CompletableFuture<Optional<TableResult>> queryOrdered(QueryKey queryKey) {
+                return CompletableFuture.completedFuture(Optional.of(result));
+            }
+
+            @Override
+            public CompletableFuture<Optional<TableResult>> queryCube(QueryKey shape) {
+                return CompletableFuture.completedFuture(Optional.empty());
+            }
+
+            @Override
+            public CompletableFuture<Optional<TableResult>> queryRanges(List<QueryKey> keys) {
+                return CompletableFuture.completedFuture(Optional.empty());
+            }
+
+            @Override
+            public String getDatasetVersion() {
+                return "generated";
+            }
+        };
+        resultCache = new ResultCache<>(Long.MAX_VALUE, TimeUnit.HOURS.toMillis(1), EstatesTree::getNodeCount);
+        service = new EstatesService();
+        ReflectionTestUtils.invokeMethod(service, "setMapper", mapper);
+        ReflectionTestUtils.invokeMethod(service, "setBackend", backend);
+        ReflectionTestUtils.invokeMethod(service, "setResultCache", resultCache);
+        ReflectionTestUtils.invokeMethod(service, "setSingleFlight", new SingleFlight<QueryKey, Optional<EstatesTree>>());
+        ReflectionTestUtils.invokeMethod(service, "setExecutorService", executor);
+        ReflectionTestUtils.invokeMethod(service, "setPagedResultReader", new PagedResultReader(executor, 2, metrics));
+        ReflectionTestUtils.invokeMethod(service, "setMetrics", metrics);
+        ReflectionTestUtils.invokeMethod(service, "setAdmissionControl",
+                new AdmissionControl(Integer.MAX_VALUE, Integer.MAX_VALUE, 0, 0, 1, Runnable::run, metrics));
+        ReflectionTestUtils.invokeMethod(service, "setCubeEnabled", false);
+        ReflectionTestUtils.invokeMethod(service, "setTimeoutMillis", TimeUnit.MINUTES.toMillis(1));
+        ReflectionTestUtils.invokeMethod(service, "setSamplePercent", 1.0);
+        ReflectionTestUtils.invokeMethod(service, "setStreamMaxRows", Long.MAX_VALUE);
+        ReflectionTestUtils.invokeMethod(service, "setStreamMaxBytes", Long.MAX_VALUE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public QueryJobConfiguration renderQuery() {
+        return bigQueryBackend.getQueryJobConfiguration(key);
+    }
+
+    @Benchmark
+    public EstatesTree createTree() {
+        return buildTree();
+    }
+
+    @Benchmark
+    public JsonNode constructJson() {
+        return mapper.valueToTree(tree);
+    }
+
+    @Benchmark
+    public void writeJson() throws IOException {
+        tree.writeTo(NULL_OUTPUT, mapper.getFactory());
+    }
+
+    @Benchmark
+    public void getData(Blackhole blackhole) {
+        // Every invocation misses the cache, so the tree is built again
+        resultCache.clear();
+        blackhole.consume(service.getData(key.getColumnNames(), key.getAggregateColumn(), key.getBottom(),
+                key.getTop()));
+    }
+
+    /**
+     * Same work as EstatesService does for every row of the result
+     */
+    private EstatesTree buildTree() {
+        TreeBuilder treeBuilder = new TreeBuilder();
+        for (FieldValueList row : tableResult.getValues()) {
+            List<String> columnValues = new ArrayList<>(key.getColumnNames().size());
+            for (String columnName : key.getColumnNames()) {
+                columnValues.add(row.get(columnName).getStringValue());
+            }
+            treeBuilder.addBranch(columnValues, new AggregationNode(
+                    row.get(QueryBackend.AVG_PREFIX + PRICE).getDoubleValue(),
+                    row.get(QueryBackend.COUNT_PREFIX + PRICE).getLongValue()));
+        }
+        return new EstatesTree(treeBuilder.build());
+    }
+}
@@ -0,0 +1,97 @@
+package bigqueryestatespring;
+
+import bigqueryestatespring.backend.QueryBackend;
+import bigqueryestatespring.backend.ResultPage;
+import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.FieldList;
+import com.google.cloud.bigquery.FieldValue;
+import com.google.cloud.bigquery.FieldValueList;
+import com.google.cloud.bigquery.LegacySQLTypeName;
+import com.google.cloud.bigquery.Schema;
+import com.google.cloud.bigquery.TableResult;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates synthetic results of the grouped estates query, as they are returned by the query backend.
+ * Every row is distinct group of column values with average and count of aggregate column.
+ */
+public class EstatesRowGenerator {
+    private final List<String> columnNames;
+    private final String aggregateColumn;
+    private final int[] cardinalities;
+
+    /**
+     * @param columnNames hierarchy columns
+     * @param aggregateColumn aggregated column
+     * @param cardinalities number of distinct values of every hierarchy column
+     */
+    public EstatesRowGenerator(List<String> columnNames, String aggregateColumn, int[] cardinalities) {
+        if (columnNames.size() != cardinalities.length) {
+            throw new IllegalArgumentException("Every column needs its cardinality");
+        }
+        this.columnNames = columnNames;
+        this.aggregateColumn = aggregateColumn;
+        this.cardinalities = cardinalities;
+    }
+
+    public static int[] parseCardinalities(String cardinalities) {
+        return Arrays.stream(cardinalities.split(",")).mapToInt(Integer::parseInt).toArray();
+    }
+
+    /**
+     * Gets maximal number of distinct groups
+     *
+     * @return product of cardinalities
+     */
+    public long getGroupCount() {
+        long count = 1;
+        for (int cardinality : cardinalities) {
+            count *= cardinality;
+        }
+        return count;
+    }
+
+    /**
+     * Generates result with given number of groups, groups are ordered with the last column changing fastest
+     *
+     * @param rowCount number of rows, limited by number of distinct groups
+     * @return result in single page
+     */
+    public TableResult generate(int rowCount) {
+        FieldList fields = getFields();
+        Random random = new Random(42);
+        int rows = (int) Math.min(rowCount, getGroupCount());
+        List<FieldValueList> values = new ArrayList<>(rows);
+        for (int row = 0; row < rows; row++) {
+            List<FieldValue> rowValues = new ArrayList<>(fields.size());
+            long group = row;
+            String[] labels = new String[cardinalities.length];
+            for (int level = cardinalities.length - 1; level >= 0; level--) {
+                labels[level] = columnNames.get(level) + "_" + group % cardinalities[level];
+                group /= cardinalities[level];
+            }
+            for (String label : labels) {
+                rowValues.add(FieldValue.of(FieldValue.Attribute.PRIMITIVE, label));
+            }
+            rowValues.add(FieldValue.of(FieldValue.Attribute.PRIMITIVE,
+                    String.valueOf(1000 + random.nextDouble() * 100000)));
+            rowValues.add(FieldValue.of(FieldValue.Attribute.PRIMITIVE, String.valueOf(1 + random.nextInt(100))));
+            values.add(FieldValueList.of(rowValues, fields));
+        }
+        return new TableResult(Schema.of(fields), rows, new ResultPage(values));
+    }
+
+    private FieldList getFields() {
+        List<Field> fields = new ArrayList<>();
+        for (String columnName : columnNames) {
+            fields.add(Field.of(columnName, LegacySQLTypeName.STRING));
+        }
+        fields.add(Field.of(QueryBackend.AVG_PREFIX + aggregateColumn, LegacySQLTypeName.FLOAT));
+        fields.add(Field.of(QueryBackend.COUNT_PREFIX + aggregateColumn, LegacySQLTypeName.INTEGER));
+        return FieldList.of(fields);
+    }
+}
@@ -0,0 +1,135 @@
+package bigqueryestatespring;
+
+import bigqueryestatespring.nodes.AggregationNode;
+import bigqueryestatespring.nodes.EstatesTree;
+import bigqueryestatespring.nodes.Node;
+import bigqueryestatespring.nodes.TreeBuilder;
+import bigqueryestatespring.services.Aggregate;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import static bigqueryestatespring.services.PropertiesAttribute.PRICE;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class EstatesTreeTests {
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private static List<Node> createNodes() {
+        return new TreeBuilder()
+                .addBranch(Arrays.asList("rent", "house"), new AggregationNode(10.5, 2))
+                .addBranch(Arrays.asList("rent", "apartment"), new AggregationNode(7, 1))
+                .addBranch(Arrays.asList("sell", "house"), new AggregationNode(100, 3))
+                .build();
+    }
+
+    @Test
+    public void writesSameJsonAsBeanSerialization() throws Exception {
+        List<Node> nodes = createNodes();
+        EstatesTree tree = new EstatesTree(nodes);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        tree.writeTo(out, mapper.getFactory());
+
+        assertEquals(mapper.writeValueAsString(nodes), new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void writesRequestedAggregatesAsBeanSerialization() throws Exception {
+        Set<Aggregate> aggregates = EnumSet.allOf(Aggregate.class);
+        List<Node> nodes = new TreeBuilder()
+                .addBranch(Arrays.asList("rent", "house"), new AggregationNode(10.5, 2, aggregates)
+                        .setMin(1).setMax(20).setSum(21).setQuantiles(new double[]{1, 5, 10, 15, 20}))
+                .addBranch(Arrays.asList("sell", "house"), new AggregationNode(100, 1, aggregates)
+                        .setMin(100).setMax(100).setSum(100).setQuantiles(new double[]{100, 100, 100, 100, 100}))
+                .build();
+
+        assertEquals(mapper.writeValueAsString(nodes), mapper.writeValueAsString(new EstatesTree(nodes)));
+    }
+
+    @Test
+    public void writesLargeValuesWithoutExponent() throws Exception {
+        Set<Aggregate> aggregates = EnumSet.of(Aggregate.AVG, Aggregate.SUM);
+        List<Node> nodes = new TreeBuilder()
+                .addBranch(Arrays.asList("sell", "house"),
+                        new AggregationNode(12345000, 2, aggregates).setSum(24690000))
+                .build();
+
+        String json = mapper.writeValueAsString(new EstatesTree(nodes));
+
+        assertEquals(mapper.writeValueAsString(nodes), json);
+        assertFalse(json.contains("E"));
+        JsonNode leaf = mapper.readTree(json).get(0).get("children").get(0).get("children").get(0);
+        assertEquals("12345000", leaf.get(PRICE).asText());
+        assertEquals("24690000", leaf.get(Aggregate.SUM_FIELD).asText());
+    }
+
+    @Test
+    public void decodesEncodedTree() throws Exception {
+        Set<Aggregate> aggregates = EnumSet.allOf(Aggregate.class);
+        EstatesTree tree = new EstatesTree(new TreeBuilder()
+                .addTotal(Arrays.asList("rent"), new AggregationNode(9.5, 3))
+                .addBranch(Arrays.asList("rent", "house"), new AggregationNode(10.5, 2, aggregates)
+                        .setMin(1).setMax(20).setSum(21).setQuantiles(new double[]{1, 5, 10, 15, 20}))
+                .addBranch(Arrays.asList("sell", "house"), new AggregationNode(100, 3))
+                .build());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        tree.encode(new DataOutputStream(out));
+        EstatesTree decoded = EstatesTree.decode(new DataInputStream(new ByteArrayInputStream(out.toByteArray())));
+
+        assertEquals(mapper.writeValueAsString(tree), mapper.writeValueAsString(decoded));
+        assertEquals(tree.getNodeCount(), decoded.getNodeCount());
+    }
+
+    @Test
+    public void writesSubtotalsAsBeanSerialization() throws Exception {
+        List<Node> nodes = new TreeBuilder()
+                .addTotal(Arrays.asList("rent"), new AggregationNode(9.5, 3))
+                .addBranch(Arrays.asList("rent", "house"), new AggregationNode(10.5, 2))
+                .addBranch(Arrays.asList("rent", "apartment"), new AggregationNode(7, 1))
+                .addBranch(Arrays.asList("sell", "house"), new AggregationNode(100, 3))
+                .build();
+
+        assertEquals(mapper.writeValueAsString(nodes), mapper.writeValueAsString(new EstatesTree(nodes)));
+        assertEquals("9.5", mapper.valueToTree(new EstatesTree(nodes)).get(0).get("total").get(PRICE).asText());
+    }
+
+    @Test
+    public void serializesThroughObjectMapper() throws Exception {
+        List<Node> nodes = createNodes();
+        EstatesTree tree = new EstatesTree(nodes);
+
+        assertEquals(mapper.writeValueAsString(nodes), mapper.writeValueAsString(tree));
+        assertEquals(mapper.valueToTree(nodes), mapper.valueToTree(tree));
+    }
+
+    @Test
+    public void countsAllNodes() {
+        List<Node> nodes = createNodes();
+
+        assertEquals(Node.countNodes(nodes), new EstatesTree(nodes).getNodeCount());
+    }
+
+    @Test
+    public void rejectsLeavesOnDifferentLevels() {
+        List<Node> nodes = new TreeBuilder()
+                .addBranch(Arrays.asList("rent", "house"), new AggregationNode(1, 1))
+                .addBranch(Arrays.asList("sell"), new AggregationNode(2, 1))
+                .build();
+
+        assertThrows(IllegalArgumentException.class, () -> new EstatesTree(nodes));
+    }
+}
@@ -0,0 +1,86 @@
+package bigqueryestatespring;
+
+import bigqueryestatespring.cache.HttpPeerClient;
+import bigqueryestatespring.cache.QueryKey;
+import bigqueryestatespring.nodes.AggregationNode;
+import bigqueryestatespring.nodes.EstatesTree;
+import bigqueryestatespring.nodes.TreeBuilder;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.mock.http.client.MockClientHttpRequest;
+import org.springframework.test.web.client.MockRestServiceServer;
+import org.springframework.web.client.RestTemplate;
+
+import java.util.Arrays;
+
+import static bigqueryestatespring.services.PropertiesAttribute.*;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.header;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.method;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.requestTo;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withStatus;
+
+public class HttpPeerClientTests {
+    private static final String SELF = "http://localhost:8080";
+    private static final String PEER = "http://localhost:8081";
+    private static final String SECRET = "secret";
+    private static final String VERSION = "1";
+
+    private MockRestServiceServer server;
+    private HttpPeerClient client;
+
+    @BeforeEach
+    public void createClient() {
+        RestTemplate restTemplate = new RestTemplate();
+        server = MockRestServiceServer.bindTo(restTemplate).build();
+        client = new HttpPeerClient(restTemplate, SELF, SECRET, VERSION);
+    }
+
+    private static QueryKey key() {
+        return new QueryKey(Arrays.asList(OPERATION, PROPERTY_TYPE), PRICE, 0, 100);
+    }
+
+    private static long timestampOf(ClientHttpRequest request) {
+        long timestamp = Long.parseLong(request.getHeaders().getFirst(HttpPeerClient.TIMESTAMP_HEADER));
+        assertTrue(Math.abs(System.currentTimeMillis() - timestamp) < 60000);
+        return timestamp;
+    }
+
+    @Test
+    public void treatsNotFoundAsMiss() throws Exception {
+        String encodedKey = HttpPeerClient.encodeKey(key());
+        server.expect(requestTo(PEER + HttpPeerClient.PATH + "?" + HttpPeerClient.KEY_PARAMETER + "=" + encodedKey))
+                .andExpect(method(HttpMethod.GET))
+                .andExpect(header(HttpPeerClient.DATASET_VERSION_HEADER, VERSION))
+                .andExpect(header(HttpPeerClient.PEER_HEADER, SELF))
+                .andExpect(request -> assertTrue(HttpPeerClient.verify(SECRET, HttpMethod.GET, SELF, encodedKey,
+                        VERSION, timestampOf(request), new byte[0],
+                        request.getHeaders().getFirst(HttpPeerClient.SIGNATURE_HEADER))))
+                .andRespond(withStatus(HttpStatus.NOT_FOUND));
+
+        assertFalse(client.get(PEER, key()).isPresent());
+        server.verify();
+    }
+
+    @Test
+    public void signsBodyOfPut() throws Exception {
+        EstatesTree tree = new EstatesTree(new TreeBuilder()
+                .addBranch(Arrays.asList("rent", "house"), new AggregationNode(100, 2))
+                .build());
+        server.expect(method(HttpMethod.PUT))
+                .andExpect(request -> {
+                    String key = request.getURI().getQuery().substring(HttpPeerClient.KEY_PARAMETER.length() + 1);
+                    byte[] body = ((MockClientHttpRequest) request).getBodyAsBytes();
+                    assertTrue(HttpPeerClient.verify(SECRET, HttpMethod.PUT, SELF, key, VERSION, timestampOf(request),
+                            body, request.getHeaders().getFirst(HttpPeerClient.SIGNATURE_HEADER)));
+                })
+                .andRespond(withStatus(HttpStatus.NO_CONTENT));
+
+        client.put(PEER, key(), tree);
+        server.verify();
+    }
+}
@@ -0,0 +1,66 @@
+package bigqueryestatespring;
+
+import bigqueryestatespring.metrics.EstatesMetrics;
+import bigqueryestatespring.services.JobPoller;
+import com.google.cloud.bigquery.BigQueryError;
+import com.google.cloud.bigquery.Job;
+import com.google.cloud.bigquery.JobStatus;
+import com.google.cloud.bigquery.TableResult;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.Mockito.*;
+
+public class JobPollerTests {
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final JobPoller jobPoller = new JobPoller(1, executor, 1, 4, 100, new EstatesMetrics(new SimpleMeterRegistry()));
+
+    @AfterEach
+    public void shutdown() {
+        jobPoller.shutdown();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void completesWithResultsWhenJobIsDone() throws Exception {
+        TableResult tableResult = mock(TableResult.class);
+        Job job = mock(Job.class);
+        JobStatus status = mock(JobStatus.class);
+        when(job.reload()).thenReturn(job);
+        when(job.getStatus()).thenReturn(status);
+        when(status.getState()).thenReturn(JobStatus.State.RUNNING, JobStatus.State.RUNNING, JobStatus.State.DONE);
+        when(job.getQueryResults(any())).thenReturn(tableResult);
+
+        assertSame(tableResult, jobPoller.poll(job).get(5, TimeUnit.SECONDS));
+        verify(job, times(3)).reload();
+        verify(job, never()).isDone();
+    }
+
+    @Test
+    public void completesWithNullWhenJobFailed() throws Exception {
+        Job job = mock(Job.class);
+        JobStatus status = mock(JobStatus.class);
+        when(job.reload()).thenReturn(job);
+        when(job.getStatus()).thenReturn(status);
+        when(status.getState()).thenReturn(JobStatus.State.DONE);
+        when(status.getError()).thenReturn(new BigQueryError("invalid", "query", "error"));
+
+        assertNull(jobPoller.poll(job).get(5, TimeUnit.SECONDS));
+        verify(job, never()).getQueryResults(any());
+    }
+
+    @Test
+    public void completesWithNullWhenJobNoLongerExists() throws Exception {
+        Job job = mock(Job.class);
+        when(job.reload()).thenReturn(null);
+
+        assertNull(jobPoller.poll(job).get(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,133 @@
+package bigqueryestatespring;
+
+import bigqueryestatespring.metrics.EstatesMetrics;
+import bigqueryestatespring.services.PagedResultReader;
+import com.google.api.gax.paging.Page;
+import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.FieldValue;
+import com.google.cloud.bigquery.FieldValueList;
+import com.google.cloud.bigquery.LegacySQLTypeName;
+import com.google.cloud.bigquery.Schema;
+import com.google.cloud.bigquery.TableResult;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class PagedResultReaderTests {
+    private static final Field VALUE = Field.of("value", LegacySQLTypeName.STRING);
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+    private final EstatesMetrics metrics = new EstatesMetrics(new SimpleMeterRegistry());
+
+    @AfterEach
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void consumesRowsOfAllPagesInOrder() throws Exception {
+        FakePages pages = new FakePages(5, 3);
+        List<String> values = new ArrayList<>();
+
+        new PagedResultReader(executor, 2, metrics).read(pages.tableResult(),
+                row -> values.add(row.get("value").getStringValue()))
+                .get(5, TimeUnit.SECONDS);
+
+        assertEquals(15, values.size());
+        for (int i = 0; i < values.size(); i++) {
+            assertEquals(String.valueOf(i), values.get(i));
+        }
+        assertEquals(4, pages.fetched.get());
+    }
+
+    @Test
+    public void prefetchesNextPageWhileCurrentPageIsConsumed() throws Exception {
+        FakePages pages = new FakePages(3, 2);
+        List<Integer> fetchedWhileConsumingFirstRow = new ArrayList<>();
+
+        new PagedResultReader(executor, 1, metrics).read(pages.tableResult(), row -> {
+            if (fetchedWhileConsumingFirstRow.isEmpty()) {
+                // Second page is fetched in background while the first one is still consumed
+                long deadline = System.currentTimeMillis() + 1000;
+                while (pages.fetched.get() == 0 && System.currentTimeMillis() < deadline) {
+                    Thread.yield();
+                }
+                fetchedWhileConsumingFirstRow.add(pages.fetched.get());
+            }
+        }).get(5, TimeUnit.SECONDS);
+
+        assertEquals(1, (int) fetchedWhileConsumingFirstRow.get(0));
+        assertEquals(2, pages.fetched.get());
+    }
+
+    /**
+     * Pages of rows with single column holding row number, counts fetches of next pages
+     */
+    private static class FakePages {
+        final int pageCount;
+        final int pageSize;
+        final AtomicInteger fetched = new AtomicInteger();
+
+        FakePages(int pageCount, int pageSize) {
+            this.pageCount = pageCount;
+            this.pageSize = pageSize;
+        }
+
+        TableResult tableResult() {
+            return new TableResult(Schema.of(VALUE), (long) pageCount * pageSize, new FakePage(0));
+        }
+
+        class FakePage implements Page<FieldValueList> {
+            final int number;
+
+            FakePage(int number) {
+                this.number = number;
+            }
+
+            @Override
+            public boolean hasNextPage() {
+                return number + 1 < pageCount;
+            }
+
+            @Override
+            public String getNextPageToken() {
+                return hasNextPage() ? String.valueOf(number + 1) : null;
+            }
+
+            @Override
+            public Page<FieldValueList> getNextPage() {
+                if (!hasNextPage()) {
+                    return null;
+                }
+                fetched.incrementAndGet();
+                return new FakePage(number + 1);
+            }
+
+            @Override
+            public Iterable<FieldValueList> iterateAll() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public Iterable<FieldValueList> getValues() {
+                List<FieldValueList> rows = new ArrayList<>();
+                for (int i = 0; i < pageSize; i++) {
+                    FieldValue value = FieldValue.of(FieldValue.Attribute.PRIMITIVE,
+                            String.valueOf(number * pageSize + i));
+                    rows.add(FieldValueList.of(Collections.singletonList(value), VALUE));
+                }
+                return rows;
+            }
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package bigqueryestatespring;
+
+import bigqueryestatespring.backend.QueryBackend;
+import bigqueryestatespring.cache.HttpPeerClient;
+import bigqueryestatespring.cache.PeerCacheTier;
+import bigqueryestatespring.cache.QueryKey;
+import bigqueryestatespring.controllers.PeerCacheController;
+import bigqueryestatespring.nodes.AggregationNode;
+import bigqueryestatespring.nodes.EstatesTree;
+import bigqueryestatespring.nodes.TreeBuilder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import static bigqueryestatespring.services.PropertiesAttribute.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+
+@AutoConfigureMockMvc
+@ContextConfiguration(classes = PeerCacheController.class)
+@WebMvcTest(properties = {
+        "estates.cluster.enabled=true",
+        "estates.cluster.secret=" + PeerCacheControllerTests.SECRET
+})
+public class PeerCacheControllerTests {
+    static final String SECRET = "secret";
+    private static final String PEER = "http://localhost:8081";
+    private static final String VERSION = "1";
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Map<QueryKey, EstatesTree> owned = new HashMap<>();
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @MockBean
+    private PeerCacheTier peerCacheTier;
+
+    @MockBean
+    private QueryBackend backend;
+
+    @BeforeEach
+    public void createTier() {
+        when(backend.getDatasetVersion()).thenReturn(VERSION);
+        when(peerCacheTier.isPeer(PEER)).thenReturn(true);
+        when(peerCacheTier.getOwned(any())).thenAnswer(invocation ->
+                Optional.ofNullable(owned.get(invocation.<QueryKey>getArgument(0))));
+        doAnswer(invocation -> owned.put(invocation.getArgument(0), invocation.getArgument(1)))
+                .when(peerCacheTier).putOwned(any(), any());
+    }
+
+    private static QueryKey key(int bottom, int top) {
+        return new QueryKey(Arrays.asList(OPERATION, PROPERTY_TYPE), PRICE, bottom, top)
+                .withPath(Collections.singletonMap(COUNTRY_NAME, "Spain"));
+    }
+
+    private static byte[] encode(EstatesTree tree) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        tree.encode(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static MockHttpServletRequestBuilder signed(MockHttpServletRequestBuilder request, HttpMethod method,
+                                                        String peer, String version, String key, byte[] body) {
+        return signed(request, method, peer, version, key, System.currentTimeMillis(), body);
+    }
+
+    private static MockHttpServletRequestBuilder signed(MockHttpServletRequestBuilder request, HttpMethod method,
+                                                        String peer, String version, String key, long timestamp,
+                                                        byte[] body) {
+        return request.param(HttpPeerClient.KEY_PARAMETER, key)
+                .header(HttpPeerClient.DATASET_VERSION_HEADER, version)
+                .header(HttpPeerClient.PEER_HEADER, peer)
+                .header(HttpPeerClient.TIMESTAMP_HEADER, timestamp)
+                .header(HttpPeerClient.SIGNATURE_HEADER,
+                        HttpPeerClient.sign(SECRET, method, peer, key, version, timestamp, body));
+    }
+
+    private MvcResult putTree(String peer, String version, QueryKey key, EstatesTree tree) throws Exception {
+        byte[] body = encode(tree);
+        return mockMvc.perform(signed(put(HttpPeerClient.PATH), HttpMethod.PUT, peer, version,
+                HttpPeerClient.encodeKey(key), body)
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .content(body))
+                .andReturn();
+    }
+
+    private MvcResult getTree(String peer, String version, QueryKey key) throws Exception {
+        return mockMvc.perform(signed(get(HttpPeerClient.PATH), HttpMethod.GET, peer, version,
+                HttpPeerClient.encodeKey(key), new byte[0]))
+                .andReturn();
+    }
+
+    @Test
+    public void storesAndReadsTreeByKey() throws Exception {
+        EstatesTree tree = new EstatesTree(new TreeBuilder()
+                .addBranch(Arrays.asList("rent", "house"), new AggregationNode(100, 2))
+                .build());
+
+        assertEquals(404, getTree(PEER, VERSION, key(0, 100)).getResponse().getStatus());
+        assertEquals(204, putTree(PEER, VERSION, key(0, 100), tree).getResponse().getStatus());
+        assertTrue(owned.containsKey(key(0, 100)));
+
+        MvcResult result = getTree(PEER, VERSION, key(0, 100));
+        assertEquals(200, result.getResponse().getStatus());
+        EstatesTree read = EstatesTree.decode(new DataInputStream(
+                new ByteArrayInputStream(result.getResponse().getContentAsByteArray())));
+        assertEquals(mapper.writeValueAsString(tree), mapper.writeValueAsString(read));
+        assertEquals(404, getTree(PEER, VERSION, key(0, 200)).getResponse().getStatus());
+    }
+
+    @Test
+    public void returnsConflictForOtherDatasetVersion() throws Exception {
+        EstatesTree tree = new EstatesTree(new TreeBuilder().build());
+
+        assertEquals(409, putTree(PEER, "2", key(0, 100), tree).getResponse().getStatus());
+        assertEquals(409, getTree(PEER, "2", key(0, 100)).getResponse().getStatus());
+        verify(peerCacheTier, never()).putOwned(any(), any());
+    }
+
+    @Test
+    public void rejectsUnauthenticatedRequests() throws Exception {
+        byte[] body = encode(new EstatesTree(new TreeBuilder().build()));
+        String key = HttpPeerClient.encodeKey(key(0, 100));
+
+        MvcResult unsigned = mockMvc.perform(put(HttpPeerClient.PATH)
+                .param(HttpPeerClient.KEY_PARAMETER, key)
+                .header(HttpPeerClient.DATASET_VERSION_HEADER, VERSION)
+                .header(HttpPeerClient.PEER_HEADER, PEER)
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .content(body))
+                .andReturn();
+        assertEquals(401, unsigned.getResponse().getStatus());
+
+        // Signature of other body must not be accepted for this one
+        MvcResult tampered = mockMvc.perform(signed(put(HttpPeerClient.PATH), HttpMethod.PUT, PEER, VERSION, key,
+                new byte[0])
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .content(body))
+                .andReturn();
+        assertEquals(401, tampered.getResponse().getStatus());
+
+        MvcResult unknownPeer = putTree("http://localhost:9090", VERSION, key(0, 100),
+                new EstatesTree(new TreeBuilder().build()));
+        assertEquals(403, unknownPeer.getResponse().getStatus());
+
+        MvcResult unsignedGet = mockMvc.perform(get(HttpPeerClient.PATH)
+                .param(HttpPeerClient.KEY_PARAMETER, key)
+                .header(HttpPeerClient.DATASET_VERSION_HEADER, VERSION))
+                .andReturn();
+        assertEquals(401, unsignedGet.getResponse().getStatus());
+        verify(peerCacheTier, never()).putOwned(any(), any());
+        verify(peerCacheTier, never()).getOwned(any());
+    }
+
+    @Test
+    public void rejectsReplayedRequests() throws Exception {
+        byte[] body = encode(new EstatesTree(new TreeBuilder().build()));
+        String key = HttpPeerClient.encodeKey(key(0, 100));
+        long captured = System.currentTimeMillis() - 60000;
+
+        MvcResult replayed = mockMvc.perform(signed(put(HttpPeerClient.PATH), HttpMethod.PUT, PEER, VERSION, key,
+                captured, body)
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .content(body))
+                .andReturn();
+        assertEquals(401, replayed.getResponse().getStatus());
+
+        // Signature of the old time must not be accepted with a fresh time
+        MvcResult refreshed = mockMvc.perform(put(HttpPeerClient.PATH)
+                .param(HttpPeerClient.KEY_PARAMETER, key)
+                .header(HttpPeerClient.DATASET_VERSION_HEADER, VERSION)
+                .header(HttpPeerClient.PEER_HEADER, PEER)
+                .header(HttpPeerClient.TIMESTAMP_HEADER, System.currentTimeMillis())
+                .header(HttpPeerClient.SIGNATURE_HEADER,
+                        HttpPeerClient.sign(SECRET, HttpMethod.PUT, PEER, key, VERSION, captured, body))
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .content(body))
+                .andReturn();
+        assertEquals(401, refreshed.getResponse().getStatus());
+        verify(peerCacheTier, never()).putOwned(any(), any());
+    }
+}
@@ -0,0 +1,123 @@
+package bigqueryestatespring;
+
+import bigqueryestatespring.cache.ConsistentHashRing;
+import bigqueryestatespring.cache.PeerCacheTier;
+import bigqueryestatespring.cache.PeerClient;
+import bigqueryestatespring.cache.QueryKey;
+import bigqueryestatespring.cache.ResultCache;
+import bigqueryestatespring.nodes.AggregationNode;
+import bigqueryestatespring.nodes.EstatesTree;
+import bigqueryestatespring.nodes.TreeBuilder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static bigqueryestatespring.services.PropertiesAttribute.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PeerCacheTierTests {
+    private static final List<String> PEERS = Arrays.asList(
+            "http://localhost:8080", "http://localhost:8081", "http://localhost:8082");
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Map<String, PeerCacheTier> tiers = new LinkedHashMap<>();
+    private final Map<String, ExecutorService> executors = new LinkedHashMap<>();
+
+    /**
+     * Routes requests straight to the owned cache of the peer as the controller does
+     */
+    private final PeerClient client = new PeerClient() {
+        @Override
+        public Optional<EstatesTree> get(String peer, QueryKey key) {
+            return tiers.get(peer).getOwned(key);
+        }
+
+        @Override
+        public void put(String peer, QueryKey key, EstatesTree tree) {
+            tiers.get(peer).putOwned(key, tree);
+        }
+    };
+
+    @BeforeEach
+    public void createCluster() {
+        ConsistentHashRing ring = new ConsistentHashRing(PEERS, 100);
+        for (String peer : PEERS) {
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            executors.put(peer, executor);
+            tiers.put(peer, new PeerCacheTier(ring, peer, 2, client,
+                    new ResultCache<>(1000, 1000, EstatesTree::getNodeCount, System::currentTimeMillis), executor));
+        }
+    }
+
+    @AfterEach
+    public void closeCluster() {
+        tiers.values().forEach(PeerCacheTier::close);
+    }
+
+    private void awaitReplication() throws Exception {
+        for (ExecutorService executor : executors.values()) {
+            executor.submit(() -> { }).get();
+        }
+    }
+
+    private static QueryKey key(int bottom, int top) {
+        return new QueryKey(Arrays.asList(OPERATION, PROPERTY_TYPE), PRICE, bottom, top);
+    }
+
+    private static EstatesTree tree(double average) {
+        return new EstatesTree(new TreeBuilder()
+                .addBranch(Arrays.asList("rent", "house"), new AggregationNode(average, 2))
+                .build());
+    }
+
+    private String nonOwner(QueryKey key) {
+        List<String> owners = tiers.get(PEERS.get(0)).getOwners(key);
+        return PEERS.stream().filter(peer -> !owners.contains(peer)).findFirst().get();
+    }
+
+    @Test
+    public void storesTreeAtItsOwners() throws Exception {
+        QueryKey key = key(0, 10);
+        String writer = nonOwner(key);
+        tiers.get(writer).put(key, tree(1));
+        awaitReplication();
+
+        List<String> owners = tiers.get(writer).getOwners(key);
+        assertEquals(2, owners.size());
+        for (String peer : PEERS) {
+            assertEquals(owners.contains(peer), tiers.get(peer).getOwned(key).isPresent(), peer);
+        }
+    }
+
+    @Test
+    public void readsTreeFromOwnerOnOtherInstance() throws Exception {
+        QueryKey key = key(0, 20);
+        List<String> owners = tiers.get(PEERS.get(0)).getOwners(key);
+        tiers.get(owners.get(0)).put(key, tree(2));
+        awaitReplication();
+
+        Optional<EstatesTree> tree = tiers.get(nonOwner(key)).get(key);
+        assertTrue(tree.isPresent());
+        assertEquals(mapper.writeValueAsString(tree(2)), mapper.writeValueAsString(tree.get()));
+        assertFalse(tiers.get(nonOwner(key)).get(key(0, 21)).isPresent());
+    }
+
+    @Test
+    public void repairsOwnerFromReplica() {
+        QueryKey key = key(0, 30);
+        List<String> owners = tiers.get(PEERS.get(0)).getOwners(key);
+        tiers.get(owners.get(1)).putOwned(key, tree(3));
+
+        assertTrue(tiers.get(owners.get(0)).get(key).isPresent());
+        assertTrue(tiers.get(owners.get(0)).getOwned(key).isPresent());
+    }
+}
@@ -0,0 +1,124 @@
+package bigqueryestatespring;
+
+import bigqueryestatespring.controllers.EstatesController;
+import bigqueryestatespring.nodes.EstatesTree;
+import bigqueryestatespring.services.DataService;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+import static bigqueryestatespring.exceptionMessages.ExceptionMessage.TOP_BORDER_UNDER_BOTTOM_BORDER;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+
+@AutoConfigureMockMvc
+@ContextConfiguration(classes = EstatesController.class)
+@WebMvcTest
+public class ProgressiveEstatesControllerTests {
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @MockBean
+    private DataService service;
+
+    private MvcResult perform(MockHttpServletRequestBuilder request) throws Exception {
+        MvcResult result = mockMvc.perform(request).andReturn();
+        return result.getRequest().isAsyncStarted()
+                ? mockMvc.perform(asyncDispatch(result)).andReturn()
+                : result;
+    }
+
+    private static String getMessage(MvcResult result) throws Exception {
+        return mapper.readTree(result.getResponse().getContentAsByteArray()).get("message").asText();
+    }
+
+    @Test
+    public void sendsApproximateTreeBeforeExactTree() throws Exception {
+        EstatesTree tree = new EstatesTree(Collections.emptyList());
+        CompletableFuture<Optional<EstatesTree>> exact = new CompletableFuture<>();
+        when(service.getTreeAsync(anyList(), anyString(), any(), anyBoolean(), anyInt(), anyInt()))
+                .thenReturn(exact);
+        when(service.getApproximateTreeAsync(anyList(), anyString(), any(), anyBoolean(), anyInt(), anyInt()))
+                .thenReturn(CompletableFuture.completedFuture(Optional.of(tree)));
+        when(service.getSamplePercent()).thenReturn(10.0);
+
+        MvcResult result = mockMvc.perform(get("/estates/progressive")).andReturn();
+        assertTrue(result.getRequest().isAsyncStarted());
+        String approximate = result.getResponse().getContentAsString();
+        assertTrue(approximate.contains("event:approximate"));
+        assertFalse(approximate.contains("event:exact"));
+
+        exact.complete(Optional.of(tree));
+        result.getAsyncResult(1000);
+        String events = result.getResponse().getContentAsString();
+        assertTrue(events.indexOf("event:approximate") < events.indexOf("event:exact"));
+        assertEquals(events.indexOf("event:exact"), events.lastIndexOf("event:"));
+    }
+
+    @Test
+    public void skipsApproximateTreeAfterExactTree() throws Exception {
+        EstatesTree tree = new EstatesTree(Collections.emptyList());
+        CompletableFuture<Optional<EstatesTree>> exact = new CompletableFuture<>();
+        CompletableFuture<Optional<EstatesTree>> approximate = new CompletableFuture<>();
+        when(service.getTreeAsync(anyList(), anyString(), any(), anyBoolean(), anyInt(), anyInt()))
+                .thenReturn(exact);
+        when(service.getApproximateTreeAsync(anyList(), anyString(), any(), anyBoolean(), anyInt(), anyInt()))
+                .thenReturn(approximate);
+
+        MvcResult result = mockMvc.perform(get("/estates/progressive")).andReturn();
+        exact.complete(Optional.of(tree));
+        result.getAsyncResult(1000);
+        approximate.complete(Optional.of(tree));
+
+        String events = result.getResponse().getContentAsString();
+        assertTrue(events.contains("event:exact"));
+        assertFalse(events.contains("event:approximate"));
+    }
+
+    @Test
+    public void rejectsInvalidParametersAlike() throws Exception {
+        for (String query : new String[]{"?top=-1", "?bottom=2&top=1", "?columns=unknown", "?aggregates=unknown"}) {
+            MvcResult tree = perform(get("/estates" + query));
+            MvcResult stream = perform(get("/estates/stream" + query));
+            MvcResult progressive = perform(get("/estates/progressive" + query));
+
+            assertEquals(400, tree.getResponse().getStatus());
+            assertEquals(400, stream.getResponse().getStatus());
+            assertEquals(400, progressive.getResponse().getStatus());
+            assertEquals(getMessage(tree), getMessage(stream));
+            assertEquals(getMessage(tree), getMessage(progressive));
+        }
+    }
+
+    @Test
+    public void answersInvalidParametersAsynchronously() throws Exception {
+        MvcResult result = mockMvc.perform(get("/estates?bottom=100&top=1")).andReturn();
+
+        assertTrue(result.getRequest().isAsyncStarted());
+        MvcResult dispatched = mockMvc.perform(asyncDispatch(result)).andReturn();
+        assertEquals(400, dispatched.getResponse().getStatus());
+        assertEquals(TOP_BORDER_UNDER_BOTTOM_BORDER, getMessage(dispatched));
+    }
+}
@@ -0,0 +1,134 @@
+package bigqueryestatespring;
+
+import bigqueryestatespring.cache.CacheStats;
+import bigqueryestatespring.cache.CacheTier;
+import bigqueryestatespring.cache.QueryKey;
+import bigqueryestatespring.cache.ResultCache;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static bigqueryestatespring.services.PropertiesAttribute.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ResultCacheTests {
+    private final AtomicLong now = new AtomicLong();
+
+    private ResultCache<QueryKey, String> createCache(long maxWeight, long ttlMillis) {
+        return new ResultCache<>(maxWeight, ttlMillis, String::length, now::get);
+    }
+
+    private static QueryKey key(int bottom, int top) {
+        return new QueryKey(Arrays.asList(OPERATION, PROPERTY_TYPE), PRICE, bottom, top);
+    }
+
+    @Test
+    public void returnsCachedValueForEqualKey() {
+        ResultCache<QueryKey, String> cache = createCache(100, 1000);
+        cache.put(key(0, 10), "tree");
+
+        assertEquals("tree", cache.get(key(0, 10)).get());
+        assertFalse(cache.get(key(0, 11)).isPresent());
+
+        CacheStats stats = cache.getStats();
+        assertEquals(1, stats.getHits());
+        assertEquals(1, stats.getMisses());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedWhenWeightExceeded() {
+        ResultCache<QueryKey, String> cache = createCache(10, 1000);
+        cache.put(key(0, 1), "aaaa");
+        cache.put(key(0, 2), "bbbb");
+        cache.get(key(0, 1));
+        cache.put(key(0, 3), "cccc");
+
+        assertTrue(cache.get(key(0, 1)).isPresent());
+        assertFalse(cache.get(key(0, 2)).isPresent());
+        assertTrue(cache.get(key(0, 3)).isPresent());
+        assertEquals(1, cache.getStats().getEvictions());
+        assertEquals(8, cache.getStats().getWeight());
+    }
+
+    @Test
+    public void expiresEntriesAfterTtl() {
+        ResultCache<QueryKey, String> cache = createCache(100, 1000);
+        cache.put(key(0, 10), "tree");
+        now.addAndGet(1000);
+
+        assertFalse(cache.get(key(0, 10)).isPresent());
+        assertEquals(1, cache.getStats().getExpirations());
+        assertEquals(0, cache.getStats().getSize());
+    }
+
+    @Test
+    public void keyIsNotChangedByListOfCaller() {
+        ResultCache<QueryKey, String> cache = createCache(100, 1000);
+        List<String> columnNames = new ArrayList<>(Arrays.asList(OPERATION, PROPERTY_TYPE));
+        cache.put(new QueryKey(columnNames, PRICE, 0, 10), "tree");
+        columnNames.add(COUNTRY_NAME);
+
+        assertEquals("tree", cache.get(key(0, 10)).get());
+    }
+
+    @Test
+    public void clearRemovesAllEntries() {
+        ResultCache<QueryKey, String> cache = createCache(100, 1000);
+        cache.put(key(0, 10), "tree");
+        cache.clear();
+
+        assertFalse(cache.get(key(0, 10)).isPresent());
+        assertEquals(0, cache.getStats().getWeight());
+    }
+
+    @Test
+    public void promotesSecondTierHitToMemory() {
+        Map<QueryKey, String> disk = new HashMap<>();
+        ResultCache<QueryKey, String> cache = new ResultCache<>(100, 1000, String::length, now::get,
+                new MapTier(disk));
+        disk.put(key(0, 10), "tree");
+
+        assertEquals("tree", cache.get(key(0, 10)).get());
+        disk.clear();
+        assertEquals("tree", cache.get(key(0, 10)).get());
+        cache.put(key(0, 20), "other");
+
+        assertEquals("other", disk.get(key(0, 20)));
+        assertEquals(1, cache.getStats().getSecondTierHits());
+        assertEquals(2, cache.getStats().getHits());
+    }
+
+    private static class MapTier implements CacheTier<QueryKey, String> {
+        private final Map<QueryKey, String> values;
+
+        MapTier(Map<QueryKey, String> values) {
+            this.values = values;
+        }
+
+        @Override
+        public Optional<String> get(QueryKey key) {
+            return Optional.ofNullable(values.get(key));
+        }
+
+        @Override
+        public void put(QueryKey key, String value) {
+            values.put(key, value);
+        }
+
+        @Override
+        public void clear() {
+            values.clear();
+        }
+
+        @Override
+        public int size() {
+            return values.size();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package bigqueryestatespring;
+
+import bigqueryestatespring.cache.SingleFlight;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SingleFlightTests {
+
+    @Test
+    public void concurrentCallsShareOneComputation() {
+        SingleFlight<String, String> singleFlight = new SingleFlight<>();
+        CompletableFuture<String> job = new CompletableFuture<>();
+        AtomicInteger launches = new AtomicInteger();
+
+        CompletableFuture<String> first = singleFlight.execute("key", () -> {
+            launches.incrementAndGet();
+            return job;
+        });
+        CompletableFuture<String> second = singleFlight.execute("key", () -> {
+            launches.incrementAndGet();
+            return job;
+        });
+        job.complete("tree");
+
+        assertEquals("tree", first.join());
+        assertSame(first, second);
+        assertEquals(1, launches.get());
+        assertEquals(1, singleFlight.getStats().getLaunched());
+        assertEquals(1, singleFlight.getStats().getCoalesced());
+        assertEquals(0, singleFlight.getStats().getInFlight());
+    }
+
+    @Test
+    public void launchesNewComputationAfterCompletion() {
+        SingleFlight<String, String> singleFlight = new SingleFlight<>();
+
+        singleFlight.execute("key", () -> CompletableFuture.completedFuture("first")).join();
+        String second = singleFlight.execute("key", () -> CompletableFuture.completedFuture("second")).join();
+
+        assertEquals("second", second);
+        assertEquals(2, singleFlight.getStats().getLaunched());
+    }
+
+    @Test
+    public void releasesKeyWhenLaunchFails() {
+        SingleFlight<String, String> singleFlight = new SingleFlight<>();
+
+        CompletableFuture<String> failed = singleFlight.execute("key", () -> {
+            throw new RuntimeException("launch failed");
+        });
+
+        assertTrue(failed.isCompletedExceptionally());
+        assertEquals(0, singleFlight.getStats().getInFlight());
+    }
+
+    @Test
+    public void cancelsComputationWhenAllCallersCancel() {
+        SingleFlight<String, String> singleFlight = new SingleFlight<>();
+        CompletableFuture<String> job = new CompletableFuture<>();
+
+        CompletableFuture<String> first = singleFlight.executeCancellable("key", () -> job);
+        CompletableFuture<String> second = singleFlight.executeCancellable("key", () -> job);
+        first.cancel(true);
+
+        assertFalse(job.isCancelled());
+        assertEquals(1, singleFlight.getStats().getInFlight());
+        second.cancel(true);
+
+        assertTrue(job.isCancelled());
+        assertEquals(0, singleFlight.getStats().getInFlight());
+        assertEquals("next", singleFlight.executeCancellable("key",
+                () -> CompletableFuture.completedFuture("next")).join());
+    }
+}
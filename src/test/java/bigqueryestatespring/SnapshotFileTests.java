@@ -0,0 +1,87 @@
+package bigqueryestatespring;
+
+import bigqueryestatespring.backend.ColumnarTable;
+import bigqueryestatespring.backend.CsvTableLoader;
+import bigqueryestatespring.backend.SnapshotFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Optional;
+
+import static bigqueryestatespring.services.PropertiesAttribute.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SnapshotFileTests {
+    private static final CsvTableLoader loader = new CsvTableLoader(
+            Arrays.asList(OPERATION, PROPERTY_TYPE, COUNTRY_NAME, STATE_NAME),
+            Arrays.asList(PRICE, SURFACE_COVERED));
+
+    @TempDir
+    Path directory;
+
+    private Path copySource() throws Exception {
+        Path source = directory.resolve("estates.csv");
+        try (InputStream in = SnapshotFileTests.class.getResourceAsStream("/estates-sample.csv")) {
+            Files.copy(in, source);
+        }
+        return source;
+    }
+
+    @Test
+    public void buildsSnapshotAndReadsSameColumns() throws Exception {
+        Path source = copySource();
+        Path snapshot = directory.resolve("estates.snapshot");
+        ColumnarTable expected;
+        try (Reader reader = Files.newBufferedReader(source)) {
+            expected = loader.load(reader);
+        }
+
+        ColumnarTable actual = SnapshotFile.openOrBuild(snapshot, source, loader);
+
+        assertTrue(Files.exists(snapshot));
+        assertEquals(expected.getRowCount(), actual.getRowCount());
+        for (String column : expected.getStringColumns().keySet()) {
+            for (int row = 0; row < expected.getRowCount(); row++) {
+                assertEquals(expected.getStringColumn(column).getValue(expected.getStringColumn(column).getCode(row)),
+                        actual.getStringColumn(column).getValue(actual.getStringColumn(column).getCode(row)));
+            }
+        }
+        for (String column : expected.getNumericColumns().keySet()) {
+            for (int row = 0; row < expected.getRowCount(); row++) {
+                assertEquals(expected.getNumericColumn(column).get(row), actual.getNumericColumn(column).get(row));
+            }
+        }
+    }
+
+    @Test
+    public void detectsStaleSnapshot() throws Exception {
+        Path source = copySource();
+        Path snapshot = directory.resolve("estates.snapshot");
+        SnapshotFile.openOrBuild(snapshot, source, loader);
+
+        assertTrue(SnapshotFile.open(snapshot, SnapshotFile.fingerprint(source), true).isPresent());
+        assertFalse(SnapshotFile.open(snapshot, SnapshotFile.fingerprint(source) + 1, true).isPresent());
+    }
+
+    @Test
+    public void detectsCorruptedSnapshot() throws Exception {
+        Path source = copySource();
+        Path snapshot = directory.resolve("estates.snapshot");
+        SnapshotFile.openOrBuild(snapshot, source, loader);
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{42}), channel.size() - 1);
+        }
+
+        Optional<ColumnarTable> table = SnapshotFile.open(snapshot, SnapshotFile.fingerprint(source), true);
+
+        assertFalse(table.isPresent());
+    }
+}
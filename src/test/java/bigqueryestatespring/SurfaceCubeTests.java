@@ -0,0 +1,97 @@
+package bigqueryestatespring;
+
+import bigqueryestatespring.cube.SurfaceCube;
+import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.FieldList;
+import com.google.cloud.bigquery.FieldValue;
+import com.google.cloud.bigquery.FieldValueList;
+import com.google.cloud.bigquery.LegacySQLTypeName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static bigqueryestatespring.backend.QueryBackend.COUNT_PREFIX;
+import static bigqueryestatespring.backend.QueryBackend.SUM_PREFIX;
+import static bigqueryestatespring.services.PropertiesAttribute.PRICE;
+import static bigqueryestatespring.services.PropertiesAttribute.PROPERTY_TYPE;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class SurfaceCubeTests {
+    private static final List<String> RENT_HOUSE = Arrays.asList("rent", "house");
+    private static final List<String> RENT_APARTMENT = Arrays.asList("rent", "apartment");
+
+    private static SurfaceCube createCube() {
+        return new SurfaceCube.Builder()
+                .add(RENT_HOUSE, 120, 3000, 2)
+                .add(RENT_HOUSE, 40, 500, 1)
+                .add(RENT_APARTMENT, 50, 800, 2)
+                .add(RENT_HOUSE, 80, 1800, 3)
+                .build();
+    }
+
+    @Test
+    public void aggregatesOnlySurfacesInRange() {
+        List<List<String>> groups = new ArrayList<>();
+        List<Double> averages = new ArrayList<>();
+
+        createCube().query(40, 80, (group, sum, count) -> {
+            groups.add(group);
+            averages.add(sum / count);
+        });
+
+        assertEquals(Arrays.asList(RENT_HOUSE, RENT_APARTMENT), groups);
+        assertEquals(Arrays.asList(2300.0 / 4, 400.0), averages);
+    }
+
+    @Test
+    public void rangeBordersAreInclusive() {
+        List<Long> counts = new ArrayList<>();
+
+        createCube().query(80, 120, (group, sum, count) -> counts.add(count));
+
+        assertEquals(Arrays.asList(5L), counts);
+    }
+
+    @Test
+    public void skipsGroupsWithoutValuesInRange() {
+        List<List<String>> groups = new ArrayList<>();
+
+        createCube().query(0, 10, (group, sum, count) -> groups.add(group));
+
+        assertEquals(0, groups.size());
+    }
+
+    @Test
+    public void skipsRowsWithoutValues() {
+        FieldList fields = FieldList.of(
+                Field.of(PROPERTY_TYPE, LegacySQLTypeName.STRING),
+                Field.of(SurfaceCube.SURFACE_ALIAS, LegacySQLTypeName.FLOAT),
+                Field.of(SUM_PREFIX + PRICE, LegacySQLTypeName.FLOAT),
+                Field.of(COUNT_PREFIX + PRICE, LegacySQLTypeName.INTEGER));
+        List<FieldValueList> rows = Arrays.asList(
+                row(fields, "house", "120", "3000", "2"),
+                // SUM of a group without prices is null, COUNT is 0
+                row(fields, "house", "80", null, "0"),
+                row(fields, "apartment", "50", null, "0"));
+        List<List<String>> groups = new ArrayList<>();
+        List<Double> averages = new ArrayList<>();
+
+        SurfaceCube.fromRows(rows, Arrays.asList(PROPERTY_TYPE), PRICE).query(0, 200, (group, sum, count) -> {
+            groups.add(group);
+            averages.add(sum / count);
+        });
+
+        assertEquals(Arrays.asList(Arrays.asList("house")), groups);
+        assertEquals(Arrays.asList(1500.0), averages);
+    }
+
+    private static FieldValueList row(FieldList fields, String... values) {
+        List<FieldValue> fieldValues = new ArrayList<>();
+        for (String value : values) {
+            fieldValues.add(FieldValue.of(FieldValue.Attribute.PRIMITIVE, value));
+        }
+        return FieldValueList.of(fieldValues, fields);
+    }
+}
@@ -0,0 +1,104 @@
+package bigqueryestatespring;
+
+import bigqueryestatespring.nodes.AggregationNode;
+import bigqueryestatespring.nodes.Node;
+import bigqueryestatespring.nodes.NodeWithChildren;
+import bigqueryestatespring.nodes.TreeBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark comparing tree building by linear scan of siblings with building by TreeBuilder.
+ * Run with: mvn -P benchmark test -Djmh.args="TreeBuildBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class TreeBuildBenchmark {
+    private static final int[] CARDINALITIES = {2, 5, 3, 25, 2000};
+
+    @Param({"1000000"})
+    public int rowCount;
+
+    private List<List<String>> rows;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        rows = generateRows(rowCount, CARDINALITIES);
+    }
+
+    @Benchmark
+    public List<Node> linearScan() {
+        return buildByLinearScan(rows);
+    }
+
+    @Benchmark
+    public List<Node> treeBuilder() {
+        return buildByTreeBuilder(rows);
+    }
+
+    static List<List<String>> generateRows(int count, int[] cardinalities) {
+        Random random = new Random(42);
+        List<List<String>> rows = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String[] row = new String[cardinalities.length];
+            for (int level = 0; level < cardinalities.length; level++) {
+                row[level] = "level" + level + "_" + random.nextInt(cardinalities[level]);
+            }
+            rows.add(Arrays.asList(row));
+        }
+        return rows;
+    }
+
+    private static List<Node> buildByTreeBuilder(List<List<String>> rows) {
+        TreeBuilder treeBuilder = new TreeBuilder();
+        for (List<String> row : rows) {
+            treeBuilder.addBranch(row, new AggregationNode(0, 1));
+        }
+        return treeBuilder.build();
+    }
+
+    // Previous implementation of EstatesService.createBranch
+    private static List<Node> buildByLinearScan(List<List<String>> rows) {
+        List<Node> rootList = new ArrayList<>();
+        for (List<String> row : rows) {
+            List<Node> currentList = rootList;
+            for (String columnValue : row) {
+                boolean exists = false;
+                for (Node node : currentList) {
+                    if (node.checkEqualData(columnValue)) {
+                        currentList = ((NodeWithChildren) node).getChildren();
+                        exists = true;
+                        break;
+                    }
+                }
+                if (!exists) {
+                    NodeWithChildren newNode = new NodeWithChildren(columnValue);
+                    currentList.add(newNode);
+                    currentList = newNode.getChildren();
+                }
+            }
+            currentList.add(new AggregationNode(0, 1));
+        }
+        return rootList;
+    }
+}
@@ -0,0 +1,59 @@
+package bigqueryestatespring;
+
+import bigqueryestatespring.nodes.AggregationNode;
+import bigqueryestatespring.nodes.Node;
+import bigqueryestatespring.nodes.NodeWithChildren;
+import bigqueryestatespring.nodes.TreeBuilder;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static bigqueryestatespring.services.PropertiesAttribute.PRICE;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class TreeBuilderTests {
+
+    @Test
+    public void mergesCommonPrefixesAndKeepsInsertionOrder() {
+        List<Node> roots = new TreeBuilder()
+                .addBranch(Arrays.asList("sell", "house"), new AggregationNode(1, 1))
+                .addBranch(Arrays.asList("rent", "house"), new AggregationNode(2, 1))
+                .addBranch(Arrays.asList("sell", "apartment"), new AggregationNode(3, 1))
+                .build();
+
+        assertEquals(2, roots.size());
+        assertEquals("sell", roots.get(0).getData());
+        assertEquals("rent", roots.get(1).getData());
+        List<Node> sellChildren = ((NodeWithChildren) roots.get(0)).getChildren();
+        assertEquals("house", sellChildren.get(0).getData());
+        assertEquals("apartment", sellChildren.get(1).getData());
+        assertEquals(5 + 3, Node.countNodes(roots));
+    }
+
+    @Test
+    public void buildsLeavesOnFirstLevelWithoutColumns() {
+        List<Node> roots = new TreeBuilder()
+                .addBranch(Collections.emptyList(), new AggregationNode(1, 1))
+                .build();
+
+        assertEquals(1, roots.size());
+        assertEquals("1.0", roots.get(0).getData());
+    }
+
+    @Test
+    public void serializesToTheSameJsonShape() throws Exception {
+        List<Node> roots = new TreeBuilder()
+                .addBranch(Arrays.asList("rent", "house", "Argentina"), new AggregationNode(10.5, 1))
+                .build();
+
+        JsonNode json = new ObjectMapper().valueToTree(roots);
+
+        assertEquals("{\"data\":\"rent\",\"children\":[{\"data\":\"house\",\"children\":"
+                + "[{\"data\":\"Argentina\",\"children\":[{\"" + PRICE + "\":\"10.5\"}]}]}]}",
+                json.get(0).toString());
+    }
+}
@@ -0,0 +1,33 @@
+package bigqueryestatespring;
+
+import bigqueryestatespring.services.TreeFormat;
+import org.junit.jupiter.api.Test;
+
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+public class TreeFormatTests {
+
+    @Test
+    public void choosesJsonWithoutAcceptOrForWildcard() {
+        assertEquals(Optional.of(TreeFormat.JSON), TreeFormat.negotiate(null));
+        assertEquals(Optional.of(TreeFormat.JSON), TreeFormat.negotiate("*/*"));
+    }
+
+    @Test
+    public void choosesAcceptedFormatOfHighestQuality() {
+        assertEquals(Optional.of(TreeFormat.SMILE), TreeFormat.negotiate("application/x-jackson-smile"));
+        assertEquals(Optional.of(TreeFormat.CBOR),
+                TreeFormat.negotiate("application/json;q=0.5, application/cbor"));
+        assertEquals(Optional.of(TreeFormat.JSON),
+                TreeFormat.negotiate("application/cbor;q=0, application/json;q=0.1"));
+    }
+
+    @Test
+    public void rejectsUnsupportedMediaTypes() {
+        assertFalse(TreeFormat.negotiate("text/csv").isPresent());
+        assertFalse(TreeFormat.negotiate("not a media type").isPresent());
+    }
+}
@@ -0,0 +1,70 @@
+package bigqueryestatespring;
+
+import bigqueryestatespring.nodes.AggregationNode;
+import bigqueryestatespring.nodes.EstatesTree;
+import bigqueryestatespring.nodes.TreeBuilder;
+import bigqueryestatespring.nodes.TreeStreamWriter;
+import bigqueryestatespring.services.ResultTooLargeException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TreeStreamWriterTests {
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private static final List<List<String>> BRANCHES = Arrays.asList(
+            Arrays.asList("rent", "apartment", "Palermo"),
+            Arrays.asList("rent", "apartment", "Belgrano"),
+            Arrays.asList("rent", "house", "Tigre"),
+            Arrays.asList("sell", "house", "Tigre"));
+
+    @Test
+    public void writesTreeOfTheSameShapeAsEstatesTree() throws Exception {
+        TreeBuilder builder = new TreeBuilder();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TreeStreamWriter writer = new TreeStreamWriter(out, mapper, 3, Long.MAX_VALUE, Long.MAX_VALUE);
+        for (int i = 0; i < BRANCHES.size(); i++) {
+            builder.addBranch(BRANCHES.get(i), new AggregationNode(i * 100, i + 1));
+            writer.add(BRANCHES.get(i), new AggregationNode(i * 100, i + 1));
+        }
+        writer.finish();
+
+        assertEquals(mapper.valueToTree(new EstatesTree(builder.build())), mapper.readTree(out.toByteArray()));
+        assertEquals(4, writer.getRows());
+    }
+
+    @Test
+    public void writesEmptyTreeAndTreeWithoutLevels() throws Exception {
+        ByteArrayOutputStream empty = new ByteArrayOutputStream();
+        new TreeStreamWriter(empty, mapper, 2, 10, 100).finish();
+        ByteArrayOutputStream flat = new ByteArrayOutputStream();
+        TreeStreamWriter writer = new TreeStreamWriter(flat, mapper, 0, 10, 100);
+        writer.add(Collections.emptyList(), new AggregationNode(5, 1));
+        writer.finish();
+
+        assertEquals("[]", empty.toString("UTF-8"));
+        assertEquals("[{\"price\":\"5.0\"}]", flat.toString("UTF-8"));
+    }
+
+    @Test
+    public void failsOverLimits() throws Exception {
+        TreeStreamWriter rows = new TreeStreamWriter(new ByteArrayOutputStream(), mapper, 3, 2, Long.MAX_VALUE);
+        rows.add(BRANCHES.get(0), new AggregationNode(1, 1));
+        rows.add(BRANCHES.get(1), new AggregationNode(2, 1));
+
+        assertThrows(ResultTooLargeException.class, () -> rows.add(BRANCHES.get(2), new AggregationNode(3, 1)));
+
+        TreeStreamWriter bytes = new TreeStreamWriter(new ByteArrayOutputStream(), mapper, 3, Long.MAX_VALUE, 16);
+
+        assertThrows(ResultTooLargeException.class, () -> {
+            bytes.add(BRANCHES.get(0), new AggregationNode(1, 1));
+            bytes.finish();
+        });
+    }
+}